@@ -1094,7 +1094,8 @@ public class Cockpit extends JApplet implements S3ServiceEventListener, ActionLi
                     encryptionUtil = new EncryptionUtil(
                         cockpitPreferences.getEncryptionPassword(),
                         cockpitPreferences.getEncryptionAlgorithm(),
-                        EncryptionUtil.DEFAULT_VERSION);
+                        EncryptionUtil.getVersionForAlgorithm(
+                            cockpitPreferences.getEncryptionAlgorithm()));
                 } catch (Exception e) {
                     String message = "Unable to start encryption utility";
                     log.error(message, e);
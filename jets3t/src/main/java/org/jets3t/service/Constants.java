@@ -116,6 +116,12 @@ public class Constants {
      */
     public static final String METADATA_JETS3T_COMPRESSED = "jets3t-compression";
 
+    /**
+     * Metadata header for storing the part size used by JetS3t to upload an object as a
+     * multipart upload, so the object's multipart ETag can be reproduced from local data.
+     */
+    public static final String METADATA_JETS3T_MULTIPART_PART_SIZE = "jets3t-multipart-part-size";
+
     ///////////////////////////////////
     // Settings used by all S3 Services
     ///////////////////////////////////
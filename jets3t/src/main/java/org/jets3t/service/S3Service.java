@@ -3243,6 +3243,10 @@ public abstract class S3Service extends RestStorageService implements SignedUrlH
         } else {
             log.debug("Performing multipart upload for object with data > " + maxPartSize);
 
+            // Record the part size so the object's multipart ETag can be reproduced
+            object.addMetadata(Constants.METADATA_JETS3T_MULTIPART_PART_SIZE,
+                String.valueOf(maxPartSize));
+
             // Start upload
             MultipartUpload upload = multipartStartUpload(bucketName, object.getKey(), object.getMetadataMap(), object.getAcl(), object.getStorageClass());
 
@@ -0,0 +1,238 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Cache of object metadata retrieved by HEAD and GET requests, so that services that look up
+ * the details of the same objects repeatedly need not send a request every time.
+ * <p>
+ * An object's metadata is fresh for a time-to-live after it is retrieved, during which it is
+ * returned without contacting the service. Once it is stale the cached metadata is kept, so
+ * that its ETag can be used to revalidate it with a conditional request that returns no
+ * metadata unless the object has changed. Objects that were found not to exist are
+ * remembered for a separate, usually shorter, time-to-live. The cache holds at most a
+ * maximum number of objects by discarding the least recently used.
+ * <p>
+ * The cache does not see changes made by other clients, so the time-to-live should be no
+ * longer than the application can tolerate reading out-of-date metadata. Changes made through
+ * the service that owns the cache invalidate the affected objects.
+ */
+public class ObjectMetadataCache {
+
+    private final int maxEntries;
+    private final long timeToLiveMS;
+    private final long missingTimeToLiveMS;
+
+    private final Map<String, CachedObject> objectMap;
+
+    /**
+     * @param maxEntries
+     * the maximum number of objects held, beyond which the least recently used are discarded.
+     * @param timeToLiveMS
+     * the time in milliseconds for which an object's metadata is used without revalidation.
+     * @param missingTimeToLiveMS
+     * the time in milliseconds for which an object is remembered not to exist, or zero not to
+     * remember missing objects.
+     */
+    public ObjectMetadataCache(int maxEntries, long timeToLiveMS, long missingTimeToLiveMS) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum entries must be at least 1: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLiveMS = timeToLiveMS;
+        this.missingTimeToLiveMS = missingTimeToLiveMS;
+        this.objectMap = new LinkedHashMap<String, CachedObject>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedObject> eldest) {
+                return size() > ObjectMetadataCache.this.maxEntries;
+            }
+        };
+    }
+
+    private static String cacheKey(String bucketName, String objectKey) {
+        return bucketName + "/" + objectKey;
+    }
+
+    /**
+     * @return
+     * a copy of the object's metadata without any data, with its bucket name set.
+     */
+    private static StorageObject copyOf(StorageObject object, String bucketName) {
+        StorageObject copy = (StorageObject) object.clone();
+        copy.setDataInputStream(null);
+        copy.setBucketName(bucketName);
+        return copy;
+    }
+
+    /**
+     * @param bucketName
+     * @param objectKey
+     * @return
+     * a copy of the object's cached metadata if it is fresh, otherwise null.
+     */
+    public synchronized StorageObject getFreshObject(String bucketName, String objectKey) {
+        CachedObject entry = objectMap.get(cacheKey(bucketName, objectKey));
+        if (entry != null && entry.object != null && entry.isFresh(System.currentTimeMillis())) {
+            return copyOf(entry.object, bucketName);
+        }
+        return null;
+    }
+
+    /**
+     * @param bucketName
+     * @param objectKey
+     * @return
+     * true if the object was recently found not to exist.
+     */
+    public synchronized boolean isKnownMissing(String bucketName, String objectKey) {
+        CachedObject entry = objectMap.get(cacheKey(bucketName, objectKey));
+        return entry != null && entry.object == null && entry.isFresh(System.currentTimeMillis());
+    }
+
+    /**
+     * @param bucketName
+     * @param objectKey
+     * @return
+     * the ETag of the object's cached metadata, fresh or stale, or null if no metadata is
+     * cached or it has no ETag.
+     */
+    public synchronized String getETag(String bucketName, String objectKey) {
+        CachedObject entry = objectMap.get(cacheKey(bucketName, objectKey));
+        return (entry != null && entry.object != null ? entry.object.getETag() : null);
+    }
+
+    /**
+     * Caches the metadata of an object as fresh.
+     *
+     * @param bucketName
+     * @param object
+     * the object whose metadata is cached. Its data is not cached.
+     */
+    public synchronized void putObject(String bucketName, StorageObject object) {
+        objectMap.put(cacheKey(bucketName, object.getKey()), new CachedObject(
+            copyOf(object, bucketName), System.currentTimeMillis() + timeToLiveMS));
+    }
+
+    /**
+     * Remembers that an object does not exist.
+     *
+     * @param bucketName
+     * @param objectKey
+     */
+    public synchronized void putMissing(String bucketName, String objectKey) {
+        if (missingTimeToLiveMS > 0) {
+            objectMap.put(cacheKey(bucketName, objectKey),
+                new CachedObject(null, System.currentTimeMillis() + missingTimeToLiveMS));
+        } else {
+            objectMap.remove(cacheKey(bucketName, objectKey));
+        }
+    }
+
+    /**
+     * Marks an object's cached metadata as fresh again, once the service has confirmed that
+     * the object is unchanged.
+     *
+     * @param bucketName
+     * @param objectKey
+     * @param eTag
+     * the ETag the service confirmed, which must match the cached ETag.
+     * @return
+     * a copy of the object's cached metadata, or null if the cached metadata has been
+     * replaced or removed in the meantime.
+     */
+    public synchronized StorageObject refreshObject(String bucketName, String objectKey,
+        String eTag)
+    {
+        String key = cacheKey(bucketName, objectKey);
+        CachedObject entry = objectMap.get(key);
+        if (entry == null || entry.object == null || !eTag.equals(entry.object.getETag())) {
+            return null;
+        }
+        objectMap.put(key, new CachedObject(entry.object,
+            System.currentTimeMillis() + timeToLiveMS));
+        return copyOf(entry.object, bucketName);
+    }
+
+    /**
+     * Removes an object from the cache, for example because it has been replaced or deleted.
+     *
+     * @param bucketName
+     * @param objectKey
+     */
+    public synchronized void invalidate(String bucketName, String objectKey) {
+        objectMap.remove(cacheKey(bucketName, objectKey));
+    }
+
+    /**
+     * Removes all the objects in a bucket from the cache.
+     *
+     * @param bucketName
+     */
+    public synchronized void invalidateBucket(String bucketName) {
+        String prefix = bucketName + "/";
+        Iterator<String> keys = objectMap.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return objectMap.size();
+    }
+
+    public synchronized void clear() {
+        objectMap.clear();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTimeToLiveMS() {
+        return timeToLiveMS;
+    }
+
+    public long getMissingTimeToLiveMS() {
+        return missingTimeToLiveMS;
+    }
+
+    private static class CachedObject {
+        // Null for objects that do not exist
+        private final StorageObject object;
+        private final long freshUntilMS;
+
+        private CachedObject(StorageObject object, long freshUntilMS) {
+            this.object = object;
+            this.freshUntilMS = freshUntilMS;
+        }
+
+        private boolean isFresh(long now) {
+            return now < freshUntilMS;
+        }
+    }
+
+}
@@ -18,49 +18,263 @@
  */
 package org.jets3t.service.impl.rest.httpclient;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 /**
  * Cache to store mappings from a bucket name to a region, used to help with
  * request signing for AWS version 4 requests where you need to know a bucket's
  * region before you can correctly sign requests that operate on that bucket.
+ * <p>
+ * The cache is safe for use by many threads, holds at most a maximum number of
+ * mappings by discarding the least recently used, and may expire mappings after
+ * a time-to-live. Its mappings can be saved to and loaded from a file so that
+ * short-lived processes need not rediscover the region of each bucket every time
+ * they run.
  *
  * @author jmurty
  */
 public class RegionEndpointCache {
-    private Map<String, String> bucketNameToRegionMap = new HashMap<String, String>();
+    /**
+     * The default maximum number of bucket-to-region mappings held: 1000.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
 
-    public String getRegionForBucketName(String bucketName) {
-        if (bucketNameToRegionMap.containsKey(bucketName)) {
-            return bucketNameToRegionMap.get(bucketName);
-        } else {
+    private final int maxEntries;
+    private final long timeToLiveMS;
+
+    private final Map<String, CachedRegion> bucketNameToRegionMap;
+
+    /**
+     * Constructs a cache of up to {@link #DEFAULT_MAX_ENTRIES} mappings that never expire.
+     */
+    public RegionEndpointCache() {
+        this(DEFAULT_MAX_ENTRIES, 0);
+    }
+
+    /**
+     * @param maxEntries
+     * the maximum number of mappings held, beyond which the least recently used are discarded.
+     * @param timeToLiveMS
+     * the time in milliseconds after which a mapping expires, or zero for mappings never to expire.
+     */
+    public RegionEndpointCache(int maxEntries, long timeToLiveMS) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum entries must be at least 1: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLiveMS = timeToLiveMS;
+        this.bucketNameToRegionMap = new LinkedHashMap<String, CachedRegion>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRegion> eldest) {
+                return size() > RegionEndpointCache.this.maxEntries;
+            }
+        };
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTimeToLiveMS() {
+        return timeToLiveMS;
+    }
+
+    /**
+     * @return
+     * the live mapping for the bucket name, with expired mappings removed, or null if there is none.
+     */
+    private CachedRegion getLiveEntry(String bucketName, long now) {
+        CachedRegion entry = bucketNameToRegionMap.get(bucketName);
+        if (entry != null && entry.isExpired(now)) {
+            bucketNameToRegionMap.remove(bucketName);
             return null;
         }
+        return entry;
     }
 
-    public String putRegionForBucketName(String bucketName, String region) {
+    public synchronized String getRegionForBucketName(String bucketName) {
+        CachedRegion entry = getLiveEntry(bucketName, System.currentTimeMillis());
+        return (entry != null ? entry.region : null);
+    }
+
+    /**
+     * Stores the region for a bucket, which will expire after the cache's time-to-live.
+     *
+     * @param bucketName
+     * @param region
+     * @return
+     * the region previously stored for the bucket, or null if there was no live mapping.
+     */
+    public synchronized String putRegionForBucketName(String bucketName, String region) {
         if (bucketName != null && region != null) {
-            return bucketNameToRegionMap.put(bucketName, region);
+            long now = System.currentTimeMillis();
+            CachedRegion previous = getLiveEntry(bucketName, now);
+            bucketNameToRegionMap.put(bucketName, new CachedRegion(region,
+                (timeToLiveMS > 0 ? now + timeToLiveMS : 0)));
+            return (previous != null ? previous.region : null);
         } else {
             return null;
         }
     }
 
-    public boolean containsRegionForBucketName(String bucketName) {
-        return bucketNameToRegionMap.containsKey(bucketName);
+    public synchronized boolean containsRegionForBucketName(String bucketName) {
+        return getLiveEntry(bucketName, System.currentTimeMillis()) != null;
+    }
+
+    public synchronized boolean containsRegionForAnyBucketName(String region) {
+        long now = System.currentTimeMillis();
+        for (CachedRegion entry: bucketNameToRegionMap.values()) {
+            if (entry.region.equals(region) && !entry.isExpired(now)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public boolean containsRegionForAnyBucketName(String region) {
-        return bucketNameToRegionMap.containsValue(region);
+    public synchronized String removeRegionForBucketName(String bucketName) {
+        CachedRegion entry = bucketNameToRegionMap.remove(bucketName);
+        return (entry != null && !entry.isExpired(System.currentTimeMillis())
+            ? entry.region : null);
     }
 
-    public String removeRegionForBucketName(String bucketName) {
-        return bucketNameToRegionMap.remove(bucketName);
+    public synchronized int size() {
+        return bucketNameToRegionMap.size();
     }
 
-    public void clear() {
+    public synchronized void clear() {
         bucketNameToRegionMap.clear();
     }
 
+    /**
+     * Adds the mappings saved in a file by {@link #saveToFile(File)} to this cache. Mappings
+     * that have expired are ignored, and mappings already in the cache are not replaced.
+     *
+     * @param file
+     * the file to load, which is ignored if it does not exist.
+     * @throws IOException
+     */
+    public void loadFromFile(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (String bucketName: properties.stringPropertyNames()) {
+                CachedRegion entry = CachedRegion.parse(properties.getProperty(bucketName));
+                if (entry == null || entry.isExpired(now)
+                    || getLiveEntry(bucketName, now) != null)
+                {
+                    continue;
+                }
+                // Never keep a loaded mapping for longer than this cache's time-to-live
+                if (timeToLiveMS > 0 && (entry.expiresAtMS == 0
+                    || entry.expiresAtMS > now + timeToLiveMS))
+                {
+                    entry = new CachedRegion(entry.region, now + timeToLiveMS);
+                }
+                bucketNameToRegionMap.put(bucketName, entry);
+            }
+        }
+    }
+
+    /**
+     * Saves the live mappings in this cache to a file, which is replaced in a single step so
+     * other processes reading it never see a partly written file.
+     *
+     * @param file
+     * the file to save.
+     * @throws IOException
+     */
+    public void saveToFile(File file) throws IOException {
+        Properties properties = new Properties();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            List<String> bucketNames = new ArrayList<String>(bucketNameToRegionMap.keySet());
+            for (String bucketName: bucketNames) {
+                CachedRegion entry = getLiveEntry(bucketName, now);
+                if (entry != null) {
+                    properties.setProperty(bucketName, entry.toString());
+                }
+            }
+        }
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory for region cache file " + file);
+        }
+        File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            OutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                properties.store(outputStream, "JetS3t bucket regions: region,expiry-time-ms");
+            } finally {
+                outputStream.close();
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static class CachedRegion {
+        private final String region;
+        private final long expiresAtMS;
+
+        private CachedRegion(String region, long expiresAtMS) {
+            this.region = region;
+            this.expiresAtMS = expiresAtMS;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAtMS != 0 && now >= expiresAtMS;
+        }
+
+        private static CachedRegion parse(String value) {
+            int comma = value.lastIndexOf(',');
+            try {
+                if (comma > 0) {
+                    return new CachedRegion(value.substring(0, comma),
+                        Long.parseLong(value.substring(comma + 1).trim()));
+                } else if (value.length() > 0) {
+                    return new CachedRegion(value, 0);
+                }
+            } catch (NumberFormatException e) {
+                // Ignore malformed entries
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return region + "," + expiresAtMS;
+        }
+    }
+
 }
@@ -24,13 +24,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Random;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.protocol.HTTP;
 import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.io.BandwidthLimiter;
+import org.jets3t.service.io.BufferPool;
 import org.jets3t.service.io.InputStreamWrapper;
 import org.jets3t.service.io.ProgressMonitoredInputStream;
 import org.jets3t.service.io.RepeatableInputStream;
@@ -40,9 +41,9 @@ import org.slf4j.LoggerFactory;
 
 /**
  * An HttpClient request entity whose underlying data can be re-read (that is, repeated)
- * if necessary to retry failed transmissions. This class also provides basic byte-rate
- * throttling by throttling the reading of request bodies, the throttling value is set
- * with the JetS3t property <tt>httpclient.read-throttle</tt>. If Logging is enabled
+ * if necessary to retry failed transmissions. This class also limits the rate at which
+ * request bodies are written with a {@link BandwidthLimiter}, which by default is the
+ * global upload limiter. If Logging is enabled
  * for this class the MD5 hash values (Base64 and Hex) are logged after all data has
  * been written to the output stream.
  * <p>
@@ -61,6 +62,16 @@ public class RepeatableRequestEntity implements HttpEntity {
 
     private static final Logger log = LoggerFactory.getLogger(RepeatableRequestEntity.class);
 
+    /**
+     * @deprecated
+     * upload rates are limited by {@link BandwidthLimiter#getGlobalUploadLimiter()}, which is
+     * configured with the <tt>httpclient.read-throttle</tt> property. A new value set here is
+     * applied to that limiter the next time {@link #throttle(int)} is called.
+     */
+    @Deprecated
+    protected static long MAX_BYTES_PER_SECOND = 0;
+    private static long appliedMaxBytesPerSecond = 0;
+
     private String name = null;
     private InputStream is = null;
     private String contentType = null;
@@ -70,10 +81,7 @@ public class RepeatableRequestEntity implements HttpEntity {
     private InputStream repeatableInputStream = null;
     private ProgressMonitoredInputStream progressMonitoredIS = null;
 
-    protected static long MAX_BYTES_PER_SECOND = 0;
-    private static volatile long bytesWrittenThisSecond = 0;
-    private static volatile long currentSecondMonitored = 0;
-    private static final Random random = new Random();
+    private BandwidthLimiter bandwidthLimiter = null;
 
     private boolean isLiveMD5HashingEnabled = true;
     private byte[] dataMD5Hash = null;
@@ -95,9 +103,8 @@ public class RepeatableRequestEntity implements HttpEntity {
      * This constructor also detects when an underlying {@link ProgressMonitoredInputStream} is
      * present, and will notify this monitor if a repeat occurs.
      * <p>
-     * If the JetS3t properties option <code>httpclient.read-throttle</code> is set to a
-     * non-zero value, all simultaneous uploads performed by this class will be throttled
-     * to the specified speed.
+     * Data is written no faster than the global upload limiter allows, see
+     * {@link BandwidthLimiter#getGlobalUploadLimiter()}.
      *
      * @param name
      *
@@ -112,6 +119,30 @@ public class RepeatableRequestEntity implements HttpEntity {
      */
     public RepeatableRequestEntity(String name, InputStream is, String contentType,
         long contentLength, Jets3tProperties jets3tProperties, boolean enableLiveMD5Hashing)
+    {
+        this(name, is, contentType, contentLength, jets3tProperties, enableLiveMD5Hashing,
+            BandwidthLimiter.getGlobalUploadLimiter());
+    }
+
+    /**
+     * Creates a repeatable request entity for the input stream provided, as described in
+     * {@link #RepeatableRequestEntity(String, InputStream, String, long, Jets3tProperties, boolean)},
+     * whose data is written no faster than the given limiter allows.
+     *
+     * @param name
+     *
+     * @param is
+     * the input stream that supplies the data to be made repeatable.
+     * @param contentType
+     * @param contentLength
+     * @param enableLiveMD5Hashing
+     * if true, data that passes through the object will be hashed to an MD5 digest.
+     * @param bandwidthLimiter
+     * the limiter that applies to the data written by this entity.
+     */
+    public RepeatableRequestEntity(String name, InputStream is, String contentType,
+        long contentLength, Jets3tProperties jets3tProperties, boolean enableLiveMD5Hashing,
+        BandwidthLimiter bandwidthLimiter)
     {
         if (is == null) {
             throw new IllegalArgumentException("InputStream cannot be null");
@@ -121,6 +152,7 @@ public class RepeatableRequestEntity implements HttpEntity {
         this.contentLength = contentLength;
         this.contentType = contentType;
         this.isLiveMD5HashingEnabled = enableLiveMD5Hashing;
+        this.bandwidthLimiter = bandwidthLimiter;
 
         InputStream inputStream = is;
         while (true) {
@@ -165,8 +197,6 @@ public class RepeatableRequestEntity implements HttpEntity {
 
             this.repeatableInputStream = this.is;
         }
-
-        MAX_BYTES_PER_SECOND = 1024 * jets3tProperties.getLongProperty("httpclient.read-throttle", 0);
     }
 
 
@@ -256,28 +286,28 @@ public class RepeatableRequestEntity implements HttpEntity {
             }
         }
 
-        int readBufferSize = DEFAULT_BUFFER_SIZE;
-        // Use smaller buffer size if read-throttling is in effect, to more fairly share
-        // restricted bandwidth between potentially many uploads. A side-effect of the
-        // algorithm in throttle()  is that this read buffer size is the smallest possible
-        // throttling value.
-        if (MAX_BYTES_PER_SECOND > 0) {  // Read throttle is applied if this value is non-zero
-            readBufferSize = 4 * 1024; // 4KB
-        }
-
-        byte[] tmp = new byte[readBufferSize];
+        // Borrow a pooled buffer, no larger than needed for small objects.
+        int bufferSize = (contentLength > 0
+            ? (int) Math.min(contentLength, DEFAULT_BUFFER_SIZE) : DEFAULT_BUFFER_SIZE);
+        byte[] tmp = BufferPool.getDefaultPool().borrow(bufferSize);
         int count = 0;
 
-        while ((count = this.is.read(tmp)) >= 0) {
-            throttle(count);
+        try {
+            // Read no more data at a time than the bandwidth limiter can apply its rate to
+            // smoothly, since limits may change while data is written.
+            while ((count = this.is.read(tmp, 0, bandwidthLimiter.getChunkSize(tmp.length))) >= 0) {
+                bandwidthLimiter.acquire(count);
 
-            bytesWritten += count;
+                bytesWritten += count;
 
-            out.write(tmp, 0, count);
+                out.write(tmp, 0, count);
 
-            if (messageDigest != null) {
-                messageDigest.update(tmp, 0, count);
+                if (messageDigest != null) {
+                    messageDigest.update(tmp, 0, count);
+                }
             }
+        } finally {
+            BufferPool.getDefaultPool().release(tmp);
         }
 
         if (messageDigest != null) {
@@ -301,65 +331,31 @@ public class RepeatableRequestEntity implements HttpEntity {
         }
     }
 
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
     /**
-     * Throttles the speed at which data is written by this request entity to the
-     * maximum rate in KB/s specified by {@link #MAX_BYTES_PER_SECOND}. The method
-     * works by repeatedly delaying its completion until writing the requested number
-     * of bytes will not exceed the imposed limit for the current second. The delay
-     * imposed each time the completion is deferred is a random value between 0-250ms.
-     * <p>
-     * This method is static and is shared by all instances of this class, so the byte
-     * rate limit applies for all currently active RepeatableRequestEntity instances.
+     * Waits until the global upload limiter allows the given number of bytes to be written,
+     * first applying any new value of {@link #MAX_BYTES_PER_SECOND} to that limiter.
      *
      * @param bytesToWrite
      * the count of bytes that will be written once this method returns.
      * @throws IOException
-     * an exception is thrown if the sleep delay is interrupted.
+     * an exception is thrown if the wait is interrupted.
+     * @deprecated
+     * use {@link BandwidthLimiter#acquire(int)} on the limiter that applies to the upload.
      */
+    @Deprecated
     protected static void throttle(int bytesToWrite) throws IOException {
-        if (MAX_BYTES_PER_SECOND <= 0) {
-            // No throttling is applied.
-            return;
-        }
-
-        // All calculations are based on the current second time interval.
-        long currentSecond = System.currentTimeMillis() / 1000;
-        boolean willExceedThrottle;
-
-        // All calculations are synchronized as this method can be called by multiple threads.
-        synchronized (random) {
-            // Check whether a new second has ticked over.
-            boolean isCurrentSecond = currentSecond == currentSecondMonitored;
-
-            if (isCurrentSecond) {
-                // If a new second hasn't ticked over, we must limit the number of extra bytes
-                // written this second. Check whether we can write the requested number of bytes.
-                willExceedThrottle = bytesWrittenThisSecond + bytesToWrite > MAX_BYTES_PER_SECOND;
-
-                if (!willExceedThrottle) {
-                    // We can write bytes without exceeding the limit; keep track of how many
-                    // bytes we are about to write.
-                    bytesWrittenThisSecond += bytesToWrite;
-                }
-            } else {
-                // We are in a brand new second, so write some bytes this round to ensure
-                // we keep the connection alive (S3 won't keep inactive connections open for long)
-                willExceedThrottle = false;
-                currentSecondMonitored = currentSecond;
-                bytesWrittenThisSecond = bytesToWrite;
-            }
-        } // End synchronized
-
-        if (willExceedThrottle) {
-            // Sleep for a random interval, then make a recursive call to see if we
-            // will be allowed to write bytes then.
-            try {
-                Thread.sleep(random.nextInt(250));
-            } catch (InterruptedException e) {
-                throw new IOException("Throttling of transmission was interrupted");
+        BandwidthLimiter limiter = BandwidthLimiter.getGlobalUploadLimiter();
+        synchronized (RepeatableRequestEntity.class) {
+            if (MAX_BYTES_PER_SECOND != appliedMaxBytesPerSecond) {
+                appliedMaxBytesPerSecond = MAX_BYTES_PER_SECOND;
+                limiter.setBytesPerSecond(MAX_BYTES_PER_SECOND);
             }
-            throttle(bytesToWrite);
         }
+        limiter.acquire(bytesToWrite);
     }
 
 }
@@ -784,7 +784,7 @@ public class RestS3Service extends S3Service {
                     if (log.isDebugEnabled()) {
                         log.debug("Uploading multipart part data with Content-Length: " + object.getContentLength());
                     }
-                    requestEntity = new RepeatableRequestEntity(object.getKey(), object.getDataInputStream(), object.getContentType(), object.getContentLength(), getJetS3tProperties(), isLiveMD5HashingRequired);
+                    requestEntity = new RepeatableRequestEntity(object.getKey(), object.getDataInputStream(), object.getContentType(), object.getContentLength(), getJetS3tProperties(), isLiveMD5HashingRequired, getUploadBandwidthLimiter(bucketName));
                 } else {
                     // Use InputStreamRequestEntity for objects with an unknown content length, as the
                     // entity will cache the results and doesn't need to know the data length in advance.
@@ -921,6 +921,8 @@ public class RestS3Service extends S3Service {
             throw new S3ServiceException(e);
         } catch (FactoryConfigurationError e) {
             throw new S3ServiceException(e);
+        } finally {
+            invalidateCachedObject(bucketName, objectKey);
         }
     }
 
@@ -1190,6 +1192,10 @@ public class RestS3Service extends S3Service {
             throw new S3ServiceException(se);
         } catch (UnsupportedEncodingException e) {
             throw new S3ServiceException("Unable to encode XML document", e);
+        } finally {
+            for (ObjectKeyAndVersion nav : objectNameAndVersions) {
+                invalidateCachedObject(bucketName, nav.getKey());
+            }
         }
     }
 
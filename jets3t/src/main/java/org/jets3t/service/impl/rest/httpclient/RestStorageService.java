@@ -21,6 +21,7 @@ package org.jets3t.service.impl.rest.httpclient;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -35,6 +36,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -69,6 +71,9 @@ import org.jets3t.service.acl.AccessControlList;
 import org.jets3t.service.impl.rest.HttpException;
 import org.jets3t.service.impl.rest.XmlResponsesSaxParser.CopyObjectResultHandler;
 import org.jets3t.service.impl.rest.XmlResponsesSaxParser.ListBucketHandler;
+import org.jets3t.service.io.BandwidthLimitedInputStream;
+import org.jets3t.service.io.BandwidthLimiter;
+import org.jets3t.service.io.ResumableObjectInputStream;
 import org.jets3t.service.model.BaseStorageItem;
 import org.jets3t.service.model.CreateBucketConfiguration;
 import org.jets3t.service.model.S3Object;
@@ -109,12 +114,23 @@ public abstract class RestStorageService extends StorageService implements JetS3
     protected CredentialsProvider credentialsProvider;
 
     protected RegionEndpointCache regionEndpointCache = null;
+    protected File regionEndpointCacheFile = null;
+    protected ObjectMetadataCache objectMetadataCache = null;
 
     protected String defaultStorageClass;
     protected String defaultServerSideEncryptionAlgorithm;
 
     protected volatile boolean shuttingDown;
 
+    protected BandwidthLimiter uploadBandwidthLimiter;
+    protected BandwidthLimiter downloadBandwidthLimiter;
+    protected int downloadResumeMaxRetries;
+    protected long downloadResumeBackoffMS;
+    private final Map<String, BandwidthLimiter> bucketUploadBandwidthLimiters =
+        new ConcurrentHashMap<String, BandwidthLimiter>();
+    private final Map<String, BandwidthLimiter> bucketDownloadBandwidthLimiters =
+        new ConcurrentHashMap<String, BandwidthLimiter>();
+
     /**
      * Constructs the service and initializes the properties.
      *
@@ -163,7 +179,73 @@ public abstract class RestStorageService extends StorageService implements JetS3
                 "s3service.default-storage-class", null);
         this.defaultServerSideEncryptionAlgorithm = getJetS3tProperties().getStringProperty(
                 "s3service.server-side-encryption", null);
-        this.regionEndpointCache = new RegionEndpointCache();
+        this.regionEndpointCache = new RegionEndpointCache(
+                getJetS3tProperties().getIntProperty("storage-service.region-cache-max-entries",
+                    RegionEndpointCache.DEFAULT_MAX_ENTRIES),
+                1000 * getJetS3tProperties().getLongProperty(
+                    "storage-service.region-cache-ttl-seconds", 0));
+        int objectMetadataCacheMaxEntries = getJetS3tProperties().getIntProperty(
+                "storage-service.metadata-cache-max-entries", 0);
+        if (objectMetadataCacheMaxEntries > 0) {
+            this.objectMetadataCache = new ObjectMetadataCache(objectMetadataCacheMaxEntries,
+                1000 * getJetS3tProperties().getLongProperty(
+                    "storage-service.metadata-cache-ttl-seconds", 60),
+                1000 * getJetS3tProperties().getLongProperty(
+                    "storage-service.metadata-cache-missing-ttl-seconds", 5));
+        }
+        String regionEndpointCacheFilename = getJetS3tProperties().getStringProperty(
+                "storage-service.region-cache-file", null);
+        if (regionEndpointCacheFilename != null) {
+            this.regionEndpointCacheFile = new File(regionEndpointCacheFilename);
+            try {
+                this.regionEndpointCache.loadFromFile(this.regionEndpointCacheFile);
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to load bucket regions from file "
+                        + this.regionEndpointCacheFile, e);
+                }
+            }
+        }
+
+        // Throttle properties limit all the uploads or downloads of the JVM, as the read
+        // throttle always has, rather than those of each service.
+        configureGlobalBandwidthLimiter(BandwidthLimiter.getGlobalUploadLimiter(),
+            "httpclient.read-throttle", "httpclient.read-throttle-schedule");
+        configureGlobalBandwidthLimiter(BandwidthLimiter.getGlobalDownloadLimiter(),
+            "httpclient.download-throttle", "httpclient.download-throttle-schedule");
+        this.uploadBandwidthLimiter = new BandwidthLimiter("Service uploads",
+            BandwidthLimiter.getGlobalUploadLimiter());
+        this.downloadResumeMaxRetries = getJetS3tProperties().getIntProperty(
+            "storage-service.download-resume-max-retries", 0);
+        this.downloadResumeBackoffMS = getJetS3tProperties().getLongProperty(
+            "storage-service.download-resume-backoff-ms", 1000);
+        this.downloadBandwidthLimiter = new BandwidthLimiter("Service downloads",
+            BandwidthLimiter.getGlobalDownloadLimiter());
+    }
+
+    /**
+     * Applies the limit and schedule properties that are set in this service's properties
+     * to a global limiter, leaving the limiter unchanged by properties that are not set.
+     *
+     * @param limiter
+     * the global limiter.
+     * @param limitPropertyName
+     * the name of the property giving the limit in KB per second.
+     * @param schedulePropertyName
+     * the name of the property giving a schedule of limits, see
+     * {@link BandwidthLimiter#setSchedule(String)}.
+     */
+    private void configureGlobalBandwidthLimiter(BandwidthLimiter limiter,
+        String limitPropertyName, String schedulePropertyName)
+    {
+        if (getJetS3tProperties().containsKey(limitPropertyName)) {
+            limiter.setBytesPerSecond(
+                1024 * getJetS3tProperties().getLongProperty(limitPropertyName, 0));
+        }
+        if (getJetS3tProperties().containsKey(schedulePropertyName)) {
+            limiter.setSchedule(
+                getJetS3tProperties().getStringProperty(schedulePropertyName, null));
+        }
     }
 
     @Override
@@ -223,6 +305,72 @@ public abstract class RestStorageService extends StorageService implements JetS3
             getInvokingApplicationDescription(), getCredentialsProvider());
     }
 
+    /**
+     * @return
+     * the limiter for all uploads performed by this service, which is nested within the
+     * global upload limiter. It does not limit uploads until its limit is set, while the
+     * <tt>httpclient.read-throttle</tt> and <tt>httpclient.read-throttle-schedule</tt>
+     * properties set the limit of the global upload limiter.
+     */
+    public BandwidthLimiter getUploadBandwidthLimiter() {
+        return uploadBandwidthLimiter;
+    }
+
+    /**
+     * @return
+     * the limiter for all downloads performed by this service, which is nested within the
+     * global download limiter. It does not limit downloads until its limit is set, while the
+     * <tt>httpclient.download-throttle</tt> and <tt>httpclient.download-throttle-schedule</tt>
+     * properties set the limit of the global download limiter.
+     */
+    public BandwidthLimiter getDownloadBandwidthLimiter() {
+        return downloadBandwidthLimiter;
+    }
+
+    /**
+     * @param bucketName
+     * the name of a bucket.
+     * @return
+     * the limiter for uploads to the bucket by this service, nested within the service's
+     * upload limiter. It does not limit uploads unless its limit is set.
+     */
+    public BandwidthLimiter getUploadBandwidthLimiter(String bucketName) {
+        return getBucketBandwidthLimiter(bucketUploadBandwidthLimiters, uploadBandwidthLimiter,
+            bucketName, "uploads");
+    }
+
+    /**
+     * @param bucketName
+     * the name of a bucket.
+     * @return
+     * the limiter for downloads from the bucket by this service, nested within the service's
+     * download limiter. It does not limit downloads unless its limit is set.
+     */
+    public BandwidthLimiter getDownloadBandwidthLimiter(String bucketName) {
+        return getBucketBandwidthLimiter(bucketDownloadBandwidthLimiters, downloadBandwidthLimiter,
+            bucketName, "downloads");
+    }
+
+    private BandwidthLimiter getBucketBandwidthLimiter(Map<String, BandwidthLimiter> limiters,
+        BandwidthLimiter serviceLimiter, String bucketName, String description)
+    {
+        if (bucketName == null) {
+            return serviceLimiter;
+        }
+        BandwidthLimiter limiter = limiters.get(bucketName);
+        if (limiter == null) {
+            synchronized (limiters) {
+                limiter = limiters.get(bucketName);
+                if (limiter == null) {
+                    limiter = new BandwidthLimiter(
+                        "Bucket " + description + ": " + bucketName, serviceLimiter);
+                    limiters.put(bucketName, limiter);
+                }
+            }
+        }
+        return limiter;
+    }
+
     /**
      * @return the HTTP client for this service.
      */
@@ -276,6 +424,63 @@ public abstract class RestStorageService extends StorageService implements JetS3
         this.regionEndpointCache = rec;
     }
 
+    /**
+     * @return
+     * the cache of object metadata used by this service, or null if metadata is not cached.
+     */
+    public ObjectMetadataCache getObjectMetadataCache() {
+        return this.objectMetadataCache;
+    }
+
+    /**
+     * Set the cache of object metadata used by this service.
+     * @param cache
+     * the cache to use, or null to stop caching metadata.
+     */
+    public void setObjectMetadataCache(ObjectMetadataCache cache) {
+        this.objectMetadataCache = cache;
+    }
+
+    /**
+     * Removes an object from the metadata cache, if there is one, after it has been changed
+     * through this service.
+     *
+     * @param bucketName
+     * @param objectKey
+     */
+    protected void invalidateCachedObject(String bucketName, String objectKey) {
+        ObjectMetadataCache cache = this.objectMetadataCache;
+        if (cache != null) {
+            cache.invalidate(bucketName, objectKey);
+        }
+    }
+
+    /**
+     * Caches the region of a bucket, and saves the cache to the file named by the
+     * "storage-service.region-cache-file" property when the bucket's region is new.
+     *
+     * @param bucketName
+     * @param region
+     */
+    protected void cacheRegionForBucketName(String bucketName, String region) {
+        if (this.regionEndpointCache == null) {
+            return;
+        }
+        String previousRegion = this.regionEndpointCache.putRegionForBucketName(bucketName, region);
+        if (this.regionEndpointCacheFile != null && bucketName != null && region != null
+            && !region.equals(previousRegion))
+        {
+            try {
+                this.regionEndpointCache.saveToFile(this.regionEndpointCacheFile);
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to save bucket regions to file "
+                        + this.regionEndpointCacheFile, e);
+                }
+            }
+        }
+    }
+
     /**
      * @param contentType HTTP Header
      * @return true if the given Content-Type string represents an XML document.
@@ -570,8 +775,7 @@ public abstract class RestStorageService extends StorageService implements JetS3
                     URI originalURI = httpUriRequest.getURI();
                     String bucketName = ServiceUtils.findBucketNameInHostOrPath(
                         originalURI, this.getEndpoint());
-                    this.regionEndpointCache.putRegionForBucketName(
-                        bucketName, expectedRegion);
+                    cacheRegionForBucketName(bucketName, expectedRegion);
 
                     ((HttpRequestBase) httpUriRequest).setURI(
                         SignatureUtils.awsV4CorrectHostnameForRegion(
@@ -767,8 +971,7 @@ public abstract class RestStorageService extends StorageService implements JetS3
                 // Try caching the definitive region in case this request is
                 // directed at a bucket. If it's not a bucket-related request
                 // this is a no-op.
-                this.regionEndpointCache.putRegionForBucketName(
-                    requestBucketName, region);
+                cacheRegionForBucketName(requestBucketName, region);
             }
             // ...otherwise from the region cache if available...
             if (region == null && this.regionEndpointCache != null) {
@@ -1652,8 +1855,12 @@ public abstract class RestStorageService extends StorageService implements JetS3
         if(versionId != null) {
             requestParameters.put("versionId", versionId);
         }
-        performRestDelete(bucketName, objectKey, requestParameters,
-                multiFactorSerialNumber, multiFactorAuthCode);
+        try {
+            performRestDelete(bucketName, objectKey, requestParameters,
+                    multiFactorSerialNumber, multiFactorAuthCode);
+        } finally {
+            invalidateCachedObject(bucketName, objectKey);
+        }
     }
 
     protected AccessControlList getObjectAclImpl(String bucketName, String objectKey)
@@ -1783,6 +1990,10 @@ public abstract class RestStorageService extends StorageService implements JetS3
     @Override
     protected void deleteBucketImpl(String bucketName) throws ServiceException {
         performRestDelete(bucketName, null, null, null, null);
+        ObjectMetadataCache cache = this.objectMetadataCache;
+        if (cache != null) {
+            cache.invalidateBucket(bucketName);
+        }
     }
 
     protected boolean isLiveMD5HashingRequired(StorageObject object) {
@@ -1916,7 +2127,8 @@ public abstract class RestStorageService extends StorageService implements JetS3
                         object.getContentType(),
                         object.getContentLength(),
                         getJetS3tProperties(),
-                        isLiveMD5HashingRequired(object));
+                        isLiveMD5HashingRequired(object),
+                        getUploadBandwidthLimiter(bucketName));
             }
             else {
                 // Use a BufferedHttpEntity for objects with an unknown content length, as the
@@ -1942,10 +2154,15 @@ public abstract class RestStorageService extends StorageService implements JetS3
     protected void putObjectWithRequestEntityImpl(String bucketName, StorageObject object,
                                                   HttpEntity requestEntity, Map<String, String> requestParams) throws ServiceException {
 
-        Map<String, Object> map = createObjectImpl(bucketName, object.getKey(),
-                object.getContentType(), requestEntity, object.getMetadataMap(),
-                requestParams, object.getAcl(), object.getStorageClass(),
-                object.getServerSideEncryptionAlgorithm());
+        Map<String, Object> map;
+        try {
+            map = createObjectImpl(bucketName, object.getKey(),
+                    object.getContentType(), requestEntity, object.getMetadataMap(),
+                    requestParams, object.getAcl(), object.getStorageClass(),
+                    object.getServerSideEncryptionAlgorithm());
+        } finally {
+            invalidateCachedObject(bucketName, object.getKey());
+        }
 
         try {
             object.closeDataInputStream();
@@ -2184,8 +2401,13 @@ public abstract class RestStorageService extends StorageService implements JetS3
             }
         }
 
-        HttpResponseAndByteCount methodAndByteCount = performRestPut(
-                destinationBucketName, destinationObjectKey, metadata, null, null, false);
+        HttpResponseAndByteCount methodAndByteCount;
+        try {
+            methodAndByteCount = performRestPut(
+                    destinationBucketName, destinationObjectKey, metadata, null, null, false);
+        } finally {
+            invalidateCachedObject(destinationBucketName, destinationObjectKey);
+        }
 
         CopyObjectResultHandler handler = getXmlResponseSaxParser()
                 .parseCopyObjectResponse(
@@ -2246,9 +2468,99 @@ public abstract class RestStorageService extends StorageService implements JetS3
                                                  Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
                                                  String[] ifMatchTags, String[] ifNoneMatchTags, String versionId)
             throws ServiceException {
-        return getObjectImpl(true, bucketName, objectKey,
-                ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, null, null,
-                versionId);
+        ObjectMetadataCache cache = this.objectMetadataCache;
+        if (cache == null || ifModifiedSince != null || ifUnmodifiedSince != null
+            || ifMatchTags != null || ifNoneMatchTags != null || versionId != null)
+        {
+            return getObjectImpl(true, bucketName, objectKey,
+                    ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, null, null,
+                    versionId);
+        }
+
+        StorageObject cachedObject = cache.getFreshObject(bucketName, objectKey);
+        if (cachedObject != null) {
+            return cachedObject;
+        }
+        checkCachedObjectNotMissing(cache, bucketName, objectKey);
+
+        // Revalidate stale metadata with its ETag, which returns no metadata if the object
+        // is unchanged.
+        String eTag = cache.getETag(bucketName, objectKey);
+        if (eTag != null) {
+            if(log.isDebugEnabled()) {
+                log.debug("Revalidating cached metadata for bucket " + bucketName
+                        + " and object " + objectKey + " with ETag " + eTag);
+            }
+            Map<String, Object> requestHeaders = new HashMap<String, Object>();
+            requestHeaders.put("If-None-Match", "\"" + eTag + "\"");
+            HttpUriRequest httpMethod = setupConnection(
+                    HTTP_METHOD.HEAD, bucketName, objectKey, new HashMap<String, String>());
+            addRequestHeadersToConnection(httpMethod, requestHeaders);
+            HttpResponse httpResponse = performCachedObjectRequest(
+                    cache, bucketName, objectKey, httpMethod, new int[]{200, 304});
+            if (httpResponse.getStatusLine().getStatusCode() == 304) {
+                releaseConnection(httpResponse);
+                cachedObject = cache.refreshObject(bucketName, objectKey, eTag);
+                if (cachedObject != null) {
+                    return cachedObject;
+                }
+                // The cached metadata changed in the meantime, so fetch it again
+                return getObjectDetailsImpl(bucketName, objectKey, null, null, null, null, null);
+            }
+            StorageObject responseObject = createObjectFromResponse(
+                    true, bucketName, objectKey, httpResponse);
+            cache.putObject(bucketName, responseObject);
+            return responseObject;
+        }
+
+        StorageObject responseObject;
+        try {
+            responseObject = getObjectImpl(true, bucketName, objectKey,
+                    null, null, null, null, null, null, null);
+        } catch (ServiceException e) {
+            if (e.getResponseCode() == 404) {
+                cache.putMissing(bucketName, objectKey);
+            }
+            throw e;
+        }
+        cache.putObject(bucketName, responseObject);
+        return responseObject;
+    }
+
+    /**
+     * Throws the service's "not found" error if the cache knows the object does not exist.
+     */
+    private void checkCachedObjectNotMissing(ObjectMetadataCache cache, String bucketName,
+        String objectKey) throws ServiceException
+    {
+        if (cache.isKnownMissing(bucketName, objectKey)) {
+            if(log.isDebugEnabled()) {
+                log.debug("Object " + objectKey + " in bucket " + bucketName
+                        + " is cached as not found");
+            }
+            ServiceException exception = new ServiceException(
+                    "The specified key does not exist (cached): " + objectKey);
+            exception.setResponseCode(404);
+            exception.setResponseStatus("Not Found");
+            exception.setErrorCode("NoSuchKey");
+            throw exception;
+        }
+    }
+
+    private HttpResponse performCachedObjectRequest(ObjectMetadataCache cache,
+        String bucketName, String objectKey, HttpUriRequest httpMethod,
+        int[] expectedResponseCodes) throws ServiceException
+    {
+        try {
+            return performRequest(httpMethod, expectedResponseCodes);
+        } catch (ServiceException e) {
+            if (e.getResponseCode() == 404) {
+                cache.putMissing(bucketName, objectKey);
+            } else {
+                cache.invalidate(bucketName, objectKey);
+            }
+            throw e;
+        }
     }
 
     @Override
@@ -2257,8 +2569,29 @@ public abstract class RestStorageService extends StorageService implements JetS3
                                           String[] ifMatchTags, String[] ifNoneMatchTags,
                                           Long byteRangeStart, Long byteRangeEnd, String versionId)
             throws ServiceException {
-        return getObjectImpl(false, bucketName, objectKey, ifModifiedSince, ifUnmodifiedSince,
-                ifMatchTags, ifNoneMatchTags, byteRangeStart, byteRangeEnd, versionId);
+        ObjectMetadataCache cache = this.objectMetadataCache;
+        if (cache == null || ifModifiedSince != null || ifUnmodifiedSince != null
+            || ifMatchTags != null || ifNoneMatchTags != null || versionId != null
+            || byteRangeStart != null || byteRangeEnd != null)
+        {
+            return getObjectImpl(false, bucketName, objectKey, ifModifiedSince, ifUnmodifiedSince,
+                    ifMatchTags, ifNoneMatchTags, byteRangeStart, byteRangeEnd, versionId);
+        }
+
+        // A complete GET returns the object's metadata, which is cached for later HEADs.
+        checkCachedObjectNotMissing(cache, bucketName, objectKey);
+        StorageObject responseObject;
+        try {
+            responseObject = getObjectImpl(false, bucketName, objectKey,
+                    null, null, null, null, null, null, null);
+        } catch (ServiceException e) {
+            if (e.getResponseCode() == 404) {
+                cache.putMissing(bucketName, objectKey);
+            }
+            throw e;
+        }
+        cache.putObject(bucketName, responseObject);
+        return responseObject;
     }
 
     private StorageObject getObjectImpl(boolean headOnly, String bucketName, String objectKey,
@@ -2322,7 +2655,30 @@ public abstract class RestStorageService extends StorageService implements JetS3
         else {
             httpResponse = performRestGet(bucketName, objectKey, requestParameters, requestHeaders);
         }
+        StorageObject responseObject = createObjectFromResponse(
+                headOnly, bucketName, objectKey, httpResponse);
+
+        // Resume complete retrievals of the current object version after connection failures.
+        // Resuming requests the remaining byte range of the stored data, so it cannot be done
+        // when the length of the data is unknown or the data is encoded, for example gzip data
+        // that HttpClient decompresses as it is read.
+        if(!headOnly && this.downloadResumeMaxRetries > 0
+            && byteRangeStart == null && byteRangeEnd == null && versionId == null
+            && responseObject.getETag() != null
+            && httpResponse.getEntity().getContentLength() >= 0
+            && httpResponse.getEntity().getContentEncoding() == null
+            && httpResponse.getFirstHeader("Content-Encoding") == null)
+        {
+            responseObject.setDataInputStream(new ResumableObjectInputStream(
+                    this, bucketName, responseObject,
+                    this.downloadResumeMaxRetries, this.downloadResumeBackoffMS));
+        }
+        return responseObject;
+    }
 
+    private StorageObject createObjectFromResponse(boolean headOnly, String bucketName,
+                                                   String objectKey, HttpResponse httpResponse)
+            throws ServiceException {
         Map<String, Object> map = new HashMap<String, Object>();
         map.putAll(convertHeadersToMap(httpResponse.getAllHeaders()));
 
@@ -2337,7 +2693,8 @@ public abstract class RestStorageService extends StorageService implements JetS3
         responseObject.setMetadataComplete(true); // Flag this object as having the complete metadata set.
         if(!headOnly) {
             HttpMethodReleaseInputStream releaseIS = new HttpMethodReleaseInputStream(httpResponse);
-            responseObject.setDataInputStream(releaseIS);
+            responseObject.setDataInputStream(new BandwidthLimitedInputStream(
+                    releaseIS, getDownloadBandwidthLimiter(bucketName)));
         }
         else {
             // Release connection after HEAD (there's no response content)
@@ -2389,7 +2746,7 @@ public abstract class RestStorageService extends StorageService implements JetS3
         if(object.getDataInputStream() != null) {
             repeatableRequestEntity = new RepeatableRequestEntity(object.getKey(),
                     object.getDataInputStream(), object.getContentType(), object.getContentLength(),
-                    getJetS3tProperties(), isLiveMD5HashingRequired);
+                    getJetS3tProperties(), isLiveMD5HashingRequired, uploadBandwidthLimiter);
 
             putMethod.setEntity(repeatableRequestEntity);
         }
@@ -2573,7 +2930,8 @@ public abstract class RestStorageService extends StorageService implements JetS3
         responseObject.setMetadataComplete(true); // Flag this object as having the complete metadata set.
         if(!headOnly) {
             HttpMethodReleaseInputStream releaseIS = new HttpMethodReleaseInputStream(httpResponse);
-            responseObject.setDataInputStream(releaseIS);
+            responseObject.setDataInputStream(new BandwidthLimitedInputStream(
+                    releaseIS, downloadBandwidthLimiter));
         }
         else {
             // Release connection after HEAD (there's no response content)
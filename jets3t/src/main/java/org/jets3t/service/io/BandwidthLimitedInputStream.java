@@ -0,0 +1,82 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream wrapper that limits the rate at which data is read through the stream with a
+ * {@link BandwidthLimiter}. Reads are split into chunks small enough for the limiter to
+ * apply its rate smoothly.
+ */
+public class BandwidthLimitedInputStream extends InputStream implements InputStreamWrapper {
+    private final InputStream inputStream;
+    private final BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * @param inputStream
+     * the input stream to wrap, whose data will be read no faster than the limiter allows.
+     * @param bandwidthLimiter
+     * the limiter that applies to the data read from the stream.
+     */
+    public BandwidthLimitedInputStream(InputStream inputStream, BandwidthLimiter bandwidthLimiter) {
+        if (inputStream == null) {
+            throw new IllegalArgumentException(
+                "BandwidthLimitedInputStream cannot run with a null InputStream");
+        }
+        this.inputStream = inputStream;
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = inputStream.read();
+        if (read != -1) {
+            bandwidthLimiter.acquire(1);
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = inputStream.read(b, off, bandwidthLimiter.getChunkSize(len));
+        if (read > 0) {
+            bandwidthLimiter.acquire(read);
+        }
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return inputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    public InputStream getWrappedInputStream() {
+        return inputStream;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+}
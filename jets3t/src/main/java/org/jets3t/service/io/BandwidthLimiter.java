@@ -0,0 +1,287 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which bytes are transferred using a token bucket, that may be nested
+ * within a parent limiter so that transfers are limited by every limiter in the hierarchy.
+ * JetS3t uses a global limiter for all uploads and another for all downloads, each service
+ * has its own limiters beneath these, and each bucket has limiters beneath its service's.
+ * <p>
+ * Threads reserve bytes before transferring them and then wait for as long as it takes the
+ * limiters to provide those bytes. Reservations are granted in the order they are made, so
+ * threads sharing a limiter share its bandwidth fairly. A limiter allows bursts of up to a
+ * quarter of a second's worth of bytes.
+ * <p>
+ * Limits can be changed at any time, either directly with {@link #setBytesPerSecond(long)}
+ * or with a schedule of limits by time of day set with {@link #setSchedule(String)}.
+ * A limit of zero or less means the limiter does not restrict transfers.
+ */
+public class BandwidthLimiter {
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private static final BandwidthLimiter globalUploadLimiter =
+        new BandwidthLimiter("Global uploads", null);
+    private static final BandwidthLimiter globalDownloadLimiter =
+        new BandwidthLimiter("Global downloads", null);
+
+    private final String name;
+    private final BandwidthLimiter parent;
+    private volatile long bytesPerSecond = 0;
+    private volatile TreeMap<Integer, Long> schedule = null;
+
+    private double availableBytes = 0;
+    private long lastRefillNanos = System.nanoTime();
+    private long scheduleCheckMillis = 0;
+
+    /**
+     * @param name
+     * a name that identifies the limiter in log messages.
+     * @param parent
+     * the limiter that also limits transfers limited by this one, may be null.
+     */
+    public BandwidthLimiter(String name, BandwidthLimiter parent) {
+        this.name = name;
+        this.parent = parent;
+    }
+
+    /**
+     * @param name
+     * a name that identifies the limiter in log messages.
+     * @param parent
+     * the limiter that also limits transfers limited by this one, may be null.
+     * @param bytesPerSecond
+     * the limit in bytes per second, or zero for no limit.
+     */
+    public BandwidthLimiter(String name, BandwidthLimiter parent, long bytesPerSecond) {
+        this(name, parent);
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * @return
+     * the limiter shared by all uploads in this JVM, which does not limit uploads unless its
+     * limit is set.
+     */
+    public static BandwidthLimiter getGlobalUploadLimiter() {
+        return globalUploadLimiter;
+    }
+
+    /**
+     * @return
+     * the limiter shared by all downloads in this JVM, which does not limit downloads unless
+     * its limit is set.
+     */
+    public static BandwidthLimiter getGlobalDownloadLimiter() {
+        return globalDownloadLimiter;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BandwidthLimiter getParent() {
+        return parent;
+    }
+
+    /**
+     * Sets the limit, which applies until it is set again. Any schedule is removed.
+     *
+     * @param bytesPerSecond
+     * the limit in bytes per second, or zero for no limit.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.schedule = null;
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * @return
+     * the current limit in bytes per second, or zero if this limiter does not limit transfers.
+     */
+    public long getBytesPerSecond() {
+        if (schedule != null) {
+            synchronized (this) {
+                updateFromSchedule();
+            }
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * Sets a schedule of limits that change by the time of day.
+     *
+     * @param scheduleText
+     * a comma-separated list of <tt>HH:mm=KB</tt> entries, each giving the limit in KB per
+     * second from that time of day until the time of the next entry. The last entry
+     * applies until the first entry the following day. For example, <tt>08:00=256,18:00=0</tt>
+     * limits transfers to 256 KB/s during the working day and removes the limit overnight.
+     * A null or empty value removes the schedule, leaving the current limit in place.
+     * @throws IllegalArgumentException
+     * if the schedule cannot be parsed.
+     */
+    public void setSchedule(String scheduleText) {
+        if (scheduleText == null || scheduleText.trim().length() == 0) {
+            this.schedule = null;
+            return;
+        }
+        TreeMap<Integer, Long> newSchedule = new TreeMap<Integer, Long>();
+        for (String entry: scheduleText.split(",")) {
+            try {
+                String[] timeAndLimit = entry.trim().split("=");
+                String[] hoursAndMinutes = timeAndLimit[0].trim().split(":");
+                int hours = Integer.parseInt(hoursAndMinutes[0]);
+                int minutes = Integer.parseInt(hoursAndMinutes[1]);
+                if (timeAndLimit.length != 2 || hoursAndMinutes.length != 2
+                    || hours < 0 || hours > 23 || minutes < 0 || minutes > 59)
+                {
+                    throw new IllegalArgumentException("Invalid bandwidth schedule entry: " + entry);
+                }
+                newSchedule.put(hours * 60 + minutes,
+                    1024 * Math.max(0, Long.parseLong(timeAndLimit[1].trim())));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid bandwidth schedule entry: " + entry, e);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid bandwidth schedule entry: " + entry, e);
+            }
+        }
+        synchronized (this) {
+            this.schedule = newSchedule;
+            this.scheduleCheckMillis = 0;
+            updateFromSchedule();
+        }
+    }
+
+    /**
+     * Applies the scheduled limit for the current time of day, checking at most once a second.
+     */
+    private void updateFromSchedule() {
+        TreeMap<Integer, Long> currentSchedule = schedule;
+        long now = System.currentTimeMillis();
+        if (currentSchedule == null || now - scheduleCheckMillis < 1000) {
+            return;
+        }
+        scheduleCheckMillis = now;
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        int minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+        Map.Entry<Integer, Long> entry = currentSchedule.floorEntry(minuteOfDay);
+        if (entry == null) {
+            entry = currentSchedule.lastEntry();
+        }
+        bytesPerSecond = entry.getValue();
+    }
+
+    /**
+     * Reserves bytes from this limiter's bucket, which may leave the bucket in debt.
+     *
+     * @return
+     * the nanoseconds until the bucket has refilled enough to provide the reserved bytes.
+     */
+    private synchronized long reserve(int byteCount, long nowNanos) {
+        updateFromSchedule();
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            availableBytes = 0;
+            lastRefillNanos = nowNanos;
+            return 0;
+        }
+        double burstBytes = Math.max(rate / 4.0, MIN_CHUNK_SIZE);
+        double refilledBytes = (nowNanos - lastRefillNanos) * (rate / 1e9);
+        availableBytes = Math.min(burstBytes, availableBytes + refilledBytes);
+        lastRefillNanos = nowNanos;
+        availableBytes -= byteCount;
+        if (availableBytes >= 0) {
+            return 0;
+        }
+        return (long) (-availableBytes * 1e9 / rate);
+    }
+
+    /**
+     * Waits until this limiter and all its parents allow the given number of bytes to be
+     * transferred. Callers should transfer data in pieces no larger than
+     * {@link #getChunkSize(int)} so the rate is applied smoothly.
+     *
+     * @param byteCount
+     * the number of bytes that will be, or have just been, transferred.
+     * @throws IOException
+     * if the thread is interrupted while waiting.
+     */
+    public void acquire(int byteCount) throws IOException {
+        long nowNanos = System.nanoTime();
+        long waitNanos = 0;
+        for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            waitNanos = Math.max(waitNanos, limiter.reserve(byteCount, nowNanos));
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(
+                    "Interrupted while waiting for bandwidth limiter " + name);
+            }
+        }
+    }
+
+    /**
+     * @return
+     * true if this limiter or any of its parents currently limits transfers.
+     */
+    public boolean isLimited() {
+        for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            if (limiter.getBytesPerSecond() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param maximum
+     * the largest chunk size the caller would use if transfers were not limited.
+     * @return
+     * the number of bytes to transfer at a time, which is small enough for each limiter in
+     * the hierarchy to apply its rate smoothly.
+     */
+    public int getChunkSize(int maximum) {
+        long lowestRate = Long.MAX_VALUE;
+        for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            long rate = limiter.getBytesPerSecond();
+            if (rate > 0) {
+                lowestRate = Math.min(lowestRate, rate);
+            }
+        }
+        if (lowestRate == Long.MAX_VALUE) {
+            return maximum;
+        }
+        return (int) Math.max(1, Math.min(maximum, Math.max(MIN_CHUNK_SIZE, lowestRate / 16)));
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + getBytesPerSecond() + " bytes/s)";
+    }
+
+}
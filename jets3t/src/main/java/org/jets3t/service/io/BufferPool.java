@@ -0,0 +1,154 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+
+/**
+ * A pool of byte array buffers that are borrowed by data transfers and returned once the
+ * transfer is complete, so that transferring many objects does not allocate a new buffer
+ * for each one.
+ * <p>
+ * Buffers come in size classes that are powers of two from {@link #MIN_BUFFER_SIZE} to
+ * {@link #MAX_BUFFER_SIZE}, and a borrower receives a buffer from the smallest class that
+ * holds the size it asks for. Larger buffers are allocated on demand and not pooled.
+ * The pool retains returned buffers up to a total size limit, beyond which returned
+ * buffers are left to the garbage collector.
+ * <p>
+ * The default pool's limit is set by the JetS3t property
+ * <tt>bufferpool.max-retained-bytes</tt> (default: 33554432 bytes).
+ */
+public class BufferPool {
+
+    /**
+     * Size of the smallest buffers in the pool: 4 KB.
+     */
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * Size of the largest buffers in the pool: 4 MB.
+     */
+    public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final int MIN_SIZE_CLASS_SHIFT = 12;
+    private static final int SIZE_CLASS_COUNT = 11;
+
+    private static final BufferPool defaultPool = new BufferPool(
+        Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME)
+            .getLongProperty("bufferpool.max-retained-bytes", 32 * 1024 * 1024));
+
+    private final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong(0);
+    private final List<Queue<byte[]>> sizeClasses;
+
+    /**
+     * @param maxRetainedBytes
+     * the total size of the buffers the pool may retain for reuse, or zero to never
+     * retain buffers.
+     */
+    public BufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.sizeClasses = new ArrayList<Queue<byte[]>>(SIZE_CLASS_COUNT);
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            sizeClasses.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+    }
+
+    /**
+     * @return
+     * the pool shared by JetS3t's data transfers.
+     */
+    public static BufferPool getDefaultPool() {
+        return defaultPool;
+    }
+
+    /**
+     * @return
+     * the index of the smallest size class holding the given size, or -1 if the size is
+     * larger than the largest class.
+     */
+    private static int getSizeClass(int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_SIZE_CLASS_SHIFT;
+    }
+
+    /**
+     * Borrows a buffer from the pool, which should be returned with {@link #release(byte[])}
+     * once it is no longer used. The buffer's content is undefined.
+     *
+     * @param minimumSize
+     * the smallest size of buffer the caller can use.
+     * @return
+     * a buffer at least as large as the minimum size, and possibly larger.
+     */
+    public byte[] borrow(int minimumSize) {
+        int sizeClass = getSizeClass(minimumSize);
+        if (sizeClass < 0) {
+            return new byte[minimumSize];
+        }
+        byte[] buffer = sizeClasses.get(sizeClass).poll();
+        if (buffer == null) {
+            return new byte[MIN_BUFFER_SIZE << sizeClass];
+        }
+        retainedBytes.addAndGet(-buffer.length);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer afterwards. Buffers
+     * that were not borrowed from a pool may also be returned, if their size matches one
+     * of the pool's size classes.
+     *
+     * @param buffer
+     * the buffer to return, may be null.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = getSizeClass(buffer.length);
+        if (sizeClass < 0 || buffer.length != (MIN_BUFFER_SIZE << sizeClass)) {
+            return;
+        }
+        if (retainedBytes.addAndGet(buffer.length) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-buffer.length);
+            return;
+        }
+        sizeClasses.get(sizeClass).offer(buffer);
+    }
+
+    /**
+     * @return
+     * the total size of the buffers currently retained by the pool.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+}
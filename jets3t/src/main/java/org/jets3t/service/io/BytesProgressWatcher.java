@@ -18,8 +18,8 @@
  */
 package org.jets3t.service.io;
 
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Utility class that tracks the number of bytes transferred from a source, and uses this
@@ -27,6 +27,11 @@ import java.util.TreeMap;
  * number of bytes that will be transferred, the number of bytes that have been transferred
  * in the current session and the time this has taken, and the number of bytes and time taken
  * overal (eg for transfers that have been restarted).
+ * <p>
+ * Byte counts are accumulated in {@link LongAdder}s, and the bytes transferred in recent
+ * seconds are kept in a fixed ring of per-second buckets, so many threads can report
+ * progress to a shared watcher without contending on a lock. Rates and remaining times are
+ * calculated when they are requested.
  *
  * @author James Murty
  */
@@ -37,19 +42,22 @@ public class BytesProgressWatcher {
      */
     public static final int SECONDS_OF_HISTORY = 5;
 
-    private boolean isStarted = false;
-    private long bytesToTransfer = 0;
+    private static final int HISTORY_BUCKET_COUNT = SECONDS_OF_HISTORY + 1;
 
-    private long startTimeAllTransfersMS = -1;
-    private long totalBytesInAllTransfers = 0;
+    private volatile boolean isStarted = false;
+    private volatile long bytesToTransfer = 0;
 
-    private long startTimeCurrentTransferMS = -1;
-    private long totalBytesInCurrentTransfer = 0;
-    private long endTimeCurrentTransferMS = -1;
+    private volatile long startTimeAllTransfersMS = -1;
+    private final LongAdder totalBytesInAllTransfers = new LongAdder();
 
-    private final Map<Long, Long> historyOfBytesBySecond = new TreeMap<Long, Long>();
-    private long earliestHistorySecond = Long.MAX_VALUE;
-    private Object synchronizeObject = new Object();
+    private volatile long startTimeCurrentTransferMS = -1;
+    private final LongAdder totalBytesInCurrentTransfer = new LongAdder();
+    private volatile long lastTransferTimeMS = -1;
+
+    // Each second's bytes go in the bucket at (second % HISTORY_BUCKET_COUNT), which is
+    // replaced by a new bucket rather than reset when a later second needs the slot.
+    private final AtomicReferenceArray<HistoryBucket> historyOfBytesBySecond =
+        new AtomicReferenceArray<HistoryBucket>(HISTORY_BUCKET_COUNT);
 
     /**
      * Construct a watcher for a transfer that will involve a given number of bytes.
@@ -59,6 +67,9 @@ public class BytesProgressWatcher {
      */
     public BytesProgressWatcher(long bytesToTransfer) {
         this.bytesToTransfer = bytesToTransfer;
+        for (int i = 0; i < HISTORY_BUCKET_COUNT; i++) {
+            historyOfBytesBySecond.set(i, new HistoryBucket(-1));
+        }
     }
 
     /**
@@ -83,15 +94,19 @@ public class BytesProgressWatcher {
      * when a transfer is restarted (eg due to transmission errors).
      *
      */
-    public void resetWatcher() {
-        synchronized(synchronizeObject) {
-            startTimeCurrentTransferMS = System.currentTimeMillis();
-            if (startTimeAllTransfersMS == -1) {
-                startTimeAllTransfersMS = startTimeCurrentTransferMS;
-            }
-            endTimeCurrentTransferMS = -1;
-            totalBytesInCurrentTransfer = 0;
-            isStarted = true;
+    public synchronized void resetWatcher() {
+        startTimeCurrentTransferMS = System.currentTimeMillis();
+        if (startTimeAllTransfersMS == -1) {
+            startTimeAllTransfersMS = startTimeCurrentTransferMS;
+        }
+        lastTransferTimeMS = -1;
+        totalBytesInCurrentTransfer.reset();
+        isStarted = true;
+    }
+
+    private synchronized void startWatcher() {
+        if (!isStarted) {
+            resetWatcher();
         }
     }
 
@@ -104,42 +119,37 @@ public class BytesProgressWatcher {
     public void updateBytesTransferred(long byteCount) {
         // Start the monitor when we are notified of the first bytes transferred.
         if (!isStarted) {
-            resetWatcher();
+            startWatcher();
         }
 
-        synchronized(synchronizeObject) {
-            // Store the total byte count for the current transfer, and for all transfers.
-            totalBytesInCurrentTransfer += byteCount;
-            totalBytesInAllTransfers += byteCount;
-
-            // Recognise when all the expected bytes have been transferred and mark the end time.
-            if (totalBytesInCurrentTransfer >= bytesToTransfer) {
-                endTimeCurrentTransferMS = System.currentTimeMillis();
-            }
+        totalBytesInCurrentTransfer.add(byteCount);
+        totalBytesInAllTransfers.add(byteCount);
 
-            // Keep historical records of the byte counts transferred in a given second.
-            Long currentSecond = new Long(System.currentTimeMillis() / 1000);
-            Long bytesInSecond = historyOfBytesBySecond.get(currentSecond);
-            if (bytesInSecond != null) {
-                historyOfBytesBySecond.put(currentSecond,
-                    new Long(byteCount + bytesInSecond.longValue()));
-            } else {
-                historyOfBytesBySecond.put(currentSecond, new Long(byteCount));
-            }
+        // Remember when bytes were last transferred, to mark the end time once all
+        // the expected bytes have been transferred.
+        long now = System.currentTimeMillis();
+        if (lastTransferTimeMS != now) {
+            lastTransferTimeMS = now;
+        }
 
-            // Remember the earliest second value for which we have historical info.
-            if (currentSecond.longValue() < earliestHistorySecond) {
-                earliestHistorySecond = currentSecond.longValue();
+        // Keep historical records of the byte counts transferred in a given second,
+        // recycling the bucket of a second that has fallen out of the history.
+        long currentSecond = now / 1000;
+        int index = (int) (currentSecond % HISTORY_BUCKET_COUNT);
+        while (true) {
+            HistoryBucket bucket = historyOfBytesBySecond.get(index);
+            if (bucket.second >= currentSecond) {
+                bucket.bytes.add(byteCount);
+                return;
             }
-
-            // Remove any history records we are no longer interested in.
-            long removeHistoryBeforeSecond = currentSecond.longValue() - SECONDS_OF_HISTORY;
-            for (long sec = earliestHistorySecond; sec < removeHistoryBeforeSecond; sec++) {
-                Long pSec = new Long(sec);
-                Long bytes = historyOfBytesBySecond.remove(pSec);
-                removedFromHistory(pSec, bytes);
+            HistoryBucket newBucket = new HistoryBucket(currentSecond);
+            newBucket.bytes.add(byteCount);
+            if (historyOfBytesBySecond.compareAndSet(index, bucket, newBucket)) {
+                if (bucket.second != -1) {
+                    removedFromHistory(Long.valueOf(bucket.second), Long.valueOf(bucket.bytes.sum()));
+                }
+                return;
             }
-            earliestHistorySecond = removeHistoryBeforeSecond;
         }
     }
 
@@ -156,23 +166,32 @@ public class BytesProgressWatcher {
      * Clears the history of transfer progress data.
      */
     protected void clearHistory() {
-        synchronized(synchronizeObject) {
-            // empty history
-            Long currentSecond = new Long(System.currentTimeMillis() / 1000);
-            for (long sec = earliestHistorySecond; sec <= currentSecond; sec++) {
-                Long pSec = new Long(sec);
-                Long bytes = historyOfBytesBySecond.remove(pSec);
-                removedFromHistory(pSec, bytes);
+        for (int i = 0; i < HISTORY_BUCKET_COUNT; i++) {
+            HistoryBucket bucket = historyOfBytesBySecond.getAndSet(i, new HistoryBucket(-1));
+            if (bucket.second != -1) {
+                removedFromHistory(Long.valueOf(bucket.second), Long.valueOf(bucket.bytes.sum()));
             }
         }
     }
 
+    /**
+     * @return
+     * the time (in milliseconds) when the current transfer completed, or -1 if it has not
+     * yet transferred all the expected bytes.
+     */
+    private long getEndTimeCurrentTransferMS() {
+        if (totalBytesInCurrentTransfer.sum() >= bytesToTransfer) {
+            return lastTransferTimeMS;
+        }
+        return -1;
+    }
+
     /**
      * @return
      * the number of bytes that have so far been transferred in the most recent transfer session.
      */
     public long getBytesTransferred() {
-        return totalBytesInCurrentTransfer;
+        return totalBytesInCurrentTransfer.sum();
     }
 
     /**
@@ -180,7 +199,7 @@ public class BytesProgressWatcher {
      * the number of bytes that are remaining to be transferred.
      */
     public long getBytesRemaining() {
-        return bytesToTransfer - totalBytesInCurrentTransfer;
+        return bytesToTransfer - getBytesTransferred();
     }
 
     /**
@@ -192,7 +211,7 @@ public class BytesProgressWatcher {
         BytesProgressWatcher[] progressWatchers = new BytesProgressWatcher[1];
         progressWatchers[0] = this;
 
-        long bytesRemaining = bytesToTransfer - totalBytesInCurrentTransfer;
+        long bytesRemaining = getBytesRemaining();
         double remainingSecs =
             bytesRemaining / calculateOverallBytesPerSecond(progressWatchers);
         return Math.round(remainingSecs);
@@ -210,13 +229,13 @@ public class BytesProgressWatcher {
 
         long currentSecond = System.currentTimeMillis() / 1000;
         long startSecond = 1 + (currentSecond - SECONDS_OF_HISTORY);
+        long endTimeCurrentTransferMS = getEndTimeCurrentTransferMS();
         long endSecond = (endTimeCurrentTransferMS != -1
             ? endTimeCurrentTransferMS / 1000
             : currentSecond);
 
         if (currentSecond - SECONDS_OF_HISTORY > endSecond) {
             // This item finished too long ago, ignore it now.
-            historyOfBytesBySecond.clear();
             return 0;
         }
 
@@ -225,9 +244,9 @@ public class BytesProgressWatcher {
         long numberOfSecondsInHistory = 0;
         for (long sec = startSecond; sec <= endSecond; sec++) {
             numberOfSecondsInHistory++;
-            Long bytesInSecond = historyOfBytesBySecond.get(new Long(sec));
-            if (bytesInSecond != null) {
-                sumOfBytes += bytesInSecond.longValue();
+            HistoryBucket bucket = historyOfBytesBySecond.get((int) (sec % HISTORY_BUCKET_COUNT));
+            if (bucket.second == sec) {
+                sumOfBytes += bucket.bytes.sum();
             }
         }
         return (numberOfSecondsInHistory == 0
@@ -250,6 +269,7 @@ public class BytesProgressWatcher {
         if (!isStarted) {
             return 0;
         }
+        long endTimeCurrentTransferMS = getEndTimeCurrentTransferMS();
         if (endTimeCurrentTransferMS != -1) {
             // Transfer is complete, report the time it took.
             return endTimeCurrentTransferMS - startTimeCurrentTransferMS;
@@ -264,7 +284,7 @@ public class BytesProgressWatcher {
      * that have been restarted.
      */
     protected long getTotalBytesInAllTransfers() {
-        return totalBytesInAllTransfers;
+        return totalBytesInAllTransfers.sum();
     }
 
     protected boolean isStarted() {
@@ -389,4 +409,18 @@ public class BytesProgressWatcher {
         return Math.round(sumOfRates);
     }
 
+    /**
+     * The bytes transferred in one second of history. A bucket is never reused for a later
+     * second, so bytes added by a thread that still holds an old bucket are never lost from
+     * a newer second's count.
+     */
+    private static class HistoryBucket {
+        private final long second;
+        private final LongAdder bytes = new LongAdder();
+
+        private HistoryBucket(long second) {
+            this.second = second;
+        }
+    }
+
 }
@@ -0,0 +1,304 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Input stream that wraps another stream and deflates (compresses) the underlying stream's
+ * data on-the-fly using several threads, producing the same GZip format as
+ * {@link GZipDeflatingInputStream}.
+ * <p>
+ * The underlying data is read in blocks that are deflated independently and in parallel.
+ * Each block is primed with the last 32 KB of the preceding block as its dictionary, so
+ * compression is nearly as good as for a single deflater, and ends with a sync flush so
+ * the deflated blocks can be concatenated. The result is a single standard GZip member
+ * that any GZip reader can decompress.
+ * <p>
+ * Blocks are deflated by a pool of daemon threads shared by all streams, with one thread
+ * per processor, so streams do not start and stop threads of their own.
+ */
+public class ParallelGZipDeflatingInputStream extends InputStream implements InputStreamWrapper {
+    /**
+     * Default size of the blocks deflated by each thread: 128 KB.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ParallelGZipDeflatingInputStream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final InputStream inputStream;
+    private final int blockSize;
+    private final int maxBlocksInProgress;
+    private final LinkedList<Future<byte[]>> blocksInProgress = new LinkedList<Future<byte[]>>();
+    private final CRC32 crc = new CRC32();
+    private long totalIn = 0;
+    private byte[] dictionary = null;
+
+    private byte[] deflatedBytes = null;
+    private int bufferOffset = 0;
+    private boolean EOFInput = false;
+    private boolean EOFDeflated = false;
+    private boolean EOFTail = false;
+
+    /**
+     * @param inputStream
+     * the stream whose data will be deflated.
+     * @param threadCount
+     * the number of blocks of data to deflate at once, up to the number of threads in
+     * the shared pool.
+     */
+    public ParallelGZipDeflatingInputStream(InputStream inputStream, int threadCount)
+        throws IOException
+    {
+        this(inputStream, threadCount, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param inputStream
+     * the stream whose data will be deflated.
+     * @param threadCount
+     * the number of blocks of data to deflate at once, up to the number of threads in
+     * the shared pool.
+     * @param blockSize
+     * the number of bytes of underlying data in each block.
+     */
+    public ParallelGZipDeflatingInputStream(InputStream inputStream, int threadCount,
+        int blockSize) throws IOException
+    {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1: " + threadCount);
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+        }
+        this.inputStream = inputStream;
+        this.blockSize = blockSize;
+        this.maxBlocksInProgress = threadCount * 2;
+        crc.reset();
+
+        // Write the GZip Header.
+        deflatedBytes = new byte[] {
+            (byte) 0x1f, (byte) 0x8b, // Magic number
+            (byte) Deflater.DEFLATED, // Compression method (CM)
+            0, // Flags (FLG)
+            0, 0, 0, 0, // Modification time (MTIME)
+            0, // Extra flags (XFL)
+            0 // Operating system (OS)
+        };
+    }
+
+    /**
+     * Reads blocks of underlying data and starts deflating them until the maximum
+     * number of blocks are in progress, or the underlying data is exhausted.
+     */
+    private void submitBlocks() throws IOException {
+        while (!EOFInput && blocksInProgress.size() < maxBlocksInProgress) {
+            byte[] block = new byte[blockSize];
+            int length = 0;
+            while (length < blockSize) {
+                int byteCount = inputStream.read(block, length, blockSize - length);
+                if (byteCount < 0) {
+                    EOFInput = true;
+                    break;
+                }
+                length += byteCount;
+            }
+            crc.update(block, 0, length);
+            totalIn += length;
+            if (length > 0) {
+                blocksInProgress.add(executor.submit(
+                    new BlockDeflater(block, length, dictionary, false)));
+                dictionary = buildDictionary(dictionary, block, length);
+            }
+            if (EOFInput) {
+                // End the deflate stream with an empty final block.
+                blocksInProgress.add(executor.submit(
+                    new BlockDeflater(new byte[0], 0, null, true)));
+            }
+        }
+    }
+
+    /**
+     * @return
+     * the last {@link #DICTIONARY_SIZE} bytes of data up to the end of the given block.
+     */
+    private byte[] buildDictionary(byte[] previousDictionary, byte[] block, int length) {
+        if (length >= DICTIONARY_SIZE || previousDictionary == null) {
+            int dictionaryLength = Math.min(length, DICTIONARY_SIZE);
+            byte[] result = new byte[dictionaryLength];
+            System.arraycopy(block, length - dictionaryLength, result, 0, dictionaryLength);
+            return result;
+        }
+        int carried = Math.min(previousDictionary.length, DICTIONARY_SIZE - length);
+        byte[] result = new byte[carried + length];
+        System.arraycopy(previousDictionary, previousDictionary.length - carried, result, 0, carried);
+        System.arraycopy(block, 0, result, carried, length);
+        return result;
+    }
+
+    private void primeDeflateBuffer() throws IOException {
+        while (getDeflatedBufferAvail() == 0 && !EOFTail) {
+            submitBlocks();
+            bufferOffset = 0;
+            if (!blocksInProgress.isEmpty()) {
+                try {
+                    deflatedBytes = blocksInProgress.removeFirst().get();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while deflating data", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Unable to deflate data", e.getCause());
+                }
+            } else if (!EOFDeflated) {
+                // All blocks are deflated, write the GZip trailer.
+                EOFDeflated = true;
+                deflatedBytes = new byte[8];
+                writeInt(deflatedBytes, 0, (int) crc.getValue()); // CRC-32 of uncompressed data
+                writeInt(deflatedBytes, 4, (int) totalIn); // Number of uncompressed bytes
+            } else {
+                deflatedBytes = null;
+                EOFTail = true;
+            }
+        }
+    }
+
+    private int getDeflatedBufferAvail() {
+        return (deflatedBytes == null ? 0 : deflatedBytes.length - bufferOffset);
+    }
+
+    public int read() throws IOException {
+        if (getDeflatedBufferAvail() == 0) {
+            primeDeflateBuffer();
+        }
+        if (EOFTail) {
+            return -1;
+        } else {
+            return (int) deflatedBytes[bufferOffset++] & 0xFF;
+        }
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (getDeflatedBufferAvail() == 0) {
+            primeDeflateBuffer();
+        }
+        if (EOFTail) {
+            return -1;
+        } else {
+            int count = Math.min(len, getDeflatedBufferAvail());
+            System.arraycopy(deflatedBytes, bufferOffset, b, off, count);
+            bufferOffset += count;
+            return count;
+        }
+    }
+
+    public int available() throws IOException {
+        if (EOFTail) {
+            return 0;
+        }
+        return getDeflatedBufferAvail();
+    }
+
+    public void close() throws IOException {
+        EOFTail = true;
+        for (Future<byte[]> future: blocksInProgress) {
+            future.cancel(true);
+        }
+        blocksInProgress.clear();
+        inputStream.close();
+    }
+
+    public InputStream getWrappedInputStream() {
+        return inputStream;
+    }
+
+    /*
+     * Writes integer in Intel byte order.
+     */
+    private static void writeInt(byte[] b, int off, int i) {
+        b[off] = (byte) (i & 0xff);
+        b[off + 1] = (byte) ((i >> 8) & 0xff);
+        b[off + 2] = (byte) ((i >> 16) & 0xff);
+        b[off + 3] = (byte) ((i >> 24) & 0xff);
+    }
+
+    /**
+     * Deflates one block of data as raw deflate data that can be concatenated with the
+     * deflated data of the blocks before and after it.
+     */
+    private static class BlockDeflater implements Callable<byte[]> {
+        private final byte[] block;
+        private final int length;
+        private final byte[] dictionary;
+        private final boolean isLast;
+
+        BlockDeflater(byte[] block, int length, byte[] dictionary, boolean isLast) {
+            this.block = block;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.isLast = isLast;
+        }
+
+        public byte[] call() {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(block, 0, length);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buffer = new byte[8192];
+                if (isLast) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int count = deflater.deflate(buffer);
+                        baos.write(buffer, 0, count);
+                    }
+                } else {
+                    // Flush all the data to a byte boundary without ending the stream
+                    int count;
+                    do {
+                        count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        baos.write(buffer, 0, count);
+                    } while (count == buffer.length || !deflater.needsInput());
+                }
+                return baos.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link BufferedInputStream} whose buffer is borrowed from a {@link BufferPool} and
+ * returned to the pool when the stream is closed.
+ */
+public class PooledBufferedInputStream extends BufferedInputStream implements InputStreamWrapper {
+    private final BufferPool bufferPool;
+    private byte[] pooledBuffer;
+
+    /**
+     * @param inputStream
+     * the input stream to buffer.
+     * @param bufferSize
+     * the minimum size of the buffer.
+     * @param bufferPool
+     * the pool from which the buffer is borrowed.
+     */
+    public PooledBufferedInputStream(InputStream inputStream, int bufferSize, BufferPool bufferPool) {
+        super(inputStream, 1);
+        this.bufferPool = bufferPool;
+        this.pooledBuffer = bufferPool.borrow(bufferSize);
+        this.buf = pooledBuffer;
+    }
+
+    /**
+     * Buffers the input stream with a 64 KB buffer from the default pool.
+     *
+     * @param inputStream
+     * the input stream to buffer.
+     */
+    public PooledBufferedInputStream(InputStream inputStream) {
+        this(inputStream, 64 * 1024, BufferPool.getDefaultPool());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            synchronized (this) {
+                // Return the borrowed buffer once, even if mark() has replaced it with a larger one
+                bufferPool.release(pooledBuffer);
+                pooledBuffer = null;
+            }
+        }
+    }
+
+    public InputStream getWrappedInputStream() {
+        return in;
+    }
+
+}
@@ -28,7 +28,8 @@ import org.slf4j.LoggerFactory;
 /**
  * A repeatable input stream wrapper for any input stream. This input stream relies on buffered
  * data to repeat, and can therefore only be repeated when less data has been read than this
- * buffer can hold.
+ * buffer can hold. The buffer is borrowed from the default {@link BufferPool} and returned
+ * when the stream is closed, or as soon as more data has been read than it can hold.
  * <p>
  * <b>Note:</b> Always use a {@link RepeatableFileInputStream} instead of this class if you are
  * sourcing data from a file, as the file-based repeatable input stream can be repeated without
@@ -51,6 +52,7 @@ public class RepeatableInputStream extends InputStream implements InputStreamWra
     private int bufferOffset = 0;
     private long bytesReadPastMark = 0;
     private byte[] buffer = null;
+    private final byte[] singleByte = new byte[1];
 
     /**
      * Creates a repeatable input stream based on another input stream.
@@ -68,10 +70,10 @@ public class RepeatableInputStream extends InputStream implements InputStreamWra
         this.is = inputStream;
 
         this.bufferSize = bufferSize;
-        this.buffer = new byte[this.bufferSize];
+        this.buffer = BufferPool.getDefaultPool().borrow(this.bufferSize);
 
         if (log.isDebugEnabled()) {
-            log.debug("Underlying input stream will be repeatable up to " + this.buffer.length + " bytes");
+            log.debug("Underlying input stream will be repeatable up to " + this.bufferSize + " bytes");
         }
     }
 
@@ -84,7 +86,7 @@ public class RepeatableInputStream extends InputStream implements InputStreamWra
      * be repeated.
      */
     @Override
-    public void reset() throws IOException {
+    public synchronized void reset() throws IOException {
         if (bytesReadPastMark <= bufferSize) {
             if (log.isDebugEnabled()) {
                 log.debug("Reset after reading " + bytesReadPastMark + " bytes.");
@@ -114,16 +116,16 @@ public class RepeatableInputStream extends InputStream implements InputStreamWra
         if (bytesReadPastMark <= bufferSize && buffer != null) {
             // Clear buffer of already-read data to make more space.
             // it is safe to cast bytesReadPastMark to an int because it is known to be less than bufferSize, which is an int
-            byte[] newBuffer = new byte[this.bufferSize];
-            System.arraycopy(buffer, bufferOffset, newBuffer, 0, (int)(bytesReadPastMark - bufferOffset));
-            this.buffer = newBuffer;
+            System.arraycopy(buffer, bufferOffset, buffer, 0, (int)(bytesReadPastMark - bufferOffset));
             this.bytesReadPastMark -= bufferOffset;
             this.bufferOffset = 0;
         } else {
-            // If mark is called after the buffer was already exceeded, create a new buffer.
+            // If mark is called after the buffer was already exceeded, borrow a new buffer.
             this.bufferOffset = 0;
             this.bytesReadPastMark = 0;
-            this.buffer = new byte[this.bufferSize];
+            if (this.buffer == null) {
+                this.buffer = BufferPool.getDefaultPool().borrow(this.bufferSize);
+            }
         }
     }
 
@@ -134,17 +136,24 @@ public class RepeatableInputStream extends InputStream implements InputStreamWra
 
     @Override
     public void close() throws IOException {
-        is.close();
+        // Closing the wrapped stream first ends any read blocked on it in another thread,
+        // which must finish with the buffer before it can be returned to the pool.
+        try {
+            is.close();
+        } finally {
+            synchronized (this) {
+                BufferPool.getDefaultPool().release(buffer);
+                buffer = null;
+            }
+        }
     }
 
     @Override
-    public int read(byte[] out, int outOffset, int outLength) throws IOException {
-        byte[] tmp = new byte[outLength];
-
+    public synchronized int read(byte[] out, int outOffset, int outLength) throws IOException {
         // Check whether we already have buffered data.
         if (bufferOffset < bytesReadPastMark && buffer != null) {
             // Data is being repeated, so read from buffer instead of wrapped input stream.
-            int bytesFromBuffer = tmp.length;
+            int bytesFromBuffer = outLength;
             if (bufferOffset + bytesFromBuffer > bytesReadPastMark) {
                 bytesFromBuffer = (int) bytesReadPastMark - bufferOffset;
             }
@@ -155,39 +164,40 @@ public class RepeatableInputStream extends InputStream implements InputStreamWra
             return bytesFromBuffer;
         }
 
-        // Read data from input stream.
-        int count = is.read(tmp);
+        // Read data from input stream directly into the output byte array.
+        int count = is.read(out, outOffset, outLength);
 
         if (count <= 0) {
             return count;
         }
 
         // Fill the buffer with data, as long as we won't exceed its capacity.
-        if (bytesReadPastMark + count <= bufferSize) {
-            System.arraycopy(tmp, 0, buffer, (int) bytesReadPastMark, count);
+        if (bytesReadPastMark + count <= bufferSize && buffer != null) {
+            System.arraycopy(out, outOffset, buffer, (int) bytesReadPastMark, count);
             bufferOffset += count;
         } else if (buffer != null) {
-            // We have exceeded the buffer capacity, after which point it is of no use. Free the memory.
+            // We have exceeded the buffer capacity, after which point it is of no use. Return it to the pool.
             if (log.isDebugEnabled()) {
                 log.debug("Buffer size " + bufferSize + " has been exceeded and the input stream "
                 + "will not be repeatable until the next mark. Freeing buffer memory");
             }
+            BufferPool.getDefaultPool().release(buffer);
             buffer = null;
         }
 
-        // Write to output byte array.
-        System.arraycopy(tmp, 0, out, outOffset, count);
         bytesReadPastMark += count;
 
         return count;
     }
 
     @Override
-    public int read() throws IOException {
-        byte[] tmp = new byte[1];
-        int count = read(tmp);
+    public synchronized int read() throws IOException {
+        int count;
+        do {
+            count = read(singleByte, 0, 1);
+        } while (count == 0);
         if (count != -1) {
-            return tmp[0];
+            return singleByte[0] & 0xFF;
         } else {
             return count;
         }
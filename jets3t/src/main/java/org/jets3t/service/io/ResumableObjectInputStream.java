@@ -0,0 +1,249 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.model.StorageObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Input stream wrapper for the data of an object retrieved from a storage service, which
+ * recovers from connection failures part way through the data by retrieving the rest of the
+ * object with a range GET request from the last byte read.
+ * <p>
+ * The range request requires the object's ETag to be unchanged, so the resumed data always
+ * belongs to the same version of the object. The stream gives up after a maximum number of
+ * consecutive failed attempts to resume, waiting twice as long before each attempt as the
+ * one before. Failures caused by deliberate interruption, by an
+ * {@link UnrecoverableIOException}, or by a change to the object are not retried.
+ */
+public class ResumableObjectInputStream extends InputStream implements InputStreamWrapper {
+
+    private static final long MAX_BACKOFF_MS = 30 * 1000;
+
+    private static final Logger log = LoggerFactory.getLogger(ResumableObjectInputStream.class);
+
+    private final StorageService service;
+    private final String bucketName;
+    private final String objectKey;
+    private final String eTag;
+    private final long contentLength;
+    private final int maxRetries;
+    private final long initialBackoffMS;
+
+    private InputStream inputStream;
+    private long position = 0;
+    private int resumeCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * @param service
+     * the service from which the object was retrieved, used to resume the retrieval.
+     * @param bucketName
+     * the name of the bucket containing the object.
+     * @param object
+     * the object retrieved, with a data input stream starting from the object's first byte,
+     * its ETag and its content length.
+     * @param maxRetries
+     * the maximum number of consecutive attempts to resume the data after a failure.
+     * @param initialBackoffMS
+     * the time in milliseconds to wait before the first attempt to resume the data.
+     * @throws ServiceException
+     */
+    public ResumableObjectInputStream(StorageService service, String bucketName,
+        StorageObject object, int maxRetries, long initialBackoffMS) throws ServiceException
+    {
+        InputStream dataInputStream = object.getDataInputStream();
+        if (dataInputStream == null) {
+            throw new IllegalArgumentException(
+                "ResumableObjectInputStream cannot run with a null InputStream");
+        }
+        if (object.getETag() == null) {
+            throw new IllegalArgumentException(
+                "ResumableObjectInputStream requires the object's ETag");
+        }
+        this.service = service;
+        this.bucketName = bucketName;
+        this.objectKey = object.getKey();
+        this.eTag = object.getETag();
+        this.contentLength = object.getContentLength();
+        this.maxRetries = maxRetries;
+        this.initialBackoffMS = initialBackoffMS;
+        this.inputStream = dataInputStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] singleByte = new byte[1];
+        int count = read(singleByte, 0, 1);
+        return (count == -1 ? -1 : singleByte[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int failures = 0;
+        while (true) {
+            IOException failure;
+            try {
+                int count = inputStream.read(b, off, len);
+                if (count > 0) {
+                    position += count;
+                    return count;
+                }
+                if (count < 0 && (contentLength <= 0 || position >= contentLength)) {
+                    return -1;
+                }
+                if (count == 0) {
+                    return 0;
+                }
+                failure = new IOException("Object data ended after " + position
+                    + " of " + contentLength + " bytes");
+            } catch (IOException e) {
+                if (!isRecoverable(e)) {
+                    throw e;
+                }
+                failure = e;
+            }
+
+            // Resume, counting failures to resume as further failed attempts
+            while (true) {
+                if (failures++ >= maxRetries) {
+                    throw failure;
+                }
+                try {
+                    resume(failures, failure);
+                    break;
+                } catch (IOException e) {
+                    if (!isRecoverable(e)) {
+                        throw e;
+                    }
+                    failure = e;
+                }
+            }
+            if (contentLength > 0 && position >= contentLength) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return
+     * true if the failure may be overcome by retrieving the rest of the data again.
+     */
+    protected boolean isRecoverable(IOException e) {
+        if (isClosed || e instanceof UnrecoverableIOException) {
+            return false;
+        }
+        // Interruptions other than socket timeouts are deliberate
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    private void resume(int attempt, IOException failure) throws IOException {
+        long backoffMS = Math.min(MAX_BACKOFF_MS, initialBackoffMS << Math.min(attempt - 1, 20));
+        if (log.isWarnEnabled()) {
+            log.warn("Resuming retrieval of object " + objectKey + " in bucket " + bucketName
+                + " from byte " + position + " in " + backoffMS + "ms, attempt " + attempt
+                + " of " + maxRetries + ", after error: " + failure.getMessage());
+        }
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring error closing failed input stream", e);
+            }
+        }
+        try {
+            Thread.sleep(backoffMS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to resume retrieval");
+        }
+        if (contentLength > 0 && position >= contentLength) {
+            return;
+        }
+        inputStream = openRange(position);
+        resumeCount++;
+    }
+
+    /**
+     * Retrieves the object's data from the given position, on condition that the object's
+     * ETag is unchanged.
+     *
+     * @param start
+     * the offset of the first byte to retrieve.
+     * @return
+     * a stream of the object's data from the given position.
+     * @throws IOException
+     * if the data cannot be retrieved, or the object has changed.
+     */
+    protected InputStream openRange(long start) throws IOException {
+        try {
+            StorageObject object = service.getObject(bucketName, objectKey, null, null,
+                new String[] {eTag}, null, Long.valueOf(start), null);
+            return object.getDataInputStream();
+        } catch (ServiceException e) {
+            if (e.getResponseCode() == 412) {
+                throw new UnrecoverableIOException("Object " + objectKey + " in bucket "
+                    + bucketName + " changed while it was being retrieved");
+            }
+            throw new IOException("Unable to resume retrieval of object " + objectKey
+                + " in bucket " + bucketName + " from byte " + start, e);
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return inputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        isClosed = true;
+        inputStream.close();
+    }
+
+    /**
+     * @return
+     * the number of bytes read from the stream.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return
+     * the number of times the retrieval was resumed after a failure.
+     */
+    public int getResumeCount() {
+        return resumeCount;
+    }
+
+    public InputStream getWrappedInputStream() {
+        return inputStream;
+    }
+
+}
@@ -0,0 +1,403 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.model.StorageObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only {@link SeekableByteChannel} over the data of an object in a storage service,
+ * which retrieves the parts of the object that are read with byte range GET requests.
+ * This lets readers of file formats that seek around an object, such as the footers of
+ * columnar files or the central directory of zip archives, read only the parts they need.
+ * Use {@link Channels#newInputStream(java.nio.channels.ReadableByteChannel)} to read the
+ * channel as a stream.
+ * <p>
+ * The object is retrieved in fixed-size blocks, which are kept in a least-recently-used cache
+ * so that seeking back to data already read does not retrieve it again. When a cache
+ * directory is given, blocks that no longer fit in memory are kept in a temporary file
+ * there instead of being discarded. When blocks are read in sequence, the channel retrieves
+ * several blocks ahead in a single request.
+ * <p>
+ * Every range request requires the object's ETag to match the ETag it had when the channel
+ * was opened, so reads fail rather than mix data from different versions of the object.
+ */
+public class StorageObjectChannel implements SeekableByteChannel {
+
+    /**
+     * The default size of the blocks retrieved: 1 MB.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * The default number of blocks cached in memory: 32.
+     */
+    public static final int DEFAULT_MAX_CACHED_BLOCKS = 32;
+
+    /**
+     * The default number of blocks retrieved ahead of sequential reads: 4.
+     */
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+
+    private static final Logger log = LoggerFactory.getLogger(StorageObjectChannel.class);
+
+    private final StorageService service;
+    private final String bucketName;
+    private final String objectKey;
+    private final String eTag;
+    private final long size;
+    private final int blockSize;
+    private final int maxCachedBlocks;
+    private final int readAheadBlocks;
+    private final File cacheDirectory;
+
+    private final LinkedHashMap<Long, byte[]> cachedBlocks =
+        new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+    private final Set<Long> spilledBlocks = new HashSet<Long>();
+    private File spillFile = null;
+    private RandomAccessFile spillAccessFile = null;
+
+    private long position = 0;
+    private long lastBlockIndex = -2;
+    private int sequentialBlockCount = 0;
+    private int rangeRequestCount = 0;
+    private boolean isOpen = true;
+
+    /**
+     * Opens a channel over an object with the default block size, cache size and read-ahead,
+     * caching blocks in memory only.
+     *
+     * @param service
+     * the service from which to retrieve the object.
+     * @param bucketName
+     * the name of the bucket containing the object.
+     * @param objectKey
+     * the key of the object.
+     * @throws ServiceException
+     * if the object's details cannot be retrieved.
+     */
+    public StorageObjectChannel(StorageService service, String bucketName, String objectKey)
+        throws ServiceException
+    {
+        this(service, bucketName, service.getObjectDetails(bucketName, objectKey),
+            DEFAULT_BLOCK_SIZE, DEFAULT_MAX_CACHED_BLOCKS, DEFAULT_READ_AHEAD_BLOCKS, null);
+    }
+
+    /**
+     * @param service
+     * the service from which to retrieve the object.
+     * @param bucketName
+     * the name of the bucket containing the object.
+     * @param objectDetails
+     * the details of the object, including its content length and ETag, as returned by
+     * {@link StorageService#getObjectDetails(String, String)}.
+     * @param blockSize
+     * the size of the blocks in which the object is retrieved and cached.
+     * @param maxCachedBlocks
+     * the number of blocks cached in memory.
+     * @param readAheadBlocks
+     * the number of blocks retrieved ahead of sequential reads, or zero to never read ahead.
+     * @param cacheDirectory
+     * a directory in which to keep blocks that no longer fit in memory, or null to discard
+     * them.
+     */
+    public StorageObjectChannel(StorageService service, String bucketName,
+        StorageObject objectDetails, int blockSize, int maxCachedBlocks, int readAheadBlocks,
+        File cacheDirectory)
+    {
+        if (blockSize < 1 || maxCachedBlocks < 1 || readAheadBlocks < 0) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize
+                + ", cached blocks " + maxCachedBlocks + " or read-ahead blocks " + readAheadBlocks);
+        }
+        this.service = service;
+        this.bucketName = bucketName;
+        this.objectKey = objectDetails.getKey();
+        this.eTag = objectDetails.getETag();
+        this.size = objectDetails.getContentLength();
+        this.blockSize = blockSize;
+        this.maxCachedBlocks = maxCachedBlocks;
+        this.readAheadBlocks = readAheadBlocks;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long blockIndex = position / blockSize;
+            byte[] block = getBlock(blockIndex);
+            int offsetInBlock = (int) (position - blockIndex * blockSize);
+            int count = Math.min(dst.remaining(), block.length - offsetInBlock);
+            dst.put(block, offsetInBlock, count);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @throws NonWritableChannelException
+     * always, as the channel is read-only.
+     */
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    /**
+     * Moves the channel to a new position. Positions beyond the end of the object are
+     * allowed, and reads from them return end-of-stream.
+     */
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    /**
+     * @throws NonWritableChannelException
+     * always, as the channel is read-only.
+     */
+    public SeekableByteChannel truncate(long newSize) {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized boolean isOpen() {
+        return isOpen;
+    }
+
+    /**
+     * Closes the channel, discarding its cached blocks and deleting its file in the cache
+     * directory, if any.
+     */
+    public synchronized void close() throws IOException {
+        if (!isOpen) {
+            return;
+        }
+        isOpen = false;
+        cachedBlocks.clear();
+        spilledBlocks.clear();
+        if (spillAccessFile != null) {
+            try {
+                spillAccessFile.close();
+            } finally {
+                spillFile.delete();
+                spillAccessFile = null;
+            }
+        }
+    }
+
+    /**
+     * @return
+     * the number of range requests the channel has sent to retrieve the object's data.
+     */
+    public synchronized int getRangeRequestCount() {
+        return rangeRequestCount;
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    public String getObjectKey() {
+        return objectKey;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private int getBlockLength(long blockIndex) {
+        return (int) Math.min(blockSize, size - blockIndex * blockSize);
+    }
+
+    private byte[] getBlock(long blockIndex) throws IOException {
+        // Blocks read one after another are a sign of sequential reading
+        if (blockIndex == lastBlockIndex + 1) {
+            sequentialBlockCount++;
+        } else if (blockIndex != lastBlockIndex) {
+            sequentialBlockCount = 0;
+        }
+        lastBlockIndex = blockIndex;
+
+        Long key = Long.valueOf(blockIndex);
+        byte[] block = cachedBlocks.get(key);
+        if (block == null && spilledBlocks.contains(key)) {
+            block = readSpilledBlock(blockIndex);
+            cacheBlock(blockIndex, block);
+        }
+        if (block == null) {
+            block = retrieveBlocks(blockIndex);
+        }
+        return block;
+    }
+
+    /**
+     * Retrieves a block, and following blocks if the channel is being read sequentially,
+     * with a single range request.
+     *
+     * @return
+     * the data of the first block retrieved.
+     */
+    private byte[] retrieveBlocks(long firstBlockIndex) throws IOException {
+        long lastBlock = (size - 1) / blockSize;
+        long endBlockIndex = firstBlockIndex;
+        if (sequentialBlockCount > 0) {
+            int blocksAhead = Math.min(readAheadBlocks, maxCachedBlocks - 1);
+            while (endBlockIndex < lastBlock && endBlockIndex - firstBlockIndex < blocksAhead
+                && !isBlockCached(endBlockIndex + 1))
+            {
+                endBlockIndex++;
+            }
+        }
+
+        long start = firstBlockIndex * blockSize;
+        long end = endBlockIndex * blockSize + getBlockLength(endBlockIndex) - 1;
+        if (log.isDebugEnabled()) {
+            log.debug("Retrieving bytes " + start + "-" + end + " of object " + objectKey
+                + " in bucket " + bucketName);
+        }
+        rangeRequestCount++;
+        byte[] firstBlock = null;
+        InputStream inputStream = openRange(start, end);
+        try {
+            for (long blockIndex = firstBlockIndex; blockIndex <= endBlockIndex; blockIndex++) {
+                byte[] block = new byte[getBlockLength(blockIndex)];
+                readFully(inputStream, block);
+                if (firstBlock == null) {
+                    firstBlock = block;
+                }
+                cacheBlock(blockIndex, block);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return firstBlock;
+    }
+
+    private boolean isBlockCached(long blockIndex) {
+        Long key = Long.valueOf(blockIndex);
+        return cachedBlocks.containsKey(key) || spilledBlocks.contains(key);
+    }
+
+    private static void readFully(InputStream inputStream, byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int count = inputStream.read(block, offset, block.length - offset);
+            if (count < 0) {
+                throw new EOFException("Object data ended " + (block.length - offset)
+                    + " bytes before the end of the requested range");
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Opens a stream of a range of the object's data with a range GET request that requires
+     * the object's ETag to be unchanged.
+     *
+     * @param start
+     * the offset of the first byte in the range.
+     * @param end
+     * the offset of the last byte in the range.
+     * @return
+     * a stream of the range's data.
+     * @throws IOException
+     */
+    protected InputStream openRange(long start, long end) throws IOException {
+        try {
+            StorageObject object = service.getObject(bucketName, objectKey, null, null,
+                (eTag != null ? new String[] {eTag} : null), null,
+                Long.valueOf(start), Long.valueOf(end));
+            return object.getDataInputStream();
+        } catch (ServiceException e) {
+            throw new IOException("Unable to retrieve bytes " + start + "-" + end
+                + " of object " + objectKey + " in bucket " + bucketName, e);
+        }
+    }
+
+    private void cacheBlock(long blockIndex, byte[] block) throws IOException {
+        cachedBlocks.put(Long.valueOf(blockIndex), block);
+        Iterator<Map.Entry<Long, byte[]>> eldest = cachedBlocks.entrySet().iterator();
+        while (cachedBlocks.size() > maxCachedBlocks) {
+            Map.Entry<Long, byte[]> entry = eldest.next();
+            if (cacheDirectory != null) {
+                spillBlock(entry.getKey().longValue(), entry.getValue());
+            }
+            eldest.remove();
+        }
+    }
+
+    private void spillBlock(long blockIndex, byte[] block) throws IOException {
+        Long key = Long.valueOf(blockIndex);
+        if (spilledBlocks.contains(key)) {
+            return;
+        }
+        if (spillAccessFile == null) {
+            spillFile = File.createTempFile("jets3t-blocks-", ".tmp", cacheDirectory);
+            spillFile.deleteOnExit();
+            spillAccessFile = new RandomAccessFile(spillFile, "rw");
+        }
+        spillAccessFile.seek(blockIndex * blockSize);
+        spillAccessFile.write(block);
+        spilledBlocks.add(key);
+    }
+
+    private byte[] readSpilledBlock(long blockIndex) throws IOException {
+        byte[] block = new byte[getBlockLength(blockIndex)];
+        spillAccessFile.seek(blockIndex * blockSize);
+        spillAccessFile.readFully(block);
+        return block;
+    }
+
+}
@@ -18,9 +18,9 @@
  */
 package org.jets3t.service.multi;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -35,6 +35,7 @@ import org.jets3t.service.ServiceException;
 import org.jets3t.service.StorageObjectsChunk;
 import org.jets3t.service.StorageService;
 import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.io.BufferPool;
 import org.jets3t.service.io.BytesProgressWatcher;
 import org.jets3t.service.io.InterruptableInputStream;
 import org.jets3t.service.io.ProgressMonitoredInputStream;
@@ -54,6 +55,7 @@ import org.jets3t.service.multi.event.LookupACLEvent;
 import org.jets3t.service.multi.event.ServiceEvent;
 import org.jets3t.service.multi.event.UpdateACLEvent;
 import org.jets3t.service.security.ProviderCredentials;
+import org.jets3t.service.utils.MultipartETagCalculator;
 import org.jets3t.service.utils.ServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -1554,8 +1556,8 @@ public class ThreadedStorageService {
         }
 
         public void run() {
-            BufferedInputStream bufferedInputStream = null;
-            BufferedOutputStream bufferedOutputStream = null;
+            InputStream inputStream = null;
+            OutputStream outputStream = null;
             StorageObject object = null;
 
             try {
@@ -1567,11 +1569,9 @@ public class ThreadedStorageService {
 
                 // Setup monitoring of stream bytes transferred.
                 interruptableInputStream = new InterruptableInputStream(object.getDataInputStream());
-                bufferedInputStream = new BufferedInputStream(
-                    new ProgressMonitoredInputStream(interruptableInputStream, progressMonitor));
+                inputStream = new ProgressMonitoredInputStream(interruptableInputStream, progressMonitor);
 
-                bufferedOutputStream = new BufferedOutputStream(
-                    downloadPackage.getOutputStream());
+                outputStream = downloadPackage.getOutputStream();
 
                 MessageDigest messageDigest = null;
                 try {
@@ -1582,16 +1582,38 @@ public class ThreadedStorageService {
                     }
                 }
 
+                // Objects uploaded in parts can be verified against their multipart ETag
+                // if the part size is known or can be inferred.
+                MultipartETagCalculator multipartETagCalculator = null;
+                if (MultipartETagCalculator.isMultipartETag(object.getETag())) {
+                    long partSize = MultipartETagCalculator.inferPartSize(object,
+                        storageService.getJetS3tProperties().getLongProperty(
+                            "upload.max-part-size", 0));
+                    if (partSize > 0) {
+                        try {
+                            multipartETagCalculator = new MultipartETagCalculator(partSize);
+                        } catch (NoSuchAlgorithmException e) {
+                            if (log.isWarnEnabled()) {
+                                log.warn("Unable to calculate multipart ETag of data received as algorithm is not available", e);
+                            }
+                        }
+                    }
+                }
+
+                // Copy data with a large pooled buffer, so neither stream needs buffering of its own.
+                byte[] buffer = BufferPool.getDefaultPool().borrow(64 * 1024);
                 try {
-                    byte[] buffer = new byte[1024];
                     int byteCount = -1;
 
-                    while ((byteCount = bufferedInputStream.read(buffer)) != -1) {
-                        bufferedOutputStream.write(buffer, 0, byteCount);
+                    while ((byteCount = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, byteCount);
 
                         if (messageDigest != null) {
                             messageDigest.update(buffer, 0, byteCount);
                         }
+                        if (multipartETagCalculator != null) {
+                            multipartETagCalculator.update(buffer, 0, byteCount);
+                        }
                     }
 
                     // Check that actual bytes received match expected hash value
@@ -1599,8 +1621,26 @@ public class ThreadedStorageService {
                         byte[] dataMD5Hash = messageDigest.digest();
                         String hexMD5OfDownloadedData = ServiceUtils.toHex(dataMD5Hash);
 
+                        if (multipartETagCalculator != null) {
+                            String multipartETag = multipartETagCalculator.getETag();
+                            if (multipartETag.equalsIgnoreCase(object.getETag())) {
+                                if (log.isDebugEnabled()) {
+                                    log.debug("Object download was automatically verified, the calculated multipart ETag "
+                                        + "matched the ETag provided by service: " + object.getKey());
+                                }
+                            } else if (object.containsMetadata(Constants.METADATA_JETS3T_MULTIPART_PART_SIZE)) {
+                                throw new ServiceException("Mismatch between multipart ETag of downloaded data ("
+                                    + multipartETag + ") and ETag returned by service ("
+                                    + object.getETag() + ") for object key: "
+                                    + object.getKey());
+                            } else if (log.isWarnEnabled()) {
+                                log.warn("Unable to verify downloaded data against multipart ETag \""
+                                    + object.getETag() + "\" using an inferred part size"
+                                    + ", for object key: " + object.getKey());
+                            }
+                        }
                         // Don't check MD5 hash against ETag if ETag doesn't look like an MD5 value
-                        if (!ServiceUtils.isEtagAlsoAnMD5Hash(object.getETag()))
+                        else if (!ServiceUtils.isEtagAlsoAnMD5Hash(object.getETag()))
                         {
                             // Use JetS3t's own MD5 hash metadata value for comparison, if it's available
                             if (!hexMD5OfDownloadedData.equals(object.getMd5HashAsHex())) {
@@ -1627,11 +1667,12 @@ public class ThreadedStorageService {
                     }
 
                 } finally {
-                    if (bufferedOutputStream != null) {
-                        bufferedOutputStream.close();
+                    BufferPool.getDefaultPool().release(buffer);
+                    if (outputStream != null) {
+                        outputStream.close();
                     }
-                    if (bufferedInputStream != null) {
-                        bufferedInputStream.close();
+                    if (inputStream != null) {
+                        inputStream.close();
                     }
                 }
 
@@ -1663,18 +1704,18 @@ public class ThreadedStorageService {
                     result = t;
                 }
             } finally {
-                if (bufferedInputStream != null) {
+                if (inputStream != null) {
                     try {
-                        bufferedInputStream.close();
+                        inputStream.close();
                     } catch (Exception e) {
                         if (log.isErrorEnabled()) {
                             log.error("Unable to close Object input stream", e);
                         }
                     }
                 }
-                if (bufferedOutputStream != null) {
+                if (outputStream != null) {
                     try {
-                        bufferedOutputStream.close();
+                        outputStream.close();
                     } catch (Exception e) {
                         if (log.isErrorEnabled()) {
                             log.error("Unable to close download output stream", e);
@@ -18,10 +18,10 @@
  */
 package org.jets3t.service.multithread;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -41,6 +41,7 @@ import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.StorageObjectsChunk;
 import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.io.BufferPool;
 import org.jets3t.service.io.BytesProgressWatcher;
 import org.jets3t.service.io.InterruptableInputStream;
 import org.jets3t.service.io.ProgressMonitoredInputStream;
@@ -2293,8 +2294,8 @@ public class S3ServiceMulti {
         }
 
         public void run() {
-            BufferedInputStream bufferedInputStream = null;
-            BufferedOutputStream bufferedOutputStream = null;
+            InputStream inputStream = null;
+            OutputStream outputStream = null;
             S3Object object = null;
 
             try {
@@ -2310,11 +2311,9 @@ public class S3ServiceMulti {
 
                 // Setup monitoring of stream bytes transferred.
                 interruptableInputStream = new InterruptableInputStream(object.getDataInputStream());
-                bufferedInputStream = new BufferedInputStream(
-                    new ProgressMonitoredInputStream(interruptableInputStream, progressMonitor));
+                inputStream = new ProgressMonitoredInputStream(interruptableInputStream, progressMonitor);
 
-                bufferedOutputStream = new BufferedOutputStream(
-                    downloadPackage.getOutputStream());
+                outputStream = downloadPackage.getOutputStream();
 
                 MessageDigest messageDigest = null;
                 try {
@@ -2325,12 +2324,13 @@ public class S3ServiceMulti {
                     }
                 }
 
+                // Copy data with a large pooled buffer, so neither stream needs buffering of its own.
+                byte[] buffer = BufferPool.getDefaultPool().borrow(64 * 1024);
                 try {
-                    byte[] buffer = new byte[1024];
                     int byteCount = -1;
 
-                    while ((byteCount = bufferedInputStream.read(buffer)) != -1) {
-                        bufferedOutputStream.write(buffer, 0, byteCount);
+                    while ((byteCount = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, byteCount);
 
                         if (messageDigest != null) {
                             messageDigest.update(buffer, 0, byteCount);
@@ -2369,11 +2369,12 @@ public class S3ServiceMulti {
                     }
 
                 } finally {
-                    if (bufferedOutputStream != null) {
-                        bufferedOutputStream.close();
+                    BufferPool.getDefaultPool().release(buffer);
+                    if (outputStream != null) {
+                        outputStream.close();
                     }
-                    if (bufferedInputStream != null) {
-                        bufferedInputStream.close();
+                    if (inputStream != null) {
+                        inputStream.close();
                     }
                 }
 
@@ -2401,18 +2402,18 @@ public class S3ServiceMulti {
             } catch (Throwable t) {
                 result = t;
             } finally {
-                if (bufferedInputStream != null) {
+                if (inputStream != null) {
                     try {
-                        bufferedInputStream.close();
+                        inputStream.close();
                     } catch (Exception e) {
                         if (log.isErrorEnabled()) {
                             log.error("Unable to close Object input stream", e);
                         }
                     }
                 }
-                if (bufferedOutputStream != null) {
+                if (outputStream != null) {
                     try {
-                        bufferedOutputStream.close();
+                        outputStream.close();
                     } catch (Exception e) {
                         if (log.isErrorEnabled()) {
                             log.error("Unable to close download output stream", e);
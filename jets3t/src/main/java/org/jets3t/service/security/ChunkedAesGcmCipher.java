@@ -0,0 +1,708 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of streams with AES-GCM over fixed-size chunks, so that chunks
+ * can be encrypted and decrypted in parallel and any range of the data can be decrypted
+ * without reading the data before it.
+ * <p>
+ * Encrypted data starts with a header of {@link #HEADER_LENGTH} bytes: a 4 byte format
+ * marker, the 4 byte plaintext chunk size and a random 32 byte salt. The salt and the master
+ * key give a key used only for this data, so chunk nonces can simply count from zero. The
+ * header is followed by the chunks, each holding up to the chunk size of ciphertext and a
+ * 16 byte authentication tag. Every chunk but the last is full, and the last chunk, which
+ * may be empty, is flagged in its nonce so truncated data is detected. The header is
+ * authenticated as additional data with every chunk.
+ */
+public class ChunkedAesGcmCipher {
+
+    /**
+     * Length of the header at the start of encrypted data: 40 bytes.
+     */
+    public static final int HEADER_LENGTH = 40;
+
+    /**
+     * Length of the authentication tag that follows each chunk's ciphertext: 16 bytes.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * Default number of plaintext bytes in each chunk: 64 KB.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of plaintext bytes in each chunk: 16 MB. Decryption allocates buffers
+     * of the chunk size read from the data header, so larger sizes are rejected.
+     */
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int FORMAT_MARKER = 0x4a334743; // "J3GC"
+    private static final int SALT_LENGTH = 32;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ChunkedAesGcmCipher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+
+    private final SecretKey masterKey;
+    private final int chunkSize;
+    private final int maxChunksInProgress;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param masterKey
+     * the key from which a key for each encrypted stream is derived.
+     * @param chunkSize
+     * the number of plaintext bytes in each chunk of data encrypted by this instance, no
+     * more than {@link #MAX_CHUNK_SIZE}. Data is decrypted with the chunk size recorded in
+     * its header.
+     */
+    public ChunkedAesGcmCipher(SecretKey masterKey, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkSize);
+        }
+        if (chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be no more than "
+                + MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        this.masterKey = masterKey;
+        this.chunkSize = chunkSize;
+        this.maxChunksInProgress = Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    /**
+     * @param masterKey
+     * the key from which a key for each encrypted stream is derived.
+     */
+    public ChunkedAesGcmCipher(SecretKey masterKey) {
+        this(masterKey, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @return
+     * the number of bytes that result from encrypting data of the given length.
+     */
+    public long getEncryptedOutputSize(long inputSize) {
+        return HEADER_LENGTH + inputSize + (inputSize / chunkSize + 1) * TAG_LENGTH;
+    }
+
+    /**
+     * @param header
+     * the first {@link #HEADER_LENGTH} bytes of encrypted data.
+     * @param plaintextOffset
+     * an offset in the plaintext data.
+     * @return
+     * the offset in the encrypted data of the chunk containing the plaintext offset, from
+     * which {@link #decrypt(byte[], InputStream, long)} can decrypt the rest of the data.
+     * @throws IOException
+     * if the header is invalid.
+     */
+    public static long getEncryptedChunkOffset(byte[] header, long plaintextOffset)
+        throws IOException
+    {
+        int headerChunkSize = readChunkSize(header);
+        return HEADER_LENGTH + (plaintextOffset / headerChunkSize) * (headerChunkSize + TAG_LENGTH);
+    }
+
+    /**
+     * Wraps an input stream in a stream that encrypts its data.
+     *
+     * @param inputStream
+     * plaintext data.
+     * @return
+     * a stream of the encrypted data, including the header.
+     */
+    public InputStream encrypt(InputStream inputStream) {
+        return new EncryptingInputStream(inputStream, createHeader());
+    }
+
+    /**
+     * Wraps an output stream in a stream that encrypts the data written to it. The stream
+     * must be closed to encrypt the final chunk.
+     *
+     * @param outputStream
+     * the stream to which encrypted data, including the header, is written.
+     * @return
+     * a stream to which plaintext data is written.
+     */
+    public OutputStream encrypt(OutputStream outputStream) {
+        return new EncryptingOutputStream(outputStream, createHeader());
+    }
+
+    private byte[] createHeader() {
+        byte[] header = new byte[HEADER_LENGTH];
+        writeInt(header, 0, FORMAT_MARKER);
+        writeInt(header, 4, chunkSize);
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        System.arraycopy(salt, 0, header, 8, SALT_LENGTH);
+        return header;
+    }
+
+    /**
+     * Wraps an input stream of encrypted data, including the header, in a stream that
+     * decrypts it.
+     *
+     * @param inputStream
+     * encrypted data.
+     * @return
+     * a stream of the plaintext data.
+     */
+    public InputStream decrypt(InputStream inputStream) {
+        return new DecryptingInputStream(inputStream, null, 0, 0);
+    }
+
+    /**
+     * Wraps an input stream of encrypted data starting part way through the data in a
+     * stream that decrypts it, for example to decrypt a ranged download.
+     *
+     * @param header
+     * the first {@link #HEADER_LENGTH} bytes of the encrypted data.
+     * @param inputStream
+     * encrypted data starting at {@link #getEncryptedChunkOffset(byte[], long)} for the
+     * plaintext offset, and ending either at the end of the encrypted data or at the
+     * start of a chunk.
+     * @param plaintextOffset
+     * the plaintext offset from which data will be decrypted.
+     * @return
+     * a stream of the plaintext data from the given offset.
+     * @throws IOException
+     * if the header is invalid.
+     */
+    public InputStream decrypt(byte[] header, InputStream inputStream, long plaintextOffset)
+        throws IOException
+    {
+        int headerChunkSize = readChunkSize(header);
+        return new DecryptingInputStream(inputStream, header,
+            plaintextOffset / headerChunkSize, (int) (plaintextOffset % headerChunkSize));
+    }
+
+    /**
+     * Wraps an output stream in a stream that decrypts the encrypted data, including the
+     * header, written to it. The stream must be closed to decrypt the final chunk.
+     *
+     * @param outputStream
+     * the stream to which plaintext data is written.
+     * @return
+     * a stream to which encrypted data is written.
+     */
+    public OutputStream decrypt(OutputStream outputStream) {
+        return new DecryptingOutputStream(outputStream);
+    }
+
+    private static int readChunkSize(byte[] header) throws IOException {
+        if (header == null || header.length < HEADER_LENGTH || readInt(header, 0) != FORMAT_MARKER) {
+            throw new IOException("Data is not encrypted in the chunked AES-GCM format");
+        }
+        int headerChunkSize = readInt(header, 4);
+        if (headerChunkSize < 1 || headerChunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size in encrypted data header: " + headerChunkSize);
+        }
+        return headerChunkSize;
+    }
+
+    /**
+     * @return
+     * the key for data with the given header, derived from the master key and the salt.
+     */
+    private SecretKey deriveDataKey(byte[] header) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(masterKey.getEncoded(), "HmacSHA256"));
+            mac.update(header, 8, SALT_LENGTH);
+            return new SecretKeySpec(mac.doFinal(), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to derive encryption key", e);
+        }
+    }
+
+    private static Cipher getCipher() throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Encrypts or decrypts one chunk of data.
+     */
+    private static class ChunkTransformer implements Callable<byte[]> {
+        private final int mode;
+        private final SecretKey dataKey;
+        private final byte[] header;
+        private final long chunkIndex;
+        private final boolean isFinal;
+        private final byte[] data;
+        private final int length;
+
+        ChunkTransformer(int mode, SecretKey dataKey, byte[] header, long chunkIndex,
+            boolean isFinal, byte[] data, int length)
+        {
+            this.mode = mode;
+            this.dataKey = dataKey;
+            this.header = header;
+            this.chunkIndex = chunkIndex;
+            this.isFinal = isFinal;
+            this.data = data;
+            this.length = length;
+        }
+
+        public byte[] call() throws Exception {
+            byte[] nonce = new byte[12];
+            writeInt(nonce, 0, (int) (chunkIndex >>> 32));
+            writeInt(nonce, 4, (int) chunkIndex);
+            writeInt(nonce, 8, isFinal ? 1 : 0);
+            Cipher cipher = getCipher();
+            cipher.init(mode, dataKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(header);
+            try {
+                return cipher.doFinal(data, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encrypted data chunk " + chunkIndex
+                    + " failed authentication", e);
+            }
+        }
+    }
+
+    /**
+     * @return
+     * the next transformed chunk, waiting for it to complete.
+     */
+    private static byte[] takeChunk(LinkedList<Future<byte[]>> chunksInProgress)
+        throws IOException
+    {
+        try {
+            return chunksInProgress.removeFirst().get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while encrypting or decrypting data", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to encrypt or decrypt data", e.getCause());
+        }
+    }
+
+    /**
+     * Reads up to the length of the buffer from the stream.
+     *
+     * @return
+     * the number of bytes read, which is less than the buffer length only at the end of
+     * the stream.
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int count = inputStream.read(buffer, length, buffer.length - length);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Input stream whose data is produced one transformed chunk at a time.
+     */
+    private abstract class ChunkedInputStream extends InputStream {
+        protected final InputStream inputStream;
+        protected final LinkedList<Future<byte[]>> chunksInProgress = new LinkedList<Future<byte[]>>();
+        protected boolean EOFInput = false;
+        private byte[] chunk = null;
+        private int chunkOffset = 0;
+
+        ChunkedInputStream(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        /**
+         * Reads and submits chunks of underlying data until the maximum number of chunks
+         * are in progress, or the underlying data is exhausted.
+         */
+        protected abstract void submitChunks() throws IOException;
+
+        /**
+         * @return
+         * the number of bytes to skip at the start of the first transformed chunk.
+         */
+        protected int getInitialSkip() {
+            return 0;
+        }
+
+        private boolean primeChunk() throws IOException {
+            while (chunk == null || chunkOffset == chunk.length) {
+                boolean isFirstChunk = (chunk == null);
+                submitChunks();
+                if (chunksInProgress.isEmpty()) {
+                    return false;
+                }
+                chunk = takeChunk(chunksInProgress);
+                chunkOffset = (isFirstChunk ? Math.min(getInitialSkip(), chunk.length) : 0);
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!primeChunk()) {
+                return -1;
+            }
+            return chunk[chunkOffset++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!primeChunk()) {
+                return -1;
+            }
+            int count = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, b, off, count);
+            chunkOffset += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (chunk == null ? 0 : chunk.length - chunkOffset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            EOFInput = true;
+            for (Future<byte[]> future: chunksInProgress) {
+                future.cancel(true);
+            }
+            chunksInProgress.clear();
+            inputStream.close();
+        }
+    }
+
+    private class EncryptingInputStream extends ChunkedInputStream {
+        private final byte[] header;
+        private SecretKey dataKey = null;
+        private long chunkIndex = 0;
+
+        EncryptingInputStream(InputStream inputStream, byte[] header) {
+            super(inputStream);
+            this.header = header;
+        }
+
+        @Override
+        protected void submitChunks() throws IOException {
+            if (dataKey == null) {
+                dataKey = deriveDataKey(header);
+                // The header comes first
+                chunksInProgress.add(new CompletedChunk(header));
+            }
+            while (!EOFInput && chunksInProgress.size() < maxChunksInProgress) {
+                byte[] data = new byte[chunkSize];
+                int length = readFully(inputStream, data);
+                EOFInput = (length < chunkSize);
+                chunksInProgress.add(executor.submit(new ChunkTransformer(Cipher.ENCRYPT_MODE,
+                    dataKey, header, chunkIndex++, EOFInput, data, length)));
+            }
+        }
+    }
+
+    private class DecryptingInputStream extends ChunkedInputStream {
+        private byte[] header;
+        private SecretKey dataKey = null;
+        private final boolean isRange;
+        private final long firstChunkIndex;
+        private long chunkIndex;
+        private final int initialSkip;
+
+        DecryptingInputStream(InputStream inputStream, byte[] header, long firstChunkIndex,
+            int initialSkip)
+        {
+            super(inputStream);
+            this.header = header;
+            this.isRange = (header != null);
+            this.firstChunkIndex = firstChunkIndex;
+            this.chunkIndex = firstChunkIndex;
+            this.initialSkip = initialSkip;
+        }
+
+        @Override
+        protected int getInitialSkip() {
+            return initialSkip;
+        }
+
+        @Override
+        protected void submitChunks() throws IOException {
+            if (EOFInput) {
+                return;
+            }
+            if (header == null) {
+                header = new byte[HEADER_LENGTH];
+                if (readFully(inputStream, header) < HEADER_LENGTH) {
+                    throw new IOException("Encrypted data is too short to include a header");
+                }
+            }
+            int headerChunkSize = readChunkSize(header);
+            if (dataKey == null) {
+                dataKey = deriveDataKey(header);
+            }
+            while (!EOFInput && chunksInProgress.size() < maxChunksInProgress) {
+                byte[] data = new byte[headerChunkSize + TAG_LENGTH];
+                int length = readFully(inputStream, data);
+                EOFInput = (length < data.length);
+                if (EOFInput && length == 0 && isRange && chunkIndex > firstChunkIndex) {
+                    // A range of the data may end after any complete chunk
+                    break;
+                }
+                if (EOFInput && length < TAG_LENGTH) {
+                    throw new IOException("Encrypted data is truncated");
+                }
+                chunksInProgress.add(executor.submit(new ChunkTransformer(Cipher.DECRYPT_MODE,
+                    dataKey, header, chunkIndex++, EOFInput, data, length)));
+            }
+        }
+    }
+
+    private class EncryptingOutputStream extends OutputStream {
+        private final OutputStream outputStream;
+        private final LinkedList<Future<byte[]>> chunksInProgress = new LinkedList<Future<byte[]>>();
+        private final byte[] header;
+        private SecretKey dataKey = null;
+        private byte[] data = new byte[chunkSize];
+        private int dataLength = 0;
+        private long chunkIndex = 0;
+        private boolean isClosed = false;
+
+        EncryptingOutputStream(OutputStream outputStream, byte[] header) {
+            this.outputStream = outputStream;
+            this.header = header;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (dataKey == null) {
+                dataKey = deriveDataKey(header);
+                outputStream.write(header);
+            }
+            while (len > 0) {
+                int count = Math.min(len, data.length - dataLength);
+                System.arraycopy(b, off, data, dataLength, count);
+                dataLength += count;
+                off += count;
+                len -= count;
+                // A full chunk is never the final chunk
+                if (dataLength == data.length) {
+                    submitChunk(false);
+                }
+            }
+        }
+
+        private void submitChunk(boolean isFinal) throws IOException {
+            chunksInProgress.add(executor.submit(new ChunkTransformer(Cipher.ENCRYPT_MODE,
+                dataKey, header, chunkIndex++, isFinal, data, dataLength)));
+            data = new byte[chunkSize];
+            dataLength = 0;
+            while (chunksInProgress.size() >= maxChunksInProgress) {
+                outputStream.write(takeChunk(chunksInProgress));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            try {
+                write(new byte[0], 0, 0);
+                submitChunk(true);
+                while (!chunksInProgress.isEmpty()) {
+                    outputStream.write(takeChunk(chunksInProgress));
+                }
+            } finally {
+                outputStream.close();
+            }
+        }
+    }
+
+    private class DecryptingOutputStream extends OutputStream {
+        private final OutputStream outputStream;
+        private final LinkedList<Future<byte[]>> chunksInProgress = new LinkedList<Future<byte[]>>();
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private int headerLength = 0;
+        private SecretKey dataKey = null;
+        private byte[] data = null;
+        private int dataLength = 0;
+        private long chunkIndex = 0;
+        private boolean isClosed = false;
+
+        DecryptingOutputStream(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (headerLength < HEADER_LENGTH) {
+                    int count = Math.min(len, HEADER_LENGTH - headerLength);
+                    System.arraycopy(b, off, header, headerLength, count);
+                    headerLength += count;
+                    off += count;
+                    len -= count;
+                    if (headerLength == HEADER_LENGTH) {
+                        data = new byte[readChunkSize(header) + TAG_LENGTH];
+                        dataKey = deriveDataKey(header);
+                    }
+                    continue;
+                }
+                // A full chunk is never the final chunk
+                if (dataLength == data.length) {
+                    submitChunk(false);
+                }
+                int count = Math.min(len, data.length - dataLength);
+                System.arraycopy(b, off, data, dataLength, count);
+                dataLength += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void submitChunk(boolean isFinal) throws IOException {
+            chunksInProgress.add(executor.submit(new ChunkTransformer(Cipher.DECRYPT_MODE,
+                dataKey, header, chunkIndex++, isFinal, data, dataLength)));
+            data = new byte[data.length];
+            dataLength = 0;
+            while (chunksInProgress.size() >= maxChunksInProgress) {
+                outputStream.write(takeChunk(chunksInProgress));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            try {
+                if (headerLength < HEADER_LENGTH || dataLength < TAG_LENGTH) {
+                    throw new IOException("Encrypted data is truncated");
+                }
+                submitChunk(true);
+                while (!chunksInProgress.isEmpty()) {
+                    outputStream.write(takeChunk(chunksInProgress));
+                }
+            } finally {
+                outputStream.close();
+            }
+        }
+    }
+
+    /**
+     * A chunk that needs no transformation.
+     */
+    private static class CompletedChunk implements Future<byte[]> {
+        private final byte[] data;
+
+        CompletedChunk(byte[] data) {
+            this.data = data;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public byte[] get() {
+            return data;
+        }
+
+        public byte[] get(long timeout, TimeUnit unit) {
+            return data;
+        }
+    }
+
+    private static void writeInt(byte[] b, int off, int i) {
+        b[off] = (byte) (i >>> 24);
+        b[off + 1] = (byte) (i >>> 16);
+        b[off + 2] = (byte) (i >>> 8);
+        b[off + 3] = (byte) i;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+            | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+}
@@ -18,6 +18,8 @@
  */
 package org.jets3t.service.security;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,6 +27,7 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Provider;
@@ -38,6 +41,8 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import javax.crypto.BadPaddingException;
@@ -50,6 +55,7 @@ import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.jets3t.service.Constants;
 import org.jets3t.service.utils.ServiceUtils;
@@ -73,10 +79,35 @@ public class EncryptionUtil {
     public static final String DEFAULT_VERSION = "2";
     public static final String DEFAULT_ALGORITHM = "PBEWithMD5AndDES";
 
+    /**
+     * Version of the chunked AES-GCM encryption format implemented by
+     * {@link ChunkedAesGcmCipher}, used with the {@link #CHUNKED_AES_GCM_ALGORITHM} algorithm.
+     */
+    public static final String CHUNKED_AES_GCM_VERSION = "3";
+    public static final String CHUNKED_AES_GCM_ALGORITHM = "AES/GCM/NoPadding";
+
+    private static final int PBKDF2_ITERATION_COUNT = 100000;
+    private static final int MAX_CACHED_KEYS = 8;
+
+    /*
+     * Keys derived from passwords for the chunked AES-GCM format, which are deliberately
+     * slow to derive, mapped from a hash of the password.
+     */
+    private static final Map<String, SecretKey> derivedKeys =
+        new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                return size() > MAX_CACHED_KEYS;
+            }
+        };
+
     private String algorithm = null;
     private String version = null;
     private SecretKey key = null;
     private AlgorithmParameterSpec algParamSpec = null;
+    private ChunkedAesGcmCipher chunkedCipher = null;
 
     int ITERATION_COUNT = 5000;
     byte[] salt = {
@@ -112,11 +143,12 @@ public class EncryptionUtil {
      * @param encryptionKey
      *        the password to use for encryption/decryption.
      * @param algorithm
-     *        the Java name of an encryption algorithm to use, eg PBEWithMD5AndDES
+     *        the Java name of an encryption algorithm to use, eg PBEWithMD5AndDES, or
+     *        {@link #CHUNKED_AES_GCM_ALGORITHM} for the chunked AES-GCM format.
      * @param version
      *        the version of encyption to use, for historic and future compatibility.
-     *        Unless using an historic version, this should always be
-     *        {@link #DEFAULT_VERSION}
+     *        This should be the version given by {@link #getVersionForAlgorithm(String)}
+     *        when encrypting, or the version recorded with data when decrypting.
      *
      * @throws InvalidKeyException
      * @throws NoSuchAlgorithmException
@@ -132,6 +164,14 @@ public class EncryptionUtil {
             log.debug("Cryptographic properties: algorithm=" + this.algorithm + ", version=" + this.version);
         }
 
+        if (CHUNKED_AES_GCM_VERSION.equals(version)) {
+            if (!CHUNKED_AES_GCM_ALGORITHM.equals(algorithm)) {
+                throw new RuntimeException("Crypto version " + version
+                    + " requires the algorithm " + CHUNKED_AES_GCM_ALGORITHM + ", not " + algorithm);
+            }
+            chunkedCipher = new ChunkedAesGcmCipher(deriveKey(encryptionKey));
+            return;
+        }
         if (!DEFAULT_VERSION.equals(version)) {
             throw new RuntimeException("Unrecognised crypto version setting: " + version);
         }
@@ -160,6 +200,77 @@ public class EncryptionUtil {
         this(encryptionKey, "PBEWithMD5AndDES", DEFAULT_VERSION);
     }
 
+    /**
+     * @param algorithm
+     * the Java name of an encryption algorithm.
+     * @return
+     * the crypto version with which data should be encrypted using the given algorithm:
+     * {@link #CHUNKED_AES_GCM_VERSION} for {@link #CHUNKED_AES_GCM_ALGORITHM}, otherwise
+     * {@link #DEFAULT_VERSION}.
+     */
+    public static String getVersionForAlgorithm(String algorithm) {
+        if (CHUNKED_AES_GCM_ALGORITHM.equals(algorithm)) {
+            return CHUNKED_AES_GCM_VERSION;
+        }
+        return DEFAULT_VERSION;
+    }
+
+    /**
+     * Derives a 256 bit AES key from a password with PBKDF2, reusing keys derived recently.
+     */
+    private static SecretKey deriveKey(String password)
+        throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        String passwordHash = null;
+        try {
+            passwordHash = ServiceUtils.toHex(MessageDigest.getInstance("SHA-256").digest(
+                password.getBytes(Constants.DEFAULT_ENCODING)));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        synchronized (derivedKeys) {
+            SecretKey derivedKey = derivedKeys.get(passwordHash);
+            if (derivedKey != null) {
+                return derivedKey;
+            }
+        }
+        PBEKeySpec keyspec = new PBEKeySpec(password.toCharArray(),
+            "JetS3t chunked AES-GCM".getBytes(), PBKDF2_ITERATION_COUNT, 256);
+        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        SecretKey derivedKey = new SecretKeySpec(skf.generateSecret(keyspec).getEncoded(), "AES");
+        keyspec.clearPassword();
+        synchronized (derivedKeys) {
+            derivedKeys.put(passwordHash, derivedKey);
+        }
+        return derivedKey;
+    }
+
+    /**
+     * Encrypts or decrypts data in the chunked AES-GCM format.
+     */
+    private byte[] transformChunked(byte[] data, int offset, int length, boolean encrypt)
+        throws BadPaddingException
+    {
+        try {
+            InputStream inputStream = new ByteArrayInputStream(data, offset, length);
+            inputStream = (encrypt
+                ? chunkedCipher.encrypt(inputStream)
+                : chunkedCipher.decrypt(inputStream));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) >= 0) {
+                baos.write(buffer, 0, count);
+            }
+            inputStream.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            BadPaddingException exception = new BadPaddingException(e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
     protected Cipher initEncryptModeCipher() throws NoSuchAlgorithmException, NoSuchPaddingException,
         InvalidKeyException, InvalidAlgorithmParameterException
     {
@@ -199,8 +310,12 @@ public class EncryptionUtil {
         InvalidKeyException, InvalidAlgorithmParameterException,
         NoSuchAlgorithmException, NoSuchPaddingException
     {
+        byte[] bytes = data.getBytes(Constants.DEFAULT_ENCODING);
+        if (chunkedCipher != null) {
+            return transformChunked(bytes, 0, bytes.length, true);
+        }
         Cipher cipher = initEncryptModeCipher();
-        return cipher.doFinal(data.getBytes(Constants.DEFAULT_ENCODING));
+        return cipher.doFinal(bytes);
     }
 
     /**
@@ -224,6 +339,10 @@ public class EncryptionUtil {
         InvalidAlgorithmParameterException, UnsupportedEncodingException, IllegalStateException,
         IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return new String(transformChunked(data, 0, data.length, false),
+                Constants.DEFAULT_ENCODING);
+        }
         Cipher cipher = initEncryptModeCipher();
         return new String(cipher.doFinal(data), Constants.DEFAULT_ENCODING);
     }
@@ -254,6 +373,10 @@ public class EncryptionUtil {
         UnsupportedEncodingException, IllegalStateException, IllegalBlockSizeException,
         BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return new String(transformChunked(data, startIndex, endIndex, false),
+                Constants.DEFAULT_ENCODING);
+        }
         Cipher cipher = initDecryptModeCipher();
         return new String(cipher.doFinal(data, startIndex, endIndex), Constants.DEFAULT_ENCODING);
     }
@@ -278,6 +401,9 @@ public class EncryptionUtil {
         BadPaddingException, InvalidKeyException, InvalidAlgorithmParameterException,
         NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return transformChunked(data, 0, data.length, true);
+        }
         Cipher cipher = initEncryptModeCipher();
         return cipher.doFinal(data);
     }
@@ -302,6 +428,9 @@ public class EncryptionUtil {
         InvalidAlgorithmParameterException, IllegalStateException, IllegalBlockSizeException,
         BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return transformChunked(data, 0, data.length, false);
+        }
         Cipher cipher = initDecryptModeCipher();
         return cipher.doFinal(data);
     }
@@ -326,6 +455,9 @@ public class EncryptionUtil {
         InvalidAlgorithmParameterException, IllegalStateException, IllegalBlockSizeException,
         BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return transformChunked(data, startIndex, endIndex, false);
+        }
         Cipher cipher = initDecryptModeCipher();
         return cipher.doFinal(data, startIndex, endIndex);
     }
@@ -341,9 +473,12 @@ public class EncryptionUtil {
      * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      */
-    public CipherInputStream encrypt(InputStream is) throws InvalidKeyException,
+    public InputStream encrypt(InputStream is) throws InvalidKeyException,
         InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return chunkedCipher.encrypt(is);
+        }
         Cipher cipher = initEncryptModeCipher();
         return new CipherInputStream(is, cipher);
     }
@@ -359,9 +494,12 @@ public class EncryptionUtil {
      * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      */
-    public CipherInputStream decrypt(InputStream is) throws InvalidKeyException,
+    public InputStream decrypt(InputStream is) throws InvalidKeyException,
         InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return chunkedCipher.decrypt(is);
+        }
         Cipher cipher = initDecryptModeCipher();
         return new CipherInputStream(is, cipher);
     }
@@ -377,9 +515,12 @@ public class EncryptionUtil {
      * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      */
-    public CipherOutputStream encrypt(OutputStream os) throws InvalidKeyException,
+    public OutputStream encrypt(OutputStream os) throws InvalidKeyException,
         InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return chunkedCipher.encrypt(os);
+        }
         Cipher cipher = initEncryptModeCipher();
         return new CipherOutputStream(os, cipher);
     }
@@ -395,9 +536,12 @@ public class EncryptionUtil {
      * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      */
-    public CipherOutputStream decrypt(OutputStream os) throws InvalidKeyException,
+    public OutputStream decrypt(OutputStream os) throws InvalidKeyException,
         InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return chunkedCipher.decrypt(os);
+        }
         Cipher cipher = initDecryptModeCipher();
         return new CipherOutputStream(os, cipher);
     }
@@ -423,6 +567,9 @@ public class EncryptionUtil {
     public long getEncryptedOutputSize(long inputSize) throws InvalidKeyException,
         InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException
     {
+        if (chunkedCipher != null) {
+            return chunkedCipher.getEncryptedOutputSize(inputSize);
+        }
         Cipher cipher = initEncryptModeCipher();
         long outputSize = 0;
 
@@ -445,6 +592,23 @@ public class EncryptionUtil {
         return algorithm;
     }
 
+    /**
+     * @return
+     * the crypto version used by this class.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return
+     * the cipher that encrypts data in the chunked AES-GCM format, which can decrypt ranges
+     * of data, or null if this class uses an older version.
+     */
+    public ChunkedAesGcmCipher getChunkedCipher() {
+        return chunkedCipher;
+    }
+
     /**
      * Returns true if the given cipher is available and can be used by this encryption
      * utility. To determine whether the cipher can actually be used a test string is
@@ -457,7 +621,7 @@ public class EncryptionUtil {
     public static boolean isCipherAvailableForUse(String cipher) {
         try {
             EncryptionUtil encryptionUtil =
-                new EncryptionUtil("Sample Key", cipher, EncryptionUtil.DEFAULT_VERSION);
+                new EncryptionUtil("Sample Key", cipher, getVersionForAlgorithm(cipher));
             encryptionUtil.encrypt("Testing encryption...");
         } catch (RuntimeException e) {
             throw e;
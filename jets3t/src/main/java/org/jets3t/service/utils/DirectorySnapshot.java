@@ -0,0 +1,402 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.model.StorageObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A snapshot of the state of a synchronized directory tree, recorded so that a later
+ * comparison can skip whole sub-directories that have not changed.
+ * <p>
+ * For every directory the snapshot records a Merkle-style digest of the local files, in
+ * which each directory's digest covers the names, sizes and last modified times of its files
+ * and the digests of its sub-directories. A digest of the objects in the service under the
+ * directory, covering their names, ETags and sizes, is also recorded for directories that
+ * were fully synchronized. A directory whose local and service digests both match the
+ * snapshot has not changed on either side, so its files need not be hashed or compared.
+ * <p>
+ * Directories are identified by their '/'-delimited object key prefix, ending with a '/'
+ * character, or by the empty string for the top level.
+ */
+public class DirectorySnapshot {
+    private static final Logger log = LoggerFactory.getLogger(DirectorySnapshot.class);
+
+    private static final int FILE_MAGIC = 0x4a334453; // "J3DS"
+    private static final int FILE_VERSION = 1;
+
+    private final String identity;
+    private final Map<String, String> localDigests;
+    private final Map<String, String> remoteDigests;
+
+    /**
+     * @param identity
+     * a description of what was synchronized, such as the bucket, object path and local
+     * paths, which must match when the snapshot is loaded.
+     * @param localDigests
+     * the local digest of each directory, as produced by {@link #computeLocalDigests(Map)}.
+     * @param remoteDigests
+     * the service digest of each directory that was fully synchronized.
+     */
+    public DirectorySnapshot(String identity, Map<String, String> localDigests,
+        Map<String, String> remoteDigests)
+    {
+        this.identity = identity;
+        this.localDigests = localDigests;
+        this.remoteDigests = remoteDigests;
+    }
+
+    /**
+     * Creates a snapshot of a synchronized tree.
+     *
+     * @param identity
+     * @param localDigests
+     * the local digest of each directory, as produced by {@link #computeLocalDigests(Map)}.
+     * @param remoteDigests
+     * the service digest of each directory, as produced by {@link #computeRemoteDigests(Map)}
+     * from the listing used for the synchronization.
+     * @param unsynchronizedKeys
+     * the keys of all the files and objects that differed between the local system and the
+     * service. The service digest of any directory containing one of these is not recorded,
+     * since the listing no longer describes the directory's objects.
+     * @return
+     * the snapshot.
+     */
+    public static DirectorySnapshot create(String identity, Map<String, String> localDigests,
+        Map<String, String> remoteDigests, Collection<String> unsynchronizedKeys)
+    {
+        Set<String> changedDirectories = new HashSet<String>();
+        for (String key: unsynchronizedKeys) {
+            String directory = getParentDirectory(key);
+            while (directory != null && changedDirectories.add(directory)) {
+                directory = getParentDirectory(directory);
+            }
+        }
+        Map<String, String> unchangedRemoteDigests = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry: remoteDigests.entrySet()) {
+            if (!changedDirectories.contains(entry.getKey())) {
+                unchangedRemoteDigests.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new DirectorySnapshot(identity, localDigests, unchangedRemoteDigests);
+    }
+
+    public String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * @param localDigests
+     * the current local digest of each directory.
+     * @return
+     * the directories whose local digest matches the snapshot and whose service digest was
+     * recorded, excluding directories inside another directory in the result.
+     */
+    public Set<String> findUnchangedDirectories(Map<String, String> localDigests) {
+        Set<String> unchangedDirectories = new TreeSet<String>();
+        for (Map.Entry<String, String> entry: localDigests.entrySet()) {
+            String directory = entry.getKey();
+            if (entry.getValue().equals(this.localDigests.get(directory))
+                && remoteDigests.containsKey(directory))
+            {
+                unchangedDirectories.add(directory);
+            }
+        }
+        Set<String> topmostDirectories = new TreeSet<String>();
+        for (String directory: unchangedDirectories) {
+            boolean isNested = false;
+            for (String parent = getParentDirectory(directory); parent != null && !isNested;
+                parent = getParentDirectory(parent))
+            {
+                isNested = unchangedDirectories.contains(parent);
+            }
+            if (!isNested) {
+                topmostDirectories.add(directory);
+            }
+        }
+        return topmostDirectories;
+    }
+
+    /**
+     * @param directory
+     * @param remoteDigests
+     * the current service digest of each directory, as produced by
+     * {@link #computeRemoteDigests(Map)}.
+     * @return
+     * true if the service digest of the directory matches the snapshot.
+     */
+    public boolean isRemoteUnchanged(String directory, Map<String, String> remoteDigests) {
+        String digest = this.remoteDigests.get(directory);
+        return digest != null && digest.equals(remoteDigests.get(directory));
+    }
+
+    /**
+     * @param key
+     * @param directory
+     * @return
+     * true if the key is that of a file, object or directory inside the directory, at any depth.
+     */
+    public static boolean isInDirectory(String key, String directory) {
+        return key.startsWith(directory) && key.length() > directory.length();
+    }
+
+    /**
+     * Computes the local digest of every directory containing the given files.
+     *
+     * @param objectKeyToFilepathMap
+     * map of '/'-delimited object key names to local file absolute paths
+     * @return
+     * map of directory key prefixes to digests.
+     */
+    public static Map<String, String> computeLocalDigests(Map<String, String> objectKeyToFilepathMap) {
+        Map<String, String> entryStates = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry: objectKeyToFilepathMap.entrySet()) {
+            String key = entry.getKey();
+            if (key.endsWith(Constants.FILE_PATH_DELIM)) {
+                entryStates.put(key, "D");
+                continue;
+            }
+            String state = null;
+            try {
+                FileHashIndex.FileState fileState =
+                    FileHashIndex.readFileState(new File(entry.getValue()));
+                state = "F " + fileState.getSize() + " " + fileState.getLastModifiedNanos();
+            } catch (IOException e) {
+                state = "?";
+            }
+            entryStates.put(key, state);
+        }
+        return computeDigests(entryStates);
+    }
+
+    /**
+     * Computes the service digest of every directory containing the given objects.
+     *
+     * @param objectsMap
+     * map of '/'-delimited object key names, relative to the synchronized path, to objects
+     * as listed from the service.
+     * @return
+     * map of directory key prefixes to digests.
+     */
+    public static Map<String, String> computeRemoteDigests(Map<String, StorageObject> objectsMap) {
+        Map<String, String> entryStates = new HashMap<String, String>();
+        for (Map.Entry<String, StorageObject> entry: objectsMap.entrySet()) {
+            StorageObject object = entry.getValue();
+            entryStates.put(entry.getKey(), "O " + object.getETag() + " " + object.getContentLength());
+        }
+        return computeDigests(entryStates);
+    }
+
+    private static Map<String, String> computeDigests(Map<String, String> entryStates) {
+        // Collect the state of each directory's immediate children
+        Map<String, Map<String, String>> directoryEntries = new HashMap<String, Map<String, String>>();
+        getDirectoryEntries(directoryEntries, "");
+        for (Map.Entry<String, String> entry: entryStates.entrySet()) {
+            String key = entry.getKey();
+            String parent = getParentDirectory(key);
+            getDirectoryEntries(directoryEntries, parent).put(
+                key.substring(parent.length()), entry.getValue());
+            if (key.endsWith(Constants.FILE_PATH_DELIM)) {
+                getDirectoryEntries(directoryEntries, key);
+            }
+        }
+
+        // Digest the deepest directories first, so each digest includes those of its children
+        List<String> directories = new ArrayList<String>(directoryEntries.keySet());
+        Collections.sort(directories, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return getDepth(b) - getDepth(a);
+            }
+        });
+        Map<String, String> digests = new HashMap<String, String>();
+        MessageDigest messageDigest = null;
+        try {
+            messageDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 digest is not available", e);
+        }
+        for (String directory: directories) {
+            messageDigest.reset();
+            for (Map.Entry<String, String> entry: directoryEntries.get(directory).entrySet()) {
+                messageDigest.update(ServiceUtils.stringToBytes(
+                    entry.getKey() + "\t" + entry.getValue() + "\n"));
+            }
+            String digest = ServiceUtils.toHex(messageDigest.digest());
+            digests.put(directory, digest);
+
+            String parent = getParentDirectory(directory);
+            if (parent != null) {
+                Map<String, String> parentEntries = directoryEntries.get(parent);
+                String name = directory.substring(parent.length());
+                String state = parentEntries.get(name);
+                parentEntries.put(name, (state == null ? "" : state) + "|" + digest);
+            }
+        }
+        return digests;
+    }
+
+    private static Map<String, String> getDirectoryEntries(
+        Map<String, Map<String, String>> directoryEntries, String directory)
+    {
+        Map<String, String> entries = directoryEntries.get(directory);
+        if (entries == null) {
+            entries = new TreeMap<String, String>();
+            directoryEntries.put(directory, entries);
+            String parent = getParentDirectory(directory);
+            if (parent != null) {
+                getDirectoryEntries(directoryEntries, parent);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return
+     * the key prefix of the directory containing the given key, or null for the top level.
+     */
+    private static String getParentDirectory(String key) {
+        if (key.length() == 0) {
+            return null;
+        }
+        int endIndex = (key.endsWith(Constants.FILE_PATH_DELIM) ? key.length() - 1 : key.length());
+        return key.substring(0, key.lastIndexOf(Constants.FILE_PATH_DELIM, endIndex - 1) + 1);
+    }
+
+    private static int getDepth(String directory) {
+        int depth = 0;
+        for (int i = 0; i < directory.length(); i++) {
+            if (directory.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Loads a snapshot saved by {@link #save(File)}.
+     *
+     * @param file
+     * @param identity
+     * the identity the snapshot must have.
+     * @return
+     * the snapshot, or null if the file does not exist, cannot be read, or contains the
+     * snapshot of a different synchronization.
+     */
+    public static DirectorySnapshot load(File file, String identity) {
+        if (!file.canRead()) {
+            return null;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (dis.readInt() != FILE_MAGIC || dis.readInt() != FILE_VERSION) {
+                log.warn("Ignoring directory snapshot with unrecognised format: " + file);
+                return null;
+            }
+            if (!identity.equals(dis.readUTF())) {
+                return null;
+            }
+            Map<String, String> localDigests = new HashMap<String, String>();
+            Map<String, String> remoteDigests = new HashMap<String, String>();
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String directory = dis.readUTF();
+                localDigests.put(directory, dis.readUTF());
+                if (dis.readBoolean()) {
+                    remoteDigests.put(directory, dis.readUTF());
+                }
+            }
+            return new DirectorySnapshot(identity, localDigests, remoteDigests);
+        } catch (IOException e) {
+            log.warn("Unable to read directory snapshot " + file, e);
+            return null;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the snapshot, replacing any existing file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory snapshot directory " + directory);
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            dos.writeInt(FILE_MAGIC);
+            dos.writeInt(FILE_VERSION);
+            dos.writeUTF(identity);
+            dos.writeInt(localDigests.size());
+            for (Map.Entry<String, String> entry: new TreeMap<String, String>(localDigests).entrySet()) {
+                dos.writeUTF(entry.getKey());
+                dos.writeUTF(entry.getValue());
+                String remoteDigest = remoteDigests.get(entry.getKey());
+                dos.writeBoolean(remoteDigest != null);
+                if (remoteDigest != null) {
+                    dos.writeUTF(remoteDigest);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+        if (file.exists() && !file.delete()) {
+            tempFile.delete();
+            throw new IOException("Unable to replace directory snapshot " + file);
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename temporary directory snapshot to " + file);
+        }
+    }
+
+}
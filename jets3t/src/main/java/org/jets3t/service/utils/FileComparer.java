@@ -26,20 +26,37 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import org.jets3t.service.Constants;
@@ -74,6 +91,10 @@ public class FileComparer {
     private static final Logger log = LoggerFactory.getLogger(FileComparer.class);
 
     private Jets3tProperties jets3tProperties = null;
+    private FileHashIndex fileHashIndex = null;
+    private boolean isFileHashIndexOpened = false;
+    private final Map<String, Pattern> compiledIgnorePatterns =
+        new ConcurrentHashMap<String, Pattern>();
 
     /**
      * Constructs the class.
@@ -124,6 +145,23 @@ public class FileComparer {
      * file, or if it has no contents, the list returned will be empty.
      */
     protected List<Pattern> buildIgnoreRegexpList(File directory, List<Pattern> parentIgnorePatternList) {
+        return buildIgnoreRegexpList(directory, parentIgnorePatternList, true);
+    }
+
+    /**
+     * @see #buildIgnoreRegexpList(File, List)
+     *
+     * @param directory
+     * @param parentIgnorePatternList
+     * @param mayHaveIgnoreFile
+     * false if the caller already knows the directory does not contain a
+     * <code>.jets3t-ignore</code> file, so it need not be looked for.
+     * @return
+     * a list of Pattern objects representing the paths in the ignore file.
+     */
+    protected List<Pattern> buildIgnoreRegexpList(File directory,
+        List<Pattern> parentIgnorePatternList, boolean mayHaveIgnoreFile)
+    {
         List<Pattern> ignorePatternList = new ArrayList<Pattern>();
 
         // Add any applicable ignore patterns found in ancestor directories
@@ -144,12 +182,12 @@ public class FileComparer {
                         // ** patterns are special and apply to any directory depth, so add both the
                         // pattern's tail to match in this directory, and the original pattern to match
                         // again in descendent directories.
-                        ignorePatternList.add(Pattern.compile(patternTail));
+                        ignorePatternList.add(compileIgnorePattern(patternTail));
                         ignorePatternList.add(parentPattern);
-                    } else if (Pattern.compile(patternHeader).matcher(directory.getName()).matches()) {
+                    } else if (compileIgnorePattern(patternHeader).matcher(directory.getName()).matches()) {
                         // Adds pattern's tail section to ignore list for this directory, provided
                         // the pre-slash pattern matches the current directory's name.
-                        ignorePatternList.add(Pattern.compile(patternTail));
+                        ignorePatternList.add(compileIgnorePattern(patternTail));
                     }
                 }
             }
@@ -160,7 +198,7 @@ public class FileComparer {
         }
 
         File jets3tIgnoreFile = new File(directory, Constants.JETS3T_IGNORE_FILENAME);
-        if (jets3tIgnoreFile.exists() && jets3tIgnoreFile.canRead()) {
+        if (mayHaveIgnoreFile && jets3tIgnoreFile.exists() && jets3tIgnoreFile.canRead()) {
             if (log.isDebugEnabled()) {
                 log.debug("Found ignore file: " + jets3tIgnoreFile.getPath());
             }
@@ -177,7 +215,7 @@ public class FileComparer {
                     ignoreRegexp = ignoreRegexp.replaceAll("\\*", ".*");
                     ignoreRegexp = ignoreRegexp.replaceAll("\\?", ".");
 
-                    Pattern pattern = Pattern.compile(ignoreRegexp);
+                    Pattern pattern = compileIgnorePattern(ignoreRegexp);
                     if (log.isDebugEnabled()) {
                         log.debug("Ignore path '" + ignorePath + "' has become the regexp: "
                         + pattern.pattern());
@@ -187,7 +225,7 @@ public class FileComparer {
                     if (pattern.pattern().startsWith(".*.*/") && pattern.pattern().length() > 5) {
                         // **/ patterns are special and apply to any directory depth, including the current
                         // directory. So add the pattern's after-slash tail to match in this directory as well.
-                        ignorePatternList.add(Pattern.compile(pattern.pattern().substring(5)));
+                        ignorePatternList.add(compileIgnorePattern(pattern.pattern().substring(5)));
                     }
 
                 }
@@ -200,7 +238,7 @@ public class FileComparer {
         }
 
         if (isSkipMd5FileUpload()) {
-            Pattern pattern = Pattern.compile(".*\\.md5");
+            Pattern pattern = compileIgnorePattern(".*\\.md5");
             if (log.isDebugEnabled()) {
                 log.debug("Skipping upload of pre-computed MD5 files with path '*.md5' using the regexp: "
                 + pattern.pattern());
@@ -211,6 +249,21 @@ public class FileComparer {
         return ignorePatternList;
     }
 
+    /**
+     * @param regexp
+     * @return
+     * the compiled pattern for an ignore path regular expression, reusing the pattern compiled
+     * previously for the same expression when the expression is inherited by many directories.
+     */
+    protected Pattern compileIgnorePattern(String regexp) {
+        Pattern pattern = compiledIgnorePatterns.get(regexp);
+        if (pattern == null) {
+            pattern = Pattern.compile(regexp);
+            compiledIgnorePatterns.put(regexp, pattern);
+        }
+        return pattern;
+    }
+
     /**
      * Determines whether a file should be ignored when building a file map. A file may be ignored
      * in two situations: 1) if it matches a regular expression pattern in the given list of
@@ -260,14 +313,20 @@ public class FileComparer {
             return true;
         }
 
+        return isIgnoredByPattern(ignorePatternList, file.getName(), file.isDirectory(), file.getPath());
+    }
+
+    private boolean isIgnoredByPattern(List<Pattern> ignorePatternList, String fileName,
+        boolean isDirectory, String filePath)
+    {
         Iterator<Pattern> patternIter = ignorePatternList.iterator();
         while (patternIter.hasNext()) {
             Pattern pattern = patternIter.next();
 
-            if (pattern.matcher(file.getName()).matches()) {
+            if (pattern.matcher(fileName).matches()) {
                 if (log.isDebugEnabled()) {
-                    log.debug("Ignoring " + (file.isDirectory() ? "directory" : "file")
-                    + " matching pattern '" + pattern.pattern() + "': " + file.getPath());
+                    log.debug("Ignoring " + (isDirectory ? "directory" : "file")
+                    + " matching pattern '" + pattern.pattern() + "': " + filePath);
                 }
                 return true;
             }
@@ -286,7 +345,7 @@ public class FileComparer {
      * @param str
      * @return string normalized into NFC form.
      */
-    protected String normalizeUnicode(String str) {
+    public String normalizeUnicode(String str) {
         Normalizer.Form form = Normalizer.Form.NFD;
         if (!Normalizer.isNormalized(str, form)) {
             return Normalizer.normalize(str, form);
@@ -358,15 +417,201 @@ public class FileComparer {
                     if (includeDirectories) {
                         objectKeyToFilepathMap.put(objectKeyName, file.getAbsolutePath());
                     }
-                    buildObjectKeyToFilepathMapForDirectory(
-                        file, objectKeyName, objectKeyToFilepathMap,
-                        includeDirectories, ignorePatternList);
+                    if (getScanThreadCount() > 1) {
+                        scanDirectory(file, objectKeyName, objectKeyToFilepathMap,
+                            includeDirectories, ignorePatternList);
+                    } else {
+                        buildObjectKeyToFilepathMapForDirectory(
+                            file, objectKeyName, objectKeyToFilepathMap,
+                            includeDirectories, ignorePatternList);
+                    }
+                    retainScannedFilesInHashIndex(file, objectKeyToFilepathMap);
                 }
             }
         }
         return objectKeyToFilepathMap;
     }
 
+    /**
+     * Builds a map of object key names to file paths for the contents of a directory nested
+     * inside a file or directory that was given to
+     * {@link #buildObjectKeyToFilepathMap(File[], String, boolean)}. The keys and the files
+     * included are the same as that method would produce for the directory's contents,
+     * including the effects of ignore files in the directories above it, so part of a
+     * large tree can be compared again without scanning the whole tree.
+     *
+     * @param rootFile
+     * the file or directory given to {@link #buildObjectKeyToFilepathMap(File[], String, boolean)}.
+     * @param directory
+     * the directory to scan, which must be the root file or a directory inside it.
+     * @param objectKeyToFilepathMap
+     * map of '/'-delimited object key names to local file absolute paths, to which this method adds items.
+     * @param includeDirectories
+     * If true all directories, including empty ones, will be included in the Map.
+     * @return
+     * the object key of the directory, ending with a '/' character, with which all the keys
+     * added to the map start. Null if the directory does not exist or is ignored, in which
+     * case nothing is added to the map.
+     */
+    public String buildObjectKeyToFilepathMapForSubdirectory(File rootFile, File directory,
+        Map<String, String> objectKeyToFilepathMap, boolean includeDirectories)
+    {
+        directory = directory.getAbsoluteFile();
+        String[] objectKeyPrefix = new String[1];
+        List<Pattern> ignorePatternList =
+            findSubdirectoryIgnorePatterns(rootFile, directory, objectKeyPrefix);
+        if (objectKeyPrefix[0] == null) {
+            return null;
+        }
+
+        if (getScanThreadCount() > 1) {
+            scanDirectory(directory, objectKeyPrefix[0], objectKeyToFilepathMap,
+                includeDirectories, ignorePatternList);
+        } else {
+            buildObjectKeyToFilepathMapForDirectory(directory, objectKeyPrefix[0],
+                objectKeyToFilepathMap, includeDirectories, ignorePatternList);
+        }
+        retainScannedFilesInHashIndex(directory, objectKeyToFilepathMap);
+        return objectKeyPrefix[0];
+    }
+
+    /**
+     * Drops the hash index entries of files inside a directory that a full scan of the
+     * directory did not find, such as deleted or newly ignored files, so the index does not
+     * have to check whether its files still exist.
+     *
+     * @param directory
+     * the directory that was scanned.
+     * @param objectKeyToFilepathMap
+     * a map containing all the files found by the scan.
+     */
+    private void retainScannedFilesInHashIndex(File directory,
+        Map<String, String> objectKeyToFilepathMap)
+    {
+        if (!isUseHashIndex()) {
+            return;
+        }
+        FileHashIndex hashIndex = getFileHashIndex();
+        if (hashIndex != null) {
+            try {
+                hashIndex.retainScanned(directory,
+                    new HashSet<String>(objectKeyToFilepathMap.values()));
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to remove missing files from hash index", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a map of object key names to file paths for some of the entries of a directory
+     * nested inside a file or directory that was given to
+     * {@link #buildObjectKeyToFilepathMap(File[], String, boolean)}, with the same keys as
+     * {@link #buildObjectKeyToFilepathMapForSubdirectory(File, File, Map, boolean)} would
+     * produce for them. The directory's other entries are not read, so a few changed entries
+     * of a large directory can be compared again cheaply.
+     *
+     * @param rootFile
+     * the file or directory given to {@link #buildObjectKeyToFilepathMap(File[], String, boolean)}.
+     * @param directory
+     * the directory containing the entries, which must be the root file or a directory inside it.
+     * @param entries
+     * files and directories directly inside the directory. Directories are included along with
+     * all their contents, while entries that do not exist or are ignored are left out.
+     * @param objectKeyToFilepathMap
+     * map of '/'-delimited object key names to local file absolute paths, to which this method adds items.
+     * @param includeDirectories
+     * If true all directories, including empty ones, will be included in the Map.
+     * @return
+     * the object key of the directory, ending with a '/' character, with which all the keys
+     * added to the map start. Null if the directory does not exist or is ignored, in which
+     * case nothing is added to the map.
+     */
+    public String buildObjectKeyToFilepathMapForEntries(File rootFile, File directory,
+        Collection<File> entries, Map<String, String> objectKeyToFilepathMap,
+        boolean includeDirectories)
+    {
+        directory = directory.getAbsoluteFile();
+        String[] objectKeyPrefix = new String[1];
+        List<Pattern> ignorePatternList =
+            findSubdirectoryIgnorePatterns(rootFile, directory, objectKeyPrefix);
+        if (objectKeyPrefix[0] == null) {
+            return null;
+        }
+        ignorePatternList = buildIgnoreRegexpList(directory, ignorePatternList);
+
+        for (File entry: entries) {
+            if (!entry.exists() || isIgnored(ignorePatternList, entry)) {
+                continue;
+            }
+            String objectKeyName = normalizeUnicode(objectKeyPrefix[0] + entry.getName());
+            if (!entry.isDirectory()) {
+                objectKeyToFilepathMap.put(objectKeyName, entry.getAbsolutePath());
+            } else {
+                objectKeyName += Constants.FILE_PATH_DELIM;
+                if (includeDirectories) {
+                    objectKeyToFilepathMap.put(objectKeyName, entry.getAbsolutePath());
+                }
+                if (getScanThreadCount() > 1) {
+                    scanDirectory(entry, objectKeyName, objectKeyToFilepathMap,
+                        includeDirectories, ignorePatternList);
+                } else {
+                    buildObjectKeyToFilepathMapForDirectory(entry, objectKeyName,
+                        objectKeyToFilepathMap, includeDirectories, ignorePatternList);
+                }
+            }
+        }
+        return objectKeyPrefix[0];
+    }
+
+    /**
+     * Applies the ignore patterns of each directory from a root file down to a directory
+     * inside it.
+     *
+     * @param objectKeyPrefix
+     * an array whose first item is set to the object key of the directory, ending with a '/'
+     * character, or to null if the directory does not exist or is ignored.
+     * @return
+     * the ignore patterns that apply to the directory itself, excluding those of its own
+     * ignore file.
+     */
+    private List<Pattern> findSubdirectoryIgnorePatterns(File rootFile, File directory,
+        String[] objectKeyPrefix)
+    {
+        rootFile = rootFile.getAbsoluteFile();
+        directory = directory.getAbsoluteFile();
+        objectKeyPrefix[0] = null;
+
+        // Find the directories from the root file down to the directory
+        LinkedList<File> directoryPath = new LinkedList<File>();
+        File pathDirectory = directory;
+        while (pathDirectory != null && !pathDirectory.equals(rootFile)) {
+            directoryPath.addFirst(pathDirectory);
+            pathDirectory = pathDirectory.getParentFile();
+        }
+        if (pathDirectory == null) {
+            throw new IllegalArgumentException(
+                "Directory " + directory + " is not inside " + rootFile);
+        }
+        directoryPath.addFirst(rootFile);
+
+        // Apply the ignore patterns of each directory on the way down
+        List<Pattern> ignorePatternList = buildIgnoreRegexpList(rootFile.getParentFile(), null);
+        String keyPrefix = "";
+        for (File file: directoryPath) {
+            if (!file.isDirectory() || isIgnored(ignorePatternList, file)) {
+                return ignorePatternList;
+            }
+            keyPrefix = normalizeUnicode(keyPrefix + file.getName()) + Constants.FILE_PATH_DELIM;
+            if (file != directory) {
+                ignorePatternList = buildIgnoreRegexpList(file, ignorePatternList);
+            }
+        }
+        objectKeyPrefix[0] = keyPrefix;
+        return ignorePatternList;
+    }
+
     /**
      * Recursively builds a map of object key names to file paths that contains
      * all the files and directories inside the given directory. The map
@@ -433,6 +678,145 @@ public class FileComparer {
         }
     }
 
+    /**
+     * Builds the same map of object key names to file paths as
+     * {@link #buildObjectKeyToFilepathMapForDirectory(File, String, Map, boolean, List)},
+     * but scans sibling directories in parallel on a fork-join pool of
+     * {@link #getScanThreadCount()} threads. Each directory is read with a single
+     * directory stream, and the attributes needed to identify directories, symlinks and
+     * special files are read with one call per entry.
+     *
+     * @param directory
+     * The directory containing the files/directories of interest. The directory is <b>not</b>
+     * included in the result map.
+     * @param fileKeyPrefix
+     * A prefix added to each file path key in the map, which <b>must</b> end with a '/' character.
+     * @param objectKeyToFilepathMap
+     * map of '/'-delimited object key names to local file absolute paths, to which this method adds items.
+     * @param includeDirectories
+     * If true all directories, including empty ones, will be included in the Map.
+     * @param parentIgnorePatternList
+     * a list of Patterns that were applied to the parent directory of the given directory,
+     * may be null.
+     */
+    protected void scanDirectory(File directory, String fileKeyPrefix,
+        Map<String, String> objectKeyToFilepathMap, boolean includeDirectories,
+        List<Pattern> parentIgnorePatternList)
+    {
+        Map<String, String> scannedFiles = new ConcurrentHashMap<String, String>();
+        ForkJoinPool pool = new ForkJoinPool(getScanThreadCount());
+        try {
+            pool.invoke(new DirectoryScanTask(directory, fileKeyPrefix, scannedFiles,
+                includeDirectories, parentIgnorePatternList));
+        } finally {
+            pool.shutdown();
+        }
+        objectKeyToFilepathMap.putAll(scannedFiles);
+    }
+
+    /**
+     * Scans one directory, adding its files to the result map and forking a task to scan
+     * each of its sub-directories.
+     */
+    private class DirectoryScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+        private final String fileKeyPrefix;
+        private final Map<String, String> scannedFiles;
+        private final boolean includeDirectories;
+        private final List<Pattern> parentIgnorePatternList;
+
+        DirectoryScanTask(File directory, String fileKeyPrefix, Map<String, String> scannedFiles,
+            boolean includeDirectories, List<Pattern> parentIgnorePatternList)
+        {
+            this.directory = directory;
+            this.fileKeyPrefix = fileKeyPrefix;
+            this.scannedFiles = scannedFiles;
+            this.includeDirectories = includeDirectories;
+            this.parentIgnorePatternList = parentIgnorePatternList;
+        }
+
+        @Override
+        protected void compute() {
+            List<Path> entries = new ArrayList<Path>();
+            boolean hasIgnoreFile = false;
+            DirectoryStream<Path> stream = null;
+            try {
+                stream = Files.newDirectoryStream(directory.toPath());
+                for (Path path: stream) {
+                    entries.add(path);
+                    if (Constants.JETS3T_IGNORE_FILENAME.equals(path.getFileName().toString())) {
+                        hasIgnoreFile = true;
+                    }
+                }
+            } catch (IOException e) {
+                // Report directory listing errors in a more useful way
+                throw new IllegalStateException(
+                    "Failed to list files in directory path "
+                    + directory.getAbsolutePath(), e);
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+
+            List<Pattern> ignorePatternList = buildIgnoreRegexpList(
+                directory, parentIgnorePatternList, hasIgnoreFile);
+            boolean skipSymlinks = isSkipSymlinks();
+
+            List<DirectoryScanTask> subdirectoryTasks = new ArrayList<DirectoryScanTask>();
+            for (Path path: entries) {
+                String fileName = path.getFileName().toString();
+                String filePath = path.toAbsolutePath().toString();
+                BasicFileAttributes attributes = null;
+                try {
+                    attributes = Files.readAttributes(
+                        path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink()) {
+                        if (skipSymlinks) {
+                            if (log.isDebugEnabled()) {
+                                log.debug("Ignoring symlink: " + filePath);
+                            }
+                            continue;
+                        }
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    }
+                } catch (IOException e) {
+                    // Entries that cannot be read, such as broken symlinks, are treated as special
+                    attributes = null;
+                }
+                // Skip 'special' files that are neither files nor directories
+                if (attributes == null || (!attributes.isRegularFile() && !attributes.isDirectory())) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Ignoring special file: " + filePath);
+                    }
+                    continue;
+                }
+                if (isIgnoredByPattern(ignorePatternList, fileName, attributes.isDirectory(), filePath)) {
+                    continue;
+                }
+
+                String objectKeyName = normalizeUnicode(fileKeyPrefix + fileName);
+                if (!attributes.isDirectory()) {
+                    scannedFiles.put(objectKeyName, filePath);
+                } else {
+                    objectKeyName += Constants.FILE_PATH_DELIM;
+                    if (includeDirectories) {
+                        scannedFiles.put(objectKeyName, filePath);
+                    }
+                    subdirectoryTasks.add(new DirectoryScanTask(path.toFile(), objectKeyName,
+                        scannedFiles, includeDirectories, ignorePatternList));
+                }
+            }
+            invokeAll(subdirectoryTasks);
+        }
+    }
+
     /**
      * Lists the objects in a bucket using a partitioning technique to divide
      * the object namespace into separate partitions that can be listed by
@@ -613,6 +997,89 @@ public class FileComparer {
             delimiter, toDepth);
     }
 
+    /**
+     * Lists the objects in a bucket path like {@link #listObjectsThreaded(StorageService, String, String)},
+     * but uses a persistent listing cache when the "filecomparer.listing-cache.enabled"
+     * configuration option is set.
+     * <p>
+     * If a cached listing for the bucket path is available and has not expired, only the
+     * partitions of the path that have changed are listed again (see {@link ObjectListingCache}).
+     * Otherwise the complete path is listed and the results are stored in the cache for later use.
+     *
+     * @param service
+     * the service object that will be used to perform listing requests.
+     * @param bucketName
+     * the name of the bucket whose contents will be listed.
+     * @param targetPath
+     * a root path within the bucket to be listed. If this parameter is null, all
+     * the bucket's objects will be listed.
+     *
+     * @return
+     * the list of objects under the target path in the bucket.
+     *
+     * @throws ServiceException
+     */
+    public StorageObject[] listObjectsCached(StorageService service,
+        String bucketName, String targetPath) throws ServiceException
+    {
+        if (!isUseListingCache()) {
+            return listObjectsThreaded(service, bucketName, targetPath);
+        }
+
+        ObjectListingCache cache = new ObjectListingCache(
+            getListingCacheDirectory(), bucketName, targetPath);
+        long maxAgeMillis = jets3tProperties.getLongProperty(
+            "filecomparer.listing-cache.max-age-seconds", 604800) * 1000;
+        if (cache.load() && !cache.isExpired(maxAgeMillis)) {
+            cache.refresh(service, jets3tProperties.getIntProperty(
+                "filecomparer.listing-cache.samples-per-partition", 4));
+        } else {
+            cache.replaceAll(listObjectsThreaded(service, bucketName, targetPath));
+        }
+
+        try {
+            cache.save();
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to save listing cache file " + cache.getCacheFile(), e);
+            }
+        }
+        return cache.getObjects();
+    }
+
+    /**
+     * Marks the objects with the given keys as changed in the persistent listing cache for a
+     * bucket path, if the "filecomparer.listing-cache.enabled" configuration option is set.
+     * Applications should call this method before they upload or delete objects in a
+     * path listed with {@link #listObjectsCached(StorageService, String, String)}.
+     *
+     * @param bucketName
+     * the name of the bucket whose listing is cached.
+     * @param targetPath
+     * the root path within the bucket whose listing is cached, may be null.
+     * @param objectKeys
+     * the full keys of the objects that will change.
+     */
+    public void invalidateListingCache(String bucketName, String targetPath,
+        Collection<String> objectKeys)
+    {
+        if (!isUseListingCache()) {
+            return;
+        }
+        try {
+            ObjectListingCache.invalidate(
+                getListingCacheDirectory(), bucketName, targetPath, objectKeys);
+        } catch (IOException e) {
+            // If we cannot record the change the cache cannot be trusted, so discard it.
+            File cacheFile = ObjectListingCache.getCacheFile(
+                getListingCacheDirectory(), bucketName, targetPath);
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to invalidate listing cache, deleting cache file " + cacheFile, e);
+            }
+            cacheFile.delete();
+        }
+    }
+
     /**
      * Builds a service Object Map containing all the objects within the given target path,
      * where the map's key for each object is the relative path to the object.
@@ -646,7 +1113,7 @@ public class FileComparer {
         throws ServiceException
     {
         String prefix = (targetPath.length() > 0 ? targetPath : null);
-        StorageObject[] objectsIncomplete = this.listObjectsThreaded(
+        StorageObject[] objectsIncomplete = this.listObjectsCached(
             service, bucketName, prefix);
         return lookupObjectMetadataForPotentialClashes(
             service, bucketName, targetPath,
@@ -709,7 +1176,7 @@ public class FileComparer {
         StorageObject[] objects = null;
         String resultPriorLastKey = null;
         if (completeListing) {
-            objects = listObjectsThreaded(service, bucketName, prefix);
+            objects = listObjectsCached(service, bucketName, prefix);
         } else {
             StorageObjectsChunk chunk = service.listObjectsChunked(
                 bucketName, prefix, null, Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE,
@@ -771,6 +1238,9 @@ public class FileComparer {
 
         // Identify objects that might clash with local files
         Set<StorageObject> objectsForMetadataRetrieval = new HashSet<StorageObject>();
+        List<StorageObject> objectsToCompare = new ArrayList<StorageObject>();
+        Map<String, File> filesToHash = new LinkedHashMap<String, File>();
+        boolean quickCheck = isQuickCheck();
         for (StorageObject object: objectsWithoutMetadata) {
             String objectKey = object.getKey();
             if (forceMetadataDownload) {
@@ -778,9 +1248,11 @@ public class FileComparer {
                 objectsForMetadataRetrieval.add(object);
                 continue;
             }
-            if (!ServiceUtils.isEtagAlsoAnMD5Hash(object.getETag())) {
+            if (!ServiceUtils.isEtagAlsoAnMD5Hash(object.getETag())
+                && !MultipartETagCalculator.isMultipartETag(object.getETag()))
+            {
                 // Always retrieve metadata for objects whose ETags are
-                // not MD5 hash values (e.g. multipart uploads)
+                // neither MD5 hash values nor multipart upload ETags
                 objectsForMetadataRetrieval.add(object);
                 continue;
             }
@@ -821,17 +1293,59 @@ public class FileComparer {
                 continue;
             }
 
-            // Compare object's minimal ETag value against File's MD5 hash.
             File file = new File(filepath);
+            if (file.isDirectory()) {
+                // Always retrieve metadata for directory place-holder objects
+                objectsForMetadataRetrieval.add(object);
+                continue;
+            }
+            if (quickCheck) {
+                // The quick check compares the file's size and date with the object's recorded
+                // file date instead of reading the file. Listed objects lack that date, so
+                // only those whose size differs have their metadata retrieved, since the file
+                // must have changed or been encoded; the rest are compared by their ETags.
+                if (isUnchangedBySizeAndDate(file, object)) {
+                    continue;
+                }
+                if (file.length() != object.getContentLength()) {
+                    objectsForMetadataRetrieval.add(object);
+                    continue;
+                }
+            }
+            if (MultipartETagCalculator.isMultipartETag(object.getETag())) {
+                // Compare the object's multipart ETag with the file's, if possible
+                try {
+                    if (isMultipartETagMatch(file, object, progressWatcher)) {
+                        continue;
+                    }
+                } catch (Exception e) {
+                    throw new ServiceException(
+                        "Unable to generate multipart ETag for file " + file.getPath(), e);
+                }
+                objectsForMetadataRetrieval.add(object);
+                continue;
+            }
+            // Object's ETag must be compared with the file's MD5 hash
+            filesToHash.put(objectKey, file);
+            objectsToCompare.add(object);
+        }
+
+        // Compare objects' minimal ETag values against files' MD5 hashes, hashing in parallel.
+        Map<String, byte[]> fileHashes = null;
+        try {
+            fileHashes = generateFileMD5Hashes(filesToHash, progressWatcher);
+        } catch (Exception e) {
+            throw new ServiceException("Unable to generate MD5 hashes for files", e);
+        }
+        for (StorageObject object: objectsToCompare) {
+            File file = filesToHash.get(object.getKey());
             String fileHashAsHex = null;
             try {
-                if (file.isDirectory()) {
-                    // Dummy value, always retrieve metadata for directory place-holder objects
-                    fileHashAsHex = "";
-                } else {
-                    fileHashAsHex = ServiceUtils.toHex(
-                        generateFileMD5Hash(file, objectKey, progressWatcher));
+                byte[] fileHash = fileHashes.get(object.getKey());
+                if (fileHash == null) {
+                    fileHash = generateFileMD5Hash(file, object.getKey(), progressWatcher);
                 }
+                fileHashAsHex = ServiceUtils.toHex(fileHash);
             } catch (Exception e) {
                 throw new ServiceException(
                     "Unable to generate MD5 hash for file " + file.getPath(), e);
@@ -930,16 +1444,69 @@ public class FileComparer {
     }
 
     /**
-     * Return the pre-generated MD5 hash value of a file, as previously stored by JetS3t
-     * (or another program) in an .md5 file corresponding to the given file.
+     * @return
+     * the persistent hash index in the directory given by {@link #getHashIndexDirectory()},
+     * opening it the first time this method is called, or null if the
+     * "filecomparer.hash-index.enabled" configuration option is not set or the index
+     * cannot be opened.
+     */
+    protected synchronized FileHashIndex getFileHashIndex() {
+        if (!isFileHashIndexOpened) {
+            isFileHashIndexOpened = true;
+            if (isUseHashIndex()) {
+                try {
+                    fileHashIndex = new FileHashIndex(getHashIndexDirectory());
+                } catch (IOException e) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Unable to open hash index, hashes will not be indexed", e);
+                    }
+                }
+            }
+        }
+        return fileHashIndex;
+    }
+
+    /**
+     * Closes the persistent hash index if it is open, so its log is flushed and released.
+     * The index is opened again if it is needed after being closed.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        isFileHashIndexOpened = false;
+        if (fileHashIndex != null) {
+            FileHashIndex hashIndex = fileHashIndex;
+            fileHashIndex = null;
+            hashIndex.close();
+        }
+    }
+
+    /**
+     * Return the pre-generated MD5 hash value of a file, as previously recorded in the
+     * persistent hash index or stored by JetS3t (or another program) in an .md5 file
+     * corresponding to the given file.
      *
      * @param file
      * @param relativeFilePath
      *
      * @return
-     * md5 hash value, or null if no pre-generated .md5 file exists or is readable.
+     * md5 hash value, or null if the file has no valid entry in the hash index and no
+     * pre-generated .md5 file exists or is readable.
      */
     public byte[] lookupFileMD5Hash(File file, String relativeFilePath) throws IOException {
+        FileHashIndex hashIndex = getFileHashIndex();
+        if (hashIndex != null) {
+            byte[] indexedHash = hashIndex.lookup(file, FileHashIndex.readFileState(file));
+            if (indexedHash != null) {
+                return indexedHash;
+            }
+        }
+        return lookupPreComputedHashFile(file, relativeFilePath);
+    }
+
+    private byte[] lookupPreComputedHashFile(File file, String relativeFilePath)
+        throws IOException
+    {
         File preComputedHashFile = getPreComputedHashFile(file, relativeFilePath);
         byte[] preComputedHash = null;
 
@@ -991,7 +1558,24 @@ public class FileComparer {
         throws IOException, NoSuchAlgorithmException
     {
         File computedHashFile = getPreComputedHashFile(file, relativeFilePath);
-        byte[] computedHash = lookupFileMD5Hash(file, relativeFilePath);
+        byte[] computedHash = null;
+
+        // Consult the hash index first, reading the file's state before any of its data
+        FileHashIndex hashIndex = getFileHashIndex();
+        FileHashIndex.FileState fileState = null;
+        if (hashIndex != null) {
+            fileState = FileHashIndex.readFileState(file);
+            computedHash = hashIndex.lookup(file, fileState);
+            if (computedHash != null && log.isDebugEnabled()) {
+                log.debug("Found indexed MD5 hash for: " + file);
+            }
+        }
+        if (computedHash == null) {
+            computedHash = lookupPreComputedHashFile(file, relativeFilePath);
+            if (computedHash != null && hashIndex != null) {
+                hashIndex.record(file, fileState, computedHash);
+            }
+        }
 
         if (computedHash == null) {
             // A pre-computed hash file was not available, or could not be read.
@@ -1007,6 +1591,9 @@ public class FileComparer {
             if (log.isDebugEnabled()) {
                 log.debug("Calculated MD5 hash for: " + file);
             }
+            if (hashIndex != null) {
+                hashIndex.record(file, fileState, computedHash);
+            }
         }
 
         if (isGenerateMd5Files() && !file.getName().endsWith(".md5") &&
@@ -1047,6 +1634,209 @@ public class FileComparer {
         return computedHash;
     }
 
+    /**
+     * Generates MD5 hashes for a set of files in parallel, using a bounded pool of
+     * {@link #getHashingThreadCount()} threads. Each file is hashed with
+     * {@link #generateFileMD5Hash(File, String, BytesProgressWatcher)} so pre-computed
+     * hash files are used and generated as usual, and the given progress watcher reports
+     * the aggregate bytes read by all threads.
+     *
+     * @param filesByRelativePath
+     * map of relative file paths, as passed to {@link #generateFileMD5Hash}, to the files to hash.
+     * @param progressWatcher
+     * watcher to monitor bytes read during comparison operations, may be null.
+     * @return
+     * map of the relative file paths to MD5 hashes as bytes. If the hashing thread count is
+     * one or there are fewer than two files the map is empty, and callers should hash any
+     * files not in the map on demand.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public Map<String, byte[]> generateFileMD5Hashes(Map<String, File> filesByRelativePath,
+        final BytesProgressWatcher progressWatcher)
+        throws IOException, NoSuchAlgorithmException
+    {
+        final Map<String, byte[]> hashes = new ConcurrentHashMap<String, byte[]>();
+        int threadCount = getHashingThreadCount();
+        if (threadCount <= 1 || filesByRelativePath.size() < 2) {
+            return hashes;
+        }
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        // A bounded queue keeps the number of pending tasks small for very large trees. When
+        // it is full the calling thread hashes the next file itself.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threadCount * 2),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (Map.Entry<String, File> entry: filesByRelativePath.entrySet()) {
+                if (failure.get() != null) {
+                    break;
+                }
+                final String relativePath = entry.getKey();
+                final File file = entry.getValue();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        if (failure.get() != null) {
+                            return;
+                        }
+                        try {
+                            hashes.put(relativePath,
+                                generateFileMD5Hash(file, relativePath, progressWatcher));
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // Keep waiting for in-flight hashes to complete
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while generating MD5 hashes", e);
+            }
+        }
+
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) e;
+        } else if (e != null) {
+            throw new IOException("Unable to generate MD5 hashes", e);
+        }
+        return hashes;
+    }
+
+    /**
+     * Finds files that exist only on the client whose content is identical to an object that
+     * exists only in the service, such as files that have been renamed or moved since they
+     * were uploaded. These files can be copied within the service from the matching objects
+     * rather than uploaded again.
+     * <p>
+     * Files are matched to objects by MD5 hash. An object's hash is taken from its
+     * {@link StorageObject#METADATA_HEADER_ORIGINAL_HASH_MD5} metadata if it was encoded when
+     * uploaded, otherwise from its ETag or its {@link StorageObject#METADATA_HEADER_HASH_MD5}
+     * metadata. Objects with multipart ETags and no such metadata are matched by calculating
+     * the multipart ETags of files of the same size instead. A file is only hashed if its size
+     * matches the content length of an unencoded candidate object, or if there is a candidate
+     * object whose original size is not known because it was encoded. Directories and empty
+     * files are never matched.
+     *
+     * @param discrepancyResults
+     * the results of a complete comparison of the files and objects.
+     * @param objectKeyToFilepathMap
+     * map of '/'-delimited object key names to local file absolute paths
+     * @param objectsMap
+     * a map of keys to StorageObjects, including all the objects that exist only in the service.
+     * @param progressWatcher
+     * watcher to monitor bytes read while hashing files, may be null.
+     * @return
+     * a map of the keys of files that exist only on the client to the keys of objects
+     * with identical content that exist only in the service. Several files may match the
+     * same object.
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public Map<String, String> findRenamedFiles(FileComparerResults discrepancyResults,
+        Map<String, String> objectKeyToFilepathMap, Map<String, StorageObject> objectsMap,
+        BytesProgressWatcher progressWatcher) throws NoSuchAlgorithmException, IOException
+    {
+        Map<String, String> renamedFiles = new LinkedHashMap<String, String>();
+
+        // Index the hashes and sizes of objects that exist only in the service
+        Map<String, String> objectKeysByHash = new HashMap<String, String>();
+        Set<Long> objectSizes = new HashSet<Long>();
+        Map<Long, List<StorageObject>> multipartObjectsBySize =
+            new HashMap<Long, List<StorageObject>>();
+        boolean hasEncodedObjects = false;
+        for (String objectKey: discrepancyResults.onlyOnServerKeys) {
+            StorageObject storageObject = objectsMap.get(objectKey);
+            if (storageObject == null || storageObject.isDirectoryPlaceholder()
+                || objectKey.endsWith(Constants.FILE_PATH_DELIM))
+            {
+                continue;
+            }
+            String objectHash = null;
+            if (storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5)) {
+                objectHash = (String) storageObject.getMetadata(
+                    StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5);
+                hasEncodedObjects = true;
+            } else if (storageObject.getContentLength() <= 0) {
+                continue;
+            } else if (isComparableByMultipartETag(storageObject)) {
+                List<StorageObject> sameSizeObjects =
+                    multipartObjectsBySize.get(storageObject.getContentLength());
+                if (sameSizeObjects == null) {
+                    sameSizeObjects = new ArrayList<StorageObject>();
+                    multipartObjectsBySize.put(storageObject.getContentLength(), sameSizeObjects);
+                }
+                sameSizeObjects.add(storageObject);
+            } else if (storageObject.getMd5HashAsBase64() != null) {
+                objectHash = storageObject.getMd5HashAsBase64();
+                objectSizes.add(storageObject.getContentLength());
+            }
+            if (objectHash != null && !objectKeysByHash.containsKey(objectHash)) {
+                objectKeysByHash.put(objectHash, objectKey);
+            }
+        }
+        if (objectKeysByHash.isEmpty() && multipartObjectsBySize.isEmpty()) {
+            return renamedFiles;
+        }
+
+        // Find the files that could match a candidate object
+        Map<String, File> filesToHash = new LinkedHashMap<String, File>();
+        for (String fileKey: discrepancyResults.onlyOnClientKeys) {
+            if (fileKey.endsWith(Constants.FILE_PATH_DELIM)) {
+                continue;
+            }
+            File file = new File(objectKeyToFilepathMap.get(fileKey));
+            long fileLength = file.length();
+            if (file.isDirectory() || fileLength <= 0) {
+                continue;
+            }
+            if (hasEncodedObjects || objectSizes.contains(fileLength)) {
+                filesToHash.put(fileKey, file);
+            }
+            List<StorageObject> sameSizeObjects = multipartObjectsBySize.get(fileLength);
+            if (sameSizeObjects != null) {
+                for (StorageObject storageObject: sameSizeObjects) {
+                    if (isMultipartETagMatch(file, storageObject, progressWatcher)) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("File " + fileKey + " has the same multipart ETag as object "
+                                + storageObject.getKey());
+                        }
+                        renamedFiles.put(fileKey, storageObject.getKey());
+                        filesToHash.remove(fileKey);
+                        break;
+                    }
+                }
+            }
+        }
+
+        Map<String, byte[]> fileHashes = generateFileMD5Hashes(filesToHash, progressWatcher);
+        for (Map.Entry<String, File> entry: filesToHash.entrySet()) {
+            String fileKey = entry.getKey();
+            byte[] fileHash = fileHashes.get(fileKey);
+            if (fileHash == null) {
+                fileHash = generateFileMD5Hash(entry.getValue(), fileKey, progressWatcher);
+            }
+            String objectKey = objectKeysByHash.get(ServiceUtils.toBase64(fileHash));
+            if (objectKey != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("File " + fileKey + " has the same content as object " + objectKey);
+                }
+                renamedFiles.put(fileKey, objectKey);
+            }
+        }
+        return renamedFiles;
+    }
+
     /**
      * Compares the contents of a directory on the local file system with the contents of a service
      * resource. This comparison is performed on a map of files and a map of service objects previously
@@ -1124,16 +1914,36 @@ public class FileComparer {
         boolean isForceUpload)
         throws NoSuchAlgorithmException, FileNotFoundException, IOException, ParseException
     {
-        List<String> onlyOnServerKeys = new ArrayList<String>();
-        List<String> updatedOnServerKeys = new ArrayList<String>();
-        List<String> updatedOnClientKeys = new ArrayList<String>();
-        List<String> onlyOnClientKeys = new ArrayList<String>();
-        List<String> alreadySynchronisedKeys = new ArrayList<String>();
-        List<String> alreadySynchronisedLocalPaths = new ArrayList<String>();
+        Set<String> onlyOnServerKeys = new LinkedHashSet<String>();
+        Set<String> updatedOnServerKeys = new LinkedHashSet<String>();
+        Set<String> updatedOnClientKeys = new LinkedHashSet<String>();
+        Set<String> alreadySynchronisedKeys = new LinkedHashSet<String>();
+        Set<String> alreadySynchronisedLocalPaths = new LinkedHashSet<String>();
 
         // Start by assuming all items are local to client. Items will be removed
         // from this set as we proceed.
-        onlyOnClientKeys.addAll(objectKeyToFilepathMap.keySet());
+        Set<String> onlyOnClientKeys = new LinkedHashSet<String>(objectKeyToFilepathMap.keySet());
+
+        // Hash the local files that will need comparing with objects up front, in parallel.
+        Map<String, byte[]> fileHashes = Collections.emptyMap();
+        if (!isForceUpload) {
+            Map<String, File> filesToHash = new LinkedHashMap<String, File>();
+            for (Map.Entry<String, StorageObject> entry: objectsMap.entrySet()) {
+                if (entry.getValue().isDirectoryPlaceholder()) {
+                    continue;
+                }
+                String filepath = objectKeyToFilepathMap.get(entry.getKey());
+                if (filepath != null) {
+                    File file = new File(filepath);
+                    if (!file.isDirectory() && !isUnchangedBySizeAndDate(file, entry.getValue())
+                        && !isComparableByMultipartETag(entry.getValue()))
+                    {
+                        filesToHash.put(entry.getValue().getKey(), file);
+                    }
+                }
+            }
+            fileHashes = generateFileMD5Hashes(filesToHash, progressWatcher);
+        }
 
         // Check files on server against local client files.
         Iterator<Map.Entry<String, StorageObject>> objectsMapIter = objectsMap.entrySet().iterator();
@@ -1183,27 +1993,44 @@ public class FileComparer {
                         alreadySynchronisedLocalPaths.add(localPath);
                         onlyOnClientKeys.remove(keyPath);
                     }
+                    // In quick check mode, trust matching sizes and dates without hashing
+                    else if (isUnchangedBySizeAndDate(file, storageObject)) {
+                        alreadySynchronisedKeys.add(keyPath);
+                        alreadySynchronisedLocalPaths.add(localPath);
+                        onlyOnClientKeys.remove(keyPath);
+                    }
                     // Compare file hashes.
                     else {
-                        String fileHashAsBase64 = ServiceUtils.toBase64(
-                            generateFileMD5Hash(file, storageObject.getKey(), progressWatcher));
-
-                        // Get the service object's Base64 hash.
-                        String objectHash = null;
-                        if (storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5)) {
-                            // Use the object's *original* hash, as it is an encoded version of a local file.
-                            objectHash = (String) storageObject.getMetadata(
-                                StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5);
-                            if (log.isDebugEnabled()) {
-                                log.debug("Object in service is encoded, using the object's original hash value for: "
-                                + storageObject.getKey());
-                            }
+                        boolean isHashMatch = false;
+                        if (isComparableByMultipartETag(storageObject)) {
+                            // The object's only hash is its multipart upload ETag
+                            isHashMatch = isMultipartETagMatch(file, storageObject, progressWatcher);
                         } else {
-                            // The object wasn't altered when uploaded, so use its current hash.
-                            objectHash = storageObject.getMd5HashAsBase64();
+                            byte[] fileHash = fileHashes.get(storageObject.getKey());
+                            if (fileHash == null) {
+                                fileHash = generateFileMD5Hash(
+                                    file, storageObject.getKey(), progressWatcher);
+                            }
+                            String fileHashAsBase64 = ServiceUtils.toBase64(fileHash);
+
+                            // Get the service object's Base64 hash.
+                            String objectHash = null;
+                            if (storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5)) {
+                                // Use the object's *original* hash, as it is an encoded version of a local file.
+                                objectHash = (String) storageObject.getMetadata(
+                                    StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5);
+                                if (log.isDebugEnabled()) {
+                                    log.debug("Object in service is encoded, using the object's original hash value for: "
+                                    + storageObject.getKey());
+                                }
+                            } else {
+                                // The object wasn't altered when uploaded, so use its current hash.
+                                objectHash = storageObject.getMd5HashAsBase64();
+                            }
+                            isHashMatch = fileHashAsBase64.equals(objectHash);
                         }
 
-                        if (fileHashAsBase64.equals(objectHash)) {
+                        if (isHashMatch) {
                             // Hashes match so file is already synchronised.
                             alreadySynchronisedKeys.add(keyPath);
                             alreadySynchronisedLocalPaths.add(localPath);
@@ -1274,6 +2101,99 @@ public class FileComparer {
             onlyOnClientKeys, alreadySynchronisedKeys, alreadySynchronisedLocalPaths);
     }
 
+    /**
+     * @param storageObject
+     * @return
+     * true if the object's data can only be compared by its multipart upload ETag, because
+     * the object is not encoded and has no MD5 hash other than its ETag.
+     */
+    protected boolean isComparableByMultipartETag(StorageObject storageObject) {
+        return MultipartETagCalculator.isMultipartETag(storageObject.getETag())
+            && !storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5)
+            && storageObject.getMd5HashAsBase64() == null;
+    }
+
+    /**
+     * Compares a local file with an object uploaded as a multipart upload by calculating
+     * the multipart ETag of the file, using the part size recorded in the object's metadata
+     * or inferred from the "upload.max-part-size" configuration option.
+     *
+     * @param file
+     * @param storageObject
+     * an object with a multipart upload ETag.
+     * @param progressWatcher
+     * watcher to monitor bytes read during comparison operations, may be null.
+     * @return
+     * true if the file's multipart ETag matches the object's ETag. False if it does not, or
+     * if the file's size differs from the object's or the part size cannot be determined.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    protected boolean isMultipartETagMatch(File file, StorageObject storageObject,
+        BytesProgressWatcher progressWatcher) throws IOException, NoSuchAlgorithmException
+    {
+        if (file.length() != storageObject.getContentLength()) {
+            return false;
+        }
+        long partSize = MultipartETagCalculator.inferPartSize(storageObject,
+            jets3tProperties.getLongProperty("upload.max-part-size", MultipartUtils.MAX_OBJECT_SIZE));
+        if (partSize < 0) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to determine multipart upload part size of object "
+                    + storageObject.getKey() + " with ETag " + storageObject.getETag());
+            }
+            return false;
+        }
+        String fileETag = MultipartETagCalculator.computeETag(file, partSize, progressWatcher);
+        if (log.isDebugEnabled()) {
+            log.debug("Calculated multipart ETag for: " + file);
+        }
+        return fileETag.equalsIgnoreCase(storageObject.getETag());
+    }
+
+    /**
+     * Determines whether a local file is unchanged from the object in the service according
+     * to the quick check, which compares the file's size with the object's content length
+     * and the file's last modified date with the object's
+     * {@link Constants#METADATA_JETS3T_LOCAL_FILE_DATE} metadata. Only an exact match of that
+     * recorded date is trusted: the object's own last modified date says nothing about the
+     * file, whose date may be skewed or restored by a copy, and whose object may have been
+     * overwritten by another tool.
+     *
+     * @param file
+     * @param storageObject
+     * @return
+     * true if quick check comparisons are enabled and the file's size and date both match the
+     * object. False if they differ, or if the object is encoded or lacks the recorded date,
+     * such as an object from a listing, in which case the file must be compared by its hash.
+     */
+    protected boolean isUnchangedBySizeAndDate(File file, StorageObject storageObject) {
+        if (!isQuickCheck()
+            || storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5))
+        {
+            // The content length of an encoded object does not reflect the original file size
+            return false;
+        }
+        if (file.length() != storageObject.getContentLength()) {
+            return false;
+        }
+        String metadataLocalFileDate = (String) storageObject.getMetadata(
+            Constants.METADATA_JETS3T_LOCAL_FILE_DATE);
+        if (metadataLocalFileDate == null) {
+            return false;
+        }
+        try {
+            return ServiceUtils.parseIso8601Date(metadataLocalFileDate).getTime()
+                == file.lastModified();
+        } catch (ParseException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to parse " + Constants.METADATA_JETS3T_LOCAL_FILE_DATE
+                    + " metadata of object " + storageObject.getKey() + ": " + metadataLocalFileDate);
+            }
+            return false;
+        }
+    }
+
     private String[] splitFilePathIntoDirPaths(String path, boolean isDirectoryPlaceholder) {
         String[] pathComponents = path.split(Constants.FILE_PATH_DELIM);
         String[] dirPathsInOrder = new String[pathComponents.length];
@@ -1331,6 +2251,83 @@ public class FileComparer {
     }
 
 
+    /**
+     * @return
+     * the number of threads used to scan local directories, as set by the
+     * "filecomparer.scan-threads" configuration option. Defaults to the number of available
+     * processors. If set to 1, directories are scanned on the calling thread by
+     * {@link #buildObjectKeyToFilepathMapForDirectory(File, String, Map, boolean, List)}.
+     */
+    public int getScanThreadCount() {
+        return jets3tProperties.getIntProperty("filecomparer.scan-threads",
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return
+     * the number of threads used to generate MD5 hashes of local files, as set by the
+     * "filecomparer.hashing-threads" configuration option. Defaults to the number of
+     * available processors.
+     */
+    public int getHashingThreadCount() {
+        return jets3tProperties.getIntProperty("filecomparer.hashing-threads",
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return
+     * true if the "filecomparer.listing-cache.enabled" configuration option is set.
+     */
+    public boolean isUseListingCache() {
+        return jets3tProperties.getBoolProperty("filecomparer.listing-cache.enabled", false);
+    }
+
+    /**
+     * @return
+     * the directory represented by the configuration option "filecomparer.listing-cache.dir",
+     * or the <code>listing-cache</code> directory within the default preferences directory
+     * if this option is not specified.
+     */
+    public File getListingCacheDirectory() {
+        String dirPath = jets3tProperties.getStringProperty("filecomparer.listing-cache.dir", null);
+        if (dirPath != null) {
+            return new File(dirPath);
+        }
+        return new File(Constants.DEFAULT_PREFERENCES_DIRECTORY, "listing-cache");
+    }
+
+    /**
+     * @return
+     * true if the "filecomparer.quick-check" configuration option is set, in which case local
+     * files whose size and last modified date match an object's are assumed to be unchanged
+     * without comparing hashes.
+     */
+    public boolean isQuickCheck() {
+        return jets3tProperties.getBoolProperty("filecomparer.quick-check", false);
+    }
+
+    /**
+     * @return
+     * true if the "filecomparer.hash-index.enabled" configuration option is set.
+     */
+    public boolean isUseHashIndex() {
+        return jets3tProperties.getBoolProperty("filecomparer.hash-index.enabled", false);
+    }
+
+    /**
+     * @return
+     * the directory represented by the configuration option "filecomparer.hash-index.dir",
+     * or the <code>hash-index</code> directory within the default preferences directory
+     * if this option is not specified.
+     */
+    public File getHashIndexDirectory() {
+        String dirPath = jets3tProperties.getStringProperty("filecomparer.hash-index.dir", null);
+        if (dirPath != null) {
+            return new File(dirPath);
+        }
+        return new File(Constants.DEFAULT_PREFERENCES_DIRECTORY, "hash-index");
+    }
+
     /**
      * @return
      * the file represented by the configuration option "filecomparer.md5-files-root-dir"
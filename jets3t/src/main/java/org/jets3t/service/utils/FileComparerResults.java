@@ -18,9 +18,15 @@
  */
 package org.jets3t.service.utils;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 
 /**
  * A simple container class to store the results generated by
@@ -36,7 +42,9 @@ import java.util.Map;
  *     contents of the objects are different and the local version is newer than the S3 one.</li>
  * <li>alreadySynchronisedKeys: identical objects with these keys exist in S3 and on the local computer</li>
  * </ul>
- *
+ * <p>
+ * The lists created by this class keep a hash index of their keys, so checking whether a
+ * list contains a key takes constant time no matter how many keys are compared.
  *
  * @author James Murty
  */
@@ -57,34 +65,71 @@ public class FileComparerResults {
         this.alreadySynchronisedLocalPaths = alreadySynchronisedLocalPaths;
     }
 
+    /**
+     * Creates results with indexed lists of the keys in the given sets, in their iteration order.
+     */
+    FileComparerResults(
+        Set<String> onlyOnServerKeys, Set<String> updatedOnServerKeys,
+        Set<String> updatedOnClientKeys, Set<String> onlyOnClientKeys,
+        Set<String> alreadySynchronisedKeys, Set<String> alreadySynchronisedLocalPaths)
+    {
+        this(new KeyList(onlyOnServerKeys), new KeyList(updatedOnServerKeys),
+            new KeyList(updatedOnClientKeys), new KeyList(onlyOnClientKeys),
+            new KeyList(alreadySynchronisedKeys), new KeyList(alreadySynchronisedLocalPaths));
+    }
+
     public FileComparerResults() {
-        this(new ArrayList<String>(), new ArrayList<String>(), new ArrayList<String>(),
-            new ArrayList<String>(), new ArrayList<String>(), new ArrayList<String>());
+        this(new KeyList(), new KeyList(), new KeyList(),
+            new KeyList(), new KeyList(), new KeyList());
     }
 
+    /**
+     * Merges the results of a further comparison into these results, such as when a
+     * large comparison is performed in batches. Only the keys in the given results are
+     * examined, so the cost of a merge is proportional to the size of the batch being added
+     * rather than to the size of the results merged so far.
+     *
+     * @param resultsToAdd
+     * the results of a further comparison.
+     */
     public void merge(FileComparerResults resultsToAdd) {
         this.updatedOnServerKeys.addAll(resultsToAdd.updatedOnServerKeys);
         this.updatedOnClientKeys.addAll(resultsToAdd.updatedOnClientKeys);
         this.alreadySynchronisedKeys.addAll(resultsToAdd.alreadySynchronisedKeys);
         this.alreadySynchronisedLocalPaths.addAll(resultsToAdd.alreadySynchronisedLocalPaths);
 
-        this.onlyOnServerKeys.addAll(resultsToAdd.onlyOnServerKeys);
+        // Keys now known to be present on both S3 and client cannot be present on only one.
+        Set<String> keysOnBoth = new HashSet<String>(resultsToAdd.updatedOnServerKeys);
+        keysOnBoth.addAll(resultsToAdd.updatedOnClientKeys);
+        keysOnBoth.addAll(resultsToAdd.alreadySynchronisedKeys);
+        onlyOnClientKeys.removeAll(keysOnBoth);
+        keysOnBoth.addAll(resultsToAdd.alreadySynchronisedLocalPaths);
+        onlyOnServerKeys.removeAll(keysOnBoth);
 
         // Only keys present on S3 and no-where else should remain in server keys list.
-        onlyOnServerKeys.removeAll(updatedOnServerKeys);
-        onlyOnServerKeys.removeAll(updatedOnClientKeys);
-        onlyOnServerKeys.removeAll(onlyOnClientKeys);
-        onlyOnServerKeys.removeAll(alreadySynchronisedKeys);
-        onlyOnServerKeys.removeAll(alreadySynchronisedLocalPaths);
-
-        this.onlyOnClientKeys.addAll(resultsToAdd.onlyOnClientKeys);
+        for (String key: resultsToAdd.onlyOnServerKeys) {
+            if (!updatedOnServerKeys.contains(key)
+                && !updatedOnClientKeys.contains(key)
+                && !onlyOnClientKeys.contains(key)
+                && !alreadySynchronisedKeys.contains(key)
+                && !alreadySynchronisedLocalPaths.contains(key)
+                && !onlyOnServerKeys.contains(key))
+            {
+                onlyOnServerKeys.add(key);
+            }
+        }
 
         // Only keys present on client and no-where else should remain in client keys list.
-        onlyOnClientKeys.removeAll(updatedOnServerKeys);
-        onlyOnClientKeys.removeAll(updatedOnClientKeys);
-        onlyOnClientKeys.removeAll(onlyOnServerKeys);
-        onlyOnClientKeys.removeAll(alreadySynchronisedKeys);
-        onlyOnServerKeys.removeAll(alreadySynchronisedLocalPaths);
+        for (String key: resultsToAdd.onlyOnClientKeys) {
+            if (!updatedOnServerKeys.contains(key)
+                && !updatedOnClientKeys.contains(key)
+                && !onlyOnServerKeys.contains(key)
+                && !alreadySynchronisedKeys.contains(key)
+                && !onlyOnClientKeys.contains(key))
+            {
+                onlyOnClientKeys.add(key);
+            }
+        }
     }
 
     public long getCountOfItemsCompared() {
@@ -105,4 +150,106 @@ public class FileComparerResults {
             + ", alreadySynchronisedLocalPaths: " + alreadySynchronisedLocalPaths;
     }
 
+    /**
+     * A list of keys with a hash index of the number of times each key occurs, which answers
+     * {@link #contains(Object)} in constant time and removes absent keys without a scan.
+     */
+    static class KeyList extends AbstractList<String> implements RandomAccess {
+        private final ArrayList<String> keys = new ArrayList<String>();
+        private final Map<String, Integer> keyCounts = new HashMap<String, Integer>();
+
+        KeyList() {
+        }
+
+        KeyList(Collection<String> keys) {
+            addAll(keys);
+        }
+
+        @Override
+        public String get(int index) {
+            return keys.get(index);
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+
+        @Override
+        public String set(int index, String key) {
+            String previousKey = keys.set(index, key);
+            unindex(previousKey);
+            index(key);
+            return previousKey;
+        }
+
+        @Override
+        public void add(int index, String key) {
+            keys.add(index, key);
+            index(key);
+            modCount++;
+        }
+
+        @Override
+        public String remove(int index) {
+            String key = keys.remove(index);
+            unindex(key);
+            modCount++;
+            return key;
+        }
+
+        @Override
+        public boolean contains(Object key) {
+            return keyCounts.containsKey(key);
+        }
+
+        @Override
+        public boolean remove(Object key) {
+            return contains(key) && super.remove(key);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> keysToRemove) {
+            if (!(keysToRemove instanceof Set) && !(keysToRemove instanceof KeyList)) {
+                keysToRemove = new HashSet<Object>(keysToRemove);
+            }
+            int retained = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                if (keysToRemove.contains(key)) {
+                    unindex(key);
+                } else {
+                    keys.set(retained++, key);
+                }
+            }
+            if (retained == keys.size()) {
+                return false;
+            }
+            keys.subList(retained, keys.size()).clear();
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            keys.clear();
+            keyCounts.clear();
+            modCount++;
+        }
+
+        private void index(String key) {
+            Integer count = keyCounts.get(key);
+            keyCounts.put(key, count == null ? 1 : count + 1);
+        }
+
+        private void unindex(String key) {
+            Integer count = keyCounts.get(key);
+            if (count == null || count <= 1) {
+                keyCounts.remove(key);
+            } else {
+                keyCounts.put(key, count - 1);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,407 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent index of the MD5 hashes of local files, which allows unchanged files to be
+ * compared with objects in a service without reading the files again.
+ * <p>
+ * Each entry is keyed by a file's absolute path, and is only valid while the file's size,
+ * last modified time (at the finest precision the platform reports, up to nanoseconds) and
+ * file key (the inode on most Unix file systems) are the same as when the hash was recorded.
+ * All of these are read with a single call to {@link #readFileState(File)}.
+ * <p>
+ * A file modified within {@link #TIMESTAMP_GRANULARITY_MS} of the time its hash is recorded
+ * could be rewritten again without its last modified time changing, so the hash of such a
+ * "racily clean" file is not recorded and the file is hashed again the next time it is
+ * compared.
+ * <p>
+ * The index is stored in two files in the index directory: a compacted table of entries
+ * sorted by path, and an append-only log of entries recorded since the table was written.
+ * New entries are appended to the log as they are recorded, so a hash is not lost if the
+ * application is interrupted, as are removals of the entries of files that a directory scan
+ * no longer finds (see {@link #retainScanned(File, Set)}). When an index is opened the log
+ * is replayed over the table, and the two are compacted into a new table only once the log
+ * has grown past {@link #MIN_LOG_ENTRIES_TO_COMPACT} records and half the size of the table.
+ * <p>
+ * Entries are held in memory while the index is open. Processes that share an index
+ * directory may append to the log at the same time, but should not open the index at
+ * the same moment since an open may compact the log.
+ */
+public class FileHashIndex {
+    private static final Logger log = LoggerFactory.getLogger(FileHashIndex.class);
+
+    private static final int TABLE_FILE_MAGIC = 0x4a334849; // "J3HI"
+    private static final int LOG_FILE_MAGIC = 0x4a33484c; // "J3HL"
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * The coarsest last modified time granularity of common file systems, that of FAT.
+     */
+    public static final long TIMESTAMP_GRANULARITY_MS = 2000;
+
+    /**
+     * The number of log records below which the log is not compacted into the table when the
+     * index is opened. Larger logs are compacted once they hold more records than half the
+     * number of entries in the table.
+     */
+    public static final int MIN_LOG_ENTRIES_TO_COMPACT = 1000;
+
+    private final File tableFile;
+    private final File logFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private DataOutputStream logOutputStream = null;
+
+    /**
+     * The state of a file that must be unchanged for an index entry to remain valid.
+     */
+    public static class FileState {
+        private final long size;
+        private final long lastModifiedNanos;
+        private final String fileKey;
+
+        public FileState(long size, long lastModifiedNanos, String fileKey) {
+            this.size = size;
+            this.lastModifiedNanos = lastModifiedNanos;
+            this.fileKey = fileKey;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModifiedNanos() {
+            return lastModifiedNanos;
+        }
+
+        /**
+         * @return
+         * the platform's unique file key, such as the device and inode number, or null if
+         * the platform does not provide one.
+         */
+        public String getFileKey() {
+            return fileKey;
+        }
+
+        boolean matches(FileState other) {
+            return size == other.size
+                && lastModifiedNanos == other.lastModifiedNanos
+                && (fileKey == null || other.fileKey == null || fileKey.equals(other.fileKey));
+        }
+    }
+
+    private static class Entry {
+        final FileState state;
+        final byte[] md5Hash;
+
+        Entry(FileState state, byte[] md5Hash) {
+            this.state = state;
+            this.md5Hash = md5Hash;
+        }
+    }
+
+    /**
+     * Opens the hash index stored in the given directory, creating the directory if necessary.
+     *
+     * @param indexDirectory
+     * the directory in which the index files are stored.
+     * @throws IOException
+     */
+    public FileHashIndex(File indexDirectory) throws IOException {
+        if (!indexDirectory.exists() && !indexDirectory.mkdirs()) {
+            throw new IOException("Unable to create hash index directory " + indexDirectory);
+        }
+        this.tableFile = new File(indexDirectory, "hash-index.table");
+        this.logFile = new File(indexDirectory, "hash-index.log");
+
+        int tableCount = readFile(tableFile, TABLE_FILE_MAGIC);
+        int logCount = readFile(logFile, LOG_FILE_MAGIC);
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + entries.size() + " hash index entries from " + indexDirectory
+                + " (" + tableCount + " in table, " + logCount + " in log)");
+        }
+        if (logCount > Math.max(MIN_LOG_ENTRIES_TO_COMPACT, tableCount / 2)) {
+            compact();
+        }
+    }
+
+    /**
+     * Reads the size, last modified time and file key of a file with a single file
+     * system call.
+     *
+     * @param file
+     * @return
+     * the current state of the file.
+     * @throws IOException
+     */
+    public static FileState readFileState(File file) throws IOException {
+        BasicFileAttributes attributes =
+            Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object fileKey = attributes.fileKey();
+        return new FileState(attributes.size(),
+            attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+            fileKey == null ? null : fileKey.toString());
+    }
+
+    /**
+     * @param file
+     * @param state
+     * the current state of the file, as returned by {@link #readFileState(File)}.
+     * @return
+     * the MD5 hash recorded for the file, or null if there is no entry for the file or the
+     * file has changed since its entry was recorded.
+     */
+    public byte[] lookup(File file, FileState state) {
+        Entry entry = entries.get(file.getAbsolutePath());
+        if (entry != null && entry.state.matches(state)) {
+            return entry.md5Hash;
+        }
+        return null;
+    }
+
+    /**
+     * Records the MD5 hash of a file in the index and appends it to the log.
+     *
+     * @param file
+     * @param state
+     * the state of the file when it was hashed, as returned by {@link #readFileState(File)}
+     * <em>before</em> the file was read.
+     * @param md5Hash
+     * @throws IOException
+     */
+    public void record(File file, FileState state, byte[] md5Hash) throws IOException {
+        String path = file.getAbsolutePath();
+        long recordTimeNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (state.getLastModifiedNanos()
+            > recordTimeNanos - TimeUnit.MILLISECONDS.toNanos(TIMESTAMP_GRANULARITY_MS))
+        {
+            if (log.isDebugEnabled()) {
+                log.debug("Not indexing hash of recently modified file: " + file);
+            }
+            entries.remove(path);
+            return;
+        }
+        entries.put(path, new Entry(state, md5Hash));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        writeEntry(dos, path, state, md5Hash);
+        dos.flush();
+        appendToLog(baos);
+    }
+
+    /**
+     * Removes the entries of the files inside a directory that were not found by a scan of
+     * the directory, such as files that have been deleted since they were recorded, and
+     * appends their removal to the log. No file system calls are made for the entries.
+     *
+     * @param directory
+     * the directory that was scanned.
+     * @param scannedPaths
+     * the absolute paths of all the files found in the directory and its sub-directories.
+     * @return
+     * the number of entries removed.
+     * @throws IOException
+     */
+    public int retainScanned(File directory, Set<String> scannedPaths) throws IOException {
+        String directoryPrefix = directory.getAbsolutePath() + File.separator;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        int count = 0;
+        for (String path: entries.keySet()) {
+            if (path.startsWith(directoryPrefix) && !scannedPaths.contains(path)) {
+                entries.remove(path);
+                writeRemoval(dos, path);
+                count++;
+            }
+        }
+        if (count > 0) {
+            dos.flush();
+            appendToLog(baos);
+            if (log.isDebugEnabled()) {
+                log.debug("Removed " + count + " hash index entries for files no longer in "
+                    + directory);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Appends records to the log with a single write, so concurrent appends do not interleave.
+     */
+    private synchronized void appendToLog(ByteArrayOutputStream records) throws IOException {
+        if (logOutputStream == null) {
+            boolean isNewLog = !logFile.exists();
+            logOutputStream = new DataOutputStream(new FileOutputStream(logFile, true));
+            if (isNewLog) {
+                logOutputStream.writeInt(LOG_FILE_MAGIC);
+                logOutputStream.writeInt(FILE_VERSION);
+            }
+        }
+        records.writeTo(logOutputStream);
+        logOutputStream.flush();
+    }
+
+    /**
+     * @return
+     * the number of entries in the index.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes all the entries in the index to a new table sorted by path, and removes the log.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        closeLog();
+        TreeMap<String, Entry> sortedEntries = new TreeMap<String, Entry>(entries);
+        File tempFile = new File(tableFile.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            dos.writeInt(TABLE_FILE_MAGIC);
+            dos.writeInt(FILE_VERSION);
+            for (Map.Entry<String, Entry> mapEntry: sortedEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writeEntry(dos, mapEntry.getKey(), entry.state, entry.md5Hash);
+            }
+        } finally {
+            dos.close();
+        }
+        if (tableFile.exists() && !tableFile.delete()) {
+            tempFile.delete();
+            throw new IOException("Unable to replace hash index table " + tableFile);
+        }
+        if (!tempFile.renameTo(tableFile)) {
+            throw new IOException("Unable to rename temporary hash index table to " + tableFile);
+        }
+        logFile.delete();
+    }
+
+    /**
+     * Closes the index log. Entries recorded after the index is closed re-open the log.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        closeLog();
+    }
+
+    private void closeLog() throws IOException {
+        if (logOutputStream != null) {
+            logOutputStream.close();
+            logOutputStream = null;
+        }
+    }
+
+    private void writeEntry(DataOutputStream dos, String path, FileState state, byte[] md5Hash)
+        throws IOException
+    {
+        dos.writeUTF(path);
+        dos.writeLong(state.getSize());
+        dos.writeLong(state.getLastModifiedNanos());
+        dos.writeUTF(state.getFileKey() == null ? "" : state.getFileKey());
+        dos.writeByte(md5Hash.length);
+        dos.write(md5Hash);
+    }
+
+    /**
+     * Writes a log record that removes the entry for a path, which has an empty hash.
+     */
+    private void writeRemoval(DataOutputStream dos, String path) throws IOException {
+        dos.writeUTF(path);
+        dos.writeLong(0);
+        dos.writeLong(0);
+        dos.writeUTF("");
+        dos.writeByte(0);
+    }
+
+    /**
+     * Reads the entries in an index file into memory, stopping quietly at an incomplete
+     * final entry such as one left by an interrupted append to the log.
+     *
+     * @return
+     * the number of entries read.
+     */
+    private int readFile(File file, int magic) {
+        if (!file.canRead()) {
+            return 0;
+        }
+        int count = 0;
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (dis.readInt() != magic || dis.readInt() != FILE_VERSION) {
+                log.warn("Ignoring hash index file with unrecognised format: " + file);
+                return 0;
+            }
+            while (true) {
+                String path = dis.readUTF();
+                long size = dis.readLong();
+                long lastModifiedNanos = dis.readLong();
+                String fileKey = dis.readUTF();
+                byte[] md5Hash = new byte[dis.readUnsignedByte()];
+                dis.readFully(md5Hash);
+                if (md5Hash.length == 0) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, new Entry(new FileState(size, lastModifiedNanos,
+                        fileKey.length() == 0 ? null : fileKey), md5Hash));
+                }
+                count++;
+            }
+        } catch (EOFException e) {
+            // End of the file, or of the last complete entry
+        } catch (IOException e) {
+            log.warn("Unable to read hash index file " + file, e);
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return count;
+    }
+
+}
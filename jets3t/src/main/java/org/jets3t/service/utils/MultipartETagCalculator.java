@@ -0,0 +1,243 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.io.ProgressMonitoredInputStream;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Calculates the ETag a service assigns to an object uploaded as a multipart upload, which
+ * has the form <tt>&lt;hex MD5 of the parts' MD5 hashes&gt;-&lt;part count&gt;</tt>, so data
+ * can be compared with such an object without downloading it or relying on other metadata.
+ * <p>
+ * The ETag depends on the part size used for the upload. JetS3t records this size in the
+ * {@link Constants#METADATA_JETS3T_MULTIPART_PART_SIZE} metadata item of objects it uploads,
+ * otherwise it must be inferred with {@link #inferPartSize(StorageObject, long)}.
+ * <p>
+ * Data is passed to a calculator with {@link #update(byte[], int, int)} in the order it
+ * appears in the object, so an instance can verify data as it is downloaded.
+ */
+public class MultipartETagCalculator {
+
+    private static final Pattern MULTIPART_ETAG_PATTERN =
+        Pattern.compile("^\"?([0-9a-fA-F]{32})-([0-9]+)\"?$");
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /**
+     * Part sizes commonly used by upload tools, tried in order when an object's part size
+     * is not recorded in its metadata.
+     */
+    private static final long[] COMMON_PART_SIZES = new long[] {
+        MultipartUtils.MIN_PART_SIZE, 8 * MEGABYTE, 16 * MEGABYTE,
+        15 * MEGABYTE, 64 * MEGABYTE, 100 * MEGABYTE, 128 * MEGABYTE
+    };
+
+    private final long partSize;
+    private final MessageDigest partDigest;
+    private final MessageDigest etagDigest;
+    private long bytesInPart = 0;
+    private int partCount = 0;
+
+    /**
+     * @param partSize
+     * the size of every part of the multipart upload except the last.
+     * @throws NoSuchAlgorithmException
+     */
+    public MultipartETagCalculator(long partSize) throws NoSuchAlgorithmException {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("Part size must be greater than zero: " + partSize);
+        }
+        this.partSize = partSize;
+        this.partDigest = MessageDigest.getInstance("MD5");
+        this.etagDigest = MessageDigest.getInstance("MD5");
+    }
+
+    /**
+     * Adds data to the calculation.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void update(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int count = (int) Math.min(length, partSize - bytesInPart);
+            partDigest.update(data, offset, count);
+            bytesInPart += count;
+            offset += count;
+            length -= count;
+            if (bytesInPart == partSize) {
+                completePart();
+            }
+        }
+    }
+
+    /**
+     * @return
+     * the multipart ETag of all the data passed to this calculator. The calculator must not
+     * be used after this method is called.
+     */
+    public String getETag() {
+        if (bytesInPart > 0 || partCount == 0) {
+            completePart();
+        }
+        return ServiceUtils.toHex(etagDigest.digest()) + "-" + partCount;
+    }
+
+    private void completePart() {
+        etagDigest.update(partDigest.digest());
+        partCount++;
+        bytesInPart = 0;
+    }
+
+    /**
+     * @param etag
+     * @return
+     * true if the ETag has the form of a multipart upload's ETag.
+     */
+    public static boolean isMultipartETag(String etag) {
+        return etag != null && MULTIPART_ETAG_PATTERN.matcher(etag).matches();
+    }
+
+    /**
+     * @param etag
+     * @return
+     * the number of parts in the multipart upload that produced the ETag, or -1 if the ETag
+     * is not a multipart ETag.
+     */
+    public static int getPartCount(String etag) {
+        if (etag == null) {
+            return -1;
+        }
+        Matcher matcher = MULTIPART_ETAG_PATTERN.matcher(etag);
+        if (!matcher.matches()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(matcher.group(2));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Determines the part size used to upload an object with a multipart ETag. The part size
+     * recorded in the object's {@link Constants#METADATA_JETS3T_MULTIPART_PART_SIZE} metadata
+     * is used if available. Otherwise the configured part size and then a number of common
+     * part sizes are tried, and the first that would split the object into the number of
+     * parts given in its ETag is returned.
+     *
+     * @param object
+     * an object with a multipart ETag and a known content length.
+     * @param configuredPartSize
+     * the part size configured for uploads, such as the "upload.max-part-size" setting, or
+     * zero if there is none.
+     * @return
+     * the inferred part size, or -1 if the object does not have a multipart ETag or no
+     * part size is consistent with its length and part count.
+     */
+    public static long inferPartSize(StorageObject object, long configuredPartSize) {
+        int partCount = getPartCount(object.getETag());
+        long length = object.getContentLength();
+        if (partCount < 1 || length < 0) {
+            return -1;
+        }
+
+        Object recordedPartSize = object.getMetadata(Constants.METADATA_JETS3T_MULTIPART_PART_SIZE);
+        if (recordedPartSize != null) {
+            try {
+                long partSize = Long.parseLong(recordedPartSize.toString());
+                if (isConsistent(length, partCount, partSize)) {
+                    return partSize;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to inference
+            }
+        }
+        if (isConsistent(length, partCount, configuredPartSize)) {
+            return configuredPartSize;
+        }
+        for (long partSize: COMMON_PART_SIZES) {
+            if (isConsistent(length, partCount, partSize)) {
+                return partSize;
+            }
+        }
+        // Tools that choose the part size from the object size usually round it to megabytes
+        if (partCount > 1) {
+            long partSize = (length + partCount - 1) / partCount;
+            partSize = (partSize + MEGABYTE - 1) / MEGABYTE * MEGABYTE;
+            if (isConsistent(length, partCount, partSize)) {
+                return partSize;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isConsistent(long length, int partCount, long partSize) {
+        if (partSize <= 0) {
+            return false;
+        }
+        long expectedPartCount = Math.max(1, (length + partSize - 1) / partSize);
+        return expectedPartCount == partCount;
+    }
+
+    /**
+     * Calculates the multipart ETag of a file.
+     *
+     * @param file
+     * @param partSize
+     * @param progressWatcher
+     * watcher to monitor bytes read, may be null.
+     * @return
+     * the multipart ETag the service would assign to the file if it were uploaded in parts
+     * of the given size.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String computeETag(File file, long partSize, BytesProgressWatcher progressWatcher)
+        throws IOException, NoSuchAlgorithmException
+    {
+        MultipartETagCalculator calculator = new MultipartETagCalculator(partSize);
+        InputStream is = new FileInputStream(file);
+        if (progressWatcher != null) {
+            is = new ProgressMonitoredInputStream(is, progressWatcher);
+        }
+        try {
+            byte[] buffer = new byte[16384];
+            int count = -1;
+            while ((count = is.read(buffer)) != -1) {
+                calculator.update(buffer, 0, count);
+            }
+        } finally {
+            is.close();
+        }
+        return calculator.getETag();
+    }
+
+}
@@ -18,18 +18,23 @@
  */
 package org.jets3t.service.utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.jets3t.service.Constants;
 import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.io.SegmentedRepeatableFileInputStream;
+import org.jets3t.service.model.MultipartCompleted;
+import org.jets3t.service.model.MultipartPart;
 import org.jets3t.service.model.MultipartUpload;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageObject;
@@ -64,6 +69,22 @@ public class MultipartUtils {
      */
     public static final long MAX_OBJECT_SIZE = 5 * (1024 * 1024 * 1024);
 
+    /**
+     * Maximum size of an object that S3 can copy with a single copy request: 5 GB
+     */
+    public static final long MAX_COPY_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /**
+     * Maximum number of parts in a multipart upload supported by S3: 10,000
+     */
+    public static final int MAX_PART_COUNT = 10000;
+
+    /**
+     * Allowance for the growth of data that is gzipped and/or encrypted as it is streamed,
+     * used to size the parts of a streamed upload before the length of its data is known.
+     */
+    public static final double STREAMING_SIZE_HEADROOM = 1.1;
+
 
     protected long maxPartSize = MAX_OBJECT_SIZE;
 
@@ -247,6 +268,9 @@ public class MultipartUtils {
                         + " value. Invalid object: " + object);
                 }
                 objectsByKey.put(object.getKey(), object);
+                // Record the part size so the object's multipart ETag can be reproduced
+                object.addMetadata(Constants.METADATA_JETS3T_MULTIPART_PART_SIZE,
+                    String.valueOf(maxPartSize));
             }
 
             // Start all multipart uploads
@@ -282,6 +306,267 @@ public class MultipartUtils {
         }
     }
 
+    /**
+     * Upload an object whose data is read from a stream of unknown length, such as
+     * data that is compressed or encrypted as it is read, without first writing the
+     * data to a temporary file to find its length.
+     * <p>
+     * The stream is read into memory one part at a time. If the stream ends within
+     * the first part the object is uploaded with a regular PUT, otherwise it is
+     * uploaded as a multipart upload in parts of the given size, each part being
+     * read while the previous part is uploaded. If the multipart upload fails it is
+     * aborted, including when the stream holds more than {@link #MAX_PART_COUNT} parts;
+     * use {@link #getStreamingPartSize(long, int)} to choose a part size large enough.
+     *
+     * @param bucketName
+     * the target bucket name
+     * @param s3Service
+     * the S3 service that will perform the work
+     * @param object
+     * the object to create, with its metadata and ACL set. The object's data and
+     * content length are set by this method.
+     * @param dataInputStream
+     * the object's data, which is closed by this method.
+     * @param partSize
+     * the size of each part, no less than {@link #MIN_PART_SIZE}. Up to twice this
+     * many bytes are held in memory during the upload.
+     * @return
+     * the object as created in S3.
+     *
+     * @throws Exception
+     */
+    public S3Object uploadObjectFromStream(String bucketName, S3Service s3Service,
+        S3Object object, InputStream dataInputStream, int partSize) throws Exception
+    {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size parameter " + partSize
+                + " is less than the minimum legal part size " + MIN_PART_SIZE);
+        }
+
+        MultipartUpload upload = null;
+        try {
+            byte[] buffer = new byte[partSize];
+            int length = readPart(dataInputStream, buffer);
+            if (length < partSize) {
+                // All the data fits in one part, so upload it normally
+                object.setDataInputStream(new ByteArrayInputStream(buffer, 0, length));
+                object.setContentLength(length);
+                object.setMd5Hash(ServiceUtils.computeMD5Hash(
+                    new ByteArrayInputStream(buffer, 0, length)));
+                return s3Service.putObject(bucketName, object);
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Performing multipart upload of streamed data for object '"
+                    + object.getKey() + "' with a part size of " + partSize);
+            }
+            upload = s3Service.multipartStartUpload(bucketName, object);
+
+            // Read each part while the previous one is uploaded
+            byte[] nextBuffer = new byte[partSize];
+            List<MultipartPart> parts = new ArrayList<MultipartPart>();
+            long totalLength = 0;
+            while (length > 0) {
+                if (parts.size() >= MAX_PART_COUNT) {
+                    throw new ServiceException("Streamed data for object '" + object.getKey()
+                        + "' does not fit in " + MAX_PART_COUNT + " parts of " + partSize
+                        + " bytes");
+                }
+                PartUploader partUploader = new PartUploader(
+                    s3Service, upload, parts.size() + 1, object.getKey(), buffer, length);
+                Thread partThread = new Thread(partUploader, "MultipartUtils-part-upload");
+                partThread.setDaemon(true);
+                partThread.start();
+                int nextLength = 0;
+                try {
+                    nextLength = readPart(dataInputStream, nextBuffer);
+                } finally {
+                    partThread.join();
+                }
+                parts.add(partUploader.getPart());
+                totalLength += length;
+
+                byte[] uploadedBuffer = buffer;
+                buffer = nextBuffer;
+                nextBuffer = uploadedBuffer;
+                length = nextLength;
+            }
+
+            MultipartCompleted completed = s3Service.multipartCompleteUpload(upload, parts);
+            object.setETag(completed.getEtag());
+            object.setContentLength(totalLength);
+
+            // Apply non-canned ACL settings if necessary (canned ACL will already be applied)
+            if (object.getAcl() != null && object.getAcl().getValueForRESTHeaderACL() == null) {
+                s3Service.putObjectAcl(bucketName, object);
+            }
+            return object;
+        } catch (Exception e) {
+            if (upload != null) {
+                log.warn("Multipart upload failed, attempting clean-up by aborting upload", e);
+                try {
+                    s3Service.multipartAbortUpload(upload);
+                } catch (ServiceException e2) {
+                    log.warn("Multipart upload failed and could not clean-up by aborting upload", e2);
+                }
+            }
+            throw e;
+        } finally {
+            dataInputStream.close();
+        }
+    }
+
+    /**
+     * @param sourceLength
+     * the length of the data before it is gzipped and/or encrypted as it is streamed.
+     * @param partSize
+     * the preferred part size, no less than {@link #MIN_PART_SIZE}.
+     * @return
+     * the part size to use for a streamed upload of the transformed data: the preferred
+     * part size, enlarged if necessary so that the data fits in {@link #MAX_PART_COUNT}
+     * parts even if transforming it makes it up to {@link #STREAMING_SIZE_HEADROOM} times
+     * larger.
+     */
+    public static int getStreamingPartSize(long sourceLength, int partSize) {
+        long requiredPartSize = (long) Math.ceil(
+            sourceLength * STREAMING_SIZE_HEADROOM / MAX_PART_COUNT);
+        return (int) Math.max(partSize, requiredPartSize);
+    }
+
+    /**
+     * Copies an object as a multipart upload whose parts are copied from ranges of the
+     * source object, which is how objects larger than {@link #MAX_COPY_OBJECT_SIZE} must be
+     * copied. Parts are no smaller than this instance's maximum part size, but are enlarged
+     * if necessary to copy the object in no more than {@link #MAX_PART_COUNT} parts.
+     * <p>
+     * The copy is given the source object's metadata, and the destination object's ACL and
+     * storage class. Every part is copied on condition that the source object's ETag is
+     * unchanged. If the copy fails the multipart upload is aborted.
+     *
+     * @param s3Service
+     * the S3 service that will perform the work
+     * @param sourceBucketName
+     * the name of the bucket containing the object to copy.
+     * @param sourceObjectKey
+     * the key of the object to copy.
+     * @param destinationBucketName
+     * the name of the bucket in which to create the copy.
+     * @param destinationObject
+     * the object to create, with its key and ACL set.
+     * @return
+     * the object as created in S3.
+     *
+     * @throws ServiceException
+     */
+    public S3Object copyObjectInParts(S3Service s3Service, String sourceBucketName,
+        String sourceObjectKey, String destinationBucketName, S3Object destinationObject)
+        throws ServiceException
+    {
+        StorageObject sourceObject = s3Service.getObjectDetails(sourceBucketName, sourceObjectKey);
+        long length = sourceObject.getContentLength();
+        long partSize = Math.max(maxPartSize, (length + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
+
+        Map<String, Object> metadata = sourceObject.getModifiableMetadata();
+        metadata.put(Constants.METADATA_JETS3T_MULTIPART_PART_SIZE, String.valueOf(partSize));
+        if (log.isDebugEnabled()) {
+            log.debug("Performing multipart copy of object '" + sourceObjectKey
+                + "' to '" + destinationObject.getKey() + "' with a part size of " + partSize);
+        }
+        MultipartUpload upload = s3Service.multipartStartUpload(destinationBucketName,
+            destinationObject.getKey(), metadata, destinationObject.getAcl(),
+            destinationObject.getStorageClass());
+        try {
+            String[] ifMatchTags = new String[] {sourceObject.getETag()};
+            List<MultipartPart> parts = new ArrayList<MultipartPart>();
+            for (long start = 0; start < length; start += partSize) {
+                long end = Math.min(start + partSize, length) - 1;
+                parts.add(s3Service.multipartUploadPartCopy(upload, parts.size() + 1,
+                    sourceBucketName, sourceObjectKey, null, null, ifMatchTags, null,
+                    start, end, null));
+            }
+            MultipartCompleted completed = s3Service.multipartCompleteUpload(upload, parts);
+
+            destinationObject.addAllMetadata(metadata);
+            destinationObject.setETag(completed.getEtag());
+            destinationObject.setContentLength(length);
+
+            // Apply non-canned ACL settings if necessary (canned ACL will already be applied)
+            if (destinationObject.getAcl() != null
+                && destinationObject.getAcl().getValueForRESTHeaderACL() == null)
+            {
+                s3Service.putObjectAcl(destinationBucketName, destinationObject);
+            }
+            return destinationObject;
+        } catch (ServiceException e) {
+            log.warn("Multipart copy failed, attempting clean-up by aborting upload", e);
+            try {
+                s3Service.multipartAbortUpload(upload);
+            } catch (ServiceException e2) {
+                log.warn("Multipart copy failed and could not clean-up by aborting upload", e2);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fills the buffer from the stream, unless the stream ends first.
+     *
+     * @return
+     * the number of bytes read into the buffer.
+     */
+    private int readPart(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int count = inputStream.read(buffer, length, buffer.length - length);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Uploads one part of a multipart upload from memory, so the next part can be
+     * read at the same time.
+     */
+    private static class PartUploader implements Runnable {
+        private final S3Service s3Service;
+        private final MultipartUpload upload;
+        private final int partNumber;
+        private final S3Object partObject;
+        private MultipartPart part = null;
+        private Exception failure = null;
+
+        PartUploader(S3Service s3Service, MultipartUpload upload, int partNumber,
+            String objectKey, byte[] data, int length) throws Exception
+        {
+            this.s3Service = s3Service;
+            this.upload = upload;
+            this.partNumber = partNumber;
+            this.partObject = new S3Object(objectKey);
+            partObject.setDataInputStream(new ByteArrayInputStream(data, 0, length));
+            partObject.setContentLength(length);
+            partObject.setMd5Hash(ServiceUtils.computeMD5Hash(
+                new ByteArrayInputStream(data, 0, length)));
+        }
+
+        public void run() {
+            try {
+                part = s3Service.multipartUploadPart(upload, partNumber, partObject);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        MultipartPart getPart() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+            return part;
+        }
+    }
+
     protected void throwServiceEventAdaptorErrorIfPresent(
         S3ServiceEventListener eventListener) throws Exception
     {
@@ -0,0 +1,490 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.model.StorageObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent, on-disk copy of the last complete object listing of a bucket path, which
+ * allows repeated comparisons of mostly-static data to avoid re-listing the whole path.
+ * <p>
+ * The cache for a bucket name and prefix is stored in a single file sorted by object key.
+ * The cached listing is divided into partitions, where a partition holds all the objects
+ * that share a common prefix up to the first '/' delimiter below the cached path. When the
+ * cache is refreshed the objects at the top level of the path, and the set of partitions,
+ * are always re-listed with a single delimited listing. Each existing partition is then
+ * checked by probing a small number of sampled markers: a one-item listing starting after
+ * each marker must return the same key and ETag as the cache. Only partitions that fail
+ * this check, or that have been explicitly invalidated, are listed again.
+ * <p>
+ * Because partitions are validated by sampling, a change made by another client in the
+ * middle of a large partition may go unnoticed until the cache expires. Applications that
+ * change the objects in the cached path should call {@link #invalidate(File, String, String, Collection)}
+ * for the affected keys so the changes are picked up on the next refresh.
+ */
+public class ObjectListingCache {
+    private static final Logger log = LoggerFactory.getLogger(ObjectListingCache.class);
+
+    private static final int CACHE_FILE_MAGIC = 0x4a33544c; // "J3TL"
+    private static final int CACHE_FILE_VERSION = 1;
+
+    private final File cacheFile;
+    private final File dirtyPartitionsFile;
+    private final String bucketName;
+    private final String prefix;
+
+    private long lastRefreshTime = 0;
+    private TreeMap<String, StorageObject> objects = new TreeMap<String, StorageObject>();
+    private final Set<String> dirtyPartitions = new HashSet<String>();
+
+    /**
+     * @param cacheDirectory
+     * the directory in which listing cache files are stored.
+     * @param bucketName
+     * the name of the bucket whose listing is cached.
+     * @param prefix
+     * the path within the bucket whose listing is cached, may be null.
+     */
+    public ObjectListingCache(File cacheDirectory, String bucketName, String prefix) {
+        this.bucketName = bucketName;
+        this.prefix = (prefix == null ? "" : prefix);
+        this.cacheFile = getCacheFile(cacheDirectory, bucketName, this.prefix);
+        this.dirtyPartitionsFile = new File(cacheFile.getPath() + ".dirty");
+    }
+
+    /**
+     * @param cacheDirectory
+     * the directory in which listing cache files are stored.
+     * @param bucketName
+     * the name of the bucket whose listing is cached.
+     * @param prefix
+     * the path within the bucket whose listing is cached, may be null.
+     * @return
+     * the file that stores the cached listing for the given bucket and prefix.
+     */
+    public static File getCacheFile(File cacheDirectory, String bucketName, String prefix) {
+        String cacheId = bucketName + "\n" + (prefix == null ? "" : prefix);
+        try {
+            cacheId = ServiceUtils.toHex(ServiceUtils.computeMD5Hash(
+                cacheId.getBytes(Constants.DEFAULT_ENCODING)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to generate listing cache file name", e);
+        }
+        return new File(cacheDirectory, cacheId + ".listing");
+    }
+
+    /**
+     * Marks the cache partitions containing the given object keys as out-of-date, so they will
+     * be listed again the next time the cache is refreshed. This method only appends to a small
+     * companion file, so it is cheap to call even when the cached listing is very large.
+     *
+     * @param cacheDirectory
+     * the directory in which listing cache files are stored.
+     * @param bucketName
+     * the name of the bucket whose listing is cached.
+     * @param prefix
+     * the path within the bucket whose listing is cached, may be null.
+     * @param objectKeys
+     * the full keys of objects that have been, or are about to be, changed.
+     * @throws IOException
+     */
+    public static void invalidate(File cacheDirectory, String bucketName, String prefix,
+        Collection<String> objectKeys) throws IOException
+    {
+        ObjectListingCache cache = new ObjectListingCache(cacheDirectory, bucketName, prefix);
+        if (!cache.cacheFile.exists() || objectKeys.isEmpty()) {
+            return;
+        }
+        Set<String> partitions = new HashSet<String>();
+        for (String objectKey: objectKeys) {
+            String partition = cache.getPartition(objectKey);
+            if (partition != null) {
+                partitions.add(partition);
+            }
+        }
+        if (partitions.isEmpty()) {
+            return;
+        }
+        Writer writer = new OutputStreamWriter(
+            new FileOutputStream(cache.dirtyPartitionsFile, true), Constants.DEFAULT_ENCODING);
+        try {
+            for (String partition: partitions) {
+                writer.write(partition);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Loads the cached listing from disk, if it is available.
+     *
+     * @return
+     * true if a valid cached listing was loaded, false if there is no usable cache file.
+     */
+    public boolean load() {
+        if (!cacheFile.canRead()) {
+            return false;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (dis.readInt() != CACHE_FILE_MAGIC || dis.readInt() != CACHE_FILE_VERSION) {
+                log.warn("Ignoring listing cache file with unrecognised format: " + cacheFile);
+                return false;
+            }
+            if (!bucketName.equals(dis.readUTF()) || !prefix.equals(dis.readUTF())) {
+                log.warn("Ignoring listing cache file for a different bucket path: " + cacheFile);
+                return false;
+            }
+            long refreshTime = dis.readLong();
+            int count = dis.readInt();
+            TreeMap<String, StorageObject> loadedObjects = new TreeMap<String, StorageObject>();
+            for (int i = 0; i < count; i++) {
+                StorageObject object = new StorageObject(dis.readUTF());
+                object.setBucketName(bucketName);
+                String etag = dis.readUTF();
+                if (etag.length() > 0) {
+                    object.setETag(etag);
+                }
+                object.setContentLength(dis.readLong());
+                long lastModified = dis.readLong();
+                if (lastModified >= 0) {
+                    object.setLastModifiedDate(new Date(lastModified));
+                }
+                String storageClass = dis.readUTF();
+                if (storageClass.length() > 0) {
+                    object.setStorageClass(storageClass);
+                }
+                loadedObjects.put(object.getKey(), object);
+            }
+            this.objects = loadedObjects;
+            this.lastRefreshTime = refreshTime;
+        } catch (IOException e) {
+            log.warn("Unable to read listing cache file " + cacheFile, e);
+            return false;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        dirtyPartitions.clear();
+        if (dirtyPartitionsFile.canRead()) {
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(dirtyPartitionsFile), Constants.DEFAULT_ENCODING));
+                String line = null;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() > 0) {
+                        dirtyPartitions.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                // Without a reliable list of changed partitions the cache cannot be trusted.
+                log.warn("Unable to read listing cache dirty partitions file "
+                    + dirtyPartitionsFile, e);
+                return false;
+            } finally {
+                if (br != null) {
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + objects.size() + " objects from listing cache " + cacheFile
+                + " with " + dirtyPartitions.size() + " invalidated partitions");
+        }
+        return true;
+    }
+
+    /**
+     * Writes the cached listing to disk. The listing is written to a temporary file which
+     * then replaces any existing cache file, so an interrupted save will not leave a partial
+     * cache behind.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File cacheDirectory = cacheFile.getParentFile();
+        if (cacheDirectory != null && !cacheDirectory.exists()) {
+            cacheDirectory.mkdirs();
+        }
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            dos.writeInt(CACHE_FILE_MAGIC);
+            dos.writeInt(CACHE_FILE_VERSION);
+            dos.writeUTF(bucketName);
+            dos.writeUTF(prefix);
+            dos.writeLong(lastRefreshTime);
+            dos.writeInt(objects.size());
+            for (StorageObject object: objects.values()) {
+                dos.writeUTF(object.getKey());
+                dos.writeUTF(object.getETag() == null ? "" : object.getETag());
+                dos.writeLong(object.getContentLength());
+                Object lastModified = object.getMetadata(StorageObject.METADATA_HEADER_LAST_MODIFIED_DATE);
+                dos.writeLong(lastModified instanceof Date ? ((Date) lastModified).getTime() : -1);
+                dos.writeUTF(object.getStorageClass() == null ? "" : object.getStorageClass());
+            }
+        } finally {
+            dos.close();
+        }
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            tempFile.delete();
+            throw new IOException("Unable to replace listing cache file " + cacheFile);
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            throw new IOException("Unable to rename temporary listing cache file to " + cacheFile);
+        }
+        // Invalidated partitions have been resolved by the listing we just wrote.
+        dirtyPartitionsFile.delete();
+    }
+
+    /**
+     * Replaces the entire cached listing with the given objects, such as the results
+     * of a complete listing of the cached path.
+     *
+     * @param listedObjects
+     * all the objects in the cached path.
+     */
+    public void replaceAll(StorageObject[] listedObjects) {
+        TreeMap<String, StorageObject> newObjects = new TreeMap<String, StorageObject>();
+        for (StorageObject object: listedObjects) {
+            newObjects.put(object.getKey(), object);
+        }
+        this.objects = newObjects;
+        this.dirtyPartitions.clear();
+        this.lastRefreshTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Brings the cached listing up-to-date with the service by re-listing the top level of the
+     * cached path, and re-listing only those partitions that are new, have been invalidated,
+     * or fail a sampled marker check.
+     *
+     * @param service
+     * the service used to perform listing requests.
+     * @param samplesPerPartition
+     * the number of markers to probe in each partition, at least 2 (the start and end of the
+     * partition) are always checked.
+     * @throws ServiceException
+     */
+    public void refresh(StorageService service, int samplesPerPartition) throws ServiceException {
+        String listingPrefix = (prefix.length() > 0 ? prefix : null);
+
+        // List top-level objects and current partitions in the cached path
+        StorageObjectsChunk topLevelChunk = service.listObjectsChunked(
+            bucketName, listingPrefix, Constants.FILE_PATH_DELIM,
+            Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE, null, true);
+
+        Map<String, List<StorageObject>> cachedPartitions = groupByPartition();
+        TreeMap<String, StorageObject> refreshedObjects = new TreeMap<String, StorageObject>();
+        for (StorageObject object: topLevelChunk.getObjects()) {
+            refreshedObjects.put(object.getKey(), object);
+        }
+
+        int relistedCount = 0;
+        for (String partition: topLevelChunk.getCommonPrefixes()) {
+            List<StorageObject> cachedPartition = cachedPartitions.get(partition);
+            if (cachedPartition == null
+                || dirtyPartitions.contains(partition)
+                || !isPartitionUnchanged(service, partition, cachedPartition, samplesPerPartition))
+            {
+                if (log.isDebugEnabled()) {
+                    log.debug("Re-listing changed partition '" + partition
+                        + "' of bucket '" + bucketName + "'");
+                }
+                StorageObject[] partitionObjects = service.listObjectsChunked(
+                    bucketName, partition, null, Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE,
+                    null, true).getObjects();
+                for (StorageObject object: partitionObjects) {
+                    refreshedObjects.put(object.getKey(), object);
+                }
+                relistedCount++;
+            } else {
+                for (StorageObject object: cachedPartition) {
+                    refreshedObjects.put(object.getKey(), object);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Refreshed listing cache for bucket '" + bucketName + "' and prefix '"
+                + prefix + "': re-listed " + relistedCount + " of "
+                + topLevelChunk.getCommonPrefixes().length + " partitions");
+        }
+
+        this.objects = refreshedObjects;
+        this.dirtyPartitions.clear();
+    }
+
+    /**
+     * Checks whether a cached partition still matches the service by listing a single object
+     * after a number of markers spread evenly through the partition, including one before the
+     * first and one after the last cached key.
+     */
+    protected boolean isPartitionUnchanged(StorageService service, String partition,
+        List<StorageObject> cachedPartition, int samplesPerPartition) throws ServiceException
+    {
+        int size = cachedPartition.size();
+        Set<Integer> sampleIndexes = getSampleIndexes(size, Math.max(2, samplesPerPartition));
+        for (Integer index: sampleIndexes) {
+            // The marker is the key before the sample index, the expected object is the sample.
+            String marker = (index == 0 ? null : cachedPartition.get(index - 1).getKey());
+            StorageObject expected = (index < size ? cachedPartition.get(index) : null);
+
+            StorageObject[] probed = service.listObjectsChunked(
+                bucketName, partition, null, 1, marker, false).getObjects();
+            if (expected == null) {
+                if (probed.length > 0) {
+                    return false;
+                }
+            } else if (probed.length == 0
+                || !expected.getKey().equals(probed[0].getKey())
+                || (expected.getETag() != null && !expected.getETag().equals(probed[0].getETag()))
+                || expected.getContentLength() != probed[0].getContentLength())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param maxAgeMillis
+     * the maximum age of the last complete listing, in milliseconds. A value of zero
+     * or less means the cache never expires.
+     * @return
+     * true if the cache is older than the given age and should be replaced by a complete listing.
+     */
+    public boolean isExpired(long maxAgeMillis) {
+        return maxAgeMillis > 0
+            && System.currentTimeMillis() - lastRefreshTime > maxAgeMillis;
+    }
+
+    /**
+     * @return
+     * the cached objects, sorted by key.
+     */
+    public StorageObject[] getObjects() {
+        return objects.values().toArray(new StorageObject[objects.size()]);
+    }
+
+    /**
+     * @return
+     * the file that stores this cached listing.
+     */
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @param objectKey
+     * a full object key in the cached path.
+     * @return
+     * the partition (common prefix) the key belongs to, or null if the key is a top-level
+     * object in the cached path or is outside the path altogether.
+     */
+    protected String getPartition(String objectKey) {
+        if (!objectKey.startsWith(prefix)) {
+            return null;
+        }
+        int delimOffset = objectKey.indexOf(Constants.FILE_PATH_DELIM, prefix.length());
+        if (delimOffset < 0) {
+            return null;
+        }
+        return objectKey.substring(0, delimOffset + 1);
+    }
+
+    private Map<String, List<StorageObject>> groupByPartition() {
+        Map<String, List<StorageObject>> partitions = new TreeMap<String, List<StorageObject>>();
+        String currentPartition = null;
+        List<StorageObject> currentList = null;
+        // Objects are sorted by key, so each partition's objects are contiguous.
+        Iterator<Map.Entry<String, StorageObject>> iter = objects.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, StorageObject> entry = iter.next();
+            String partition = getPartition(entry.getKey());
+            if (partition == null) {
+                continue;
+            }
+            if (!partition.equals(currentPartition)) {
+                currentPartition = partition;
+                currentList = new ArrayList<StorageObject>();
+                partitions.put(partition, currentList);
+            }
+            currentList.add(entry.getValue());
+        }
+        return partitions;
+    }
+
+    /**
+     * @return
+     * an ordered set of sample positions in a partition of the given size: always the start
+     * (0) and the position just after the last item (size), plus evenly spaced interior positions.
+     */
+    private Set<Integer> getSampleIndexes(int size, int samples) {
+        Set<Integer> indexes = new TreeSet<Integer>();
+        indexes.add(0);
+        indexes.add(size);
+        for (int i = 1; i < samples - 1; i++) {
+            indexes.add((int) (((long) size * i) / (samples - 1)));
+        }
+        return indexes;
+    }
+
+}
@@ -19,19 +19,23 @@
 package org.jets3t.service.utils;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Date;
 
 import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.io.BufferPool;
 import org.jets3t.service.io.BytesProgressWatcher;
 import org.jets3t.service.io.GZipDeflatingInputStream;
+import org.jets3t.service.io.ParallelGZipDeflatingInputStream;
+import org.jets3t.service.io.PooledBufferedInputStream;
 import org.jets3t.service.io.ProgressMonitoredInputStream;
 import org.jets3t.service.io.TempFile;
 import org.jets3t.service.model.S3Object;
@@ -274,29 +278,16 @@ public class ObjectUtils {
         InputStream inputStream = null;
 
         try {
-            inputStream = new BufferedInputStream(new FileInputStream(dataFile));
-            outputStream = new BufferedOutputStream(new FileOutputStream(tempUploadFile));
+            inputStream = createTransformedInputStream(dataFile, encryptionUtil, gzipFile);
+            outputStream = new FileOutputStream(tempUploadFile);
 
-            String contentEncoding = null;
+            addTransformMetadata(s3Object, encryptionUtil, gzipFile);
             if (gzipFile) {
-                inputStream = new GZipDeflatingInputStream(inputStream);
-                contentEncoding = "gzip";
-                s3Object.addMetadata(Constants.METADATA_JETS3T_COMPRESSED, "gzip");
                 actionText += "Compressing";
             }
             if (encryptionUtil != null) {
-                inputStream = encryptionUtil.encrypt(inputStream);
-                contentEncoding = null;
-                s3Object.setContentType(Mimetypes.MIMETYPE_OCTET_STREAM);
-                s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_ALGORITHM,
-                    encryptionUtil.getAlgorithm());
-                s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_VERSION,
-                    EncryptionUtil.DEFAULT_VERSION);
                 actionText += (actionText.length() == 0? "Encrypting" : " and encrypting");
             }
-            if (contentEncoding != null) {
-                s3Object.addMetadata("Content-Encoding", contentEncoding);
-            }
 
             if (log.isDebugEnabled()) {
                 log.debug("Transforming upload file '" + dataFile + "' to temporary file '"
@@ -307,11 +298,16 @@ public class ObjectUtils {
                 inputStream = new ProgressMonitoredInputStream(inputStream, progressWatcher);
             }
 
-            // Write transformed data to temporary file.
-            byte[] buffer = new byte[8192];
-            int c;
-            while ((c = inputStream.read(buffer)) >= 0) {
-                outputStream.write(buffer, 0, c);
+            // Write transformed data to temporary file, in large writes so the output
+            // stream needs no buffering of its own.
+            byte[] buffer = BufferPool.getDefaultPool().borrow(64 * 1024);
+            try {
+                int c;
+                while ((c = inputStream.read(buffer)) >= 0) {
+                    outputStream.write(buffer, 0, c);
+                }
+            } finally {
+                BufferPool.getDefaultPool().release(buffer);
             }
         } finally {
             if (inputStream != null) {
@@ -325,6 +321,153 @@ public class ObjectUtils {
         return tempUploadFile;
     }
 
+    /**
+     * Prepares a file for upload to a named object in S3 when zipping or encryption is
+     * requested, without transforming the file in advance. The returned object has no data;
+     * the transformed data is instead read from {@link #createTransformedInputStream} and
+     * streamed to the service as it is produced, for example with
+     * {@link MultipartUtils#uploadObjectFromStream}, so no temporary file is needed.
+     * <p>
+     * The object has the same metadata items as those set by
+     * {@link #createObjectForUpload(String, File, byte[], EncryptionUtil, boolean, BytesProgressWatcher)},
+     * except for the content length and MD5 hash of the transformed data which are only
+     * known once the data has been produced. If no transformation is requested, or the
+     * file is a directory, the object is prepared for a normal upload from the file.
+     *
+     * @param objectKey
+     * the object key name to use in S3
+     * @param dataFile
+     * the file to prepare for upload.
+     * @param md5HashOfDataFile
+     * calculated MD5 hash value of the given dataFile; if null this value will be calculated
+     * automatically.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the file's data.
+     * @param gzipFile
+     * if true the file will be Gzipped.
+     * @param progressWatcher
+     * watcher to monitor progress of hash generation.
+     *
+     * @return
+     * an S3Object representing the file, complete with all JetS3t-specific metadata items
+     * set and ready for a streamed upload to S3.
+     *
+     * @throws Exception
+     * exceptions could include IO failures and encryption failures.
+     */
+    public static S3Object createObjectForStreamingUpload(String objectKey, File dataFile,
+        byte[] md5HashOfDataFile, EncryptionUtil encryptionUtil, boolean gzipFile,
+        BytesProgressWatcher progressWatcher)
+        throws Exception
+    {
+        if (dataFile.isDirectory() || (!gzipFile && encryptionUtil == null)) {
+            return createObjectForUpload(objectKey, dataFile, md5HashOfDataFile,
+                encryptionUtil, gzipFile, progressWatcher);
+        }
+
+        S3Object s3Object = new S3Object(objectKey);
+
+        // Set object explicitly to private access by default.
+        s3Object.setAcl(AccessControlList.REST_CANNED_PRIVATE);
+
+        s3Object.addMetadata(Constants.METADATA_JETS3T_LOCAL_FILE_DATE,
+            ServiceUtils.formatIso8601Date(new Date(dataFile.lastModified())));
+        s3Object.setContentType(Mimetypes.getInstance().getMimetype(dataFile));
+        addTransformMetadata(s3Object, encryptionUtil, gzipFile);
+
+        // The original file's hash must be known before the upload starts, since
+        // multipart uploads cannot have their metadata changed once started.
+        if (md5HashOfDataFile == null) {
+            InputStream inputStream = new BufferedInputStream(new FileInputStream(dataFile));
+            if (progressWatcher != null) {
+                inputStream = new ProgressMonitoredInputStream(inputStream, progressWatcher);
+            }
+            md5HashOfDataFile = ServiceUtils.computeMD5Hash(inputStream);
+        }
+        s3Object.addMetadata(
+            S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5,
+            ServiceUtils.toBase64(md5HashOfDataFile));
+        return s3Object;
+    }
+
+    /**
+     * Opens a stream that reads a file's data gzipped and/or encrypted as it is read,
+     * matching the metadata set by
+     * {@link #createObjectForStreamingUpload(String, File, byte[], EncryptionUtil, boolean, BytesProgressWatcher)}.
+     *
+     * @param dataFile
+     * the file to read.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the file's data.
+     * @param gzipFile
+     * if true the file's data will be Gzipped.
+     *
+     * @return
+     * a stream of the transformed data.
+     *
+     * @throws Exception
+     * exceptions could include IO failures and encryption failures.
+     */
+    public static InputStream createTransformedInputStream(File dataFile,
+        EncryptionUtil encryptionUtil, boolean gzipFile) throws Exception
+    {
+        InputStream inputStream = new PooledBufferedInputStream(new FileInputStream(dataFile));
+        try {
+            if (gzipFile) {
+                inputStream = createGZipDeflatingInputStream(inputStream);
+            }
+            if (encryptionUtil != null) {
+                inputStream = encryptionUtil.encrypt(inputStream);
+            }
+        } catch (Exception e) {
+            inputStream.close();
+            throw e;
+        }
+        return inputStream;
+    }
+
+    /**
+     * @return
+     * a stream that gzips the given stream's data, using the number of threads set by the
+     * <tt>uploads.gzip-threads</tt> property in jets3t.properties.
+     */
+    private static InputStream createGZipDeflatingInputStream(InputStream inputStream)
+        throws IOException
+    {
+        int threadCount = Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME)
+            .getIntProperty("uploads.gzip-threads", 1);
+        if (threadCount > 1) {
+            return new ParallelGZipDeflatingInputStream(inputStream, threadCount);
+        }
+        return new GZipDeflatingInputStream(inputStream);
+    }
+
+    /**
+     * Sets the metadata items describing data that is gzipped and/or encrypted.
+     */
+    private static void addTransformMetadata(S3Object s3Object, EncryptionUtil encryptionUtil,
+        boolean gzipFile)
+    {
+        String contentEncoding = null;
+        if (gzipFile) {
+            contentEncoding = "gzip";
+            s3Object.addMetadata(Constants.METADATA_JETS3T_COMPRESSED, "gzip");
+        }
+        if (encryptionUtil != null) {
+            contentEncoding = null;
+            s3Object.setContentType(Mimetypes.MIMETYPE_OCTET_STREAM);
+            s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_ALGORITHM,
+                encryptionUtil.getAlgorithm());
+            s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_VERSION,
+                encryptionUtil.getVersion());
+        }
+        if (contentEncoding != null) {
+            s3Object.addMetadata("Content-Encoding", contentEncoding);
+        }
+    }
+
     /**
      * Creates a download package representing an S3Object that will be downloaded, and the
      * target file the downloaded data will be written to.
@@ -23,6 +23,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Date;
@@ -35,6 +36,7 @@ import java.util.TreeMap;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.commons.httpclient.contrib.proxy.PluginProxyUtil;
 import org.apache.http.Header;
@@ -87,6 +89,9 @@ public class RestUtils {
 
     private static final Logger log = LoggerFactory.getLogger(RestUtils.class);
 
+    private static final Map<String, SSLContext> sharedSSLContexts =
+        new HashMap<String, SSLContext>();
+
     /**
      * A list of HTTP-specific header names, that may be present in S3Objects as metadata but
      * which should be treated as plain HTTP headers during transmission (ie not converted into
@@ -316,7 +321,12 @@ public class RestUtils {
         // maybe DefaultHostnameVerifier will work for this one day.
         HostnameVerifier hostnameVerifier = new BrowserCompatHostnameVerifier();
         try {
-            SSLContext sslContext = SSLContextBuilder.create().build();
+            SSLContext sslContext = null;
+            if (jets3tProperties.getBoolProperty("httpclient.ssl-context-shared", false)) {
+                sslContext = getSharedSSLContext(jets3tProperties);
+            } else {
+                sslContext = createSSLContext(jets3tProperties);
+            }
             SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
                 sslContext, hostnameVerifier);
             Registry<ConnectionSocketFactory> registry =
@@ -393,6 +403,73 @@ public class RestUtils {
         return httpClientBuilder;
     }
 
+    /**
+     * Returns the SSL context shared by the HTTP clients of all services whose properties
+     * configure the same session cache, creating it when first needed. Sharing the context
+     * lets these services resume TLS sessions established by the others, so connections
+     * opened to an endpoint the process has already talked to only need an abbreviated
+     * handshake. Services with different session cache settings share different contexts.
+     * HTTP clients only use a shared context when the "httpclient.ssl-context-shared"
+     * property is true, otherwise each client has its own context.
+     *
+     * @param jets3tProperties
+     * the properties that configure the context's session cache, as described for
+     * {@link #createSSLContext(Jets3tProperties)}.
+     * @return
+     * the shared SSL context.
+     * @throws GeneralSecurityException
+     */
+    public static synchronized SSLContext getSharedSSLContext(Jets3tProperties jets3tProperties)
+        throws GeneralSecurityException
+    {
+        int sessionCacheSize = getSSLSessionCacheSize(jets3tProperties);
+        int sessionTimeoutSeconds = getSSLSessionTimeoutSeconds(jets3tProperties);
+        String key = sessionCacheSize + "/" + sessionTimeoutSeconds;
+        SSLContext sslContext = sharedSSLContexts.get(key);
+        if (sslContext == null) {
+            sslContext = createSSLContext(sessionCacheSize, sessionTimeoutSeconds);
+            sharedSSLContexts.put(key, sslContext);
+        }
+        return sslContext;
+    }
+
+    /**
+     * Creates an SSL context whose client session cache is sized by the JetS3t properties
+     * <tt>httpclient.ssl-session-cache-size</tt> and
+     * <tt>httpclient.ssl-session-timeout-seconds</tt>, where 0 means unlimited.
+     *
+     * @param jets3tProperties
+     * @return
+     * a new SSL context.
+     * @throws GeneralSecurityException
+     */
+    public static SSLContext createSSLContext(Jets3tProperties jets3tProperties)
+        throws GeneralSecurityException
+    {
+        return createSSLContext(getSSLSessionCacheSize(jets3tProperties),
+            getSSLSessionTimeoutSeconds(jets3tProperties));
+    }
+
+    private static SSLContext createSSLContext(int sessionCacheSize, int sessionTimeoutSeconds)
+        throws GeneralSecurityException
+    {
+        SSLContext sslContext = SSLContextBuilder.create().build();
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+        }
+        return sslContext;
+    }
+
+    private static int getSSLSessionCacheSize(Jets3tProperties jets3tProperties) {
+        return jets3tProperties.getIntProperty("httpclient.ssl-session-cache-size", 1000);
+    }
+
+    private static int getSSLSessionTimeoutSeconds(Jets3tProperties jets3tProperties) {
+        return jets3tProperties.getIntProperty("httpclient.ssl-session-timeout-seconds", 86400);
+    }
+
     /**
      * Initialises this service's HTTP proxy by auto-detecting the proxy settings.
      */
@@ -0,0 +1,429 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.multi.StorageServiceEventListener;
+
+/**
+ * Compares a local file hierarchy with the objects in a service in a single merge pass, using
+ * memory bounded by a batch size rather than by the number of files and objects.
+ * <p>
+ * The local hierarchy is walked in object key order, one directory listing at a time, while
+ * the service's listing is consumed page by page in the order the service returns it. Because
+ * both sequences are sorted, keys present on only one side and keys present on both sides can
+ * be identified by advancing whichever sequence has the lower key. Keys are compared by
+ * Unicode code point, which matches the UTF-8 byte order used by S3 listings.
+ * <p>
+ * Matched and unmatched items are collected into batches of a limited size. Each batch covers
+ * a contiguous range of keys from both sides, so it can be compared with
+ * {@link FileComparer#lookupObjectMetadataForPotentialClashes} and
+ * {@link FileComparer#buildDiscrepancyLists} exactly as a complete listing would be, and the
+ * results of each batch are passed to a {@link BatchHandler} before the next batch is built.
+ * <p>
+ * The local walk applies the same <code>.jets3t-ignore</code> and symlink rules as
+ * {@link FileComparer#buildObjectKeyToFilepathMap(File[], String, boolean)}. Memory use is
+ * bounded by the batch size plus the entries of the directories on the current path.
+ */
+public class StreamingFileComparer {
+
+    /**
+     * Receives the results of each batch of the comparison, in key order.
+     */
+    public interface BatchHandler {
+        /**
+         * @param results
+         * the comparison results for the keys in this batch.
+         * @param objectKeyToFilepathMap
+         * the local files in this batch, keyed by their object key names.
+         * @param objectsMap
+         * the objects in this batch, keyed by their keys relative to the target path.
+         * @throws Exception
+         */
+        void handleBatch(FileComparerResults results,
+            Map<String, String> objectKeyToFilepathMap, Map<String, StorageObject> objectsMap)
+            throws Exception;
+    }
+
+    /**
+     * Orders object keys by Unicode code point.
+     */
+    public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return compareKeys(a, b);
+        }
+    };
+
+    private final FileComparer fileComparer;
+    private final int batchSize;
+
+    /**
+     * @param fileComparer
+     * the comparer that performs the comparison of each batch.
+     * @param batchSize
+     * the maximum number of local files and objects included in each batch. This should be
+     * at least two, so a key present both locally and in the service fits in one batch.
+     */
+    public StreamingFileComparer(FileComparer fileComparer, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        this.fileComparer = fileComparer;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Compares local files and directories with the objects below a target path in a bucket.
+     *
+     * @param service
+     * @param bucketName
+     * @param targetPath
+     * the path in the bucket that corresponds to the local files, may be empty.
+     * @param fileList
+     * the set of files and directories to compare, as for
+     * {@link FileComparer#buildObjectKeyToFilepathMap(File[], String, boolean)}.
+     * @param includeDirectories
+     * if true, directories are compared as directory place-holder objects.
+     * @param forceMetadataDownload
+     * if true, metadata is always downloaded for objects in the storage service.
+     * @param isForceUpload
+     * set to true if the calling tool will upload files regardless of the comparison.
+     * @param progressWatcher
+     * watcher to monitor bytes read during comparison operations, may be null.
+     * @param eventListener
+     * listener for metadata lookups, may be null.
+     * @param handler
+     * receives the results of each batch.
+     * @throws Exception
+     */
+    public void compare(StorageService service, String bucketName, String targetPath,
+        File[] fileList, boolean includeDirectories, boolean forceMetadataDownload,
+        boolean isForceUpload, BytesProgressWatcher progressWatcher,
+        StorageServiceEventListener eventListener, BatchHandler handler) throws Exception
+    {
+        String prefix = (targetPath.length() > 0 ? targetPath : null);
+        compare(new LocalFileKeyIterator(fileList, includeDirectories),
+            new ObjectListingIterator(service, bucketName, prefix),
+            service, bucketName, targetPath, forceMetadataDownload, isForceUpload,
+            progressWatcher, eventListener, handler);
+    }
+
+    /**
+     * Merges sorted sequences of local files and objects and compares them in batches.
+     *
+     * @param localFiles
+     * pairs of object key names and local file paths, in {@link #KEY_ORDER}.
+     * @param objects
+     * objects below the target path, in the order returned by the service.
+     * @param service
+     * @param bucketName
+     * @param targetPath
+     * @param forceMetadataDownload
+     * @param isForceUpload
+     * @param progressWatcher
+     * @param eventListener
+     * @param handler
+     * @throws Exception
+     */
+    protected void compare(Iterator<Map.Entry<String, String>> localFiles,
+        Iterator<StorageObject> objects, StorageService service, String bucketName,
+        String targetPath, boolean forceMetadataDownload, boolean isForceUpload,
+        BytesProgressWatcher progressWatcher, StorageServiceEventListener eventListener,
+        BatchHandler handler) throws Exception
+    {
+        Map<String, String> localBatch = new TreeMap<String, String>();
+        List<StorageObject> objectBatch = new ArrayList<StorageObject>();
+
+        Map.Entry<String, String> local = nextOrNull(localFiles);
+        StorageObject object = null;
+        String objectKey = null;
+        do {
+            object = nextOrNull(objects);
+            objectKey = (object == null ? null : getRelativeKey(targetPath, object));
+        } while (object != null && objectKey == null);
+
+        while (local != null || object != null) {
+            int comparison = (local == null ? 1
+                : object == null ? -1
+                : compareKeys(local.getKey(), objectKey));
+
+            // Flush the batch before it would exceed the batch size. A batch may hold one item
+            // more than the batch size only when that size is one and a key is on both sides.
+            int itemsToAdd = (comparison == 0 ? 2 : 1);
+            int batchItems = localBatch.size() + objectBatch.size();
+            if (batchItems > 0 && batchItems + itemsToAdd > batchSize) {
+                compareBatch(localBatch, objectBatch, service, bucketName, targetPath,
+                    forceMetadataDownload, isForceUpload, progressWatcher, eventListener, handler);
+                localBatch = new TreeMap<String, String>();
+                objectBatch = new ArrayList<StorageObject>();
+            }
+
+            if (comparison <= 0) {
+                localBatch.put(local.getKey(), local.getValue());
+                local = nextOrNull(localFiles);
+            }
+            if (comparison >= 0) {
+                objectBatch.add(object);
+                do {
+                    object = nextOrNull(objects);
+                    objectKey = (object == null ? null : getRelativeKey(targetPath, object));
+                } while (object != null && objectKey == null);
+            }
+        }
+        if (localBatch.size() + objectBatch.size() > 0) {
+            compareBatch(localBatch, objectBatch, service, bucketName, targetPath,
+                forceMetadataDownload, isForceUpload, progressWatcher, eventListener, handler);
+        }
+    }
+
+    private void compareBatch(Map<String, String> localBatch, List<StorageObject> objectBatch,
+        StorageService service, String bucketName, String targetPath,
+        boolean forceMetadataDownload, boolean isForceUpload,
+        BytesProgressWatcher progressWatcher, StorageServiceEventListener eventListener,
+        BatchHandler handler) throws Exception
+    {
+        Map<String, StorageObject> objectsMap = fileComparer.lookupObjectMetadataForPotentialClashes(
+            service, bucketName, targetPath,
+            objectBatch.toArray(new StorageObject[objectBatch.size()]), localBatch,
+            forceMetadataDownload, isForceUpload, progressWatcher, eventListener);
+        FileComparerResults results = fileComparer.buildDiscrepancyLists(
+            localBatch, objectsMap, progressWatcher, isForceUpload);
+        handler.handleBatch(results, localBatch, objectsMap);
+    }
+
+    /**
+     * @return
+     * the object's key relative to the target path, as it would appear in a map built by
+     * {@link FileComparer#populateObjectMap(String, StorageObject[])}, or null if the object
+     * represents the target path itself.
+     */
+    private String getRelativeKey(String targetPath, StorageObject object) {
+        Map<String, StorageObject> map =
+            fileComparer.populateObjectMap(targetPath, new StorageObject[] {object});
+        return (map.isEmpty() ? null : map.keySet().iterator().next());
+    }
+
+    private static <T> T nextOrNull(Iterator<T> iterator) {
+        return (iterator.hasNext() ? iterator.next() : null);
+    }
+
+    /**
+     * Compares two keys by Unicode code point, which orders keys the same way as comparing
+     * their UTF-8 encoded bytes.
+     *
+     * @param a
+     * @param b
+     * @return
+     * a negative number, zero, or a positive number as the first key is less than, equal to,
+     * or greater than the second.
+     */
+    public static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int codePointA = a.codePointAt(i);
+            int codePointB = b.codePointAt(j);
+            if (codePointA != codePointB) {
+                return codePointA - codePointB;
+            }
+            i += Character.charCount(codePointA);
+            j += Character.charCount(codePointB);
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+
+    /**
+     * Iterates over the objects below a prefix in a bucket, listing one page at a time.
+     */
+    protected static class ObjectListingIterator implements Iterator<StorageObject> {
+        private final StorageService service;
+        private final String bucketName;
+        private final String prefix;
+        private Iterator<StorageObject> page = Collections.<StorageObject>emptyList().iterator();
+        private String priorLastKey = null;
+        private boolean isListingComplete = false;
+
+        public ObjectListingIterator(StorageService service, String bucketName, String prefix) {
+            this.service = service;
+            this.bucketName = bucketName;
+            this.prefix = prefix;
+        }
+
+        public boolean hasNext() {
+            while (!page.hasNext() && !isListingComplete) {
+                try {
+                    StorageObjectsChunk chunk = service.listObjectsChunked(bucketName, prefix,
+                        null, Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE, priorLastKey, false);
+                    page = Arrays.asList(chunk.getObjects()).iterator();
+                    priorLastKey = chunk.getPriorLastKey();
+                    isListingComplete = (priorLastKey == null);
+                } catch (ServiceException e) {
+                    throw new IllegalStateException("Unable to list objects in bucket "
+                        + bucketName + " with prefix " + prefix, e);
+                }
+            }
+            return page.hasNext();
+        }
+
+        public StorageObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Walks a local file hierarchy depth-first, returning pairs of object key names and
+     * absolute file paths in {@link #KEY_ORDER}. Only the listings of the directories on
+     * the path to the current file are held in memory.
+     */
+    protected class LocalFileKeyIterator implements Iterator<Map.Entry<String, String>> {
+        private final boolean includeDirectories;
+        private final LinkedList<DirectoryLevel> stack = new LinkedList<DirectoryLevel>();
+        private Map.Entry<String, String> nextEntry = null;
+
+        public LocalFileKeyIterator(File[] fileList, boolean includeDirectories) {
+            this.includeDirectories = includeDirectories;
+
+            List<KeyedFile> roots = new ArrayList<KeyedFile>();
+            List<Pattern> ignorePatternListForCurrentDir = null;
+            for (File file: fileList) {
+                List<Pattern> ignorePatternList = null;
+                if (file.getParentFile() == null) {
+                    if (ignorePatternListForCurrentDir == null) {
+                        ignorePatternListForCurrentDir =
+                            fileComparer.buildIgnoreRegexpList(new File("."), null);
+                    }
+                    ignorePatternList = ignorePatternListForCurrentDir;
+                } else {
+                    ignorePatternList = fileComparer.buildIgnoreRegexpList(file.getParentFile(), null);
+                }
+                if (file.exists() && !fileComparer.isIgnored(ignorePatternList, file)) {
+                    roots.add(new KeyedFile(file, "", ignorePatternList));
+                }
+            }
+            stack.add(new DirectoryLevel(roots));
+        }
+
+        public boolean hasNext() {
+            while (nextEntry == null && !stack.isEmpty()) {
+                DirectoryLevel level = stack.getLast();
+                if (level.index >= level.files.size()) {
+                    stack.removeLast();
+                    continue;
+                }
+                KeyedFile keyedFile = level.files.get(level.index++);
+                if (keyedFile.isDirectory) {
+                    stack.add(listDirectory(keyedFile));
+                    if (!includeDirectories) {
+                        continue;
+                    }
+                }
+                nextEntry = new AbstractMap.SimpleImmutableEntry<String, String>(
+                    keyedFile.key, keyedFile.file.getAbsolutePath());
+            }
+            return nextEntry != null;
+        }
+
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = nextEntry;
+            nextEntry = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private DirectoryLevel listDirectory(KeyedFile directory) {
+            List<Pattern> ignorePatternList = fileComparer.buildIgnoreRegexpList(
+                directory.file, directory.parentIgnorePatternList);
+            File[] files = directory.file.listFiles();
+            if (files == null) {
+                throw new IllegalStateException(
+                    "Failed to list files in directory path "
+                    + directory.file.getAbsolutePath());
+            }
+            List<KeyedFile> children = new ArrayList<KeyedFile>(files.length);
+            for (File childFile: files) {
+                if (!fileComparer.isIgnored(ignorePatternList, childFile)) {
+                    children.add(new KeyedFile(childFile, directory.key, ignorePatternList));
+                }
+            }
+            return new DirectoryLevel(children);
+        }
+    }
+
+    private class KeyedFile {
+        final File file;
+        final boolean isDirectory;
+        final String key;
+        final List<Pattern> parentIgnorePatternList;
+
+        KeyedFile(File file, String keyPrefix, List<Pattern> parentIgnorePatternList) {
+            this.file = file;
+            this.isDirectory = file.isDirectory();
+            this.key = fileComparer.normalizeUnicode(keyPrefix + file.getName())
+                + (isDirectory ? Constants.FILE_PATH_DELIM : "");
+            this.parentIgnorePatternList = parentIgnorePatternList;
+        }
+    }
+
+    private class DirectoryLevel {
+        final List<KeyedFile> files;
+        int index = 0;
+
+        DirectoryLevel(List<KeyedFile> files) {
+            // Directory keys end with the delimiter, so sorting by key places each directory's
+            // descendants immediately after it and before its next sibling.
+            Collections.sort(files, new Comparator<KeyedFile>() {
+                public int compare(KeyedFile a, KeyedFile b) {
+                    return compareKeys(a.key, b.key);
+                }
+            });
+            this.files = files;
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+
+public class ObjectMetadataCacheTest extends TestCase {
+
+    private S3Object createObject(String key, String eTag) {
+        S3Object object = new S3Object(key);
+        object.setETag("\"" + eTag + "\"");
+        object.setContentLength(3);
+        object.setDataInputStream(new ByteArrayInputStream(new byte[3]));
+        return object;
+    }
+
+    public void testFreshObjectsAreCopies() throws Exception {
+        ObjectMetadataCache cache = new ObjectMetadataCache(10, 60000, 60000);
+        assertNull(cache.getFreshObject("bucket", "key"));
+
+        cache.putObject("bucket", createObject("key", "abc"));
+        StorageObject cached = cache.getFreshObject("bucket", "key");
+        assertEquals("key", cached.getKey());
+        assertEquals("bucket", cached.getBucketName());
+        assertEquals("abc", cached.getETag());
+        assertNull(cached.getDataInputStream());
+        assertTrue(cached instanceof S3Object);
+
+        // Changes to a returned copy do not affect the cache
+        cached.addMetadata("x-test", "changed");
+        assertNull(cache.getFreshObject("bucket", "key").getMetadata("x-test"));
+        assertNull(cache.getFreshObject("other", "key"));
+    }
+
+    public void testStaleObjectsAreRevalidated() throws Exception {
+        ObjectMetadataCache cache = new ObjectMetadataCache(10, 50, 0);
+        cache.putObject("bucket", createObject("key", "abc"));
+        Thread.sleep(100);
+
+        assertNull(cache.getFreshObject("bucket", "key"));
+        assertEquals("abc", cache.getETag("bucket", "key"));
+        assertNull(cache.refreshObject("bucket", "key", "def"));
+        assertEquals("abc", cache.refreshObject("bucket", "key", "abc").getETag());
+        assertNotNull(cache.getFreshObject("bucket", "key"));
+    }
+
+    public void testMissingObjects() throws Exception {
+        ObjectMetadataCache cache = new ObjectMetadataCache(10, 60000, 50);
+        cache.putMissing("bucket", "key");
+        assertTrue(cache.isKnownMissing("bucket", "key"));
+        assertNull(cache.getFreshObject("bucket", "key"));
+        assertNull(cache.getETag("bucket", "key"));
+        Thread.sleep(100);
+        assertFalse(cache.isKnownMissing("bucket", "key"));
+
+        cache = new ObjectMetadataCache(10, 60000, 0);
+        cache.putObject("bucket", createObject("key", "abc"));
+        cache.putMissing("bucket", "key");
+        assertFalse(cache.isKnownMissing("bucket", "key"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testInvalidationAndEviction() throws Exception {
+        ObjectMetadataCache cache = new ObjectMetadataCache(3, 60000, 60000);
+        cache.putObject("bucket", createObject("a", "1"));
+        cache.putObject("bucket", createObject("b", "2"));
+        cache.putMissing("other", "c");
+        cache.getFreshObject("bucket", "a");
+        cache.putObject("other", createObject("d", "4"));
+
+        assertEquals(3, cache.size());
+        assertNull(cache.getFreshObject("bucket", "b"));
+        assertNotNull(cache.getFreshObject("bucket", "a"));
+
+        cache.invalidate("bucket", "a");
+        assertNull(cache.getFreshObject("bucket", "a"));
+        cache.invalidateBucket("other");
+        assertEquals(0, cache.size());
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+
+public class RegionEndpointCacheTest extends TestCase {
+
+    public void testLeastRecentlyUsedMappingsAreDiscarded() {
+        RegionEndpointCache cache = new RegionEndpointCache(2, 0);
+        assertNull(cache.putRegionForBucketName("a", "us-east-1"));
+        cache.putRegionForBucketName("b", "eu-west-1");
+        assertEquals("us-east-1", cache.getRegionForBucketName("a"));
+        cache.putRegionForBucketName("c", "ap-southeast-2");
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.containsRegionForBucketName("a"));
+        assertFalse(cache.containsRegionForBucketName("b"));
+        assertTrue(cache.containsRegionForAnyBucketName("ap-southeast-2"));
+        assertEquals("ap-southeast-2", cache.putRegionForBucketName("c", "us-west-2"));
+        assertEquals("us-west-2", cache.removeRegionForBucketName("c"));
+        assertNull(cache.putRegionForBucketName(null, "us-west-2"));
+    }
+
+    public void testMappingsExpire() throws Exception {
+        RegionEndpointCache cache = new RegionEndpointCache(10, 50);
+        cache.putRegionForBucketName("a", "us-east-1");
+        assertEquals("us-east-1", cache.getRegionForBucketName("a"));
+        Thread.sleep(100);
+        assertNull(cache.getRegionForBucketName("a"));
+        assertFalse(cache.containsRegionForAnyBucketName("us-east-1"));
+        assertNull(cache.putRegionForBucketName("a", "us-east-1"));
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("RegionEndpointCacheTest", ".properties");
+        try {
+            RegionEndpointCache cache = new RegionEndpointCache();
+            cache.putRegionForBucketName("bucket.with.dots", "eu-central-1");
+            cache.putRegionForBucketName("other", "us-west-2");
+            cache.saveToFile(file);
+
+            RegionEndpointCache loaded = new RegionEndpointCache(10, 60000);
+            loaded.putRegionForBucketName("other", "us-east-1");
+            loaded.loadFromFile(file);
+            assertEquals("eu-central-1", loaded.getRegionForBucketName("bucket.with.dots"));
+            // Mappings already cached are kept
+            assertEquals("us-east-1", loaded.getRegionForBucketName("other"));
+
+            new RegionEndpointCache().loadFromFile(new File(file.getPath() + ".missing"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final RegionEndpointCache cache = new RegionEndpointCache(100, 0);
+        Thread[] threads = new Thread[8];
+        final boolean[] failed = new boolean[1];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        String bucketName = "bucket-" + ((index * 31 + j) % 500);
+                        cache.putRegionForBucketName(bucketName, "region-" + index);
+                        String region = cache.getRegionForBucketName(bucketName);
+                        if (region != null && !region.startsWith("region-")) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertFalse(failed[0]);
+        assertEquals(100, cache.size());
+    }
+
+}
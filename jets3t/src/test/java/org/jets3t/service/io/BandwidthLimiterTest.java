@@ -0,0 +1,177 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+
+
+public class BandwidthLimiterTest extends TestCase {
+
+    private long timeAcquisitions(BandwidthLimiter limiter, int totalBytes, int chunkSize)
+        throws Exception
+    {
+        long start = System.nanoTime();
+        for (int acquired = 0; acquired < totalBytes; acquired += chunkSize) {
+            limiter.acquire(chunkSize);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    public void testUnlimitedDoesNotWait() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter("Test", null);
+        assertFalse(limiter.isLimited());
+        assertEquals(8192, limiter.getChunkSize(8192));
+        assertTrue(timeAcquisitions(limiter, 100 * 1024 * 1024, 8192) < 1000);
+    }
+
+    public void testRateIsLimited() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter("Test", null, 200 * 1024);
+        assertTrue(limiter.isLimited());
+        // 100 KB beyond the 50 KB burst takes at least half a second
+        long millis = timeAcquisitions(limiter, 150 * 1024, 1024);
+        assertTrue("Took " + millis + "ms", millis >= 400 && millis < 1500);
+    }
+
+    public void testReadThrottleLimitsAllServicesTogether() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("httpclient.read-throttle", "100");
+        BandwidthLimiter globalLimiter = BandwidthLimiter.getGlobalUploadLimiter();
+        try {
+            RestS3Service service1 = new RestS3Service(null, null, null, properties);
+            RestS3Service service2 = new RestS3Service(null, null, null, properties);
+            assertEquals(100 * 1024, globalLimiter.getBytesPerSecond());
+            assertSame(globalLimiter, service1.getUploadBandwidthLimiter().getParent());
+            assertSame(globalLimiter, service2.getUploadBandwidthLimiter().getParent());
+            assertEquals(0, service1.getUploadBandwidthLimiter().getBytesPerSecond());
+            assertEquals(0, service2.getUploadBandwidthLimiter().getBytesPerSecond());
+
+            // Services without the property leave the global limit in place
+            new RestS3Service(null, null, null, new Jets3tProperties());
+            assertEquals(100 * 1024, globalLimiter.getBytesPerSecond());
+        } finally {
+            globalLimiter.setBytesPerSecond(0);
+        }
+    }
+
+    public void testParentLimitApplies() throws Exception {
+        BandwidthLimiter parent = new BandwidthLimiter("Parent", null, 200 * 1024);
+        BandwidthLimiter child = new BandwidthLimiter("Child", parent);
+        assertTrue(child.isLimited());
+        assertEquals(200 * 1024 / 16, child.getChunkSize(128 * 1024));
+        long millis = timeAcquisitions(child, 150 * 1024, 1024);
+        assertTrue("Took " + millis + "ms", millis >= 400);
+
+        // Limits can be removed at runtime
+        parent.setBytesPerSecond(0);
+        assertFalse(child.isLimited());
+        assertTrue(timeAcquisitions(child, 10 * 1024 * 1024, 8192) < 1000);
+    }
+
+    public void testThreadsShareLimit() throws Exception {
+        final BandwidthLimiter limiter = new BandwidthLimiter("Test", null, 400 * 1024);
+        Thread[] threads = new Thread[4];
+        final long[] millis = new long[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        millis[index] = timeAcquisitions(limiter, 100 * 1024, 1024);
+                    } catch (Exception e) {
+                        millis[index] = -1;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        // 400 KB in total, less the 100 KB burst, takes at least 0.75 seconds for every thread
+        for (long threadMillis: millis) {
+            assertTrue("Took " + threadMillis + "ms", threadMillis >= 500);
+        }
+    }
+
+    public void testSchedule() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter("Test", null, 1024);
+        Calendar calendar = Calendar.getInstance();
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        String now = String.format("%02d:00", hour);
+        String later = String.format("%02d:59", hour);
+
+        limiter.setSchedule(now + "=100," + later + "=0");
+        if (calendar.get(Calendar.MINUTE) < 59) {
+            assertEquals(100 * 1024, limiter.getBytesPerSecond());
+        }
+
+        // Entries before the first scheduled time use the last entry
+        if (hour < 23) {
+            limiter.setSchedule(String.format("%02d:00", hour + 1) + "=5,23:30=7");
+            assertEquals(7 * 1024, limiter.getBytesPerSecond());
+        }
+
+        limiter.setBytesPerSecond(2048);
+        assertEquals(2048, limiter.getBytesPerSecond());
+
+        try {
+            limiter.setSchedule("8am=100");
+            fail("Expected invalid schedule to be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            limiter.setSchedule("25:00=100");
+            fail("Expected invalid schedule to be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testLimitedInputStream() throws Exception {
+        byte[] data = new byte[300 * 1024];
+        new Random(1).nextBytes(data);
+        BandwidthLimiter limiter = new BandwidthLimiter("Test", null, 400 * 1024);
+        InputStream inputStream = new BandwidthLimitedInputStream(
+            new ByteArrayInputStream(data), limiter);
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            assertTrue(count <= limiter.getChunkSize(buffer.length));
+            baos.write(buffer, 0, count);
+        }
+        inputStream.close();
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+        assertTrue("Took " + millis + "ms", millis >= 400);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+
+public class BufferPoolTest extends TestCase {
+
+    public void testBuffersAreSizeClassed() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.borrow(1).length);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.borrow(BufferPool.MIN_BUFFER_SIZE).length);
+        assertEquals(8192, pool.borrow(BufferPool.MIN_BUFFER_SIZE + 1).length);
+        assertEquals(128 * 1024, pool.borrow(100000).length);
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.borrow(BufferPool.MAX_BUFFER_SIZE).length);
+        // Larger buffers are allocated exactly
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, pool.borrow(BufferPool.MAX_BUFFER_SIZE + 1).length);
+    }
+
+    public void testBuffersAreReused() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        byte[] buffer = pool.borrow(10000);
+        pool.release(buffer);
+        assertEquals(buffer.length, pool.getRetainedBytes());
+        assertSame(buffer, pool.borrow(9000));
+        assertEquals(0, pool.getRetainedBytes());
+        assertNotSame(buffer, pool.borrow(9000));
+
+        // Buffers whose size doesn't match a size class are not retained
+        pool.release(new byte[10000]);
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testRetainedBytesAreLimited() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        for (int i = 0; i < 10; i++) {
+            pool.release(new byte[16 * 1024]);
+        }
+        assertEquals(64 * 1024, pool.getRetainedBytes());
+
+        BufferPool disabledPool = new BufferPool(0);
+        disabledPool.release(disabledPool.borrow(4096));
+        assertEquals(0, disabledPool.getRetainedBytes());
+    }
+
+    public void testRepeatableInputStreamRepeatsData() throws Exception {
+        byte[] data = new byte[50000];
+        new Random(1).nextBytes(data);
+        RepeatableInputStream inputStream =
+            new RepeatableInputStream(new ByteArrayInputStream(data), 100000);
+        inputStream.mark(0);
+
+        byte[] firstRead = new byte[20000];
+        assertEquals(20000, inputStream.read(firstRead, 0, firstRead.length));
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 20000), firstRead));
+        inputStream.reset();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int b;
+        // Single byte reads return unsigned values
+        while (baos.size() < 100 && (b = inputStream.read()) != -1) {
+            assertTrue(b >= 0);
+            baos.write(b);
+        }
+        byte[] buffer = new byte[7000];
+        int count;
+        while ((count = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            baos.write(buffer, 0, count);
+        }
+        inputStream.close();
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+    }
+
+    public void testRepeatableInputStreamClosedDuringRead() throws Exception {
+        final CountDownLatch isReading = new CountDownLatch(1);
+        final CountDownLatch isClosed = new CountDownLatch(1);
+        InputStream blockingStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                isReading.countDown();
+                try {
+                    isClosed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                Arrays.fill(b, off, off + len, (byte) 1);
+                return len;
+            }
+
+            @Override
+            public void close() {
+                isClosed.countDown();
+            }
+        };
+        final RepeatableInputStream inputStream = new RepeatableInputStream(blockingStream, 4096);
+        final int[] readResult = new int[1];
+        final Exception[] readFailure = new Exception[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    readResult[0] = inputStream.read(new byte[1000], 0, 1000);
+                } catch (Exception e) {
+                    readFailure[0] = e;
+                }
+            }
+        };
+        reader.start();
+        isReading.await();
+
+        // Closing ends the blocked read, which completes before the buffer is released
+        inputStream.close();
+        reader.join();
+        assertNull(readFailure[0]);
+        assertEquals(1000, readResult[0]);
+    }
+
+    public void testPooledBufferedInputStream() throws Exception {
+        byte[] data = new byte[200000];
+        new Random(2).nextBytes(data);
+        BufferPool pool = new BufferPool(1024 * 1024);
+        InputStream inputStream = new PooledBufferedInputStream(
+            new ByteArrayInputStream(data), 16 * 1024, pool);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            baos.write(buffer, 0, count);
+        }
+        inputStream.close();
+        inputStream.close();
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+        // The buffer is returned to the pool once
+        assertEquals(16 * 1024, pool.getRetainedBytes());
+    }
+
+}
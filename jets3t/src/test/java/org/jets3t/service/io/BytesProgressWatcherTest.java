@@ -0,0 +1,132 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+
+public class BytesProgressWatcherTest extends TestCase {
+
+    public void testConcurrentUpdatesAreCounted() throws Exception {
+        final int threadCount = 8;
+        final int updatesPerThread = 100000;
+        final BytesProgressWatcher watcher =
+            new BytesProgressWatcher((long) threadCount * updatesPerThread * 10);
+        assertFalse(watcher.isStarted());
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < updatesPerThread; j++) {
+                        watcher.updateBytesTransferred(10);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        assertTrue(watcher.isStarted());
+        assertEquals((long) threadCount * updatesPerThread * 10, watcher.getBytesTransferred());
+        assertEquals(0, watcher.getBytesRemaining());
+        assertEquals(watcher.getBytesTransferred(), watcher.getTotalBytesInAllTransfers());
+        assertTrue(watcher.getRecentByteRatePerSecond() > 0);
+
+        // Completed transfers report a fixed elapsed time
+        long elapsed = watcher.getElapsedTimeMS();
+        Thread.sleep(20);
+        assertEquals(elapsed, watcher.getElapsedTimeMS());
+    }
+
+    public void testResetKeepsTotalOverAllTransfers() throws Exception {
+        BytesProgressWatcher watcher = new BytesProgressWatcher(1000);
+        watcher.updateBytesTransferred(600);
+        assertEquals(400, watcher.getBytesRemaining());
+
+        watcher.resetWatcher();
+        assertEquals(0, watcher.getBytesTransferred());
+        watcher.updateBytesTransferred(300);
+        assertEquals(300, watcher.getBytesTransferred());
+        assertEquals(900, watcher.getTotalBytesInAllTransfers());
+
+        BytesProgressWatcher other = new BytesProgressWatcher(500);
+        other.updateBytesTransferred(100);
+        BytesProgressWatcher[] watchers = new BytesProgressWatcher[] {watcher, other};
+        assertEquals(1500, BytesProgressWatcher.sumBytesToTransfer(watchers));
+        assertEquals(400, BytesProgressWatcher.sumBytesTransferred(watchers));
+        assertTrue(BytesProgressWatcher.calculateRecentByteRatePerSecond(watchers) > 0);
+    }
+
+    public void testHistoryKeepsBytesAddedWhileBucketsAreTakenForNewSeconds() throws Exception {
+        final AtomicLong bytesInHistory = new AtomicLong();
+        final BytesProgressWatcher watcher = new BytesProgressWatcher(Long.MAX_VALUE) {
+            @Override
+            protected void removedFromHistory(Long pSec, Long pBytes) {
+                bytesInHistory.addAndGet(pBytes.longValue());
+            }
+        };
+
+        // Keep updating until shortly after the start of the next second, so threads race
+        // to take over buckets while others are adding to them.
+        final long stopTimeMS = (System.currentTimeMillis() / 1000 + 1) * 1000 + 200;
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    while (System.currentTimeMillis() < stopTimeMS) {
+                        watcher.updateBytesTransferred(1);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        watcher.clearHistory();
+        assertEquals(watcher.getBytesTransferred(), bytesInHistory.get());
+    }
+
+    public void testHistoryIsRecycled() throws Exception {
+        final List<Long> removedSeconds = new ArrayList<Long>();
+        BytesProgressWatcher watcher = new BytesProgressWatcher(Long.MAX_VALUE) {
+            @Override
+            protected void removedFromHistory(Long pSec, Long pBytes) {
+                synchronized (removedSeconds) {
+                    removedSeconds.add(pSec);
+                }
+            }
+        };
+        watcher.updateBytesTransferred(100);
+        double rate = watcher.getRecentByteRatePerSecond();
+        assertTrue(rate > 0 && rate <= 100);
+
+        watcher.clearHistory();
+        assertEquals(1, removedSeconds.size());
+        assertEquals(0.0, watcher.getRecentByteRatePerSecond());
+        assertEquals(100, watcher.getBytesTransferred());
+    }
+
+}
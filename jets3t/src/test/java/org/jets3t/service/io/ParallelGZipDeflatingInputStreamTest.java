@@ -0,0 +1,123 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+
+public class ParallelGZipDeflatingInputStreamTest extends TestCase {
+
+    private byte[] readAll(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[5000];
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            baos.write(buffer, 0, count);
+        }
+        inputStream.close();
+        return baos.toByteArray();
+    }
+
+    private byte[] buildData(int length) {
+        // Mix of repetitive text and random bytes, so blocks refer back to earlier blocks
+        byte[] data = new byte[length];
+        Random random = new Random(length);
+        byte[] phrase = "The quick brown fox jumps over the lazy dog. ".getBytes();
+        for (int i = 0; i < length; i++) {
+            data[i] = ((i / 1000) % 3 == 0 ? (byte) random.nextInt() : phrase[i % phrase.length]);
+        }
+        return data;
+    }
+
+    private byte[] deflate(byte[] data, int threadCount, int blockSize) throws Exception {
+        return readAll(new ParallelGZipDeflatingInputStream(
+            new ByteArrayInputStream(data), threadCount, blockSize));
+    }
+
+    private void assertInflatesTo(byte[] data, byte[] deflated) throws Exception {
+        // Standard GZip reader
+        assertTrue(Arrays.equals(data,
+            readAll(new GZIPInputStream(new ByteArrayInputStream(deflated)))));
+
+        // JetS3t's own GZip reader
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZipInflatingOutputStream inflating = new GZipInflatingOutputStream(baos);
+        inflating.write(deflated, 0, deflated.length);
+        inflating.close();
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+    }
+
+    public void testOutputIsReadableGZip() throws Exception {
+        int[] lengths = new int[] {0, 1, 1000, 4096, 4097, 100000, 1000000};
+        for (int length: lengths) {
+            byte[] data = buildData(length);
+            assertInflatesTo(data, deflate(data, 4, 4096));
+            assertInflatesTo(data, deflate(data, 1, 4096));
+            assertInflatesTo(data, deflate(data, 3, ParallelGZipDeflatingInputStream.DEFAULT_BLOCK_SIZE));
+        }
+    }
+
+    public void testCompressionMatchesSequentialStream() throws Exception {
+        byte[] data = buildData(1000000);
+        int parallelLength = deflate(data, 4, ParallelGZipDeflatingInputStream.DEFAULT_BLOCK_SIZE).length;
+        int sequentialLength = readAll(
+            new GZipDeflatingInputStream(new ByteArrayInputStream(data))).length;
+        // Sharing dictionaries between blocks keeps the overhead to a few bytes per block
+        assertTrue("Parallel: " + parallelLength + ", sequential: " + sequentialLength,
+            parallelLength < sequentialLength * 1.01 + 1000);
+    }
+
+    public void testStreamsShareDeflaterThreads() throws Exception {
+        byte[] data = buildData(200000);
+        for (int i = 0; i < 20; i++) {
+            InputStream inputStream = new ParallelGZipDeflatingInputStream(
+                new ByteArrayInputStream(data), 4, 4096);
+            // Leave some blocks unread, which are cancelled on close
+            inputStream.read(new byte[100]);
+            inputStream.close();
+        }
+        int deflaterThreadCount = 0;
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if ("ParallelGZipDeflatingInputStream".equals(thread.getName())) {
+                assertTrue(thread.isDaemon());
+                deflaterThreadCount++;
+            }
+        }
+        assertTrue(deflaterThreadCount <= Runtime.getRuntime().availableProcessors());
+    }
+
+    public void testSingleByteReads() throws Exception {
+        byte[] data = buildData(20000);
+        InputStream inputStream = new ParallelGZipDeflatingInputStream(
+            new ByteArrayInputStream(data), 2, 1024);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) >= 0) {
+            baos.write(b);
+        }
+        inputStream.close();
+        assertInflatesTo(data, baos.toByteArray());
+    }
+
+}
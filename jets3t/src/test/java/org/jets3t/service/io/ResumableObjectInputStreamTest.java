@@ -0,0 +1,173 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.model.StorageObject;
+
+
+public class ResumableObjectInputStreamTest extends TestCase {
+
+    private byte[] data;
+
+    @Override
+    protected void setUp() throws Exception {
+        data = new byte[100 * 1024];
+        new Random(1).nextBytes(data);
+    }
+
+    /**
+     * A stream of the data from an offset, which fails after a number of bytes.
+     */
+    private InputStream failingStream(final int start, final int failAfter,
+        final boolean endEarly)
+    {
+        return new InputStream() {
+            private int position = start;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= data.length) {
+                    return -1;
+                }
+                if (position - start >= failAfter) {
+                    if (endEarly) {
+                        return -1;
+                    }
+                    throw new IOException("Connection reset");
+                }
+                int count = Math.min(len, Math.min(data.length - position,
+                    failAfter - (position - start)));
+                System.arraycopy(data, position, b, off, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    private StorageObject createObject(InputStream inputStream) {
+        StorageObject object = new StorageObject("key");
+        object.setETag("\"abc\"");
+        object.setContentLength(data.length);
+        object.setDataInputStream(inputStream);
+        return object;
+    }
+
+    private byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            baos.write(buffer, 0, count);
+        }
+        return baos.toByteArray();
+    }
+
+    public void testResumesAfterFailures() throws Exception {
+        final int[] starts = new int[10];
+        final int[] opens = new int[1];
+        ResumableObjectInputStream inputStream = new ResumableObjectInputStream(
+            null, "bucket", createObject(failingStream(0, 30000, false)), 4, 1)
+        {
+            @Override
+            protected InputStream openRange(long start) throws IOException {
+                starts[opens[0]++] = (int) start;
+                // Fail to reconnect, fail once more straight away, then read the rest
+                // with a premature end
+                if (opens[0] == 1) {
+                    throw new IOException("Connection refused");
+                } else if (opens[0] == 2) {
+                    return failingStream((int) start, 0, false);
+                } else if (opens[0] == 3) {
+                    return failingStream((int) start, 20000, true);
+                }
+                return failingStream((int) start, Integer.MAX_VALUE, false);
+            }
+        };
+        assertTrue(Arrays.equals(data, readAll(inputStream)));
+        assertEquals(3, inputStream.getResumeCount());
+        assertEquals(data.length, inputStream.getPosition());
+        assertEquals(30000, starts[0]);
+        assertEquals(30000, starts[1]);
+        assertEquals(30000, starts[2]);
+        assertEquals(50000, starts[3]);
+        inputStream.close();
+    }
+
+    public void testGivesUpAfterMaxRetries() throws Exception {
+        ResumableObjectInputStream inputStream = new ResumableObjectInputStream(
+            null, "bucket", createObject(failingStream(0, 1000, false)), 2, 1)
+        {
+            @Override
+            protected InputStream openRange(long start) {
+                return failingStream((int) start, 0, false);
+            }
+        };
+        try {
+            readAll(inputStream);
+            fail("Expected failure after retries");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertEquals(2, inputStream.getResumeCount());
+        assertEquals(1000, inputStream.getPosition());
+    }
+
+    public void testUnrecoverableFailuresAreNotRetried() throws Exception {
+        ResumableObjectInputStream inputStream = new ResumableObjectInputStream(
+            null, "bucket", createObject(new InterruptableInputStream(
+                new ByteArrayInputStream(data))), 5, 1)
+        {
+            @Override
+            protected InputStream openRange(long start) throws IOException {
+                throw new UnrecoverableIOException("Object changed");
+            }
+        };
+        assertEquals(1000, inputStream.read(new byte[1000]));
+        ((InterruptableInputStream) inputStream.getWrappedInputStream()).interrupt();
+        try {
+            inputStream.read(new byte[1000]);
+            fail("Expected interruption to be rethrown");
+        } catch (UnrecoverableIOException e) {
+            // Expected
+        }
+        assertEquals(0, inputStream.getResumeCount());
+    }
+
+    public void testEmptyObject() throws Exception {
+        StorageObject object = createObject(new ByteArrayInputStream(new byte[0]));
+        object.setContentLength(0);
+        ResumableObjectInputStream inputStream =
+            new ResumableObjectInputStream(null, "bucket", object, 3, 1);
+        assertEquals(-1, inputStream.read());
+    }
+
+}
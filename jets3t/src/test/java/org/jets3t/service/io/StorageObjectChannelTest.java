@@ -0,0 +1,145 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.model.StorageObject;
+
+
+public class StorageObjectChannelTest extends TestCase {
+
+    private byte[] data;
+    private List<long[]> ranges;
+
+    @Override
+    protected void setUp() throws Exception {
+        data = new byte[10 * 1000 + 17];
+        new Random(1).nextBytes(data);
+        ranges = new ArrayList<long[]>();
+    }
+
+    private StorageObjectChannel createChannel(int maxCachedBlocks, int readAheadBlocks,
+        File cacheDirectory)
+    {
+        StorageObject details = new StorageObject("key");
+        details.setContentLength(data.length);
+        details.setETag("\"abc\"");
+        return new StorageObjectChannel(null, "bucket", details, 1000, maxCachedBlocks,
+            readAheadBlocks, cacheDirectory)
+        {
+            @Override
+            protected InputStream openRange(long start, long end) {
+                ranges.add(new long[] {start, end});
+                return new ByteArrayInputStream(data, (int) start, (int) (end - start + 1));
+            }
+        };
+    }
+
+    private byte[] readAt(StorageObjectChannel channel, long position, int length)
+        throws Exception
+    {
+        channel.position(position);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Keep reading
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    public void testRandomReadsUseCachedBlocks() throws Exception {
+        StorageObjectChannel channel = createChannel(4, 2, null);
+        assertEquals(data.length, channel.size());
+
+        // Footer, then header, then footer again
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length - 8, data.length),
+            readAt(channel, data.length - 8, 8)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 0, 4), readAt(channel, 0, 4)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length - 17, data.length),
+            readAt(channel, data.length - 17, 17)));
+        assertEquals(2, channel.getRangeRequestCount());
+        assertEquals(10000, ranges.get(0)[0]);
+        assertEquals(data.length - 1, ranges.get(0)[1]);
+
+        // Reads past the end return end-of-stream
+        assertEquals(0, readAt(channel, data.length + 5, 10).length);
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        channel.close();
+        try {
+            channel.position();
+            fail("Expected closed channel to be rejected");
+        } catch (ClosedChannelException e) {
+            // Expected
+        }
+    }
+
+    public void testSequentialReadsReadAhead() throws Exception {
+        StorageObjectChannel channel = createChannel(8, 3, null);
+        InputStream inputStream = Channels.newInputStream(channel);
+        byte[] buffer = new byte[700];
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            baos.write(buffer, 0, count);
+        }
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+        // Block 0 alone, then up to four blocks per request once reading is sequential
+        assertEquals(4, channel.getRangeRequestCount());
+        assertEquals(1000, ranges.get(1)[0]);
+        assertEquals(4999, ranges.get(1)[1]);
+    }
+
+    public void testEvictedBlocksSpillToDisk() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        StorageObjectChannel channel = createChannel(2, 0, directory);
+        for (int block = 0; block < 11; block++) {
+            readAt(channel, block * 1000, 10);
+        }
+        assertEquals(11, channel.getRangeRequestCount());
+
+        // Evicted blocks are read back from disk instead of the service
+        for (int block = 10; block >= 0; block--) {
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, block * 1000 + 5, block * 1000 + 15),
+                readAt(channel, block * 1000 + 5, 10)));
+        }
+        assertEquals(11, channel.getRangeRequestCount());
+        channel.close();
+
+        // Without a cache directory, evicted blocks are retrieved again
+        ranges.clear();
+        channel = createChannel(2, 0, null);
+        readAt(channel, 0, 10);
+        readAt(channel, 5000, 10);
+        readAt(channel, 9000, 10);
+        readAt(channel, 0, 10);
+        assertEquals(4, channel.getRangeRequestCount());
+        channel.close();
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+
+public class ChunkedAesGcmCipherTest extends TestCase {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private final ChunkedAesGcmCipher cipher =
+        new ChunkedAesGcmCipher(new SecretKeySpec(new byte[32], "AES"), CHUNK_SIZE);
+
+    private byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            baos.write(buffer, 0, count);
+        }
+        inputStream.close();
+        return baos.toByteArray();
+    }
+
+    private byte[] buildData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private byte[] encrypt(byte[] data) throws IOException {
+        return readAll(cipher.encrypt(new ByteArrayInputStream(data)));
+    }
+
+    private byte[] decryptToOutputStream(byte[] encrypted) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream decrypting = cipher.decrypt(baos);
+        // Write in uneven pieces
+        for (int offset = 0; offset < encrypted.length; offset += 333) {
+            decrypting.write(encrypted, offset, Math.min(333, encrypted.length - offset));
+        }
+        decrypting.close();
+        return baos.toByteArray();
+    }
+
+    public void testRoundTrip() throws Exception {
+        int[] lengths = new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1,
+            CHUNK_SIZE * 50, 2 * 1024 * 1024 + 7};
+        for (int length: lengths) {
+            byte[] data = buildData(length);
+            byte[] encrypted = encrypt(data);
+            assertEquals(cipher.getEncryptedOutputSize(length), encrypted.length);
+            assertTrue(Arrays.equals(data,
+                readAll(cipher.decrypt(new ByteArrayInputStream(encrypted)))));
+            assertTrue(Arrays.equals(data, decryptToOutputStream(encrypted)));
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            OutputStream encrypting = cipher.encrypt(baos);
+            encrypting.write(data);
+            encrypting.close();
+            assertEquals(encrypted.length, baos.size());
+            assertTrue(Arrays.equals(data,
+                readAll(cipher.decrypt(new ByteArrayInputStream(baos.toByteArray())))));
+        }
+    }
+
+    public void testEncryptionIsRandomised() throws Exception {
+        byte[] data = buildData(CHUNK_SIZE * 3);
+        assertFalse(Arrays.equals(encrypt(data), encrypt(data)));
+    }
+
+    public void testRangedDecryption() throws Exception {
+        byte[] data = buildData(CHUNK_SIZE * 10 + 123);
+        byte[] encrypted = encrypt(data);
+        byte[] header = Arrays.copyOf(encrypted, ChunkedAesGcmCipher.HEADER_LENGTH);
+
+        long[] offsets = new long[] {0, 1, CHUNK_SIZE, CHUNK_SIZE * 3 + 17, data.length - 1};
+        for (long offset: offsets) {
+            int encryptedOffset = (int) ChunkedAesGcmCipher.getEncryptedChunkOffset(header, offset);
+            InputStream range = new ByteArrayInputStream(
+                encrypted, encryptedOffset, encrypted.length - encryptedOffset);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, (int) offset, data.length),
+                readAll(cipher.decrypt(header, range, offset))));
+        }
+
+        // A range ending at a chunk boundary
+        int start = (int) ChunkedAesGcmCipher.getEncryptedChunkOffset(header, CHUNK_SIZE * 2 + 5);
+        int end = (int) ChunkedAesGcmCipher.getEncryptedChunkOffset(header, CHUNK_SIZE * 4);
+        InputStream range = new ByteArrayInputStream(encrypted, start, end - start);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, CHUNK_SIZE * 2 + 5, CHUNK_SIZE * 4),
+            readAll(cipher.decrypt(header, range, CHUNK_SIZE * 2 + 5))));
+    }
+
+    public void testTamperingIsDetected() throws Exception {
+        byte[] data = buildData(CHUNK_SIZE * 5);
+        byte[] encrypted = encrypt(data);
+
+        byte[] modified = encrypted.clone();
+        modified[ChunkedAesGcmCipher.HEADER_LENGTH + CHUNK_SIZE * 2 + 10] ^= 1;
+        assertDecryptionFails(modified);
+
+        modified = encrypted.clone();
+        modified[20] ^= 1; // Salt in header
+        assertDecryptionFails(modified);
+
+        // Truncated at a chunk boundary, so the final chunk is missing
+        int truncatedLength = ChunkedAesGcmCipher.HEADER_LENGTH
+            + 3 * (CHUNK_SIZE + ChunkedAesGcmCipher.TAG_LENGTH);
+        assertDecryptionFails(Arrays.copyOf(encrypted, truncatedLength));
+        assertDecryptionFails(Arrays.copyOf(encrypted, encrypted.length - 1));
+
+        // Chunks swapped
+        modified = encrypted.clone();
+        int chunkLength = CHUNK_SIZE + ChunkedAesGcmCipher.TAG_LENGTH;
+        System.arraycopy(encrypted, ChunkedAesGcmCipher.HEADER_LENGTH,
+            modified, ChunkedAesGcmCipher.HEADER_LENGTH + chunkLength, chunkLength);
+        System.arraycopy(encrypted, ChunkedAesGcmCipher.HEADER_LENGTH + chunkLength,
+            modified, ChunkedAesGcmCipher.HEADER_LENGTH, chunkLength);
+        assertDecryptionFails(modified);
+
+        // Chunk size in header too large to allocate buffers for
+        modified = encrypted.clone();
+        Arrays.fill(modified, 4, 8, (byte) 0x7f);
+        assertDecryptionFails(modified);
+    }
+
+    private void assertDecryptionFails(byte[] encrypted) {
+        try {
+            readAll(cipher.decrypt(new ByteArrayInputStream(encrypted)));
+            fail("Expected decryption to fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            decryptToOutputStream(encrypted);
+            fail("Expected decryption to fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testEncryptionUtilVersions() throws Exception {
+        String algorithm = EncryptionUtil.CHUNKED_AES_GCM_ALGORITHM;
+        assertEquals(EncryptionUtil.CHUNKED_AES_GCM_VERSION,
+            EncryptionUtil.getVersionForAlgorithm(algorithm));
+        assertEquals(EncryptionUtil.DEFAULT_VERSION,
+            EncryptionUtil.getVersionForAlgorithm(EncryptionUtil.DEFAULT_ALGORITHM));
+
+        EncryptionUtil chunked = new EncryptionUtil("password", algorithm,
+            EncryptionUtil.CHUNKED_AES_GCM_VERSION);
+        byte[] data = buildData(CHUNK_SIZE * 100);
+        byte[] encrypted = readAll(chunked.encrypt(new ByteArrayInputStream(data)));
+        assertEquals(chunked.getEncryptedOutputSize(data.length), encrypted.length);
+
+        // The same password gives the same key
+        EncryptionUtil other = new EncryptionUtil("password", algorithm,
+            EncryptionUtil.CHUNKED_AES_GCM_VERSION);
+        assertTrue(Arrays.equals(data, other.decrypt(encrypted)));
+        assertEquals("Some text", other.decryptString(chunked.encrypt("Some text")));
+
+        EncryptionUtil wrongPassword = new EncryptionUtil("wrong", algorithm,
+            EncryptionUtil.CHUNKED_AES_GCM_VERSION);
+        try {
+            wrongPassword.decrypt(encrypted);
+            fail("Expected decryption to fail");
+        } catch (Exception e) {
+            // Expected
+        }
+
+        // Data encrypted with the original version is still readable
+        EncryptionUtil original = new EncryptionUtil("password");
+        byte[] originalEncrypted = original.encrypt(data);
+        assertTrue(Arrays.equals(data, new EncryptionUtil("password",
+            EncryptionUtil.DEFAULT_ALGORITHM, EncryptionUtil.DEFAULT_VERSION)
+            .decrypt(originalEncrypted)));
+    }
+
+}
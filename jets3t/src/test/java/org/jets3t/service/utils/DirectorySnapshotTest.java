@@ -0,0 +1,158 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.model.StorageObject;
+
+
+public class DirectorySnapshotTest extends TestCase {
+
+    private File testDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        testDir = File.createTempFile("directory-snapshot", "");
+        testDir.delete();
+        testDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file: testDir.listFiles()) {
+            file.delete();
+        }
+        testDir.delete();
+    }
+
+    private String createFile(String name, String content) throws Exception {
+        File file = new File(testDir, name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        return file.getAbsolutePath();
+    }
+
+    private Map<String, String> buildFileMap() throws Exception {
+        Map<String, String> fileMap = new TreeMap<String, String>();
+        fileMap.put("top.txt", createFile("top.txt", "top"));
+        fileMap.put("a/", testDir.getAbsolutePath());
+        fileMap.put("a/one.txt", createFile("one.txt", "one"));
+        fileMap.put("a/b/", testDir.getAbsolutePath());
+        fileMap.put("a/b/two.txt", createFile("two.txt", "two"));
+        fileMap.put("c/", testDir.getAbsolutePath());
+        fileMap.put("c/three.txt", createFile("three.txt", "three"));
+        return fileMap;
+    }
+
+    private Map<String, StorageObject> buildObjectsMap(String... keysAndEtags) {
+        Map<String, StorageObject> objectsMap = new HashMap<String, StorageObject>();
+        for (int i = 0; i < keysAndEtags.length; i += 2) {
+            StorageObject object = new StorageObject(keysAndEtags[i]);
+            object.setETag(keysAndEtags[i + 1]);
+            object.setContentLength(1);
+            objectsMap.put(keysAndEtags[i], object);
+        }
+        return objectsMap;
+    }
+
+    public void testLocalDigestsChangeUpToRoot() throws Exception {
+        Map<String, String> fileMap = buildFileMap();
+        Map<String, String> digests = DirectorySnapshot.computeLocalDigests(fileMap);
+        assertEquals(Arrays.asList("", "a/", "a/b/", "c/"),
+            Arrays.asList(new TreeMap<String, String>(digests).keySet().toArray()));
+        assertEquals(digests, DirectorySnapshot.computeLocalDigests(fileMap));
+
+        // Changing a nested file changes the digests of all its ancestors only
+        fileMap.put("a/b/two.txt", createFile("two-changed.txt", "two changed"));
+        Map<String, String> changedDigests = DirectorySnapshot.computeLocalDigests(fileMap);
+        assertFalse(digests.get("a/b/").equals(changedDigests.get("a/b/")));
+        assertFalse(digests.get("a/").equals(changedDigests.get("a/")));
+        assertFalse(digests.get("").equals(changedDigests.get("")));
+        assertEquals(digests.get("c/"), changedDigests.get("c/"));
+    }
+
+    public void testFindUnchangedDirectories() throws Exception {
+        Map<String, String> fileMap = buildFileMap();
+        Map<String, String> localDigests = DirectorySnapshot.computeLocalDigests(fileMap);
+        Map<String, String> remoteDigests = DirectorySnapshot.computeRemoteDigests(buildObjectsMap(
+            "top.txt", "1", "a/one.txt", "2", "a/b/two.txt", "3", "c/three.txt", "4"));
+        DirectorySnapshot snapshot = new DirectorySnapshot("id", localDigests, remoteDigests);
+
+        // Only the topmost unchanged directory is reported
+        assertEquals(Arrays.asList(""),
+            Arrays.asList(snapshot.findUnchangedDirectories(localDigests).toArray()));
+
+        fileMap.put("top.txt", createFile("top-changed.txt", "top changed"));
+        Set<String> unchanged = snapshot.findUnchangedDirectories(
+            DirectorySnapshot.computeLocalDigests(fileMap));
+        assertEquals(Arrays.asList("a/", "c/"), Arrays.asList(unchanged.toArray()));
+
+        // Changes to objects are detected in the directories containing them
+        Map<String, String> changedRemoteDigests = DirectorySnapshot.computeRemoteDigests(
+            buildObjectsMap("top.txt", "1", "a/one.txt", "2", "a/b/two.txt", "5", "c/three.txt", "4"));
+        assertFalse(snapshot.isRemoteUnchanged("a/", changedRemoteDigests));
+        assertFalse(snapshot.isRemoteUnchanged("a/b/", changedRemoteDigests));
+        assertTrue(snapshot.isRemoteUnchanged("c/", changedRemoteDigests));
+    }
+
+    public void testCreateDropsDirectoriesWithUnsynchronizedKeys() throws Exception {
+        Map<String, String> localDigests = DirectorySnapshot.computeLocalDigests(buildFileMap());
+        Map<String, String> remoteDigests = DirectorySnapshot.computeRemoteDigests(buildObjectsMap(
+            "top.txt", "1", "a/one.txt", "2", "a/b/two.txt", "3", "c/three.txt", "4"));
+        DirectorySnapshot snapshot = DirectorySnapshot.create("id", localDigests, remoteDigests,
+            Arrays.asList("a/b/two.txt"));
+
+        assertEquals(Arrays.asList("c/"),
+            Arrays.asList(snapshot.findUnchangedDirectories(localDigests).toArray()));
+        assertFalse(snapshot.isRemoteUnchanged("a/", remoteDigests));
+        assertTrue(snapshot.isRemoteUnchanged("c/", remoteDigests));
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        Map<String, String> localDigests = DirectorySnapshot.computeLocalDigests(buildFileMap());
+        Map<String, String> remoteDigests = DirectorySnapshot.computeRemoteDigests(buildObjectsMap(
+            "top.txt", "1", "a/one.txt", "2", "a/b/two.txt", "3", "c/three.txt", "4"));
+        DirectorySnapshot snapshot = DirectorySnapshot.create("id", localDigests, remoteDigests,
+            Arrays.asList("a/one.txt"));
+        File snapshotFile = new File(testDir, "test.snapshot");
+        snapshot.save(snapshotFile);
+
+        DirectorySnapshot loaded = DirectorySnapshot.load(snapshotFile, "id");
+        assertNotNull(loaded);
+        assertEquals(snapshot.findUnchangedDirectories(localDigests),
+            loaded.findUnchangedDirectories(localDigests));
+        assertTrue(loaded.isRemoteUnchanged("a/b/", remoteDigests));
+        assertFalse(loaded.isRemoteUnchanged("a/", remoteDigests));
+
+        assertNull(DirectorySnapshot.load(snapshotFile, "other"));
+        assertNull(DirectorySnapshot.load(new File(testDir, "missing.snapshot"), "id"));
+    }
+
+}
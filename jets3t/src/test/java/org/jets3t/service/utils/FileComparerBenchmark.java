@@ -0,0 +1,111 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Measures how the comparison phase of {@link FileComparer#buildDiscrepancyLists(Map, Map)}
+ * and {@link FileComparerResults#merge(FileComparerResults)} scale with the number of keys.
+ * <p>
+ * The benchmark builds synthetic local and remote maps where a third of the keys are only
+ * local, a third only remote, and a third on both sides. Keys present on both sides are
+ * compared with the force-upload flag set, so no files are read and the timings reflect only
+ * the bookkeeping of the comparison. The time per key should stay roughly constant as the
+ * number of keys grows.
+ * <p>
+ * To run the benchmark, run this class's main method with an optional list of key counts,
+ * for example: <tt>FileComparerBenchmark 10000 100000 1000000 10000000</tt>. Large counts
+ * need a correspondingly large heap.
+ */
+public class FileComparerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] keyCounts = new int[] {10000, 100000, 1000000};
+        if (args.length > 0) {
+            keyCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                keyCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        FileComparer comparer = new FileComparer(new Jets3tProperties());
+        // Warm up the JIT before taking measurements
+        runComparison(comparer, 10000);
+
+        System.out.println("keys\tcompare-ms\tmerge-ms\tns-per-key");
+        for (int keyCount: keyCounts) {
+            long[] timings = runComparison(comparer, keyCount);
+            System.out.println(keyCount + "\t" + timings[0] + "\t" + timings[1] + "\t"
+                + ((timings[0] + timings[1]) * 1000000L / keyCount));
+        }
+    }
+
+    private static long[] runComparison(FileComparer comparer, int keyCount) throws Exception {
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        Map<String, StorageObject> objectsMap = new TreeMap<String, StorageObject>();
+        for (int i = 0; i < keyCount; i++) {
+            String key = "dir" + (i % 100) + "/file" + i;
+            if (i % 3 != 1) {
+                objectKeyToFilepathMap.put(key, "/nonexistent/" + key);
+            }
+            if (i % 3 != 0) {
+                objectsMap.put(key, new StorageObject(key));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        FileComparerResults results = comparer.buildDiscrepancyLists(
+            objectKeyToFilepathMap, objectsMap, null, true);
+        long compareMillis = System.currentTimeMillis() - start;
+
+        // Merge the results in batches, as Synchronize does in batch mode
+        start = System.currentTimeMillis();
+        FileComparerResults merged = new FileComparerResults();
+        int batchSize = 1000;
+        FileComparerResults batch = new FileComparerResults();
+        int count = 0;
+        for (String key: results.onlyOnClientKeys) {
+            batch.onlyOnClientKeys.add(key);
+            if (++count % batchSize == 0) {
+                merged.merge(batch);
+                batch = new FileComparerResults();
+            }
+        }
+        for (String key: results.onlyOnServerKeys) {
+            batch.onlyOnServerKeys.add(key);
+            if (++count % batchSize == 0) {
+                merged.merge(batch);
+                batch = new FileComparerResults();
+            }
+        }
+        merged.merge(batch);
+        long mergeMillis = System.currentTimeMillis() - start;
+
+        if (merged.onlyOnClientKeys.size() != results.onlyOnClientKeys.size()
+            || merged.onlyOnServerKeys.size() != results.onlyOnServerKeys.size())
+        {
+            throw new IllegalStateException("Merged results do not match comparison: " + keyCount);
+        }
+        return new long[] {compareMillis, mergeMillis};
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+
+public class FileComparerResultsTest extends TestCase {
+
+    public void testMergeMovesKeysFoundOnBothSides() {
+        FileComparerResults merged = new FileComparerResults();
+
+        FileComparerResults batch1 = new FileComparerResults();
+        batch1.onlyOnClientKeys.add("a.txt");
+        batch1.onlyOnClientKeys.add("b.txt");
+        batch1.onlyOnServerKeys.add("c.txt");
+        merged.merge(batch1);
+        assertEquals(2, merged.onlyOnClientKeys.size());
+        assertEquals(1, merged.onlyOnServerKeys.size());
+
+        // A later batch finds a.txt on the server too, and c.txt turns out to be local.
+        FileComparerResults batch2 = new FileComparerResults();
+        batch2.alreadySynchronisedKeys.add("a.txt");
+        batch2.updatedOnClientKeys.add("c.txt");
+        batch2.onlyOnClientKeys.add("d.txt");
+        batch2.onlyOnServerKeys.add("b.txt");
+        merged.merge(batch2);
+
+        assertEquals(1, merged.alreadySynchronisedKeys.size());
+        assertEquals(1, merged.updatedOnClientKeys.size());
+        assertFalse(merged.onlyOnClientKeys.contains("a.txt"));
+        assertTrue(merged.onlyOnClientKeys.contains("b.txt"));
+        assertTrue(merged.onlyOnClientKeys.contains("d.txt"));
+        assertFalse(merged.onlyOnServerKeys.contains("c.txt"));
+        // Keys already known on the client are not also reported as only on the server.
+        assertFalse(merged.onlyOnServerKeys.contains("b.txt"));
+        assertEquals(4, merged.getCountOfItemsCompared());
+    }
+
+    public void testMergeIntoCallerSuppliedLists() {
+        List<String> onlyOnClientKeys = new ArrayList<String>(Arrays.asList("a.txt", "b.txt"));
+        FileComparerResults merged = new FileComparerResults(
+            new ArrayList<String>(), new ArrayList<String>(), new ArrayList<String>(),
+            onlyOnClientKeys, new ArrayList<String>(), new ArrayList<String>());
+
+        FileComparerResults batch = new FileComparerResults();
+        batch.updatedOnServerKeys.add("a.txt");
+        merged.merge(batch);
+
+        assertSame(onlyOnClientKeys, merged.onlyOnClientKeys);
+        assertEquals(Arrays.asList("b.txt"), merged.onlyOnClientKeys);
+        assertEquals(Arrays.asList("a.txt"), merged.updatedOnServerKeys);
+    }
+
+    public void testKeyListKeepsIndexInStepWithContents() {
+        List<String> keys = new FileComparerResults.KeyList(Arrays.asList("a", "b", "a", "c"));
+        assertTrue(keys.contains("a"));
+        assertFalse(keys.remove("z"));
+
+        assertTrue(keys.remove("a"));
+        assertTrue(keys.contains("a"));
+        keys.set(2, "d");
+        assertFalse(keys.contains("c"));
+        assertTrue(keys.contains("d"));
+
+        assertTrue(keys.removeAll(Arrays.asList("a", "z")));
+        assertEquals(Arrays.asList("b", "d"), keys);
+        assertFalse(keys.contains("a"));
+        assertFalse(keys.removeAll(Arrays.asList("a")));
+
+        keys.clear();
+        assertFalse(keys.contains("b"));
+        assertTrue(keys.isEmpty());
+    }
+
+}
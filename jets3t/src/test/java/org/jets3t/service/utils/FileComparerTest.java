@@ -0,0 +1,500 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.model.StorageObject;
+
+
+public class FileComparerTest extends TestCase {
+
+    private File testDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        testDir = File.createTempFile("file-comparer", "");
+        testDir.delete();
+        testDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file: testDir.listFiles()) {
+            file.delete();
+        }
+        testDir.delete();
+    }
+
+    private File createFile(String name, int length) throws Exception {
+        File file = new File(testDir, name);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + name.hashCode());
+        }
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    public void testParallelHashesMatchSequentialHashes() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.hashing-threads", "4");
+        FileComparer comparer = new FileComparer(properties);
+
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        long totalBytes = 0;
+        for (int i = 0; i < 20; i++) {
+            int length = 1000 + i * 7919;
+            files.put("dir/file" + i, createFile("file" + i, length));
+            totalBytes += length;
+        }
+
+        BytesProgressWatcher progressWatcher = new BytesProgressWatcher(totalBytes);
+        Map<String, byte[]> hashes = comparer.generateFileMD5Hashes(files, progressWatcher);
+        assertEquals(files.size(), hashes.size());
+        assertEquals(totalBytes, progressWatcher.getBytesTransferred());
+        for (Map.Entry<String, File> entry: files.entrySet()) {
+            assertTrue(Arrays.equals(
+                comparer.generateFileMD5Hash(entry.getValue(), entry.getKey(), null),
+                hashes.get(entry.getKey())));
+        }
+    }
+
+    public void testParallelHashingReportsMissingFile() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.hashing-threads", "2");
+        FileComparer comparer = new FileComparer(properties);
+
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        files.put("present", createFile("present", 100));
+        files.put("missing", new File(testDir, "missing"));
+        try {
+            comparer.generateFileMD5Hashes(files, null);
+            fail("Expected failure hashing a missing file");
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+    }
+
+    public void testSingleThreadLeavesHashingToCaller() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.hashing-threads", "1");
+        FileComparer comparer = new FileComparer(properties);
+
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        files.put("a", createFile("a", 10));
+        files.put("b", createFile("b", 10));
+        assertTrue(comparer.generateFileMD5Hashes(files, null).isEmpty());
+    }
+
+    public void testHashIndexAvoidsRereadingUnchangedFiles() throws Exception {
+        File indexDir = new File(testDir, "index");
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.hash-index.enabled", "true");
+        properties.setProperty("filecomparer.hash-index.dir", indexDir.getPath());
+        FileComparer comparer = new FileComparer(properties);
+
+        File file = createFile("file", 1000);
+        file.setLastModified(System.currentTimeMillis() - 60000);
+        byte[] hash = comparer.generateFileMD5Hash(file, "file", null);
+        assertTrue(Arrays.equals(hash, comparer.lookupFileMD5Hash(file, "file")));
+
+        // Rewrite the file with different content but the same size and date, which
+        // the index cannot detect, to prove the indexed hash is used without reading.
+        long lastModified = file.lastModified();
+        long lastModifiedNanos = FileHashIndex.readFileState(file).getLastModifiedNanos();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(new byte[1000]);
+        } finally {
+            fos.close();
+        }
+        file.setLastModified(lastModified);
+        FileComparer newComparer = new FileComparer(properties);
+        if (FileHashIndex.readFileState(file).getLastModifiedNanos() == lastModifiedNanos) {
+            // The original date could be restored exactly at millisecond precision
+            assertTrue(Arrays.equals(hash, newComparer.generateFileMD5Hash(file, "file", null)));
+        }
+
+        // A file with a new date is hashed again
+        file.setLastModified(lastModified - 10000);
+        assertFalse(Arrays.equals(hash, newComparer.generateFileMD5Hash(file, "file", null)));
+
+        newComparer.close();
+        comparer.close();
+        for (File indexFile: indexDir.listFiles()) {
+            indexFile.delete();
+        }
+        indexDir.delete();
+    }
+
+    public void testScanRemovesMissingFilesFromHashIndex() throws Exception {
+        File indexDir = new File(testDir, "index");
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.hash-index.enabled", "true");
+        properties.setProperty("filecomparer.hash-index.dir", indexDir.getPath());
+        FileComparer comparer = new FileComparer(properties);
+
+        File treeDir = new File(testDir, "tree");
+        treeDir.mkdirs();
+        File kept = createFile("tree/kept", 100);
+        File deleted = createFile("tree/deleted", 100);
+        kept.setLastModified(System.currentTimeMillis() - 60000);
+        deleted.setLastModified(System.currentTimeMillis() - 60000);
+        comparer.generateFileMD5Hash(kept, "tree/kept", null);
+        comparer.generateFileMD5Hash(deleted, "tree/deleted", null);
+        assertEquals(2, comparer.getFileHashIndex().size());
+
+        assertTrue(deleted.delete());
+        comparer.buildObjectKeyToFilepathMap(new File[] {treeDir}, "", false);
+        assertEquals(1, comparer.getFileHashIndex().size());
+        assertNotNull(comparer.lookupFileMD5Hash(kept, "tree/kept"));
+
+        comparer.close();
+        kept.delete();
+        treeDir.delete();
+        for (File indexFile: indexDir.listFiles()) {
+            indexFile.delete();
+        }
+        indexDir.delete();
+    }
+
+    public void testQuickCheckSkipsHashingOfMatchingFiles() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.quick-check", "true");
+        properties.setProperty("filecomparer.assume-local-latest-in-mismatch", "true");
+        FileComparer comparer = new FileComparer(properties);
+
+        File unchanged = createFile("unchanged", 100);
+        File resized = createFile("resized", 100);
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        objectKeyToFilepathMap.put("unchanged", unchanged.getPath());
+        objectKeyToFilepathMap.put("resized", resized.getPath());
+
+        // Neither object's ETag matches its file, so only a hash comparison would differ
+        Map<String, StorageObject> objectsMap = new TreeMap<String, StorageObject>();
+        objectsMap.put("unchanged", createObject("unchanged", 100, unchanged.lastModified()));
+        objectsMap.put("resized", createObject("resized", 99, resized.lastModified()));
+
+        FileComparerResults results =
+            comparer.buildDiscrepancyLists(objectKeyToFilepathMap, objectsMap);
+        assertTrue(results.alreadySynchronisedKeys.contains("unchanged"));
+        assertTrue(results.updatedOnClientKeys.contains("resized"));
+
+        // Without the quick check both files are hashed and found to differ
+        properties.setProperty("filecomparer.quick-check", "false");
+        results = comparer.buildDiscrepancyLists(objectKeyToFilepathMap, objectsMap);
+        assertTrue(results.updatedOnClientKeys.contains("unchanged"));
+        assertTrue(results.updatedOnClientKeys.contains("resized"));
+    }
+
+    /**
+     * @return
+     * a listed object, which has a size, date and ETag but no metadata.
+     */
+    private StorageObject createListedObject(String key, File file, String eTag, long dateOffset) {
+        StorageObject object = new StorageObject(key);
+        object.setContentLength(file.length());
+        object.setETag(eTag);
+        object.setLastModifiedDate(new Date(file.lastModified() + dateOffset));
+        return object;
+    }
+
+    public void testQuickCheckComparesListedObjectsByHash() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.quick-check", "true");
+        FileComparer comparer = new FileComparer(properties);
+
+        File unchanged = createFile("unchanged", 100);
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        objectKeyToFilepathMap.put("unchanged", unchanged.getPath());
+        StorageObject unchangedObject = createListedObject("unchanged", unchanged,
+            ServiceUtils.toHex(comparer.generateFileMD5Hash(unchanged, "unchanged", null)),
+            -60000);
+
+        // No service is needed, since same-size objects are compared by their ETags
+        Map<String, StorageObject> objectsMap = comparer.lookupObjectMetadataForPotentialClashes(
+            null, "bucket", "", new StorageObject[] {unchangedObject},
+            objectKeyToFilepathMap, false, false, null, null);
+        FileComparerResults results =
+            comparer.buildDiscrepancyLists(objectKeyToFilepathMap, objectsMap);
+        assertTrue(results.alreadySynchronisedKeys.contains("unchanged"));
+    }
+
+    public void testQuickCheckDetectsObjectOverwrittenWithSameSize() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.quick-check", "true");
+        FileComparer comparer = new FileComparer(properties);
+
+        // Another tool overwrote the object after the file was downloaded, so a download
+        // must replace the file
+        File file = createFile("overwritten", 100);
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        objectKeyToFilepathMap.put("overwritten", file.getPath());
+        Map<String, StorageObject> objectsMap = new TreeMap<String, StorageObject>();
+        objectsMap.put("overwritten", createListedObject("overwritten", file,
+            "00000000000000000000000000000000", 60000));
+
+        FileComparerResults results =
+            comparer.buildDiscrepancyLists(objectKeyToFilepathMap, objectsMap);
+        assertFalse(results.alreadySynchronisedKeys.contains("overwritten"));
+        assertTrue(results.updatedOnServerKeys.contains("overwritten"));
+    }
+
+    public void testQuickCheckDetectsFileWithOlderDateAndSameSize() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("filecomparer.quick-check", "true");
+        FileComparer comparer = new FileComparer(properties);
+
+        // The file was edited under clock skew, or an older date was restored by a copy,
+        // so an upload must replace the object even though the object looks newer
+        File file = createFile("edited", 100);
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        objectKeyToFilepathMap.put("edited", file.getPath());
+        Map<String, StorageObject> objectsMap = new TreeMap<String, StorageObject>();
+        objectsMap.put("edited", createListedObject("edited", file,
+            "00000000000000000000000000000000", 60000));
+
+        FileComparerResults results =
+            comparer.buildDiscrepancyLists(objectKeyToFilepathMap, objectsMap);
+        assertFalse(results.alreadySynchronisedKeys.contains("edited"));
+        assertTrue(results.updatedOnClientKeys.contains("edited")
+            || results.updatedOnServerKeys.contains("edited"));
+
+        // A recorded file date is only trusted when it matches exactly
+        StorageObject object = createListedObject("edited", file,
+            "00000000000000000000000000000000", 60000);
+        object.addMetadata(Constants.METADATA_JETS3T_LOCAL_FILE_DATE,
+            ServiceUtils.formatIso8601Date(new Date(file.lastModified() + 120000)));
+        objectsMap.put("edited", object);
+
+        results = comparer.buildDiscrepancyLists(objectKeyToFilepathMap, objectsMap);
+        assertFalse(results.alreadySynchronisedKeys.contains("edited"));
+        assertTrue(results.updatedOnClientKeys.contains("edited")
+            || results.updatedOnServerKeys.contains("edited"));
+    }
+
+    public void testMultipartUploadedFileIsAlreadySynchronised() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("upload.max-part-size", "4000");
+        FileComparer comparer = new FileComparer(properties);
+
+        File file = createFile("large", 10000);
+        StorageObject object = new StorageObject("large");
+        object.setContentLength(file.length());
+        object.setETag(MultipartETagCalculator.computeETag(file, 4000, null));
+        assertTrue(object.getETag().endsWith("-3"));
+
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        objectKeyToFilepathMap.put("large", file.getPath());
+        Map<String, StorageObject> objectsMap = new TreeMap<String, StorageObject>();
+        objectsMap.put("large", object);
+
+        FileComparerResults results =
+            comparer.buildDiscrepancyLists(objectKeyToFilepathMap, objectsMap);
+        assertTrue(results.alreadySynchronisedKeys.contains("large"));
+    }
+
+    public void testRenamedFilesMatchObjectsOnlyOnServer() throws Exception {
+        FileComparer comparer = new FileComparer(new Jets3tProperties());
+        File renamed = createFile("renamed", 1000);
+        File encoded = createFile("encoded", 500);
+        File changed = createFile("changed", 1000);
+
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        objectKeyToFilepathMap.put("new/renamed", renamed.getPath());
+        objectKeyToFilepathMap.put("new/encoded", encoded.getPath());
+        objectKeyToFilepathMap.put("new/changed", changed.getPath());
+
+        Map<String, StorageObject> objectsMap = new TreeMap<String, StorageObject>();
+        StorageObject object = new StorageObject("old/renamed");
+        object.setContentLength(renamed.length());
+        object.setETag(ServiceUtils.toHex(comparer.generateFileMD5Hash(renamed, "renamed", null)));
+        objectsMap.put("old/renamed", object);
+        object = new StorageObject("old/encoded");
+        object.setContentLength(123);
+        object.setETag("00000000000000000000000000000000");
+        object.addMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5,
+            ServiceUtils.toBase64(comparer.generateFileMD5Hash(encoded, "encoded", null)));
+        objectsMap.put("old/encoded", object);
+        object = new StorageObject("old/changed");
+        object.setContentLength(changed.length());
+        object.setETag("00000000000000000000000000000000");
+        objectsMap.put("old/changed", object);
+
+        FileComparerResults results = new FileComparerResults();
+        results.onlyOnClientKeys.addAll(objectKeyToFilepathMap.keySet());
+        results.onlyOnServerKeys.addAll(objectsMap.keySet());
+
+        Map<String, String> renamedFiles = comparer.findRenamedFiles(
+            results, objectKeyToFilepathMap, objectsMap, null);
+        assertEquals(2, renamedFiles.size());
+        assertEquals("old/renamed", renamedFiles.get("new/renamed"));
+        assertEquals("old/encoded", renamedFiles.get("new/encoded"));
+    }
+
+    public void testRenamedFilesMatchMultipartObjectsOnlyOnServer() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("upload.max-part-size", "4000");
+        FileComparer comparer = new FileComparer(properties);
+        File renamed = createFile("renamed", 10000);
+        File changed = createFile("changed", 10000);
+
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        objectKeyToFilepathMap.put("new/renamed", renamed.getPath());
+        objectKeyToFilepathMap.put("new/changed", changed.getPath());
+
+        Map<String, StorageObject> objectsMap = new TreeMap<String, StorageObject>();
+        StorageObject object = new StorageObject("old/renamed");
+        object.setContentLength(renamed.length());
+        object.setETag(MultipartETagCalculator.computeETag(renamed, 4000, null));
+        objectsMap.put("old/renamed", object);
+        object = new StorageObject("old/other");
+        object.setContentLength(changed.length());
+        object.setETag("00000000000000000000000000000000-3");
+        objectsMap.put("old/other", object);
+
+        FileComparerResults results = new FileComparerResults();
+        results.onlyOnClientKeys.addAll(objectKeyToFilepathMap.keySet());
+        results.onlyOnServerKeys.addAll(objectsMap.keySet());
+
+        Map<String, String> renamedFiles = comparer.findRenamedFiles(
+            results, objectKeyToFilepathMap, objectsMap, null);
+        assertEquals(1, renamedFiles.size());
+        assertEquals("old/renamed", renamedFiles.get("new/renamed"));
+    }
+
+    public void testParallelScanMatchesSequentialScan() throws Exception {
+        File root = new File(testDir, "root");
+        for (int i = 0; i < 5; i++) {
+            File dir = new File(root, "dir" + i + "/sub" + i);
+            dir.mkdirs();
+            for (int j = 0; j < 5; j++) {
+                writeFile(new File(dir, "file" + j + ".txt"), "data" + j);
+                writeFile(new File(dir.getParentFile(), "file" + j + ".log"), "data" + j);
+            }
+        }
+        new File(root, "empty").mkdirs();
+        writeFile(new File(root, Constants.JETS3T_IGNORE_FILENAME), "**/*.log\ndir1/sub1\n");
+        writeFile(new File(root, "dir2/" + Constants.JETS3T_IGNORE_FILENAME), "sub2/file0.txt\n");
+        File[] fileList = new File[] {root};
+
+        try {
+            for (boolean includeDirectories: new boolean[] {true, false}) {
+                Jets3tProperties properties = new Jets3tProperties();
+                properties.setProperty("filecomparer.scan-threads", "1");
+                Map<String, String> sequential = new FileComparer(properties)
+                    .buildObjectKeyToFilepathMap(fileList, "", includeDirectories);
+                properties.setProperty("filecomparer.scan-threads", "4");
+                Map<String, String> parallel = new FileComparer(properties)
+                    .buildObjectKeyToFilepathMap(fileList, "", includeDirectories);
+
+                assertEquals(sequential, parallel);
+                assertFalse(parallel.containsKey("root/dir0/file0.log"));
+                assertFalse(parallel.containsKey("root/dir1/sub1/file0.txt"));
+                assertFalse(parallel.containsKey("root/dir2/sub2/file0.txt"));
+                assertTrue(parallel.containsKey("root/dir2/sub2/file1.txt"));
+                assertEquals(includeDirectories, parallel.containsKey("root/empty/"));
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    public void testSubdirectoryScanMatchesFullScan() throws Exception {
+        File root = new File(testDir, "root");
+        File subdirectory = new File(root, "a/b");
+        new File(subdirectory, "c").mkdirs();
+        writeFile(new File(subdirectory, "file.txt"), "data");
+        writeFile(new File(subdirectory, "file.log"), "data");
+        writeFile(new File(subdirectory, "c/file.log"), "data");
+        writeFile(new File(root, "other.txt"), "data");
+        writeFile(new File(root, Constants.JETS3T_IGNORE_FILENAME), "**/*.log\n");
+
+        try {
+            FileComparer comparer = new FileComparer(new Jets3tProperties());
+            Map<String, String> fullMap = comparer.buildObjectKeyToFilepathMap(
+                new File[] {root}, "", true);
+            Map<String, String> subdirectoryMap = new TreeMap<String, String>();
+            String prefix = comparer.buildObjectKeyToFilepathMapForSubdirectory(
+                root, subdirectory, subdirectoryMap, true);
+            assertEquals("root/a/b/", prefix);
+
+            Map<String, String> expectedMap = new TreeMap<String, String>();
+            for (Map.Entry<String, String> entry: fullMap.entrySet()) {
+                if (entry.getKey().startsWith(prefix) && !entry.getKey().equals(prefix)) {
+                    expectedMap.put(entry.getKey(), entry.getValue());
+                }
+            }
+            assertEquals(expectedMap, subdirectoryMap);
+            assertTrue(subdirectoryMap.containsKey("root/a/b/file.txt"));
+            assertFalse(subdirectoryMap.containsKey("root/a/b/file.log"));
+            assertFalse(subdirectoryMap.containsKey("root/a/b/c/file.log"));
+
+            assertNull(comparer.buildObjectKeyToFilepathMapForSubdirectory(
+                root, new File(root, "missing"), subdirectoryMap, true));
+        } finally {
+            delete(root);
+        }
+    }
+
+    private void writeFile(File file, String data) throws Exception {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private StorageObject createObject(String key, long length, long localFileDate) {
+        StorageObject object = new StorageObject(key);
+        object.setContentLength(length);
+        object.setETag("00000000000000000000000000000000");
+        object.addMetadata(Constants.METADATA_JETS3T_LOCAL_FILE_DATE,
+            ServiceUtils.formatIso8601Date(new Date(localFileDate)));
+        return object;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+
+public class FileHashIndexTest extends TestCase {
+
+    private File testDir;
+    private File indexDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        testDir = File.createTempFile("hash-index", "");
+        testDir.delete();
+        testDir.mkdirs();
+        indexDir = new File(testDir, "index");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file: indexDir.listFiles()) {
+            file.delete();
+        }
+        indexDir.delete();
+        for (File file: testDir.listFiles()) {
+            file.delete();
+        }
+        testDir.delete();
+    }
+
+    private File createFile(String name, String content) throws Exception {
+        File file = new File(testDir, name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        // Date files before the recent past, in which modified files are not indexed
+        file.setLastModified(System.currentTimeMillis() - 60000);
+        return file;
+    }
+
+    public void testRecordedHashesSurviveReopen() throws Exception {
+        File file1 = createFile("file1", "data1");
+        File file2 = createFile("file2", "data2");
+        byte[] hash1 = ServiceUtils.computeMD5Hash("data1".getBytes("UTF-8"));
+        byte[] hash2 = ServiceUtils.computeMD5Hash("data2".getBytes("UTF-8"));
+
+        FileHashIndex index = new FileHashIndex(indexDir);
+        assertNull(index.lookup(file1, FileHashIndex.readFileState(file1)));
+        index.record(file1, FileHashIndex.readFileState(file1), hash1);
+        index.record(file2, FileHashIndex.readFileState(file2), hash2);
+        index.close();
+        assertTrue(new File(indexDir, "hash-index.log").exists());
+
+        // Re-opening replays the short log without compacting it
+        FileHashIndex reopened = new FileHashIndex(indexDir);
+        assertEquals(2, reopened.size());
+        assertTrue(new File(indexDir, "hash-index.log").exists());
+        assertTrue(Arrays.equals(hash1,
+            reopened.lookup(file1, FileHashIndex.readFileState(file1))));
+        assertTrue(Arrays.equals(hash2,
+            reopened.lookup(file2, FileHashIndex.readFileState(file2))));
+
+        // Entries survive compaction into the table
+        reopened.compact();
+        assertFalse(new File(indexDir, "hash-index.log").exists());
+        FileHashIndex compacted = new FileHashIndex(indexDir);
+        assertEquals(2, compacted.size());
+        assertTrue(Arrays.equals(hash1,
+            compacted.lookup(file1, FileHashIndex.readFileState(file1))));
+    }
+
+    public void testLongLogIsCompactedOnOpen() throws Exception {
+        File file = createFile("file", "data");
+        FileHashIndex.FileState state = FileHashIndex.readFileState(file);
+        FileHashIndex index = new FileHashIndex(indexDir);
+        for (int i = 0; i <= FileHashIndex.MIN_LOG_ENTRIES_TO_COMPACT; i++) {
+            index.record(file, state, new byte[16]);
+        }
+        index.close();
+
+        FileHashIndex reopened = new FileHashIndex(indexDir);
+        assertEquals(1, reopened.size());
+        assertFalse(new File(indexDir, "hash-index.log").exists());
+        assertNotNull(reopened.lookup(file, state));
+    }
+
+    public void testChangedFileIsNotMatched() throws Exception {
+        File file = createFile("file", "data");
+        FileHashIndex.FileState state = FileHashIndex.readFileState(file);
+        FileHashIndex index = new FileHashIndex(indexDir);
+        index.record(file, state, ServiceUtils.computeMD5Hash("data".getBytes("UTF-8")));
+
+        assertNull(index.lookup(file, new FileHashIndex.FileState(
+            state.getSize() + 1, state.getLastModifiedNanos(), state.getFileKey())));
+        assertNull(index.lookup(file, new FileHashIndex.FileState(
+            state.getSize(), state.getLastModifiedNanos() + 1, state.getFileKey())));
+        assertNull(index.lookup(file, new FileHashIndex.FileState(
+            state.getSize(), state.getLastModifiedNanos(), "other-inode")));
+        index.close();
+    }
+
+    public void testIncompleteLogEntryIsIgnored() throws Exception {
+        File file1 = createFile("file1", "data1");
+        File file2 = createFile("file2", "data2");
+        FileHashIndex index = new FileHashIndex(indexDir);
+        index.record(file1, FileHashIndex.readFileState(file1), new byte[16]);
+        index.record(file2, FileHashIndex.readFileState(file2), new byte[16]);
+        index.close();
+
+        // Simulate an append interrupted part-way through the last entry
+        File logFile = new File(indexDir, "hash-index.log");
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        FileHashIndex reopened = new FileHashIndex(indexDir);
+        assertEquals(1, reopened.size());
+        assertNotNull(reopened.lookup(file1, FileHashIndex.readFileState(file1)));
+    }
+
+    public void testRecentlyModifiedFileIsNotRecorded() throws Exception {
+        File file = createFile("file", "data");
+        file.setLastModified(System.currentTimeMillis());
+        FileHashIndex.FileState state = FileHashIndex.readFileState(file);
+        FileHashIndex index = new FileHashIndex(indexDir);
+        index.record(file, state, ServiceUtils.computeMD5Hash("data".getBytes("UTF-8")));
+        assertNull(index.lookup(file, state));
+        assertEquals(0, index.size());
+        index.close();
+    }
+
+    public void testFilesMissingFromScanAreRemoved() throws Exception {
+        File file1 = createFile("file1", "data1");
+        File file2 = createFile("file2", "data2");
+        FileHashIndex index = new FileHashIndex(indexDir);
+        index.record(file1, FileHashIndex.readFileState(file1), new byte[16]);
+        index.record(file2, FileHashIndex.readFileState(file2), new byte[16]);
+        // Entries outside the scanned directory are kept
+        index.record(new File(testDir.getPath() + "-other", "file3"),
+            FileHashIndex.readFileState(file1), new byte[16]);
+
+        assertEquals(1, index.retainScanned(testDir,
+            Collections.singleton(file1.getAbsolutePath())));
+        assertEquals(2, index.size());
+        index.close();
+
+        // The removal is replayed from the log
+        FileHashIndex reopened = new FileHashIndex(indexDir);
+        assertEquals(2, reopened.size());
+        assertNotNull(reopened.lookup(file1, FileHashIndex.readFileState(file1)));
+        assertNull(reopened.lookup(file2, FileHashIndex.readFileState(file1)));
+        reopened.compact();
+        assertEquals(2, new FileHashIndex(indexDir).size());
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.model.StorageObject;
+
+
+public class MultipartETagCalculatorTest extends TestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    private String expectedETag(byte[] data, int partSize) throws Exception {
+        ByteArrayOutputStream partHashes = new ByteArrayOutputStream();
+        int partCount = 0;
+        for (int offset = 0; offset < data.length; offset += partSize) {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, offset, Math.min(partSize, data.length - offset));
+            partHashes.write(md5.digest());
+            partCount++;
+        }
+        return ServiceUtils.toHex(ServiceUtils.computeMD5Hash(partHashes.toByteArray()))
+            + "-" + partCount;
+    }
+
+    public void testETagMatchesPartHashes() throws Exception {
+        byte[] data = new byte[2500];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        // Feed data in uneven chunks that straddle part boundaries
+        MultipartETagCalculator calculator = new MultipartETagCalculator(1000);
+        int offset = 0;
+        int chunk = 1;
+        while (offset < data.length) {
+            int length = Math.min(chunk, data.length - offset);
+            calculator.update(data, offset, length);
+            offset += length;
+            chunk = chunk * 3 + 1;
+        }
+        String etag = calculator.getETag();
+        assertEquals(expectedETag(data, 1000), etag);
+        assertTrue(etag.endsWith("-3"));
+
+        // Data that fills its last part exactly has no empty trailing part
+        calculator = new MultipartETagCalculator(1000);
+        calculator.update(data, 0, 2000);
+        assertTrue(calculator.getETag().endsWith("-2"));
+    }
+
+    public void testRecognisesMultipartETags() {
+        assertTrue(MultipartETagCalculator.isMultipartETag("d41d8cd98f00b204e9800998ecf8427e-12"));
+        assertEquals(12, MultipartETagCalculator.getPartCount("d41d8cd98f00b204e9800998ecf8427e-12"));
+        assertFalse(MultipartETagCalculator.isMultipartETag("d41d8cd98f00b204e9800998ecf8427e"));
+        assertFalse(MultipartETagCalculator.isMultipartETag(null));
+        assertEquals(-1, MultipartETagCalculator.getPartCount("not-an-etag"));
+    }
+
+    public void testInfersPartSize() {
+        StorageObject object = new StorageObject("key");
+        object.setETag("d41d8cd98f00b204e9800998ecf8427e-3");
+        object.setContentLength(20 * MB);
+
+        // Configured part size is used when it is consistent with the part count
+        assertEquals(8 * MB, MultipartETagCalculator.inferPartSize(object, 8 * MB));
+        // Otherwise the first consistent common part size
+        assertEquals(8 * MB, MultipartETagCalculator.inferPartSize(object, 100 * MB));
+
+        // A recorded part size takes precedence
+        object.addMetadata(Constants.METADATA_JETS3T_MULTIPART_PART_SIZE, String.valueOf(7 * MB));
+        assertEquals(7 * MB, MultipartETagCalculator.inferPartSize(object, 8 * MB));
+
+        // Part size rounded up to megabytes from the object size
+        StorageObject large = new StorageObject("large");
+        large.setETag("d41d8cd98f00b204e9800998ecf8427e-1000");
+        large.setContentLength(1000 * 300 * MB - 5);
+        assertEquals(300 * MB, MultipartETagCalculator.inferPartSize(large, 0));
+
+        StorageObject notMultipart = new StorageObject("plain");
+        notMultipart.setETag("d41d8cd98f00b204e9800998ecf8427e");
+        assertEquals(-1, MultipartETagCalculator.inferPartSize(notMultipart, 8 * MB));
+    }
+
+}
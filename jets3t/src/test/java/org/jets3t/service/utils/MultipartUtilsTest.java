@@ -0,0 +1,255 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.MultipartCompleted;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+
+public class MultipartUtilsTest extends TestCase {
+
+    /**
+     * Records uploaded data in memory instead of sending it to S3.
+     */
+    private static class RecordingS3Service extends RestS3Service {
+        final ByteArrayOutputStream uploadedData = new ByteArrayOutputStream();
+        final List<Long> partSizes = new ArrayList<Long>();
+        S3Object startedObject = null;
+        S3Object sourceObject = null;
+        final List<long[]> copiedRanges = new ArrayList<long[]>();
+        int putCount = 0;
+        boolean isCompleted = false;
+
+        RecordingS3Service() {
+            super(null);
+        }
+
+        private void record(S3Object object) throws S3ServiceException {
+            try {
+                InputStream inputStream = object.getDataInputStream();
+                byte[] data = new byte[(int) object.getContentLength()];
+                int offset = 0;
+                int count;
+                while (offset < data.length
+                    && (count = inputStream.read(data, offset, data.length - offset)) > 0)
+                {
+                    offset += count;
+                }
+                assertEquals(data.length, offset);
+                assertEquals(object.getMd5HashAsHex(), ServiceUtils.toHex(
+                    ServiceUtils.computeMD5Hash(data)));
+                uploadedData.write(data);
+            } catch (Exception e) {
+                throw new S3ServiceException(e);
+            }
+        }
+
+        @Override
+        public S3Object putObject(String bucketName, S3Object object) throws S3ServiceException {
+            putCount++;
+            record(object);
+            return object;
+        }
+
+        @Override
+        public MultipartUpload multipartStartUpload(String bucketName, S3Object object) {
+            startedObject = object;
+            return new MultipartUpload("upload-id", bucketName, object.getKey());
+        }
+
+        @Override
+        public MultipartPart multipartUploadPart(MultipartUpload upload, Integer partNumber,
+            S3Object object) throws S3ServiceException
+        {
+            assertEquals(partSizes.size() + 1, partNumber.intValue());
+            partSizes.add(object.getContentLength());
+            record(object);
+            return new MultipartPart(partNumber, new Date(), "etag" + partNumber,
+                object.getContentLength());
+        }
+
+        @Override
+        public StorageObject getObjectDetails(String bucketName, String objectKey) {
+            return sourceObject;
+        }
+
+        @Override
+        public MultipartUpload multipartStartUpload(String bucketName, String objectKey,
+            Map<String, Object> metadata, AccessControlList acl, String storageClass)
+        {
+            startedObject = new S3Object(objectKey);
+            startedObject.addAllMetadata(metadata);
+            return new MultipartUpload("upload-id", bucketName, objectKey);
+        }
+
+        @Override
+        public MultipartPart multipartUploadPartCopy(MultipartUpload upload, Integer partNumber,
+            String sourceBucketName, String sourceObjectKey, Calendar ifModifiedSince,
+            Calendar ifUnmodifiedSince, String[] ifMatchTags, String[] ifNoneMatchTags,
+            Long byteRangeStart, Long byteRangeEnd, String versionId)
+        {
+            assertEquals(copiedRanges.size() + 1, partNumber.intValue());
+            assertEquals(sourceObject.getETag(), ifMatchTags[0]);
+            copiedRanges.add(new long[] {byteRangeStart, byteRangeEnd});
+            partSizes.add(byteRangeEnd - byteRangeStart + 1);
+            return new MultipartPart(partNumber, new Date(), "etag" + partNumber,
+                byteRangeEnd - byteRangeStart + 1);
+        }
+
+        @Override
+        public MultipartCompleted multipartCompleteUpload(MultipartUpload upload,
+            List<MultipartPart> parts)
+        {
+            assertEquals(partSizes.size(), parts.size());
+            isCompleted = true;
+            return new MultipartCompleted("location", upload.getBucketName(),
+                upload.getObjectKey(), "multipart-etag");
+        }
+    }
+
+    private File createFile(byte[] data) throws Exception {
+        File file = File.createTempFile("multipart-utils", ".dat");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private byte[] gunzip(byte[] data) throws Exception {
+        InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) > 0) {
+            baos.write(buffer, 0, count);
+        }
+        return baos.toByteArray();
+    }
+
+    public void testSmallStreamIsUploadedWithPut() throws Exception {
+        byte[] data = "Some small file contents".getBytes("UTF-8");
+        File file = createFile(data);
+        S3Object object = ObjectUtils.createObjectForStreamingUpload(
+            "small", file, null, null, true, null);
+        assertNull(object.getDataInputFile());
+        assertEquals("gzip", object.getMetadata(Constants.METADATA_JETS3T_COMPRESSED));
+        assertEquals(ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(data)),
+            object.getMetadata(S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5));
+
+        RecordingS3Service service = new RecordingS3Service();
+        new MultipartUtils().uploadObjectFromStream("bucket", service, object,
+            ObjectUtils.createTransformedInputStream(file, null, true),
+            (int) MultipartUtils.MIN_PART_SIZE);
+
+        assertEquals(1, service.putCount);
+        assertNull(service.startedObject);
+        assertTrue(Arrays.equals(data, gunzip(service.uploadedData.toByteArray())));
+        file.delete();
+    }
+
+    public void testLargeStreamIsUploadedInParts() throws Exception {
+        // Random data does not compress, so it needs several parts once gzipped
+        int partSize = (int) MultipartUtils.MIN_PART_SIZE;
+        byte[] data = new byte[partSize * 2 + 1000];
+        new Random(1).nextBytes(data);
+        File file = createFile(data);
+        S3Object object = ObjectUtils.createObjectForStreamingUpload(
+            "large", file, null, null, true, null);
+
+        RecordingS3Service service = new RecordingS3Service();
+        S3Object result = new MultipartUtils().uploadObjectFromStream("bucket", service, object,
+            ObjectUtils.createTransformedInputStream(file, null, true), partSize);
+
+        assertEquals(0, service.putCount);
+        assertSame(object, service.startedObject);
+        assertTrue(service.isCompleted);
+        assertEquals(3, service.partSizes.size());
+        assertEquals(partSize, service.partSizes.get(0).longValue());
+        assertEquals(partSize, service.partSizes.get(1).longValue());
+        assertEquals("multipart-etag", result.getETag());
+        assertEquals(service.uploadedData.size(), result.getContentLength());
+        assertTrue(Arrays.equals(data, gunzip(service.uploadedData.toByteArray())));
+        file.delete();
+    }
+
+    public void testStreamingPartSizeLeavesRoomForMaxParts() throws Exception {
+        int partSize = (int) MultipartUtils.MIN_PART_SIZE;
+        assertEquals(partSize, MultipartUtils.getStreamingPartSize(1000, partSize));
+        assertEquals(partSize, MultipartUtils.getStreamingPartSize(
+            (long) partSize * 9000, partSize));
+
+        long sourceLength = 200L * 1024 * 1024 * 1024;
+        int streamingPartSize = MultipartUtils.getStreamingPartSize(sourceLength, partSize);
+        assertTrue(streamingPartSize > partSize);
+        assertTrue((long) streamingPartSize * MultipartUtils.MAX_PART_COUNT
+            >= sourceLength * MultipartUtils.STREAMING_SIZE_HEADROOM);
+    }
+
+    public void testLargeObjectIsCopiedInNoMoreThanMaxParts() throws Exception {
+        RecordingS3Service service = new RecordingS3Service();
+        long length = 100L * 1024 * 1024 * 1024 + 1;
+        service.sourceObject = new S3Object("source");
+        service.sourceObject.setContentLength(length);
+        service.sourceObject.setETag("0123456789abcdef0123456789abcdef-20");
+        service.sourceObject.addMetadata("Content-Type", "video/mp4");
+
+        S3Object result = new MultipartUtils(MultipartUtils.MIN_PART_SIZE).copyObjectInParts(
+            service, "bucket", "source", "bucket", new S3Object("target"));
+
+        assertTrue(service.isCompleted);
+        assertTrue(service.copiedRanges.size() <= MultipartUtils.MAX_PART_COUNT);
+        long expectedStart = 0;
+        for (long[] range: service.copiedRanges) {
+            assertEquals(expectedStart, range[0]);
+            expectedStart = range[1] + 1;
+        }
+        assertEquals(length, expectedStart);
+        assertEquals("video/mp4", service.startedObject.getContentType());
+        assertEquals(String.valueOf(service.partSizes.get(0)),
+            service.startedObject.getMetadata(Constants.METADATA_JETS3T_MULTIPART_PART_SIZE));
+        assertEquals("multipart-etag", result.getETag());
+        assertEquals(length, result.getContentLength());
+    }
+
+}
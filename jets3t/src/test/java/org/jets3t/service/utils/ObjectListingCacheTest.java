@@ -0,0 +1,101 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.model.StorageObject;
+
+
+public class ObjectListingCacheTest extends TestCase {
+
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        cacheDir = File.createTempFile("listing-cache", "");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file: cacheDir.listFiles()) {
+            file.delete();
+        }
+        cacheDir.delete();
+    }
+
+    private StorageObject createListedObject(String key, String etag, long length) {
+        StorageObject object = new StorageObject(key);
+        object.setETag(etag);
+        object.setContentLength(length);
+        object.setLastModifiedDate(new Date(1000000L));
+        return object;
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        ObjectListingCache cache = new ObjectListingCache(cacheDir, "bucket", "Backups/");
+        assertFalse(cache.load());
+
+        cache.replaceAll(new StorageObject[] {
+            createListedObject("Backups/b/2.txt", "etag2", 2),
+            createListedObject("Backups/a/1.txt", "etag1", 1),
+            createListedObject("Backups/top.txt", "etag3", 3)
+        });
+        cache.save();
+
+        ObjectListingCache loaded = new ObjectListingCache(cacheDir, "bucket", "Backups/");
+        assertTrue(loaded.load());
+        assertFalse(loaded.isExpired(60000));
+        StorageObject[] objects = loaded.getObjects();
+        assertEquals(3, objects.length);
+        assertEquals("Backups/a/1.txt", objects[0].getKey());
+        assertEquals("etag1", objects[0].getETag());
+        assertEquals(1, objects[0].getContentLength());
+        assertEquals(1000000L, objects[0].getLastModifiedDate().getTime());
+        assertEquals("Backups/top.txt", objects[2].getKey());
+
+        // A different prefix must not share the cache
+        assertFalse(new ObjectListingCache(cacheDir, "bucket", "Other/").load());
+    }
+
+    public void testPartitionsAndInvalidation() throws Exception {
+        ObjectListingCache cache = new ObjectListingCache(cacheDir, "bucket", "Backups/");
+        assertEquals("Backups/a/", cache.getPartition("Backups/a/b/1.txt"));
+        assertNull(cache.getPartition("Backups/top.txt"));
+        assertNull(cache.getPartition("Elsewhere/a/1.txt"));
+
+        cache.replaceAll(new StorageObject[] {createListedObject("Backups/a/1.txt", "etag1", 1)});
+        cache.save();
+        File dirtyFile = new File(cache.getCacheFile().getPath() + ".dirty");
+
+        ObjectListingCache.invalidate(cacheDir, "bucket", "Backups/",
+            Arrays.asList("Backups/a/1.txt", "Backups/top.txt"));
+        assertTrue(dirtyFile.exists());
+        assertTrue(new ObjectListingCache(cacheDir, "bucket", "Backups/").load());
+
+        // Saving a refreshed listing resolves invalidated partitions
+        cache.save();
+        assertFalse(dirtyFile.exists());
+    }
+
+}
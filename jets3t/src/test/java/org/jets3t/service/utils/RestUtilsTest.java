@@ -1,7 +1,11 @@
 package org.jets3t.service.utils;
 
+import javax.net.ssl.SSLContext;
+
 import junit.framework.TestCase;
 
+import org.jets3t.service.Jets3tProperties;
+
 /**
  * @version $Id:$
  */
@@ -26,4 +30,27 @@ public class RestUtilsTest extends TestCase {
         assertEquals("a//p", RestUtils.encodeUrlPath("a//p", "/"));
         assertEquals("a/p//", RestUtils.encodeUrlPath("a/p//", "/"));
     }
+
+    public void testSharedSSLContext() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        SSLContext sslContext = RestUtils.getSharedSSLContext(properties);
+        assertSame(sslContext, RestUtils.getSharedSSLContext(properties));
+
+        // Services with other session cache settings share a context of their own
+        Jets3tProperties otherProperties = new Jets3tProperties();
+        otherProperties.setProperty("httpclient.ssl-session-cache-size", "50");
+        SSLContext otherContext = RestUtils.getSharedSSLContext(otherProperties);
+        assertNotSame(sslContext, otherContext);
+        assertEquals(50, otherContext.getClientSessionContext().getSessionCacheSize());
+        assertSame(otherContext, RestUtils.getSharedSSLContext(otherProperties));
+    }
+
+    public void testSSLContextSessionCache() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("httpclient.ssl-session-cache-size", "50");
+        properties.setProperty("httpclient.ssl-session-timeout-seconds", "600");
+        SSLContext sslContext = RestUtils.createSSLContext(properties);
+        assertEquals(50, sslContext.getClientSessionContext().getSessionCacheSize());
+        assertEquals(600, sslContext.getClientSessionContext().getSessionTimeout());
+    }
 }
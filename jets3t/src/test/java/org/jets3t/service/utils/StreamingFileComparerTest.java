@@ -0,0 +1,162 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.model.StorageObject;
+
+
+public class StreamingFileComparerTest extends TestCase {
+
+    private File testDir;
+    private FileComparer fileComparer;
+
+    @Override
+    protected void setUp() throws Exception {
+        testDir = File.createTempFile("streaming-comparer", "");
+        testDir.delete();
+        testDir.mkdirs();
+        fileComparer = new FileComparer(new Jets3tProperties());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(testDir);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File createFile(String path, String content) throws Exception {
+        File file = new File(testDir, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private StorageObject createObject(String key, String content) throws Exception {
+        StorageObject object = new StorageObject(key);
+        object.setETag(ServiceUtils.toHex(ServiceUtils.computeMD5Hash(content.getBytes("UTF-8"))));
+        object.setContentLength(content.length());
+        return object;
+    }
+
+    public void testLocalFilesAreWalkedInKeyOrder() throws Exception {
+        createFile("a.txt", "1");
+        createFile("a/b.txt", "2");
+        createFile("a/c/d.txt", "3");
+        createFile("a0", "4");
+        createFile("B", "5");
+        new File(testDir, "empty").mkdirs();
+
+        File[] roots = testDir.listFiles();
+        List<String> walkedKeys = new ArrayList<String>();
+        StreamingFileComparer comparer = new StreamingFileComparer(fileComparer, 10);
+        Iterator<Map.Entry<String, String>> iter =
+            comparer.new LocalFileKeyIterator(roots, true);
+        while (iter.hasNext()) {
+            walkedKeys.add(iter.next().getKey());
+        }
+
+        List<String> expectedKeys = new ArrayList<String>(
+            fileComparer.buildObjectKeyToFilepathMap(roots, "", true).keySet());
+        Collections.sort(expectedKeys, StreamingFileComparer.KEY_ORDER);
+        assertEquals(expectedKeys, walkedKeys);
+        assertEquals(Arrays.asList("B", "a.txt", "a/", "a/b.txt", "a/c/", "a/c/d.txt",
+            "a0", "empty/"), walkedKeys);
+    }
+
+    public void testKeysCompareByCodePoint() {
+        // U+FF5E sorts before U+1F600 in UTF-8, but not in UTF-16 code unit order
+        String bmp = "～";
+        String supplementary = new String(Character.toChars(0x1F600));
+        assertTrue(bmp.compareTo(supplementary) > 0);
+        assertTrue(StreamingFileComparer.compareKeys(bmp, supplementary) < 0);
+        assertTrue(StreamingFileComparer.compareKeys("a", "ab") < 0);
+        assertEquals(0, StreamingFileComparer.compareKeys("abc", "abc"));
+    }
+
+    public void testBatchedMergeMatchesFullComparison() throws Exception {
+        createFile("dir/same1", "same1");
+        createFile("dir/same2", "same2");
+        createFile("dir/local-only", "local");
+        createFile("top-local-only", "top");
+        createFile("top-same", "top-same");
+
+        List<StorageObject> objects = new ArrayList<StorageObject>();
+        objects.add(createObject("Backup/dir/remote-only", "remote"));
+        objects.add(createObject("Backup/dir/same1", "same1"));
+        objects.add(createObject("Backup/dir/same2", "same2"));
+        objects.add(createObject("Backup/remote-top", "remote-top"));
+        objects.add(createObject("Backup/top-same", "top-same"));
+
+        File[] roots = testDir.listFiles();
+        final FileComparerResults merged = new FileComparerResults();
+        final int[] batchCount = new int[] {0};
+        StreamingFileComparer comparer = new StreamingFileComparer(fileComparer, 3);
+        comparer.compare(comparer.new LocalFileKeyIterator(roots, false), objects.iterator(),
+            null, "bucket", "Backup", false, false, null, null,
+            new StreamingFileComparer.BatchHandler() {
+                public void handleBatch(FileComparerResults results,
+                    Map<String, String> objectKeyToFilepathMap,
+                    Map<String, StorageObject> objectsMap)
+                {
+                    assertTrue(objectKeyToFilepathMap.size() + objectsMap.size() <= 3);
+                    merged.merge(results);
+                    batchCount[0]++;
+                }
+            });
+        assertTrue(batchCount[0] > 1);
+
+        Map<String, String> localMap = fileComparer.buildObjectKeyToFilepathMap(roots, "", false);
+        Map<String, StorageObject> objectsMap = fileComparer.populateObjectMap(
+            "Backup", objects.toArray(new StorageObject[objects.size()]));
+        FileComparerResults expected = fileComparer.buildDiscrepancyLists(localMap, objectsMap);
+
+        assertEquals(expected.onlyOnClientKeys, merged.onlyOnClientKeys);
+        assertEquals(expected.onlyOnServerKeys, merged.onlyOnServerKeys);
+        assertEquals(expected.alreadySynchronisedKeys, merged.alreadySynchronisedKeys);
+        assertEquals(3, merged.alreadySynchronisedKeys.size());
+        assertEquals(2, merged.onlyOnServerKeys.size());
+        assertEquals(2, merged.onlyOnClientKeys.size());
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.apps.synchronize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches local files and directory trees for changes using a {@link WatchService}, and
+ * reports the files and directories that were created, deleted or modified in batches.
+ * <p>
+ * Every directory in a watched tree is registered with the watch service, including
+ * directories created after watching starts. Changes are collected until no further change
+ * occurs for a quiet period, so a burst of changes such as a large copy is reported once.
+ */
+public class DirectoryChangeWatcher {
+    private static final Logger log = LoggerFactory.getLogger(DirectoryChangeWatcher.class);
+
+    private final WatchService watchService;
+    private final Map<WatchKey, File> watchedDirectories = new HashMap<WatchKey, File>();
+    private final Set<File> treeDirectories = new HashSet<File>();
+    private final Set<File> watchedFiles = new HashSet<File>();
+
+    /**
+     * Starts watching the given files and directory trees.
+     *
+     * @param files
+     * files and directories to watch. Directories are watched along with all their
+     * sub-directories, while files are watched by watching their parent directory.
+     * @throws IOException
+     */
+    public DirectoryChangeWatcher(File[] files) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (File file: files) {
+            file = file.getAbsoluteFile();
+            if (file.isDirectory()) {
+                registerTree(file);
+            } else {
+                watchedFiles.add(file);
+                register(file.getParentFile());
+            }
+        }
+    }
+
+    private void register(File directory) throws IOException {
+        WatchKey key = directory.toPath().register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirectories.put(key, directory);
+    }
+
+    private void registerTree(File directory) throws IOException {
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                throws IOException
+            {
+                File file = dir.toFile();
+                register(file);
+                treeDirectories.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Directories that cannot be read are picked up by the next full comparison
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to watch " + file + " for changes", e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Waits for changes to the watched files and directories.
+     *
+     * @param timeoutMillis
+     * the longest time to wait for a change, after which an empty set is returned.
+     * @param quietMillis
+     * once a change occurs, further changes are collected until there have been none for
+     * this long.
+     * @param maxDelayMillis
+     * the longest time to collect changes for after the first change, so that constant
+     * activity does not delay reporting indefinitely.
+     * @return
+     * the files and directories that were created, deleted or modified, sorted by path.
+     * A directory is only included when it is created or deleted, since changes to its
+     * contents are reported as entries of their own. Null if a watched top-level file
+     * changed, or if the watch service discarded events, in which case the watched files
+     * must all be compared again.
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Set<File> awaitChanges(long timeoutMillis, long quietMillis, long maxDelayMillis)
+        throws InterruptedException, IOException
+    {
+        Set<File> changedEntries = new TreeSet<File>();
+        WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (key == null) {
+            return changedEntries;
+        }
+
+        boolean isReconciliationRequired = false;
+        long deadline = System.currentTimeMillis() + maxDelayMillis;
+        while (key != null) {
+            File directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event: key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    isReconciliationRequired = true;
+                    continue;
+                }
+                if (directory == null) {
+                    continue;
+                }
+                File child = new File(directory, event.context().toString());
+                if (watchedFiles.contains(child)) {
+                    isReconciliationRequired = true;
+                }
+                if (treeDirectories.contains(directory)) {
+                    boolean isDirectory = child.isDirectory();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && isDirectory) {
+                        continue;
+                    }
+                    changedEntries.add(child);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isDirectory) {
+                        registerTree(child);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                // The directory no longer exists
+                watchedDirectories.remove(key);
+                treeDirectories.remove(directory);
+            }
+
+            long remainingMillis = deadline - System.currentTimeMillis();
+            if (remainingMillis <= 0) {
+                break;
+            }
+            key = watchService.poll(Math.min(quietMillis, remainingMillis), TimeUnit.MILLISECONDS);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Detected changes to " + changedEntries.size() + " files and directories"
+                + (isReconciliationRequired ? ", full comparison required" : ""));
+        }
+        return (isReconciliationRequired ? null : changedEntries);
+    }
+
+    /**
+     * Stops watching for changes.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+}
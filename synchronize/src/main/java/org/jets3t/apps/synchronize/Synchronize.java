@@ -23,7 +23,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -36,7 +38,16 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jets3t.service.Constants;
 import org.jets3t.service.Jets3tProperties;
@@ -47,11 +58,13 @@ import org.jets3t.service.acl.AccessControlList;
 import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageBucket;
 import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.multi.DownloadPackage;
 import org.jets3t.service.multi.ThreadWatcher;
 import org.jets3t.service.multi.ThreadedStorageService;
+import org.jets3t.service.multi.event.CopyObjectsEvent;
 import org.jets3t.service.multi.event.CreateObjectsEvent;
 import org.jets3t.service.multi.event.DeleteObjectsEvent;
 import org.jets3t.service.multi.event.DownloadObjectsEvent;
@@ -66,11 +79,13 @@ import org.jets3t.service.security.EncryptionUtil;
 import org.jets3t.service.security.GSCredentials;
 import org.jets3t.service.security.ProviderCredentials;
 import org.jets3t.service.utils.ByteFormatter;
+import org.jets3t.service.utils.DirectorySnapshot;
 import org.jets3t.service.utils.FileComparer;
 import org.jets3t.service.utils.FileComparerResults;
 import org.jets3t.service.utils.Mimetypes;
 import org.jets3t.service.utils.MultipartUtils;
 import org.jets3t.service.utils.ObjectUtils;
+import org.jets3t.service.utils.ServiceUtils;
 import org.jets3t.service.utils.TimeFormatter;
 import org.jets3t.service.utils.FileComparer.PartialObjectListing;
 
@@ -113,6 +128,10 @@ public class Synchronize {
     private FileComparer fileComparer = null;
     private int maxTemporaryStringLength = 0;
     private final Map<String, Object> customMetadata = new HashMap<String, Object>();
+    private File snapshotFile = null;
+    private String snapshotIdentity = null;
+    // Changed entries to which an upload is limited by object key name, or null for all files
+    private Map<String, File> changedEntries = null;
 
     /**
      * Constructs the application with a pre-initialised service and the user-specified options.
@@ -206,7 +225,8 @@ public class Synchronize {
          * @param file
          * the file to upload
          * @param md5HashOfFile
-         * MD5 hash value of file to upload, may be null in which case this will be auto-generated.
+         * MD5 hash value of file to upload, may be null in which case this will be looked up
+         * or generated when the object is prepared.
          * @param aclString
          * the ACL to apply to the uploaded object
          * @param encryptionUtil
@@ -223,18 +243,28 @@ public class Synchronize {
         }
 
         public StorageObject prepareUploadObject() throws Exception {
+            lookupFileHash();
             StorageObject newObject = ObjectUtils.createObjectForUpload(
                 targetKey, file, md5HashOfFile, encryptionUtil, isGzipEnabled, null);
 
-            if ("PUBLIC_READ".equalsIgnoreCase(aclString)) {
-                newObject.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
-            } else if ("PUBLIC_READ_WRITE".equalsIgnoreCase(aclString)) {
-                newObject.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ_WRITE);
-            } else if ("PRIVATE".equalsIgnoreCase(aclString)) {
-                // Private is the default, no need to add an ACL
-            } else {
-                throw new Exception("Invalid value for ACL string: " + aclString);
-            }
+            applyAclString(newObject, aclString);
+
+            // Apply custom metadata items to upload object.
+            newObject.addAllMetadata(customMetadata);
+
+            return newObject;
+        }
+
+        /**
+         * Prepares an object whose gzipped and/or encrypted data will be streamed from
+         * {@link #createTransformedInputStream()} during the upload.
+         */
+        public S3Object prepareStreamingUploadObject() throws Exception {
+            lookupFileHash();
+            S3Object newObject = ObjectUtils.createObjectForStreamingUpload(
+                targetKey, file, md5HashOfFile, encryptionUtil, isGzipEnabled, null);
+
+            applyAclString(newObject, aclString);
 
             // Apply custom metadata items to upload object.
             newObject.addAllMetadata(customMetadata);
@@ -242,12 +272,43 @@ public class Synchronize {
             return newObject;
         }
 
+        /**
+         * Looks up and/or generates the cached MD5 hash file for the file, if enabled, so
+         * files are only hashed as their batch is prepared.
+         */
+        private void lookupFileHash() throws Exception {
+            if (md5HashOfFile != null || file.isDirectory()) {
+                return;
+            }
+            if (fileComparer.isGenerateMd5Files()) {
+                md5HashOfFile = fileComparer.generateFileMD5Hash(file, targetKey, null);
+            } else if (fileComparer.isUseMd5Files()) {
+                md5HashOfFile = fileComparer.lookupFileMD5Hash(file, targetKey);
+            }
+        }
+
+        public InputStream createTransformedInputStream() throws Exception {
+            return ObjectUtils.createTransformedInputStream(file, encryptionUtil, isGzipEnabled);
+        }
+
         public File getFile() {
             return file;
         }
     }
 
 
+    private void applyAclString(StorageObject object, String aclString) throws Exception {
+        if ("PUBLIC_READ".equalsIgnoreCase(aclString)) {
+            object.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+        } else if ("PUBLIC_READ_WRITE".equalsIgnoreCase(aclString)) {
+            object.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ_WRITE);
+        } else if ("PRIVATE".equalsIgnoreCase(aclString)) {
+            // Private is the default, no need to add an ACL
+        } else {
+            throw new Exception("Invalid value for ACL string: " + aclString);
+        }
+    }
+
     private String formatTransferDetails(ThreadWatcher watcher) {
         String detailsText = "";
         long bytesPerSecond = watcher.getBytesPerSecond();
@@ -263,7 +324,7 @@ public class Synchronize {
         return detailsText;
     }
 
-    private void printOutputLine(String line, int level) {
+    private synchronized void printOutputLine(String line, int level) {
         if ((isQuiet && level > REPORT_LEVEL_NONE) || reportLevel < level) {
             return;
         }
@@ -281,7 +342,7 @@ public class Synchronize {
      *
      * @param line the text to print
      */
-    private void printProgressLine(String line) {
+    private synchronized void printProgressLine(String line) {
         if (isQuiet || isNoProgress) {
             return;
         }
@@ -305,6 +366,43 @@ public class Synchronize {
         throws ServiceException, NoSuchAlgorithmException, FileNotFoundException,
         IOException, ParseException
     {
+        return compareLocalAndRemoteFiles(mergedDiscrepancyResults, bucketName, rootObjectPath,
+            priorLastKey, objectKeyToFilepathMap, md5GenerationProgressWatcher, null, null);
+    }
+
+    /**
+     * Compares local files with the objects in the service as
+     * {@link #compareLocalAndRemoteFiles(FileComparerResults, String, String, String, Map, BytesProgressWatcher)}
+     * does, except that the files in directories that have not changed since a previous
+     * snapshot are only compared if the objects in the directory have changed.
+     *
+     * @param previousSnapshot
+     * the snapshot recorded after a previous synchronization, may be null.
+     * @param unchangedDirectories
+     * the directories whose local digest matches the snapshot, may be null.
+     */
+    private ComparisonResult compareLocalAndRemoteFiles(
+        FileComparerResults mergedDiscrepancyResults,
+        String bucketName, String rootObjectPath,
+        String priorLastKey, Map<String, String> objectKeyToFilepathMap,
+        BytesProgressWatcher md5GenerationProgressWatcher,
+        DirectorySnapshot previousSnapshot, Set<String> unchangedDirectories)
+        throws ServiceException, NoSuchAlgorithmException, FileNotFoundException,
+        IOException, ParseException
+    {
+        // Leave out files in directories that have not changed locally
+        Map<String, String> filesToCompare = objectKeyToFilepathMap;
+        if (previousSnapshot != null && unchangedDirectories != null
+            && !unchangedDirectories.isEmpty())
+        {
+            filesToCompare = new TreeMap<String, String>();
+            for (Map.Entry<String, String> entry: objectKeyToFilepathMap.entrySet()) {
+                if (!isInDirectories(entry.getKey(), unchangedDirectories)) {
+                    filesToCompare.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
         // List objects in service. Listing may be complete, or partial.
         printProgressLine("Listing objects in service"
             + (isBatchMode && mergedDiscrepancyResults.getCountOfItemsCompared() > 0
@@ -314,24 +412,77 @@ public class Synchronize {
 
         boolean forceMetadataDownload = isEncryptionEnabled || isGzipEnabled;
 
-        PartialObjectListing partialListing = fileComparer.buildObjectMapPartial(
-            storageService, bucketName, rootObjectPath, priorLastKey,
-            objectKeyToFilepathMap, !isBatchMode, forceMetadataDownload, isForce,
-            md5GenerationProgressWatcher, serviceEventAdaptor);
+        Map<String, StorageObject> objectsMap = null;
+        if (changedEntries != null) {
+            objectsMap = fileComparer.lookupObjectMetadataForPotentialClashes(
+                storageService, bucketName, rootObjectPath,
+                listChangedEntryObjects(bucketName, rootObjectPath),
+                filesToCompare, forceMetadataDownload, isForce,
+                md5GenerationProgressWatcher, serviceEventAdaptor);
+            priorLastKey = null;
+        } else {
+            PartialObjectListing partialListing = fileComparer.buildObjectMapPartial(
+                storageService, bucketName, rootObjectPath, priorLastKey,
+                filesToCompare, !isBatchMode, forceMetadataDownload, isForce,
+                md5GenerationProgressWatcher, serviceEventAdaptor);
+
+            // Retrieve details from listing.
+            priorLastKey = partialListing.getPriorLastKey();
+            objectsMap = partialListing.getObjectsMap();
+        }
         if (serviceEventAdaptor.wasErrorThrown()) {
             throw new ServiceException("Unable to build map of objects",
                 serviceEventAdaptor.getErrorThrown());
         }
         md5GenerationProgressWatcher.resetWatcher();
 
-        // Retrieve details from listing.
-        priorLastKey = partialListing.getPriorLastKey();
-        Map<String, StorageObject> objectsMap = partialListing.getObjectsMap();
+        // Skip directories whose objects have not changed either, and compare the rest
+        Map<String, StorageObject> objectsToCompare = objectsMap;
+        Set<String> unchangedKeys = new HashSet<String>();
+        if (filesToCompare != objectKeyToFilepathMap) {
+            Map<String, String> remoteDigests = DirectorySnapshot.computeRemoteDigests(objectsMap);
+            Set<String> skippedDirectories = new HashSet<String>();
+            for (String directory: unchangedDirectories) {
+                if (previousSnapshot.isRemoteUnchanged(directory, remoteDigests)) {
+                    skippedDirectories.add(directory);
+                }
+            }
+
+            Map<String, String> changedFiles = new TreeMap<String, String>();
+            for (Map.Entry<String, String> entry: objectKeyToFilepathMap.entrySet()) {
+                if (!filesToCompare.containsKey(entry.getKey())) {
+                    if (isInDirectories(entry.getKey(), skippedDirectories)) {
+                        unchangedKeys.add(entry.getKey());
+                    } else {
+                        changedFiles.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            objectsToCompare = new TreeMap<String, StorageObject>();
+            List<StorageObject> changedObjects = new ArrayList<StorageObject>();
+            for (Map.Entry<String, StorageObject> entry: objectsMap.entrySet()) {
+                if (!isInDirectories(entry.getKey(), skippedDirectories)) {
+                    objectsToCompare.put(entry.getKey(), entry.getValue());
+                    if (isInDirectories(entry.getKey(), unchangedDirectories)) {
+                        changedObjects.add(entry.getValue());
+                    }
+                }
+            }
+            if (changedFiles.size() > 0) {
+                objectsToCompare.putAll(fileComparer.lookupObjectMetadataForPotentialClashes(
+                    storageService, bucketName, rootObjectPath,
+                    changedObjects.toArray(new StorageObject[changedObjects.size()]),
+                    changedFiles, forceMetadataDownload, isForce,
+                    md5GenerationProgressWatcher, serviceEventAdaptor));
+                filesToCompare.putAll(changedFiles);
+            }
+        }
 
         // Compare the listed objects with the local system.
         printProgressLine("Comparing service contents with local system");
         FileComparerResults discrepancyResults = fileComparer.buildDiscrepancyLists(
-            objectKeyToFilepathMap, objectsMap, md5GenerationProgressWatcher, isForce);
+            filesToCompare, objectsToCompare, md5GenerationProgressWatcher, isForce);
+        discrepancyResults.alreadySynchronisedKeys.addAll(unchangedKeys);
 
         // Merge objects and discrepancies to track overall changes.
         mergedDiscrepancyResults.merge(discrepancyResults);
@@ -343,6 +494,293 @@ public class Synchronize {
         return result;
     }
 
+    /**
+     * Looks up the objects in the service for the entries in {@link #changedEntries}, which
+     * are inside the given path. The object of each changed file is looked up by its key, and
+     * only the path of each changed directory is listed, so the other objects under the
+     * given path are not listed. Entries that no longer exist may have been either, so both
+     * are looked up. Each key and path is looked up once.
+     *
+     * @return
+     * the objects whose key is the path of a changed entry, or is inside such a path.
+     * @throws ServiceException
+     */
+    private StorageObject[] listChangedEntryObjects(String bucketName, String rootObjectPath)
+        throws ServiceException
+    {
+        Set<String> lookedUpKeys = new HashSet<String>();
+        Set<String> listedPrefixes = new HashSet<String>();
+        List<StorageObject> objects = new ArrayList<StorageObject>();
+        for (Map.Entry<String, File> entry: changedEntries.entrySet()) {
+            String objectKey = buildTargetKey(rootObjectPath, entry.getKey());
+            File file = entry.getValue();
+            boolean exists = file.exists();
+
+            if ((!exists || file.isDirectory())
+                && listedPrefixes.add(objectKey + Constants.FILE_PATH_DELIM))
+            {
+                objects.addAll(Arrays.asList(storageService.listObjects(
+                    bucketName, objectKey + Constants.FILE_PATH_DELIM, null)));
+            }
+            if ((!exists || !file.isDirectory()) && lookedUpKeys.add(objectKey)) {
+                try {
+                    objects.add(storageService.getObjectDetails(bucketName, objectKey));
+                } catch (ServiceException e) {
+                    if (e.getResponseCode() != 404) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        return objects.toArray(new StorageObject[objects.size()]);
+    }
+
+    /**
+     * Uploads batches of prepared objects on a background thread, so that the next batch can
+     * be listed, compared, hashed and prepared while the previous batch is uploaded. Batches
+     * are passed to the upload thread through a bounded queue, so preparation is never more
+     * than a few batches ahead of the uploads. If the queue size is zero batches are
+     * uploaded by the calling thread when they are submitted.
+     */
+    private class UploadPipeline {
+        private final String bucketName;
+        private final MultipartUtils multipartUtils;
+        private final BlockingQueue<UploadBatch> queue;
+        private final UploadBatch endMarker = new UploadBatch(null, null, null);
+        private Thread uploadThread = null;
+        private volatile Exception failure = null;
+
+        // Errors of uploads are kept apart from those of listing and comparing batches
+        private final S3ServiceEventAdaptor uploadEventAdaptor = new ProgressEventAdaptor();
+
+        UploadPipeline(String bucketName, MultipartUtils multipartUtils, int queueSize)
+        {
+            this.bucketName = bucketName;
+            this.multipartUtils = multipartUtils;
+            this.queue = (queueSize > 0
+                ? new ArrayBlockingQueue<UploadBatch>(queueSize)
+                : null);
+        }
+
+        /**
+         * @return
+         * true if batches are uploaded on a background thread while further batches are
+         * prepared.
+         */
+        boolean isPipelined() {
+            return queue != null;
+        }
+
+        /**
+         * Queues a batch for upload, waiting while the queue is full.
+         *
+         * @throws Exception
+         * the failure of an earlier batch, if any.
+         */
+        void submit(List<StorageObject> objectsForStandardPut,
+            List<StorageObject> objectsForMultipartUpload,
+            List<StreamingUpload> objectsForStreamingUpload) throws Exception
+        {
+            UploadBatch batch = new UploadBatch(
+                objectsForStandardPut, objectsForMultipartUpload, objectsForStreamingUpload);
+            if (queue == null) {
+                uploadBatch(batch);
+                return;
+            }
+            throwFailureIfPresent();
+            if (uploadThread == null) {
+                uploadThread = new Thread(new Runnable() {
+                    public void run() {
+                        uploadQueuedBatches();
+                    }
+                }, "Synchronize-uploads");
+                uploadThread.setDaemon(true);
+                uploadThread.start();
+            }
+            queue.put(batch);
+        }
+
+        /**
+         * Waits for all queued batches to be uploaded.
+         *
+         * @throws Exception
+         * the failure of any batch.
+         */
+        void finish() throws Exception {
+            if (uploadThread != null) {
+                queue.put(endMarker);
+                uploadThread.join();
+                uploadThread = null;
+            }
+            throwFailureIfPresent();
+        }
+
+        /**
+         * Discards any batches that have not been uploaded and stops the upload thread.
+         */
+        void shutdown() throws InterruptedException {
+            if (uploadThread != null) {
+                failure = new SynchronizeException("Upload cancelled");
+                queue.clear();
+                queue.put(endMarker);
+                uploadThread.join();
+                uploadThread = null;
+            }
+        }
+
+        private void uploadQueuedBatches() {
+            while (true) {
+                UploadBatch batch = null;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    failure = e;
+                    return;
+                }
+                if (batch == endMarker) {
+                    return;
+                }
+                if (failure != null) {
+                    // Discard remaining batches after a failure
+                    continue;
+                }
+                try {
+                    uploadBatch(batch);
+                } catch (Exception e) {
+                    failure = e;
+                } catch (Throwable t) {
+                    failure = new SynchronizeException("Upload failed", t);
+                }
+            }
+        }
+
+        private void throwFailureIfPresent() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void uploadBatch(UploadBatch batch) throws Exception {
+            // Perform standard object uploads
+            if (batch.objectsForStandardPut.size() > 0) {
+                (new ThreadedStorageService(storageService, uploadEventAdaptor)).putObjects(
+                    bucketName, batch.objectsForStandardPut.toArray(new StorageObject[] {}));
+                uploadEventAdaptor.throwErrorIfPresent();
+            }
+
+            // Perform multipart uploads
+            if (batch.objectsForMultipartUpload.size() > 0) {
+                multipartUtils.uploadObjects(
+                    bucketName, (S3Service)storageService,
+                    batch.objectsForMultipartUpload, uploadEventAdaptor);
+            }
+
+            // Perform streamed uploads of transformed files
+            if (batch.objectsForStreamingUpload.size() > 0) {
+                uploadStreamingObjects(batch.objectsForStreamingUpload);
+            }
+        }
+
+        /**
+         * Uploads objects whose data is gzipped and/or encrypted as it is sent, using as
+         * many threads as the threaded service is configured to use.
+         */
+        private void uploadStreamingObjects(final List<StreamingUpload> uploads) throws Exception {
+            int threadCount = Math.min(uploads.size(), storageService.getJetS3tProperties()
+                .getIntProperty("threaded-service.max-thread-count", 2));
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                List<Future<S3Object>> futures = new ArrayList<Future<S3Object>>();
+                for (final StreamingUpload upload: uploads) {
+                    futures.add(executor.submit(new Callable<S3Object>() {
+                        public S3Object call() throws Exception {
+                            return multipartUtils.uploadObjectFromStream(
+                                bucketName, (S3Service)storageService, upload.object,
+                                upload.source.createTransformedInputStream(), upload.partSize);
+                        }
+                    }));
+                }
+                int completedCount = 0;
+                for (Future<S3Object> future: futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof Exception) {
+                            throw (Exception) e.getCause();
+                        }
+                        throw new SynchronizeException("Upload failed", e.getCause());
+                    }
+                    completedCount++;
+                    printProgressLine("Upload (streamed): " + completedCount + "/" + uploads.size());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static class UploadBatch {
+        final List<StorageObject> objectsForStandardPut;
+        final List<StorageObject> objectsForMultipartUpload;
+        final List<StreamingUpload> objectsForStreamingUpload;
+
+        UploadBatch(List<StorageObject> objectsForStandardPut,
+            List<StorageObject> objectsForMultipartUpload,
+            List<StreamingUpload> objectsForStreamingUpload)
+        {
+            this.objectsForStandardPut = objectsForStandardPut;
+            this.objectsForMultipartUpload = objectsForMultipartUpload;
+            this.objectsForStreamingUpload = objectsForStreamingUpload;
+        }
+    }
+
+    private static class StreamingUpload {
+        final S3Object object;
+        final LazyPreparedUploadObject source;
+        final int partSize;
+
+        StreamingUpload(S3Object object, LazyPreparedUploadObject source, int partSize) {
+            this.object = object;
+            this.source = source;
+            this.partSize = partSize;
+        }
+    }
+
+    /**
+     * @return
+     * true if the key is inside one of the directories, identified by their key prefixes.
+     */
+    private static boolean isInDirectories(String key, Set<String> directories) {
+        for (int i = key.lastIndexOf(Constants.FILE_PATH_DELIM, key.length() - 2); i >= 0;
+            i = key.lastIndexOf(Constants.FILE_PATH_DELIM, i - 1))
+        {
+            if (directories.contains(key.substring(0, i + 1))) {
+                return true;
+            }
+        }
+        return key.length() > 0 && directories.contains("");
+    }
+
+    private String buildTargetKey(String rootObjectPath, String relativeKeyPath) {
+        if (rootObjectPath.length() == 0) {
+            return relativeKeyPath;
+        } else if (rootObjectPath.endsWith(Constants.FILE_PATH_DELIM)) {
+            return rootObjectPath + relativeKeyPath;
+        } else {
+            return rootObjectPath + Constants.FILE_PATH_DELIM + relativeKeyPath;
+        }
+    }
+
+    private void invalidateListingCache(String bucketName, String rootObjectPath,
+        StorageObject[] objects)
+    {
+        List<String> keys = new ArrayList<String>(objects.length);
+        for (StorageObject object: objects) {
+            keys.add(object.getKey());
+        }
+        fileComparer.invalidateListingCache(bucketName, rootObjectPath, keys);
+    }
+
     /**
      * Copies the contents of a local directory to a service, storing them in the given root path.
      * <p>
@@ -390,11 +828,21 @@ public class Synchronize {
         boolean skipMissingFiles =
             this.properties.getBoolProperty("upload.ignoreMissingPaths", false);
 
+        // Renamed files can only be found when all the objects are listed at once
+        boolean detectRenames = !isBatchMode
+            && this.properties.getBoolProperty("upload.detect-renames", false);
+        Map<String, String> renamedFiles = Collections.emptyMap();
+        List<String> sourceKeysForCopy = new ArrayList<String>();
+        List<StorageObject> objectsForCopy = new ArrayList<StorageObject>();
+        List<String> sourceKeysForMultipartCopy = new ArrayList<String>();
+        List<S3Object> objectsForMultipartCopy = new ArrayList<S3Object>();
+
         EncryptionUtil encryptionUtil = null;
         if (isEncryptionEnabled) {
             String algorithm = properties
                 .getStringProperty("crypto.algorithm", "PBEWithMD5AndDES");
-            encryptionUtil = new EncryptionUtil(cryptoPassword, algorithm, EncryptionUtil.DEFAULT_VERSION);
+            encryptionUtil = new EncryptionUtil(cryptoPassword, algorithm,
+                EncryptionUtil.getVersionForAlgorithm(algorithm));
         }
 
         // Support for multipart uploads -- currently available for Amazon S3 only
@@ -405,165 +853,260 @@ public class Synchronize {
             multipartUtils = new MultipartUtils(maxUploadPartSize);
         }
 
-        // Repeat list and upload actions until all objects in bucket have been listed.
-        do {
-            ComparisonResult result =
-                compareLocalAndRemoteFiles(mergedDiscrepancyResults, bucket.getName(), rootObjectPath,
-                    priorLastKey, objectKeyToFilepathMap, md5GenerationProgressWatcher);
-            priorLastKey = result.priorLastKey;
-            FileComparerResults discrepancyResults = result.discrepancyResults;
+        // Find directories that have not changed since the last snapshot
+        DirectorySnapshot previousSnapshot = null;
+        Map<String, String> localDigests = null;
+        Set<String> unchangedDirectories = null;
+        Map<String, StorageObject> listedObjectsMap = null;
+        if (snapshotFile != null) {
+            printProgressLine("Checking local files against snapshot");
+            localDigests = DirectorySnapshot.computeLocalDigests(objectKeyToFilepathMap);
+            if (!isForce) {
+                previousSnapshot = DirectorySnapshot.load(snapshotFile, snapshotIdentity);
+            }
+            if (previousSnapshot != null) {
+                unchangedDirectories = previousSnapshot.findUnchangedDirectories(localDigests);
+            }
+        }
 
-            // Repeat upload actions until all local files have been uploaded (or we repeat listing loop)
-            Iterator<String> objectKeyIter = objectKeyToFilepathMap.keySet().iterator();
-            do {
-                List<LazyPreparedUploadObject> objectsToUpload = new ArrayList<LazyPreparedUploadObject>();
+        // Stream transformed files to the service instead of transforming them to temporary files
+        int streamingPartSize = 0;
+        if (multipartUtils != null && (isGzipEnabled || isEncryptionEnabled)
+            && properties.getBoolProperty("upload.streaming-transforms", false))
+        {
+            streamingPartSize = properties.getIntProperty(
+                "upload.streaming-part-size", (int) MultipartUtils.MIN_PART_SIZE);
+        }
 
-                // Iterate through local files and perform the necessary action to synchronize them.
-                while (objectKeyIter.hasNext()) {
-                    String relativeKeyPath = objectKeyIter.next();
+        UploadPipeline uploadPipeline = new UploadPipeline(bucket.getName(), multipartUtils,
+            properties.getIntProperty("upload.pipeline-queue-size", 1));
+        try {
+            // Repeat list and upload actions until all objects in bucket have been listed.
+            do {
+                ComparisonResult result =
+                    compareLocalAndRemoteFiles(mergedDiscrepancyResults, bucket.getName(), rootObjectPath,
+                        priorLastKey, objectKeyToFilepathMap, md5GenerationProgressWatcher,
+                        previousSnapshot, unchangedDirectories);
+                priorLastKey = result.priorLastKey;
+                listedObjectsMap = result.objectsMap;
+                FileComparerResults discrepancyResults = result.discrepancyResults;
+
+                if (detectRenames) {
+                    printProgressLine("Finding renamed files");
+                    renamedFiles = fileComparer.findRenamedFiles(discrepancyResults,
+                        objectKeyToFilepathMap, result.objectsMap, md5GenerationProgressWatcher);
+                    md5GenerationProgressWatcher.resetWatcher();
+                }
 
-                    String targetKey = relativeKeyPath;
-                    if (rootObjectPath.length() > 0) {
-                        if (rootObjectPath.endsWith(Constants.FILE_PATH_DELIM)) {
-                            targetKey = rootObjectPath + targetKey;
-                        } else {
-                            targetKey = rootObjectPath + Constants.FILE_PATH_DELIM + targetKey;
-                        }
-                    }
+                // Repeat upload actions until all local files have been uploaded (or we repeat listing loop)
+                Iterator<String> objectKeyIter = objectKeyToFilepathMap.keySet().iterator();
+                do {
+                    List<LazyPreparedUploadObject> objectsToUpload = new ArrayList<LazyPreparedUploadObject>();
 
-                    if (isBatchMode) {
-                        if (priorLastKey != null && targetKey.compareTo(priorLastKey) > 0) {
-                            // We do not yet have the object listing to compare this file.
-                            continue;
-                        }
+                    // Iterate through local files and perform the necessary action to synchronize them.
+                    while (objectKeyIter.hasNext()) {
+                        String relativeKeyPath = objectKeyIter.next();
 
-                        if (targetKey.compareTo(lastFileKeypathChecked) <= 0) {
-                            // We have already handled this file in a prior batch.
-                            continue;
-                        } else {
-                            lastFileKeypathChecked = targetKey;
+                        String targetKey = relativeKeyPath;
+                        if (rootObjectPath.length() > 0) {
+                            if (rootObjectPath.endsWith(Constants.FILE_PATH_DELIM)) {
+                                targetKey = rootObjectPath + targetKey;
+                            } else {
+                                targetKey = rootObjectPath + Constants.FILE_PATH_DELIM + targetKey;
+                            }
                         }
-                    }
 
-                    File file = new File(objectKeyToFilepathMap.get(relativeKeyPath));
+                        if (isBatchMode) {
+                            if (priorLastKey != null && targetKey.compareTo(priorLastKey) > 0) {
+                                // We do not yet have the object listing to compare this file.
+                                continue;
+                            }
 
-                    // Lookup and/or generate cached MD5 hash file for data file, if enabled
-                    byte[] md5HashOfFile = null;
-                    if (!file.isDirectory()) {
-                        if (fileComparer.isGenerateMd5Files()) {
-                            md5HashOfFile = fileComparer.generateFileMD5Hash(file, targetKey, null);
-                        } else if (fileComparer.isUseMd5Files()) {
-                            md5HashOfFile = fileComparer.lookupFileMD5Hash(file, targetKey);
+                            if (targetKey.compareTo(lastFileKeypathChecked) <= 0) {
+                                // We have already handled this file in a prior batch.
+                                continue;
+                            } else {
+                                lastFileKeypathChecked = targetKey;
+                            }
                         }
-                    }
 
-                    if (discrepancyResults.onlyOnClientKeys.contains(relativeKeyPath)) {
-                        printOutputLine("N " + targetKey, REPORT_LEVEL_ACTIONS);
-                        objectsToUpload.add(new LazyPreparedUploadObject(
-                            targetKey, file, md5HashOfFile, aclString, encryptionUtil));
-                    } else if (discrepancyResults.updatedOnClientKeys.contains(relativeKeyPath)) {
-                        printOutputLine("U " + targetKey, REPORT_LEVEL_ACTIONS);
-                        objectsToUpload.add(new LazyPreparedUploadObject(
-                            targetKey, file, md5HashOfFile, aclString, encryptionUtil));
-                    } else if (discrepancyResults.alreadySynchronisedKeys.contains(relativeKeyPath)
-                               || discrepancyResults.alreadySynchronisedLocalPaths.contains(relativeKeyPath))
-                    {
-                        if (isForce) {
-                            printOutputLine("F " + targetKey, REPORT_LEVEL_ACTIONS);
+                        File file = new File(objectKeyToFilepathMap.get(relativeKeyPath));
+
+                        // Cached MD5 hashes are looked up as each upload batch is prepared
+                        byte[] md5HashOfFile = null;
+
+                        if (renamedFiles.containsKey(relativeKeyPath)) {
+                            // Copy the renamed file's content from the object it matches
+                            String sourceKey = buildTargetKey(rootObjectPath, renamedFiles.get(relativeKeyPath));
+                            printOutputLine("C " + targetKey + " (from " + sourceKey + ")",
+                                REPORT_LEVEL_ACTIONS);
+                            StorageObject sourceObject =
+                                result.objectsMap.get(renamedFiles.get(relativeKeyPath));
+                            if (multipartUtils != null && sourceObject != null
+                                && sourceObject.getContentLength() > MultipartUtils.MAX_COPY_OBJECT_SIZE)
+                            {
+                                // Objects too large for a single copy request are copied in parts
+                                S3Object object = new S3Object(targetKey);
+                                applyAclString(object, aclString);
+                                sourceKeysForMultipartCopy.add(sourceKey);
+                                objectsForMultipartCopy.add(object);
+                            } else {
+                                StorageObject object = new StorageObject(targetKey);
+                                applyAclString(object, aclString);
+                                sourceKeysForCopy.add(sourceKey);
+                                objectsForCopy.add(object);
+                            }
+                        } else if (discrepancyResults.onlyOnClientKeys.contains(relativeKeyPath)) {
+                            printOutputLine("N " + targetKey, REPORT_LEVEL_ACTIONS);
                             objectsToUpload.add(new LazyPreparedUploadObject(
                                 targetKey, file, md5HashOfFile, aclString, encryptionUtil));
-                        } else {
-                            printOutputLine("- " + targetKey, REPORT_LEVEL_ALL);
-                        }
-                    } else if (discrepancyResults.updatedOnServerKeys.contains(relativeKeyPath)) {
-                        // This file has been updated on the server-side.
-                        if (isKeepFiles) {
-                            printOutputLine("r " + targetKey, REPORT_LEVEL_DIFFERENCES);
-                        } else {
-                            printOutputLine("R " + targetKey, REPORT_LEVEL_ACTIONS);
+                        } else if (discrepancyResults.updatedOnClientKeys.contains(relativeKeyPath)) {
+                            printOutputLine("U " + targetKey, REPORT_LEVEL_ACTIONS);
                             objectsToUpload.add(new LazyPreparedUploadObject(
                                 targetKey, file, md5HashOfFile, aclString, encryptionUtil));
+                        } else if (discrepancyResults.alreadySynchronisedKeys.contains(relativeKeyPath)
+                                   || discrepancyResults.alreadySynchronisedLocalPaths.contains(relativeKeyPath))
+                        {
+                            if (isForce) {
+                                printOutputLine("F " + targetKey, REPORT_LEVEL_ACTIONS);
+                                objectsToUpload.add(new LazyPreparedUploadObject(
+                                    targetKey, file, md5HashOfFile, aclString, encryptionUtil));
+                            } else {
+                                printOutputLine("- " + targetKey, REPORT_LEVEL_ALL);
+                            }
+                        } else if (discrepancyResults.updatedOnServerKeys.contains(relativeKeyPath)) {
+                            // This file has been updated on the server-side.
+                            if (isKeepFiles) {
+                                printOutputLine("r " + targetKey, REPORT_LEVEL_DIFFERENCES);
+                            } else {
+                                printOutputLine("R " + targetKey, REPORT_LEVEL_ACTIONS);
+                                objectsToUpload.add(new LazyPreparedUploadObject(
+                                    targetKey, file, md5HashOfFile, aclString, encryptionUtil));
+                            }
+                        } else {
+                            // Uh oh, program error here. The safest thing to do is abort!
+                            throw new SynchronizeException("Invalid discrepancy comparison details for file "
+                                + file.getPath()
+                                + ". Sorry, this is a program error - aborting to keep your data safe");
+                        }
+
+                        // If we're batching, break out of upload preparation loop and
+                        // actually upload files once we have our quota.
+                        if (isBatchMode
+                            && objectsToUpload.size() >= Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE)
+                        {
+                            printOutputLine(
+                                "Uploading batch of " + objectsToUpload.size() + " files",
+                                REPORT_LEVEL_ACTIONS);
+                            break;
                         }
-                    } else {
-                        // Uh oh, program error here. The safest thing to do is abort!
-                        throw new SynchronizeException("Invalid discrepancy comparison details for file "
-                            + file.getPath()
-                            + ". Sorry, this is a program error - aborting to keep your data safe");
                     }
 
-                    // If we're batching, break out of upload preparation loop and
-                    // actually upload files once we have our quota.
-                    if (isBatchMode
-                        && objectsToUpload.size() >= Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE)
+                    // Break uploads into batches that are prepared while the previous batch
+                    // is uploaded, and into (smaller) batches if we are transforming files
+                    int uploadBatchSize = objectsToUpload.size();
+                    if (uploadPipeline.isPipelined()) {
+                        uploadBatchSize = properties.getIntProperty("upload.pipeline-batch-size", 100);
+                    }
+                    if ((isEncryptionEnabled || isGzipEnabled)
+                        && properties.containsKey("upload.transformed-files-batch-size"))
                     {
-                        printOutputLine(
-                            "Uploading batch of " + objectsToUpload.size() + " files",
-                            REPORT_LEVEL_ACTIONS);
-                        break;
+                        // Limit uploads to small batches in batch mode -- based on the
+                        // number of upload threads that are available.
+                        uploadBatchSize = properties.getIntProperty("upload.transformed-files-batch-size", 1000);
                     }
-                }
 
-                // Break uploads into (smaller) batches if we are transforming files during upload
-                int uploadBatchSize = objectsToUpload.size();
-                if ((isEncryptionEnabled || isGzipEnabled)
-                    && properties.containsKey("upload.transformed-files-batch-size"))
-                {
-                    // Limit uploads to small batches in batch mode -- based on the
-                    // number of upload threads that are available.
-                    uploadBatchSize = properties.getIntProperty("upload.transformed-files-batch-size", 1000);
-                }
+                    // Upload New/Updated/Forced/Replaced objects.
+                    while (doAction && objectsToUpload.size() > 0) {
+                        List<StorageObject> objectsForStandardPut = new ArrayList<StorageObject>();
+                        List<StorageObject> objectsForMultipartUpload = new ArrayList<StorageObject>();
+                        List<StreamingUpload> objectsForStreamingUpload = new ArrayList<StreamingUpload>();
 
-                // Upload New/Updated/Forced/Replaced objects.
-                while (doAction && objectsToUpload.size() > 0) {
-                    List<StorageObject> objectsForStandardPut = new ArrayList<StorageObject>();
-                    List<StorageObject> objectsForMultipartUpload = new ArrayList<StorageObject>();
+                        // Invoke lazy upload object creator.
+                        int maxBatchSize = Math.min(uploadBatchSize, objectsToUpload.size());
+                        for (int i = 0; i < maxBatchSize; i++) {
+                            LazyPreparedUploadObject lazyObj = objectsToUpload.remove(0);
+                            StorageObject object = null;
+                            boolean isStreamed = streamingPartSize > 0
+                                && !lazyObj.getFile().isDirectory();
 
-                    // Invoke lazy upload object creator.
-                    int maxBatchSize = Math.min(uploadBatchSize, objectsToUpload.size());
-                    for (int i = 0; i < maxBatchSize; i++) {
-                        LazyPreparedUploadObject lazyObj = objectsToUpload.remove(0);
-                        StorageObject object = null;
+                            try {
+                                object = (isStreamed
+                                    ? lazyObj.prepareStreamingUploadObject()
+                                    : lazyObj.prepareUploadObject());
+                            } catch (FileNotFoundException e) {
+                                if (skipMissingFiles) {
+                                    printOutputLine(
+                                        "WARNING: Skipping unreadable file: "
+                                        + lazyObj.getFile().getAbsolutePath(),
+                                        REPORT_LEVEL_NONE);
+                                    continue;
+                                } else {
+                                    throw e;
+                                }
+                            }
 
-                        try {
-                            object = lazyObj.prepareUploadObject();
-                        } catch (FileNotFoundException e) {
-                            if (skipMissingFiles) {
-                                printOutputLine(
-                                    "WARNING: Skipping unreadable file: "
-                                    + lazyObj.getFile().getAbsolutePath(),
-                                    REPORT_LEVEL_NONE);
-                                continue;
+                            if (isStreamed) {
+                                objectsForStreamingUpload.add(
+                                    new StreamingUpload((S3Object) object, lazyObj,
+                                        MultipartUtils.getStreamingPartSize(
+                                            lazyObj.getFile().length(), streamingPartSize)));
+                            } else if (multipartUtils != null
+                                && multipartUtils.isFileLargerThanMaxPartSize(lazyObj.getFile()))
+                            {
+                                objectsForMultipartUpload.add(object);
                             } else {
-                                throw e;
+                                objectsForStandardPut.add(object);
                             }
                         }
 
-                        if (multipartUtils != null
-                            && multipartUtils.isFileLargerThanMaxPartSize(lazyObj.getFile()))
-                        {
-                            objectsForMultipartUpload.add(object);
-                        } else {
-                            objectsForStandardPut.add(object);
+                        // Record the pending changes in any cached listing of the bucket path
+                        List<String> keysForUpload = new ArrayList<String>();
+                        for (StorageObject object: objectsForStandardPut) {
+                            keysForUpload.add(object.getKey());
                         }
-                    }
+                        for (StorageObject object: objectsForMultipartUpload) {
+                            keysForUpload.add(object.getKey());
+                        }
+                        for (StreamingUpload upload: objectsForStreamingUpload) {
+                            keysForUpload.add(upload.object.getKey());
+                        }
+                        fileComparer.invalidateListingCache(bucket.getName(), rootObjectPath, keysForUpload);
 
-                    // Perform standard object uploads
-                    if (objectsForStandardPut.size() > 0) {
-                        (new ThreadedStorageService(storageService, serviceEventAdaptor)).putObjects(
-                            bucket.getName(), objectsForStandardPut.toArray(new StorageObject[] {}));
-                        serviceEventAdaptor.throwErrorIfPresent();
+                        // Upload the batch while the next one is prepared
+                        uploadPipeline.submit(objectsForStandardPut, objectsForMultipartUpload,
+                            objectsForStreamingUpload);
                     }
+                } while (objectKeyIter.hasNext()); // End of upload loop
 
-                    // Perform multipart uploads
-                    if (objectsForMultipartUpload.size() > 0) {
-                        multipartUtils.uploadObjects(
-                            bucket.getName(), (S3Service)storageService,
-                            objectsForMultipartUpload, serviceEventAdaptor);
-                    }
-                }
-            } while (objectKeyIter.hasNext()); // End of upload loop
+            } while (priorLastKey != null); // End of list and upload loop
 
-        } while (priorLastKey != null); // End of list and upload loop
+            // Wait for all uploads to complete
+            uploadPipeline.finish();
+        } finally {
+            uploadPipeline.shutdown();
+        }
+
+        // Copy renamed files from their matching objects, before those objects are deleted.
+        if (doAction && objectsForCopy.size() > 0) {
+            StorageObject[] objects = objectsForCopy.toArray(new StorageObject[objectsForCopy.size()]);
+            invalidateListingCache(bucket.getName(), rootObjectPath, objects);
+            (new ThreadedStorageService(storageService, serviceEventAdaptor)).copyObjects(
+                bucket.getName(), bucket.getName(),
+                sourceKeysForCopy.toArray(new String[sourceKeysForCopy.size()]), objects, false);
+            serviceEventAdaptor.throwErrorIfPresent();
+        }
+        if (doAction && objectsForMultipartCopy.size() > 0) {
+            invalidateListingCache(bucket.getName(), rootObjectPath, objectsForMultipartCopy.toArray(
+                new StorageObject[objectsForMultipartCopy.size()]));
+            for (int i = 0; i < objectsForMultipartCopy.size(); i++) {
+                printProgressLine("Copying renamed large object in service: "
+                    + objectsForMultipartCopy.get(i).getKey());
+                multipartUtils.copyObjectInParts((S3Service) storageService, bucket.getName(),
+                    sourceKeysForMultipartCopy.get(i), bucket.getName(),
+                    objectsForMultipartCopy.get(i));
+            }
+        }
 
         // Delete objects that don't correspond with local files.
         List<StorageObject> objectsToDelete = new ArrayList<StorageObject>();
@@ -594,6 +1137,7 @@ public class Synchronize {
         }
         if (objectsToDelete.size() > 0) {
             StorageObject[] objects = objectsToDelete.toArray(new StorageObject[objectsToDelete.size()]);
+            invalidateListingCache(bucket.getName(), rootObjectPath, objects);
             (new ThreadedStorageService(storageService, serviceEventAdaptor)).deleteObjects(bucket.getName(), objects);
             serviceEventAdaptor.throwErrorIfPresent();
         }
@@ -654,6 +1198,26 @@ public class Synchronize {
                 : ""
                 ), REPORT_LEVEL_NONE
             );
+
+        // Record the directories that are now in sync for the next run
+        if (doAction && snapshotFile != null && listedObjectsMap != null) {
+            Set<String> unsynchronizedKeys = new HashSet<String>();
+            unsynchronizedKeys.addAll(mergedDiscrepancyResults.onlyOnClientKeys);
+            unsynchronizedKeys.addAll(mergedDiscrepancyResults.updatedOnClientKeys);
+            unsynchronizedKeys.addAll(mergedDiscrepancyResults.updatedOnServerKeys);
+            unsynchronizedKeys.addAll(mergedDiscrepancyResults.onlyOnServerKeys);
+            if (isForce) {
+                unsynchronizedKeys.addAll(mergedDiscrepancyResults.alreadySynchronisedKeys);
+            }
+            try {
+                DirectorySnapshot.create(snapshotIdentity, localDigests,
+                    DirectorySnapshot.computeRemoteDigests(listedObjectsMap), unsynchronizedKeys)
+                    .save(snapshotFile);
+            } catch (IOException e) {
+                printOutputLine("WARNING: Unable to save snapshot to " + snapshotFile
+                    + ": " + e.getMessage(), REPORT_LEVEL_NONE);
+            }
+        }
     }
 
     /**
@@ -852,6 +1416,7 @@ public class Synchronize {
             if (objectsMoved.size() > 0 && doAction) {
                 StorageObject[] objects = objectsMoved.values().toArray(
                     new StorageObject[objectsMoved.size()]);
+                invalidateListingCache(bucket.getName(), rootObjectPath, objects);
                 (new ThreadedStorageService(storageService, serviceEventAdaptor)).deleteObjects(
                     bucket.getName(), objects);
                 serviceEventAdaptor.throwErrorIfPresent();
@@ -957,6 +1522,9 @@ public class Synchronize {
 
         this.cryptoPassword = cryptoPassword;
 
+        // Errors recorded by an earlier synchronization must not fail this one
+        serviceEventAdaptor = new ProgressEventAdaptor();
+
         StorageBucket bucket = null;
         if (storageService.getProviderCredentials() == null) {
             // Using an anonymous connection, don't check bucket ownership or attempt to create it.
@@ -1017,27 +1585,300 @@ public class Synchronize {
                 filesInTargetDir, "", storeEmptyDirectories);
         }
 
-        // Watcher to provide feedback during generation of MD5 hash values
+        BytesProgressWatcher md5GenerationProgressWatcher = createMd5GenerationProgressWatcher();
+
+        try {
+            if ("UP".equals(actionCommand)) {
+                // Snapshots let unchanged directories be skipped on the next full upload
+                if (properties.getBoolProperty("upload.snapshot.enabled", false)
+                    && !isBatchMode && !isMoveEnabled)
+                {
+                    List<String> paths = new ArrayList<String>();
+                    for (File file: files) {
+                        paths.add(file.getAbsolutePath());
+                    }
+                    Collections.sort(paths);
+                    snapshotIdentity = providerId + ":" + servicePath + " " + paths
+                        + (isGzipEnabled ? " gzip" : "") + (isEncryptionEnabled ? " encrypt" : "");
+                    File snapshotDirectory = new File(properties.getStringProperty(
+                        "upload.snapshot.dir",
+                        new File(Constants.DEFAULT_PREFERENCES_DIRECTORY, "snapshots").getPath()));
+                    snapshotFile = new File(snapshotDirectory, ServiceUtils.toHex(
+                        ServiceUtils.computeMD5Hash(ServiceUtils.stringToBytes(snapshotIdentity)))
+                        + ".snapshot");
+                }
+                try {
+                    uploadLocalDirectory(objectKeyToFilepathMap, bucket, objectPath,
+                        aclString, md5GenerationProgressWatcher);
+                } finally {
+                    snapshotFile = null;
+                    snapshotIdentity = null;
+                }
+            } else if ("DOWN".equals(actionCommand)) {
+                restoreToLocalDirectory(objectKeyToFilepathMap, objectPath,
+                    files[0], bucket, md5GenerationProgressWatcher);
+            }
+        } finally {
+            // Release the hash index, which is re-opened by the next comparison
+            fileComparer.close();
+        }
+    }
+
+    /**
+     * @return
+     * a watcher to provide feedback during generation of MD5 hash values
+     */
+    private BytesProgressWatcher createMd5GenerationProgressWatcher() {
         final long filesSizeTotal[] = new long[] { 0 }; // Don't know how much comparison req'd
-        BytesProgressWatcher md5GenerationProgressWatcher =
-            new BytesProgressWatcher(filesSizeTotal[0]) {
-                @Override
-                public void updateBytesTransferred(long byteCount) {
-                    super.updateBytesTransferred(byteCount);
-                    printProgressLine("Comparing files: " +
-                        byteFormatter.formatByteSize(super.getBytesTransferred()));
+        return new BytesProgressWatcher(filesSizeTotal[0]) {
+            @Override
+            public void updateBytesTransferred(long byteCount) {
+                super.updateBytesTransferred(byteCount);
+                printProgressLine("Comparing files: " +
+                    byteFormatter.formatByteSize(super.getBytesTransferred()));
+            }
+        };
+    }
+
+    /**
+     * Uploads the given files to the service path as {@link #run} does, then continues to
+     * watch the local files for changes and uploads them as they occur. This method does not
+     * return unless an unexpected error occurs or the thread is interrupted, in which case
+     * it returns with the thread's interrupted status set.
+     * <p>
+     * Changes are detected with a {@link DirectoryChangeWatcher} and handled in batches once
+     * no further change has occurred for the "watch.quiet-period-millis" period. Only the
+     * directories in which changes occurred are compared again, each with the objects under
+     * its own path in the service. All the files are compared again every
+     * "watch.full-sync-interval-seconds" seconds, after a service, I/O or synchronization
+     * error, or whenever change events may have been missed.
+     *
+     * @param servicePath
+     * the path in service (including the bucket name) to which files are backed-up.
+     * @param files
+     * an array of one or more File objects to upload.
+     * @param cryptoPassword
+     * if non-null, an {@link EncryptionUtil} object is created with the provided password to encrypt files.
+     * @param aclString
+     * the ACL to apply to the uploaded object
+     * @param providerId
+     * service provider name: "S3" or "GS"
+     *
+     * @throws Exception
+     */
+    public void watch(String servicePath, File[] files, String cryptoPassword,
+        String aclString, String providerId) throws Exception
+    {
+        long quietPeriodMillis = properties.getLongProperty("watch.quiet-period-millis", 2000);
+        long maxDelayMillis = properties.getLongProperty("watch.max-delay-millis", 30000);
+        long fullSyncIntervalMillis =
+            properties.getLongProperty("watch.full-sync-interval-seconds", 3600) * 1000;
+        boolean storeEmptyDirectories = properties
+            .getBoolProperty("uploads.storeEmptyDirectories", true);
+
+        String bucketName = servicePath;
+        String objectPath = "";
+        int slashIndex = servicePath.indexOf(Constants.FILE_PATH_DELIM);
+        if (slashIndex >= 0) {
+            bucketName = servicePath.substring(0, slashIndex);
+            objectPath = servicePath.substring(slashIndex + 1, servicePath.length());
+        }
+        StorageBucket bucket = new StorageBucket(bucketName);
+
+        // Start watching before the first full synchronization, so no change is missed
+        DirectoryChangeWatcher changeWatcher = new DirectoryChangeWatcher(files);
+        try {
+            long nextFullSyncTime = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Set<File> changedEntries = null;
+                    long now = System.currentTimeMillis();
+                    if (now < nextFullSyncTime) {
+                        changedEntries = changeWatcher.awaitChanges(
+                            nextFullSyncTime - now, quietPeriodMillis, maxDelayMillis);
+                    }
+
+                    if (changedEntries == null
+                        || System.currentTimeMillis() >= nextFullSyncTime)
+                    {
+                        run(servicePath, files, "UP", cryptoPassword, aclString, providerId);
+                        nextFullSyncTime = System.currentTimeMillis() + fullSyncIntervalMillis;
+                    } else if (!changedEntries.isEmpty()) {
+                        synchronizeChanges(files, changedEntries, bucket, objectPath,
+                            aclString, storeEmptyDirectories);
+                    }
+                } catch (InterruptedException e) {
+                    // Stop watching, leaving the thread's interrupted status set
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (InterruptedIOException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ServiceException e) {
+                    nextFullSyncTime = reportWatchFailure(e, maxDelayMillis);
+                } catch (IOException e) {
+                    nextFullSyncTime = reportWatchFailure(e, maxDelayMillis);
+                } catch (SynchronizeException e) {
+                    nextFullSyncTime = reportWatchFailure(e, maxDelayMillis);
                 }
-            };
+            }
+        } finally {
+            changeWatcher.close();
+            fileComparer.close();
+        }
+    }
 
-        if ("UP".equals(actionCommand)) {
-            uploadLocalDirectory(objectKeyToFilepathMap, bucket, objectPath,
-                aclString, md5GenerationProgressWatcher);
-        } else if ("DOWN".equals(actionCommand)) {
-            restoreToLocalDirectory(objectKeyToFilepathMap, objectPath,
-                files[0], bucket, md5GenerationProgressWatcher);
+    /**
+     * Reports a failed synchronization while watching directories.
+     *
+     * @return
+     * the time after which all the files are compared again.
+     */
+    private long reportWatchFailure(Exception e, long maxDelayMillis) {
+        printOutputLine("ERROR: Synchronization failed, all files will be compared again: "
+            + e.getMessage(), REPORT_LEVEL_NONE);
+        return System.currentTimeMillis() + maxDelayMillis;
+    }
+
+    /**
+     * Uploads the files and directories that changed inside the watched directories, each
+     * group of changed entries of a directory being compared only with the objects for the
+     * same entries in the service. The other contents of the directories are neither read
+     * nor listed, except when a directory's ignore file changed, in which case the whole
+     * directory is compared again.
+     *
+     * @param files
+     * the watched files and directories.
+     * @param changedEntries
+     * the files and directories that were created, deleted or modified.
+     */
+    void synchronizeChanges(File[] files, Set<File> changedEntries, StorageBucket bucket,
+        String objectPath, String aclString, boolean storeEmptyDirectories) throws Exception
+    {
+        serviceEventAdaptor = new ProgressEventAdaptor();
+
+        // Group the entries by directory, leaving out those inside changed directories
+        Map<File, Set<File>> entriesByDirectory = new TreeMap<File, Set<File>>();
+        for (File entry: changedEntries) {
+            boolean isNested = false;
+            for (File parent = entry.getParentFile(); parent != null && !isNested;
+                parent = parent.getParentFile())
+            {
+                isNested = changedEntries.contains(parent);
+            }
+            if (!isNested) {
+                Set<File> entries = entriesByDirectory.get(entry.getParentFile());
+                if (entries == null) {
+                    entries = new TreeSet<File>();
+                    entriesByDirectory.put(entry.getParentFile(), entries);
+                }
+                entries.add(entry);
+            }
+        }
+
+        for (Map.Entry<File, Set<File>> group: entriesByDirectory.entrySet()) {
+            File directory = group.getKey();
+            File rootFile = findRootFile(files, directory);
+            if (rootFile == null) {
+                continue;
+            }
+            boolean isIgnoreFileChanged = false;
+            for (File entry: group.getValue()) {
+                isIgnoreFileChanged |= Constants.JETS3T_IGNORE_FILENAME.equals(entry.getName());
+            }
+            if (isIgnoreFileChanged || !directory.exists()) {
+                synchronizeChangedDirectory(rootFile, directory, bucket, objectPath,
+                    aclString, storeEmptyDirectories);
+            } else {
+                synchronizeChangedEntries(rootFile, directory, group.getValue(), bucket,
+                    objectPath, aclString, storeEmptyDirectories);
+            }
         }
     }
 
+    /**
+     * @return
+     * the watched file or directory that contains the given directory, or null if there
+     * is none.
+     */
+    private File findRootFile(File[] files, File directory) {
+        String directoryPath = directory.getAbsolutePath();
+        for (File file: files) {
+            String rootPath = file.getAbsolutePath();
+            if (directoryPath.equals(rootPath)
+                || directoryPath.startsWith(rootPath + File.separator))
+            {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Uploads the changed entries of a directory inside one of the watched directories,
+     * comparing them with the objects in the service for the same entries. The objects are
+     * found by looking up the key of each changed file and listing the path of each changed
+     * directory, without listing the directory's own path.
+     */
+    private void synchronizeChangedEntries(File rootFile, File directory, Set<File> entries,
+        StorageBucket bucket, String objectPath, String aclString,
+        boolean storeEmptyDirectories) throws Exception
+    {
+        Map<String, String> entriesMap = new TreeMap<String, String>();
+        String objectKeyPrefix = fileComparer.buildObjectKeyToFilepathMapForEntries(
+            rootFile, directory, entries, entriesMap, storeEmptyDirectories);
+        if (objectKeyPrefix == null) {
+            return;
+        }
+
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry: entriesMap.entrySet()) {
+            objectKeyToFilepathMap.put(
+                entry.getKey().substring(objectKeyPrefix.length()), entry.getValue());
+        }
+        changedEntries = new TreeMap<String, File>();
+        for (File entry: entries) {
+            changedEntries.put(fileComparer.normalizeUnicode(entry.getName()), entry);
+        }
+        printOutputLine("Changes in " + directory.getPath(), REPORT_LEVEL_ACTIONS);
+        try {
+            uploadLocalDirectory(objectKeyToFilepathMap, bucket,
+                buildTargetKey(objectPath, objectKeyPrefix), aclString,
+                createMd5GenerationProgressWatcher());
+        } finally {
+            changedEntries = null;
+        }
+    }
+
+    /**
+     * Uploads the contents of a directory inside one of the watched directories, comparing
+     * them only with the objects under the directory's own path in the service.
+     */
+    private void synchronizeChangedDirectory(File rootFile, File directory, StorageBucket bucket,
+        String objectPath, String aclString, boolean storeEmptyDirectories) throws Exception
+    {
+        // The objects of a deleted directory are removed when its parent is compared
+        while (!directory.exists() && !directory.equals(rootFile.getAbsoluteFile())) {
+            directory = directory.getParentFile();
+        }
+        Map<String, String> subdirectoryMap = new TreeMap<String, String>();
+        String objectKeyPrefix = fileComparer.buildObjectKeyToFilepathMapForSubdirectory(
+            rootFile, directory, subdirectoryMap, storeEmptyDirectories);
+        if (objectKeyPrefix == null) {
+            return;
+        }
+
+        Map<String, String> objectKeyToFilepathMap = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry: subdirectoryMap.entrySet()) {
+            objectKeyToFilepathMap.put(
+                entry.getKey().substring(objectKeyPrefix.length()), entry.getValue());
+        }
+        printOutputLine("Changes in " + directory.getPath(), REPORT_LEVEL_ACTIONS);
+        uploadLocalDirectory(objectKeyToFilepathMap, bucket,
+            buildTargetKey(objectPath, objectKeyPrefix), aclString,
+            createMd5GenerationProgressWatcher());
+    }
+
     /**
      * Runs the application, performing the action specified on the given service and local directory paths.
      *
@@ -1085,7 +1926,14 @@ public class Synchronize {
         printProgressLine(progressMessage);
     }
 
-    S3ServiceEventAdaptor serviceEventAdaptor = new S3ServiceEventAdaptor() {
+    S3ServiceEventAdaptor serviceEventAdaptor = new ProgressEventAdaptor();
+
+    /**
+     * Displays the progress of service operations, and records the first error to occur.
+     * Each synchronization uses a new adaptor, so an error does not outlive the
+     * synchronization in which it occurred.
+     */
+    private class ProgressEventAdaptor extends S3ServiceEventAdaptor {
         private void displayIgnoredErrors(ServiceEvent event) {
             if (ServiceEvent.EVENT_IGNORED_ERRORS == event.getEventCode()) {
                 Throwable[] throwables = event.getIgnoredErrors();
@@ -1149,6 +1997,15 @@ public class Synchronize {
             }
         }
 
+        @Override
+        public void event(CopyObjectsEvent event) {
+            super.event(event);
+            displayIgnoredErrors(event);
+            if (ServiceEvent.EVENT_IN_PROGRESS == event.getEventCode()) {
+                displayProgressStatus("Copying renamed objects in service: ", event.getThreadWatcher());
+            }
+        }
+
         @Override
         public void event(DeleteObjectsEvent event) {
             super.event(event);
@@ -1157,7 +2014,7 @@ public class Synchronize {
                 displayProgressStatus("Deleting objects in service: ", event.getThreadWatcher());
             }
         }
-    };
+    }
 
     private class ComparisonResult {
         public String priorLastKey;
@@ -1242,6 +2099,12 @@ public class Synchronize {
         System.out.println("   ensure file transfers commence as soon as possible. When this option is");
         System.out.println("   enabled, the progress status lines refer only to the progress of a single batch.");
         System.out.println("");
+        System.out.println("-w | --watch");
+        System.out.println("   Keep running after an upload, watching the local files for changes and");
+        System.out.println("   uploading the changes as they occur. All files are compared again");
+        System.out.println("   periodically, see the watch.* properties. Only applies to UP, and cannot");
+        System.out.println("   be used with --move.");
+        System.out.println("");
         System.out.println("-g | --gzip");
         System.out.println("   Compress (GZip) files when backing up and Decompress gzipped files");
         System.out.println("   when restoring.");
@@ -1267,9 +2130,9 @@ public class Synchronize {
         System.out.println("--reportlevel <Level>");
         System.out.println("   A number that specifies how much report information will be printed:");
         System.out.println("   0 - no report items will be printed (the summary will still be printed)");
-        System.out.println("   1 - only actions are reported          [Prefixes N, U, D, R, F, M]");
-        System.out.println("   2 - differences & actions are reported [Prefixes N, U, D, R, F, M, d, r]");
-        System.out.println("   3 - DEFAULT: all items are reported    [Prefixes N, U, D, R, F, M, d, r, -]");
+        System.out.println("   1 - only actions are reported          [Prefixes N, C, U, D, R, F, M]");
+        System.out.println("   2 - differences & actions are reported [Prefixes N, C, U, D, R, F, M, d, r]");
+        System.out.println("   3 - DEFAULT: all items are reported    [Prefixes N, C, U, D, R, F, M, d, r, -]");
         System.out.println("");
         System.out.println("Report");
         System.out.println("------");
@@ -1277,6 +2140,8 @@ public class Synchronize {
         System.out.println("the relative path of the file or object. The report legend follows:");
         System.out.println("");
         System.out.println("N: A new file/object will be created");
+        System.out.println("C: A new file has the same content as an object that does not exist on the");
+        System.out.println("   source, and will be copied from it in the service (upload.detect-renames)");
         System.out.println("U: An existing file/object has changed and will be updated");
         System.out.println("D: A file/object existing on the target does not exist on the source and");
         System.out.println("   will be deleted.");
@@ -1330,6 +2195,7 @@ public class Synchronize {
         boolean isEncryptionEnabled = false;
         boolean isMoveEnabled = false;
         boolean isBatchMode = false;
+        boolean isWatchMode = false;
         String aclString = null;
         int reportLevel = REPORT_LEVEL_ALL;
         ProviderCredentials providerCredentials = null;
@@ -1364,6 +2230,8 @@ public class Synchronize {
                     System.err.println("WARNING: --skipmetadata is obsolete since JetS3t 0.8.1, it has no effect");
                 } else if (arg.equalsIgnoreCase("-b") || arg.equalsIgnoreCase("--batch")) {
                     isBatchMode = true;
+                } else if (arg.equalsIgnoreCase("-w") || arg.equalsIgnoreCase("--watch")) {
+                    isWatchMode = true;
                 } else if (arg.equalsIgnoreCase("--provider")) {
                     if (i + 1 < args.length) {
                         // Read custom Synchronize properties file from the specified file
@@ -1549,6 +2417,12 @@ public class Synchronize {
             printHelpAndExit(false);
         }
 
+        if (isWatchMode && (isMoveEnabled || !"UP".equals(actionCommand))) {
+            // Incompatible options.
+            System.err.println("ERROR: Option --watch can only be used for UP, and not with --move");
+            printHelpAndExit(false);
+        }
+
         // Ensure the Synchronize properties file contains everything we need, and prompt
         // for any required information that is missing.
         if (!myProperties.containsKey("accesskey")
@@ -1629,11 +2503,18 @@ public class Synchronize {
             service, doAction, isQuiet, isNoProgress, isForce, isKeepFiles, isNoDelete,
             isMoveEnabled, isBatchMode, isGzipEnabled, isEncryptionEnabled,
             reportLevel, myProperties);
-        client.run(servicePath,
-            fileSet.toArray(new File[fileSet.size()]),
-            actionCommand,
-            myProperties.getStringProperty("password", null), aclString,
-            providerId.toUpperCase());
+        if (isWatchMode) {
+            client.watch(servicePath,
+                fileSet.toArray(new File[fileSet.size()]),
+                myProperties.getStringProperty("password", null), aclString,
+                providerId.toUpperCase());
+        } else {
+            client.run(servicePath,
+                fileSet.toArray(new File[fileSet.size()]),
+                actionCommand,
+                myProperties.getStringProperty("password", null), aclString,
+                providerId.toUpperCase());
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,359 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.apps.synchronize;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.StorageBucket;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.ServiceUtils;
+
+
+public class SynchronizeTest extends TestCase {
+
+    private File testDir;
+
+    /**
+     * Keeps uploaded objects in memory, and fails as many uploads as requested.
+     */
+    private static class InMemoryS3Service extends RestS3Service {
+        final Map<String, StorageObject> objects = new TreeMap<String, StorageObject>();
+        final List<String> putKeys = new ArrayList<String>();
+        final List<String> listingDelimiters = new ArrayList<String>();
+        final List<String> listingPrefixes = new ArrayList<String>();
+        final List<String> detailsKeys = new ArrayList<String>();
+        int failuresRemaining = 0;
+        Thread blockFirstPutUntilSubmitting = null;
+        boolean wasSubmittingDuringPut = false;
+
+        InMemoryS3Service() {
+            super(null);
+        }
+
+        @Override
+        protected synchronized StorageObject putObjectImpl(String bucketName,
+            StorageObject object) throws ServiceException
+        {
+            if (blockFirstPutUntilSubmitting != null) {
+                wasSubmittingDuringPut = waitUntilBlockedIn(
+                    blockFirstPutUntilSubmitting, "$UploadPipeline", "submit");
+                blockFirstPutUntilSubmitting = null;
+            }
+            try {
+                InputStream inputStream = object.getDataInputStream();
+                if (inputStream != null) {
+                    byte[] buffer = new byte[8192];
+                    while (inputStream.read(buffer) != -1) {
+                        // Discard the data, only its hash is kept
+                    }
+                    inputStream.close();
+                }
+            } catch (Exception e) {
+                throw new ServiceException(e);
+            }
+            if (failuresRemaining > 0) {
+                failuresRemaining--;
+                throw new ServiceException("Injected failure for " + object.getKey());
+            }
+            putKeys.add(object.getKey());
+            object.setETag(object.getMd5HashAsHex());
+            object.setLastModifiedDate(new Date());
+            object.setDataInputFile(null);
+            objects.put(object.getKey(), object);
+            return object;
+        }
+
+        @Override
+        protected synchronized void deleteObjectImpl(String bucketName, String objectKey,
+            String versionId, String multiFactorSerialNumber, String multiFactorAuthCode)
+        {
+            objects.remove(objectKey);
+        }
+
+        @Override
+        protected synchronized StorageObjectsChunk listObjectsInternal(String bucketName,
+            String prefix, String delimiter, long maxListingLength,
+            boolean automaticallyMergeChunks, String priorLastKey) throws ServiceException
+        {
+            listingDelimiters.add(delimiter);
+            listingPrefixes.add(prefix);
+            String keyPrefix = (prefix == null ? "" : prefix);
+            List<StorageObject> matches = new ArrayList<StorageObject>();
+            TreeSet<String> commonPrefixes = new TreeSet<String>();
+            for (StorageObject object: objects.values()) {
+                if (!object.getKey().startsWith(keyPrefix)) {
+                    continue;
+                }
+                int delimiterIndex = (delimiter == null ? -1
+                    : object.getKey().indexOf(delimiter, keyPrefix.length()));
+                if (delimiterIndex >= 0) {
+                    commonPrefixes.add(object.getKey().substring(0, delimiterIndex + 1));
+                } else {
+                    matches.add(object);
+                }
+            }
+            return new StorageObjectsChunk(prefix, delimiter,
+                matches.toArray(new StorageObject[matches.size()]),
+                commonPrefixes.toArray(new String[commonPrefixes.size()]), null);
+        }
+
+        @Override
+        protected synchronized StorageObject getObjectDetailsImpl(String bucketName,
+            String objectKey, Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
+            String[] ifMatchTags, String[] ifNoneMatchTags, String versionId)
+            throws ServiceException
+        {
+            detailsKeys.add(objectKey);
+            StorageObject object = objects.get(objectKey);
+            if (object == null) {
+                ServiceException e = new ServiceException("Not found: " + objectKey);
+                e.setResponseCode(404);
+                throw e;
+            }
+            return object;
+        }
+    }
+
+    /**
+     * Waits until a thread is blocked inside the named method.
+     */
+    private static boolean waitUntilBlockedIn(Thread thread, String classNameSuffix,
+        String methodName)
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.State state = thread.getState();
+            if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                for (StackTraceElement element: thread.getStackTrace()) {
+                    if (element.getClassName().endsWith(classNameSuffix)
+                        && methodName.equals(element.getMethodName()))
+                    {
+                        return true;
+                    }
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        testDir = File.createTempFile("synchronize", "");
+        testDir.delete();
+        testDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(testDir);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File createFile(File directory, String name, String content) throws Exception {
+        directory.mkdirs();
+        File file = new File(directory, name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes(Constants.DEFAULT_ENCODING));
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private Synchronize createSynchronize(InMemoryS3Service service) {
+        return new Synchronize(service, true, true, true, false, false, false, false,
+            false, false, false, Synchronize.REPORT_LEVEL_NONE, service.getJetS3tProperties());
+    }
+
+    public void testFailedRunDoesNotFailNextRun() throws Exception {
+        createFile(testDir, "a.txt", "first file");
+        createFile(testDir, "b.txt", "second file");
+
+        InMemoryS3Service service = new InMemoryS3Service();
+        service.failuresRemaining = 1;
+        Synchronize synchronize = createSynchronize(service);
+        File[] files = new File[] {testDir};
+
+        try {
+            synchronize.run("bucket/path", files, "UP", null, "PRIVATE", "S3");
+            fail("Injected upload failure was not reported");
+        } catch (ServiceException e) {
+            // Expected
+        }
+
+        synchronize.run("bucket/path", files, "UP", null, "PRIVATE", "S3");
+        String keyPrefix = "path/" + testDir.getName() + "/";
+        assertTrue(service.objects.containsKey(keyPrefix + "a.txt"));
+        assertTrue(service.objects.containsKey(keyPrefix + "b.txt"));
+    }
+
+    public void testUploadFailureIsReportedByPipelineOnly() throws Exception {
+        createFile(testDir, "a.txt", "first file");
+
+        InMemoryS3Service service = new InMemoryS3Service();
+        service.failuresRemaining = 1;
+        service.getJetS3tProperties().setProperty("upload.pipeline-queue-size", "2");
+        Synchronize synchronize = createSynchronize(service);
+
+        try {
+            synchronize.run("bucket/path", new File[] {testDir}, "UP", null, "PRIVATE", "S3");
+            fail("Injected upload failure was not reported");
+        } catch (ServiceException e) {
+            assertTrue(e.getMessage().indexOf("Injected failure") >= 0);
+        }
+        assertFalse(synchronize.serviceEventAdaptor.wasErrorThrown());
+    }
+
+    public void testBatchesArePreparedWhileEarlierBatchIsUploaded() throws Exception {
+        createFile(testDir, "a.txt", "first file");
+        createFile(testDir, "b.txt", "second file");
+        createFile(testDir, "c.txt", "third file");
+
+        InMemoryS3Service service = new InMemoryS3Service();
+        service.getJetS3tProperties().setProperty("upload.pipeline-batch-size", "1");
+        service.blockFirstPutUntilSubmitting = Thread.currentThread();
+        Synchronize synchronize = createSynchronize(service);
+        synchronize.run("bucket/path", new File[] {testDir}, "UP", null, "PRIVATE", "S3");
+
+        // While the first batch was uploaded, the second was prepared and queued and the
+        // third prepared and submitted
+        assertTrue(service.wasSubmittingDuringPut);
+        assertEquals(4, service.objects.size());
+    }
+
+    public void testChangedEntriesAreComparedWithoutListingSubtree() throws Exception {
+        File changedFile = createFile(testDir, "a.txt", "first file");
+        createFile(testDir, "b.txt", "second file");
+        createFile(new File(testDir, "sub"), "c.txt", "nested file");
+
+        InMemoryS3Service service = new InMemoryS3Service();
+        Synchronize synchronize = createSynchronize(service);
+        File[] files = new File[] {testDir};
+        synchronize.run("bucket/path", files, "UP", null, "PRIVATE", "S3");
+        // The watched directory, its sub-directory and their three files
+        assertEquals(5, service.objects.size());
+
+        createFile(testDir, "a.txt", "FIRST FILE");
+        service.putKeys.clear();
+        service.listingDelimiters.clear();
+        service.detailsKeys.clear();
+        synchronize.synchronizeChanges(files, Collections.singleton(changedFile),
+            new StorageBucket("bucket"), "path", "PRIVATE", true);
+
+        // The changed file's object is looked up directly, without listing its directory
+        String keyPrefix = "path/" + testDir.getName() + "/";
+        assertEquals(Collections.singletonList(keyPrefix + "a.txt"), service.putKeys);
+        assertTrue(service.listingDelimiters.isEmpty());
+        assertEquals(keyPrefix + "a.txt", service.detailsKeys.get(0));
+        assertEquals(ServiceUtils.toHex(ServiceUtils.computeMD5Hash(
+            "FIRST FILE".getBytes(Constants.DEFAULT_ENCODING))),
+            service.objects.get(keyPrefix + "a.txt").getETag());
+    }
+
+    public void testChangedDirectoryIsListedByItsPrefix() throws Exception {
+        createFile(testDir, "a.txt", "first file");
+        createFile(new File(testDir, "sub"), "c.txt", "nested file");
+
+        InMemoryS3Service service = new InMemoryS3Service();
+        Synchronize synchronize = createSynchronize(service);
+        File[] files = new File[] {testDir};
+        synchronize.run("bucket/path", files, "UP", null, "PRIVATE", "S3");
+
+        File newDirectory = new File(testDir, "new");
+        createFile(newDirectory, "d.txt", "new file");
+        File deletedFile = new File(testDir, "a.txt");
+        assertTrue(deletedFile.delete());
+        Set<File> changedEntries = new TreeSet<File>();
+        changedEntries.add(newDirectory);
+        changedEntries.add(deletedFile);
+        service.putKeys.clear();
+        service.listingPrefixes.clear();
+        synchronize.synchronizeChanges(files, changedEntries,
+            new StorageBucket("bucket"), "path", "PRIVATE", true);
+
+        // The new directory is listed by its own path, and the deleted entry is looked up
+        // as both a file and a directory
+        String keyPrefix = "path/" + testDir.getName() + "/";
+        assertEquals(Arrays.asList(keyPrefix + "a.txt/", keyPrefix + "new/"),
+            service.listingPrefixes);
+        assertTrue(service.putKeys.contains(keyPrefix + "new/d.txt"));
+        assertFalse(service.objects.containsKey(keyPrefix + "a.txt"));
+        assertTrue(service.objects.containsKey(keyPrefix + "sub/c.txt"));
+    }
+
+    public void testWatchStopsWhenInterrupted() throws Exception {
+        createFile(testDir, "a.txt", "first file");
+
+        InMemoryS3Service service = new InMemoryS3Service();
+        final Synchronize synchronize = createSynchronize(service);
+        final File[] files = new File[] {testDir};
+        final Exception[] failure = new Exception[1];
+        final boolean[] wasInterrupted = new boolean[1];
+        Thread watchThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    synchronize.watch("bucket/path", files, null, "PRIVATE", "S3");
+                    wasInterrupted[0] = Thread.currentThread().isInterrupted();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        watchThread.setDaemon(true);
+        watchThread.start();
+
+        assertTrue(waitUntilBlockedIn(watchThread, "DirectoryChangeWatcher", "awaitChanges"));
+        watchThread.interrupt();
+        watchThread.join(10000);
+        assertFalse(watchThread.isAlive());
+        assertNull(failure[0]);
+        assertTrue(wasInterrupted[0]);
+    }
+}